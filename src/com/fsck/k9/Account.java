@@ -80,8 +80,15 @@ public class Account implements BaseAccount {
     public static final boolean DEFAULT_QUOTED_TEXT_SHOWN = true;
     public static final boolean DEFAULT_REPLY_AFTER_QUOTE = false;
     public static final boolean DEFAULT_STRIP_SIGNATURE = true;
+    public static final int DEFAULT_MAX_SYNC_CONNECTIONS = 3;
     public static final int DEFAULT_REMOTE_SEARCH_NUM_RESULTS = 25;
 
+    /**
+     * Deflate level for IMAP compression. 1 is zlib's {@code Z_BEST_SPEED}; higher levels
+     * cost noticeably more CPU for little gain on typical IMAP traffic.
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 1;
+
     public static final String ACCOUNT_DESCRIPTION_KEY = "description";
     public static final String STORE_URI_KEY = "storeUri";
     public static final String TRANSPORT_URI_KEY = "transportUri";
@@ -182,10 +189,12 @@ public class Account implements BaseAccount {
     private boolean mIsSignatureBeforeQuotedText;
     private String mExpungePolicy = EXPUNGE_IMMEDIATELY;
     private int mMaxPushFolders;
+    private int mMaxSyncConnections;
     private int mIdleRefreshMinutes;
     private boolean goToUnreadMessageSearch;
     private boolean mNotificationShowsUnreadCount;
     private final Map<String, Boolean> compressionMap = new ConcurrentHashMap<String, Boolean>();
+    private final Map<String, Integer> compressionLevelMap = new ConcurrentHashMap<String, Integer>();
     private Searchable searchableFolders;
     private boolean subscribedFoldersOnly;
     private int maximumPolledMessageAge;
@@ -286,6 +295,7 @@ public class Account implements BaseAccount {
         mAutoExpandFolderName = INBOX;
         mInboxFolderName = INBOX;
         mMaxPushFolders = 10;
+        mMaxSyncConnections = DEFAULT_MAX_SYNC_CONNECTIONS;
         mChipColor = pickColor(context);
         goToUnreadMessageSearch = false;
         mNotificationShowsUnreadCount = true;
@@ -394,6 +404,7 @@ public class Account implements BaseAccount {
         mSyncRemoteDeletions = prefs.getBoolean(mUuid  + ".syncRemoteDeletions", true);
 
         mMaxPushFolders = prefs.getInt(mUuid + ".maxPushFolders", 10);
+        mMaxSyncConnections = prefs.getInt(mUuid + ".maxSyncConnections", DEFAULT_MAX_SYNC_CONNECTIONS);
         goToUnreadMessageSearch = prefs.getBoolean(mUuid + ".goToUnreadMessageSearch", false);
         mNotificationShowsUnreadCount = prefs.getBoolean(mUuid + ".notificationUnreadCount", true);
         subscribedFoldersOnly = prefs.getBoolean(mUuid + ".subscribedFoldersOnly", false);
@@ -414,6 +425,9 @@ public class Account implements BaseAccount {
             Boolean useCompression = prefs.getBoolean(mUuid + ".useCompression." + type,
                                      true);
             compressionMap.put(type, useCompression);
+            int compressionLevel = prefs.getInt(mUuid + ".compressionLevel." + type,
+                                   DEFAULT_COMPRESSION_LEVEL);
+            compressionLevelMap.put(type, compressionLevel);
         }
 
         mAutoExpandFolderName = prefs.getString(mUuid  + ".autoExpandFolderName", INBOX);
@@ -561,6 +575,7 @@ public class Account implements BaseAccount {
         editor.remove(mUuid + ".expungePolicy");
         editor.remove(mUuid + ".syncRemoteDeletions");
         editor.remove(mUuid + ".maxPushFolders");
+        editor.remove(mUuid + ".maxSyncConnections");
         editor.remove(mUuid + ".searchableFolders");
         editor.remove(mUuid + ".chipColor");
         editor.remove(mUuid + ".led");
@@ -587,6 +602,7 @@ public class Account implements BaseAccount {
         editor.remove(mUuid + ".alwaysShowCcBcc");
         for (String type : networkTypes) {
             editor.remove(mUuid + ".useCompression." + type);
+            editor.remove(mUuid + ".compressionLevel." + type);
         }
         deleteIdentities(preferences.getPreferences(), editor);
         editor.commit();
@@ -718,6 +734,7 @@ public class Account implements BaseAccount {
         editor.putString(mUuid + ".expungePolicy", mExpungePolicy);
         editor.putBoolean(mUuid + ".syncRemoteDeletions", mSyncRemoteDeletions);
         editor.putInt(mUuid + ".maxPushFolders", mMaxPushFolders);
+        editor.putInt(mUuid + ".maxSyncConnections", mMaxSyncConnections);
         editor.putString(mUuid + ".searchableFolders", searchableFolders.name());
         editor.putInt(mUuid + ".chipColor", mChipColor);
         editor.putBoolean(mUuid + ".goToUnreadMessageSearch", goToUnreadMessageSearch);
@@ -764,6 +781,10 @@ public class Account implements BaseAccount {
             if (useCompression != null) {
                 editor.putBoolean(mUuid + ".useCompression." + type, useCompression);
             }
+            Integer compressionLevel = compressionLevelMap.get(type);
+            if (compressionLevel != null) {
+                editor.putInt(mUuid + ".compressionLevel." + type, compressionLevel);
+            }
         }
         saveIdentities(preferences.getPreferences(), editor);
 
@@ -1286,6 +1307,18 @@ public class Account implements BaseAccount {
         return oldMaxPushFolders != maxPushFolders;
     }
 
+    /**
+     * Maximum number of folders of this account that may be synchronized at the same time.
+     * Each concurrently synchronized folder uses its own connection to the server.
+     */
+    public synchronized int getMaxSyncConnections() {
+        return mMaxSyncConnections;
+    }
+
+    public synchronized void setMaxSyncConnections(int maxSyncConnections) {
+        mMaxSyncConnections = maxSyncConnections;
+    }
+
     public LocalStore getLocalStore() throws MessagingException {
         return Store.getLocalInstance(this, K9.app);
     }
@@ -1321,16 +1354,39 @@ public class Account implements BaseAccount {
     }
 
     public boolean useCompression(int type) {
-        String networkType = TYPE_OTHER;
+        return useCompression(getNetworkType(type));
+    }
+
+    public synchronized void setCompressionLevel(String networkType, int compressionLevel) {
+        compressionLevelMap.put(networkType, compressionLevel);
+    }
+
+    /**
+     * Returns the deflate level (0 to 9) used for IMAP {@code COMPRESS=DEFLATE} on the given
+     * network type.
+     */
+    public synchronized int getCompressionLevel(String networkType) {
+        Integer compressionLevel = compressionLevelMap.get(networkType);
+        if (compressionLevel == null) {
+            return DEFAULT_COMPRESSION_LEVEL;
+        }
+
+        return compressionLevel;
+    }
+
+    public int getCompressionLevel(int type) {
+        return getCompressionLevel(getNetworkType(type));
+    }
+
+    private static String getNetworkType(int type) {
         switch (type) {
         case ConnectivityManager.TYPE_MOBILE:
-            networkType = TYPE_MOBILE;
-            break;
+            return TYPE_MOBILE;
         case ConnectivityManager.TYPE_WIFI:
-            networkType = TYPE_WIFI;
-            break;
+            return TYPE_WIFI;
+        default:
+            return TYPE_OTHER;
         }
-        return useCompression(networkType);
     }
 
     @Override
@@ -255,6 +255,8 @@ public class K9 extends Application {
     private static boolean useGalleryBugWorkaround = false;
     private static boolean galleryBuggy;
 
+    private static boolean mDatabaseWriteAheadLogging = false;
+
     private static SortType mSortType;
     private static HashMap<SortType, Boolean> mSortAscending = new HashMap<SortType, Boolean>();
 
@@ -531,6 +533,7 @@ public class K9 extends Application {
         editor.putInt("messageComposeTheme", composerTheme.ordinal());
         editor.putBoolean("fixedMessageViewTheme", useFixedMessageTheme);
         editor.putBoolean("useGalleryBugWorkaround", useGalleryBugWorkaround);
+        editor.putBoolean("databaseWriteAheadLogging", mDatabaseWriteAheadLogging);
 
         editor.putBoolean("confirmDelete", mConfirmDelete);
         editor.putBoolean("confirmDeleteStarred", mConfirmDeleteStarred);
@@ -570,10 +573,14 @@ public class K9 extends Application {
 
         sIsDebuggable = ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
 
+        long startTime = System.currentTimeMillis();
         checkCachedDatabaseVersion();
+        long databaseVersionTime = System.currentTimeMillis();
 
         Preferences prefs = Preferences.getPreferences(this);
+        long preferencesTime = System.currentTimeMillis();
         loadPrefs(prefs);
+        long globalSettingsTime = System.currentTimeMillis();
 
         /*
          * We have to give MimeMessage a temp directory because File.createTempFile(String, String)
@@ -586,8 +593,15 @@ public class K9 extends Application {
          */
 
         setServicesEnabled(this);
+        long accountsTime = System.currentTimeMillis();
         registerReceivers();
 
+        Log.i(LOG_TAG, "Startup took " + (accountsTime - startTime) + "ms: database versions " +
+              (databaseVersionTime - startTime) + "ms, preferences " +
+              (preferencesTime - databaseVersionTime) + "ms, global settings " +
+              (globalSettingsTime - preferencesTime) + "ms, accounts and services " +
+              (accountsTime - globalSettingsTime) + "ms");
+
         MessagingController.getInstance(this).addListener(new MessagingListener() {
             private void broadcastIntent(String action, Account account, String folder, Message message) {
                 try {
@@ -731,6 +745,7 @@ public class K9 extends Application {
         mWrapFolderNames = sprefs.getBoolean("wrapFolderNames", false);
 
         useGalleryBugWorkaround = sprefs.getBoolean("useGalleryBugWorkaround", K9.isGalleryBuggy());
+        mDatabaseWriteAheadLogging = sprefs.getBoolean("databaseWriteAheadLogging", false);
 
         mConfirmDelete = sprefs.getBoolean("confirmDelete", false);
         mConfirmDeleteStarred = sprefs.getBoolean("confirmDeleteStarred", false);
@@ -1202,6 +1217,18 @@ public class K9 extends Application {
         K9.useGalleryBugWorkaround = useGalleryBugWorkaround;
     }
 
+    /**
+     * Whether account databases should be opened in SQLite's write-ahead logging mode. Changes
+     * take effect the next time a database is opened.
+     */
+    public static boolean useDatabaseWriteAheadLogging() {
+        return mDatabaseWriteAheadLogging;
+    }
+
+    public static void setUseDatabaseWriteAheadLogging(boolean databaseWriteAheadLogging) {
+        mDatabaseWriteAheadLogging = databaseWriteAheadLogging;
+    }
+
     public static boolean isGalleryBuggy() {
         return galleryBuggy;
     }
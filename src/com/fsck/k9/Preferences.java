@@ -43,7 +43,7 @@ public class Preferences {
     private Preferences(Context context) {
         mStorage = Storage.getStorage(context);
         mContext = context;
-        if (mStorage.size() == 0) {
+        if (mStorage.isEmpty()) {
             Log.i(K9.LOG_TAG, "Preferences storage is zero-size, importing from Android-style preferences");
             Editor editor = mStorage.edit();
             editor.copy(context.getSharedPreferences("AndroidMail.Main", Context.MODE_PRIVATE));
@@ -52,6 +52,7 @@ public class Preferences {
     }
 
     public synchronized void loadAccounts() {
+        long startTime = System.currentTimeMillis();
         accounts = new HashMap<String, Account>();
         accountsInOrder = new LinkedList<Account>();
         String accountUuids = getPreferences().getString("accountUuids", null);
@@ -68,6 +69,10 @@ public class Preferences {
             accountsInOrder.add(newAccount);
             newAccount = null;
         }
+        if (K9.DEBUG) {
+            long endTime = System.currentTimeMillis();
+            Log.d(K9.LOG_TAG, "Loading " + accounts.size() + " accounts took " + (endTime - startTime) + "ms");
+        }
     }
 
     /**
@@ -83,6 +83,7 @@ public class AccountSettings extends K9PreferenceActivity {
     private static final String PREFERENCE_PUSH_MODE = "folder_push_mode";
     private static final String PREFERENCE_PUSH_POLL_ON_CONNECT = "push_poll_on_connect";
     private static final String PREFERENCE_MAX_PUSH_FOLDERS = "max_push_folders";
+    private static final String PREFERENCE_MAX_SYNC_CONNECTIONS = "max_sync_connections";
     private static final String PREFERENCE_IDLE_REFRESH_PERIOD = "idle_refresh_period";
     private static final String PREFERENCE_TARGET_MODE = "folder_target_mode";
     private static final String PREFERENCE_DELETE_POLICY = "delete_policy";
@@ -125,6 +126,7 @@ public class AccountSettings extends K9PreferenceActivity {
     private boolean mIsMoveCapable = false;
     private boolean mIsPushCapable = false;
     private boolean mIsExpungeCapable = false;
+    private boolean mIsParallelSyncCapable = false;
     private boolean mIsSeenFlagSupported = false;
 
     private PreferenceScreen mMainScreen;
@@ -170,6 +172,7 @@ public class AccountSettings extends K9PreferenceActivity {
     private CheckBoxPreference mPushPollOnConnect;
     private ListPreference mIdleRefreshPeriod;
     private ListPreference mMaxPushFolders;
+    private ListPreference mMaxSyncConnections;
     private boolean mHasCrypto = false;
     private ListPreference mCryptoApp;
     private CheckBoxPreference mCryptoAutoSignature;
@@ -211,6 +214,7 @@ public class AccountSettings extends K9PreferenceActivity {
             mIsMoveCapable = store.isMoveCapable();
             mIsPushCapable = store.isPushCapable();
             mIsExpungeCapable = store.isExpungeCapable();
+            mIsParallelSyncCapable = store.isParallelSyncCapable();
             mIsSeenFlagSupported = store.isSeenFlagSupported();
         } catch (Exception e) {
             Log.e(K9.LOG_TAG, "Could not get remote store", e);
@@ -341,6 +345,23 @@ public class AccountSettings extends K9PreferenceActivity {
             }
         });
 
+        mMaxSyncConnections = (ListPreference) findPreference(PREFERENCE_MAX_SYNC_CONNECTIONS);
+        if (mIsParallelSyncCapable) {
+            mMaxSyncConnections.setValue(String.valueOf(mAccount.getMaxSyncConnections()));
+            mMaxSyncConnections.setSummary(mMaxSyncConnections.getEntry());
+            mMaxSyncConnections.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    final String summary = newValue.toString();
+                    int index = mMaxSyncConnections.findIndexOfValue(summary);
+                    mMaxSyncConnections.setSummary(mMaxSyncConnections.getEntries()[index]);
+                    mMaxSyncConnections.setValue(summary);
+                    return false;
+                }
+            });
+        } else {
+            ((PreferenceScreen) findPreference(PREFERENCE_SCREEN_INCOMING)).removePreference(mMaxSyncConnections);
+        }
+
 
         mTargetMode = (ListPreference) findPreference(PREFERENCE_TARGET_MODE);
         mTargetMode.setValue(mAccount.getFolderTargetMode().name());
@@ -779,6 +800,9 @@ public class AccountSettings extends K9PreferenceActivity {
         if (mIsExpungeCapable) {
             mAccount.setExpungePolicy(mExpungePolicy.getValue());
         }
+        if (mIsParallelSyncCapable) {
+            mAccount.setMaxSyncConnections(Integer.parseInt(mMaxSyncConnections.getValue()));
+        }
         mAccount.setSyncRemoteDeletions(mSyncRemoteDeletions.isChecked());
         mAccount.setSearchableFolders(Account.Searchable.valueOf(mSearchableFolders.getValue()));
         mAccount.setMessageFormat(Account.MessageFormat.valueOf(mMessageFormat.getValue()));
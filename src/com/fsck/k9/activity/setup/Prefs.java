@@ -89,6 +89,7 @@ public class Prefs extends K9PreferenceActivity {
     private static final String PREFERENCE_AUTOFIT_WIDTH = "messageview_autofit_width";
     private static final String PREFERENCE_BACKGROUND_OPS = "background_ops";
     private static final String PREFERENCE_GALLERY_BUG_WORKAROUND = "use_gallery_bug_workaround";
+    private static final String PREFERENCE_DATABASE_WAL = "database_write_ahead_logging";
     private static final String PREFERENCE_DEBUG_LOGGING = "debug_logging";
     private static final String PREFERENCE_SENSITIVE_LOGGING = "sensitive_logging";
 
@@ -137,6 +138,7 @@ public class Prefs extends K9PreferenceActivity {
     private CheckBoxPreference mAutofitWidth;
     private ListPreference mBackgroundOps;
     private CheckBoxPreference mUseGalleryBugWorkaround;
+    private CheckBoxPreference mDatabaseWriteAheadLogging;
     private CheckBoxPreference mDebugLogging;
     private CheckBoxPreference mSensitiveLogging;
     private CheckBoxPreference mWrapFolderNames;
@@ -379,6 +381,10 @@ public class Prefs extends K9PreferenceActivity {
         mUseGalleryBugWorkaround = (CheckBoxPreference)findPreference(PREFERENCE_GALLERY_BUG_WORKAROUND);
         mUseGalleryBugWorkaround.setChecked(K9.useGalleryBugWorkaround());
 
+        mDatabaseWriteAheadLogging = (CheckBoxPreference)findPreference(PREFERENCE_DATABASE_WAL);
+        mDatabaseWriteAheadLogging.setChecked(K9.useDatabaseWriteAheadLogging());
+        mDatabaseWriteAheadLogging.setEnabled(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN);
+
         mDebugLogging = (CheckBoxPreference)findPreference(PREFERENCE_DEBUG_LOGGING);
         mSensitiveLogging = (CheckBoxPreference)findPreference(PREFERENCE_SENSITIVE_LOGGING);
 
@@ -525,6 +531,7 @@ public class Prefs extends K9PreferenceActivity {
         K9.setAttachmentDefaultPath(mAttachmentPathPreference.getSummary().toString());
         boolean needsRefresh = K9.setBackgroundOps(mBackgroundOps.getValue());
         K9.setUseGalleryBugWorkaround(mUseGalleryBugWorkaround.isChecked());
+        K9.setUseDatabaseWriteAheadLogging(mDatabaseWriteAheadLogging.isChecked());
 
         if (!K9.DEBUG && mDebugLogging.isChecked()) {
             Toast.makeText(this, R.string.debug_logging_enabled, Toast.LENGTH_LONG).show();
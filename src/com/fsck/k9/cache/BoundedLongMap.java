@@ -0,0 +1,363 @@
+package com.fsck.k9.cache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded map with {@code long} keys and {@code long} values.
+ *
+ * <p>
+ * Lookups don't lock. All entries are kept in an immutable table (apart from the access
+ * times) that is replaced as a whole by every write. Writes are serialized and cost time
+ * proportional to the size of the map, so callers should pass all keys of a batch operation
+ * in one call.
+ * </p>
+ * <p>
+ * When a write makes the map grow beyond its maximum size, the least recently used entries are
+ * evicted until only {@value #EVICTION_FILL_PERCENT}% of the maximum size remain. Lookups record
+ * their access time without synchronization, so the order is approximate.
+ * </p>
+ */
+public class BoundedLongMap {
+    private static final int EVICTION_FILL_PERCENT = 75;
+
+
+    private final int mMaxSize;
+    private volatile Table mTable = new Table(0);
+
+    /**
+     * Logical clock for the access times. Incremented without synchronization, so two entries
+     * may end up with the same time. That only affects the eviction order.
+     */
+    private long mClock = 0;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+
+    public BoundedLongMap(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the value for {@code key}, or {@code defaultValue} if there's none.
+     */
+    public long get(long key, long defaultValue) {
+        Table table = mTable;
+        int index = table.indexOf(key);
+        if (index == -1) {
+            mMisses.incrementAndGet();
+            return defaultValue;
+        }
+
+        mHits.incrementAndGet();
+        table.accessTimes[index] = ++mClock;
+        return table.values[index];
+    }
+
+    public int size() {
+        return mTable.size;
+    }
+
+    public boolean isEmpty() {
+        return mTable.size == 0;
+    }
+
+    /**
+     * Sets the bits in {@code mask} of every key's value to {@code bits}. Keys that are not in
+     * the map are added with the value {@code bits}.
+     */
+    public synchronized void setBits(List<Long> keys, long mask, long bits) {
+        Table.Builder builder = mTable.edit(keys.size());
+        for (Long key : keys) {
+            int index = builder.indexOf(key);
+            if (index == -1) {
+                builder.add(key, bits, ++mClock);
+            } else {
+                builder.setValue(index, (builder.values[index] & ~mask) | (bits & mask));
+            }
+        }
+        publish(builder);
+    }
+
+    /**
+     * Clears the bits in {@code mask} of every key's value. Entries whose value becomes
+     * {@code 0} are removed.
+     */
+    public synchronized void clearBits(List<Long> keys, long mask) {
+        Table.Builder builder = mTable.edit(0);
+        for (Long key : keys) {
+            int index = builder.indexOf(key);
+            if (index != -1) {
+                long value = builder.values[index] & ~mask;
+                builder.setValue(index, value);
+                if (value == 0) {
+                    builder.remove(index);
+                }
+            }
+        }
+        publish(builder);
+    }
+
+    /**
+     * Maps {@code keys[i]} to {@code values[i]}.
+     */
+    public synchronized void putAll(long[] keys, long[] values) {
+        Table.Builder builder = mTable.edit(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            int index = builder.indexOf(keys[i]);
+            if (index == -1) {
+                builder.add(keys[i], values[i], ++mClock);
+            } else {
+                builder.setValue(index, values[i]);
+            }
+        }
+        publish(builder);
+    }
+
+    /**
+     * Removes {@code keys[i]} if it's mapped to {@code values[i]}.
+     */
+    public synchronized void removeAll(long[] keys, long[] values) {
+        Table.Builder builder = mTable.edit(0);
+        for (int i = 0; i < keys.length; i++) {
+            int index = builder.indexOf(keys[i]);
+            if (index != -1 && builder.values[index] == values[i]) {
+                builder.remove(index);
+            }
+        }
+        publish(builder);
+    }
+
+    public synchronized void clear() {
+        mTable = new Table(0);
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + "/" + mMaxSize + ", hits=" + getHitCount() + ", misses=" +
+                getMissCount() + ", evictions=" + getEvictionCount();
+    }
+
+    private void publish(Table.Builder builder) {
+        int size = builder.size - builder.removedCount;
+        if (size > mMaxSize) {
+            int evictionCount = size - mMaxSize * EVICTION_FILL_PERCENT / 100;
+            builder.evictLeastRecentlyUsed(evictionCount);
+            mEvictions.addAndGet(evictionCount);
+        }
+
+        if (builder.changed) {
+            mTable = builder.build();
+        }
+    }
+
+
+    /**
+     * Entries in insertion order plus an open addressing hash table of their indexes.
+     */
+    private static class Table {
+        final long[] keys;
+        final long[] values;
+        final long[] accessTimes;
+        final int size;
+
+        /**
+         * {@code index + 1} of the entries, {@code 0} marks a free slot.
+         */
+        private final int[] mSlots;
+
+        Table(int capacity) {
+            this(new long[capacity], new long[capacity], new long[capacity], 0);
+        }
+
+        Table(long[] keys, long[] values, long[] accessTimes, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.accessTimes = accessTimes;
+            this.size = size;
+            mSlots = createSlots(keys, size, size);
+        }
+
+        int indexOf(long key) {
+            return find(mSlots, keys, key);
+        }
+
+        Builder edit(int additionalEntries) {
+            return new Builder(this, additionalEntries);
+        }
+
+        static int[] createSlots(long[] keys, int size, int capacity) {
+            int length = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1;
+            int[] slots = new int[length];
+            for (int index = 0; index < size; index++) {
+                insert(slots, keys[index], index);
+            }
+            return slots;
+        }
+
+        static void insert(int[] slots, long key, int index) {
+            int mask = slots.length - 1;
+            int slot = hash(key) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index + 1;
+        }
+
+        static int find(int[] slots, long[] keys, long key) {
+            int mask = slots.length - 1;
+            int slot = hash(key) & mask;
+            int entry;
+            while ((entry = slots[slot]) != 0) {
+                if (keys[entry - 1] == key) {
+                    return entry - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        static int hash(long key) {
+            int h = (int) (key ^ (key >>> 32));
+            // Spread consecutive IDs over the table
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+
+        /**
+         * A modifiable copy of a {@link Table}.
+         *
+         * <p>
+         * Removed entries stay in the arrays and the slots until {@link #build()} so indexes
+         * don't change while editing. A builder created without room for additional entries
+         * shares the slots of its table and must not {@link #add(long, long, long)} entries.
+         * </p>
+         */
+        static class Builder {
+            long[] keys;
+            long[] values;
+            long[] accessTimes;
+            int size;
+            boolean[] removed;
+            int removedCount;
+            boolean changed;
+            private int[] mSlots;
+
+            Builder(Table table, int additionalEntries) {
+                int capacity = table.size + additionalEntries;
+                size = table.size;
+                keys = copyOf(table.keys, size, capacity);
+                values = copyOf(table.values, size, capacity);
+                accessTimes = copyOf(table.accessTimes, size, capacity);
+                removed = new boolean[capacity];
+                mSlots = (additionalEntries == 0) ? table.mSlots :
+                        createSlots(keys, size, capacity);
+            }
+
+            int indexOf(long key) {
+                int index = find(mSlots, keys, key);
+                return (index != -1 && removed[index]) ? -1 : index;
+            }
+
+            void add(long key, long value, long accessTime) {
+                int index = find(mSlots, keys, key);
+                if (index != -1) {
+                    // Re-add a removed entry in place
+                    removed[index] = false;
+                    removedCount--;
+                } else {
+                    index = size++;
+                    keys[index] = key;
+                    insert(mSlots, key, index);
+                }
+                values[index] = value;
+                accessTimes[index] = accessTime;
+                changed = true;
+            }
+
+            void setValue(int index, long value) {
+                if (values[index] != value) {
+                    values[index] = value;
+                    changed = true;
+                }
+            }
+
+            void remove(int index) {
+                if (!removed[index]) {
+                    removed[index] = true;
+                    removedCount++;
+                    changed = true;
+                }
+            }
+
+            void evictLeastRecentlyUsed(int count) {
+                long[] times = new long[size - removedCount];
+                int live = 0;
+                for (int i = 0; i < size; i++) {
+                    if (!removed[i]) {
+                        times[live++] = accessTimes[i];
+                    }
+                }
+                Arrays.sort(times);
+                long threshold = times[count - 1];
+
+                // Entries before the threshold, then as many entries at the threshold as needed
+                int evicted = 0;
+                for (int i = 0; i < size && evicted < count; i++) {
+                    if (!removed[i] && accessTimes[i] < threshold) {
+                        remove(i);
+                        evicted++;
+                    }
+                }
+                for (int i = 0; i < size && evicted < count; i++) {
+                    if (!removed[i] && accessTimes[i] == threshold) {
+                        remove(i);
+                        evicted++;
+                    }
+                }
+            }
+
+            Table build() {
+                int newSize = size - removedCount;
+                long[] newKeys = new long[newSize];
+                long[] newValues = new long[newSize];
+                long[] newAccessTimes = new long[newSize];
+                int j = 0;
+                for (int i = 0; i < size; i++) {
+                    if (!removed[i]) {
+                        newKeys[j] = keys[i];
+                        newValues[j] = values[i];
+                        newAccessTimes[j] = accessTimes[i];
+                        j++;
+                    }
+                }
+                return new Table(newKeys, newValues, newAccessTimes, newSize);
+            }
+
+            private static long[] copyOf(long[] array, int size, int capacity) {
+                long[] copy = new long[capacity];
+                System.arraycopy(array, 0, copy, 0, size);
+                return copy;
+            }
+        }
+    }
+}
@@ -8,19 +8,45 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
 
+import com.fsck.k9.K9;
 import com.fsck.k9.fragment.MessageListFragment;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.store.LocalStore.LocalFolder;
 import com.fsck.k9.mail.store.LocalStore.LocalMessage;
 import com.fsck.k9.provider.EmailProvider;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
 
 /**
  * Cache to bridge the time needed to write (user-initiated) changes to the database.
+ *
+ * <p>
+ * Values are cached per message or thread ID in {@link BoundedLongMap}s, so reading them from
+ * {@link EmailProviderCacheCursor} doesn't lock. The caller removes the values once the change
+ * was committed to the database. If that doesn't happen in time, the least recently used
+ * entries are evicted when an account has more than {@value #MAX_ENTRIES} of them.
+ * </p>
  */
 public class EmailProviderCache {
     public static final String ACTION_CACHE_UPDATED = "EmailProviderCache.ACTION_CACHE_UPDATED";
 
+    /**
+     * Maximum number of messages (and threads) with cached values per account.
+     */
+    private static final int MAX_ENTRIES = 10000;
+
+    /**
+     * The columns whose values can be cached. For column {@code i} the value is stored in bit
+     * {@code 2 * i + 1} of a cache entry, bit {@code 2 * i} marks the value as present.
+     */
+    private static final String[] COLUMNS = {
+        MessageColumns.READ,
+        MessageColumns.FLAGGED,
+        MessageColumns.ANSWERED,
+        MessageColumns.FORWARDED
+    };
+
     private static Context sContext;
     private static Map<String, EmailProviderCache> sInstances =
             new HashMap<String, EmailProviderCache>();
@@ -42,119 +68,150 @@ public class EmailProviderCache {
 
 
     private String mAccountUuid;
-    private Map<Long, Map<String, String>> mMessageCache = new HashMap<Long, Map<String, String>>();
-    private Map<Long, Map<String, String>> mThreadCache = new HashMap<Long, Map<String, String>>();
-    private Map<Long, Long> mHiddenMessageCache = new HashMap<Long, Long>();
+    private final BoundedLongMap mMessageCache = new BoundedLongMap(MAX_ENTRIES);
+    private final BoundedLongMap mThreadCache = new BoundedLongMap(MAX_ENTRIES);
+
+    /**
+     * Maps the IDs of hidden messages to the ID of the folder they are hidden in.
+     */
+    private final BoundedLongMap mHiddenMessageCache = new BoundedLongMap(MAX_ENTRIES);
 
 
     private EmailProviderCache(String accountUuid) {
         mAccountUuid = accountUuid;
     }
 
-    public String getValueForMessage(Long messageId, String columnName) {
-        synchronized (mMessageCache) {
-            Map<String, String> map = mMessageCache.get(messageId);
-            return (map == null) ? null : map.get(columnName);
+    /**
+     * Returns the index to pass to {@link #getValue(long, long, int)} for a column, or
+     * {@code -1} if values of this column are never cached.
+     */
+    public static int getColumnIndex(String columnName) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(columnName)) {
+                return i;
+            }
         }
-    }
 
-    public String getValueForThread(Long threadRootId, String columnName) {
-        synchronized (mThreadCache) {
-            Map<String, String> map = mThreadCache.get(threadRootId);
-            return (map == null) ? null : map.get(columnName);
-        }
+        return -1;
     }
 
-    public void setValueForMessages(List<Long> messageIds, String columnName, String value) {
-        synchronized (mMessageCache) {
-            for (Long messageId : messageIds) {
-                Map<String, String> map = mMessageCache.get(messageId);
-                if (map == null) {
-                    map = new HashMap<String, String>();
-                    mMessageCache.put(messageId, map);
-                }
-                map.put(columnName, value);
+    /**
+     * Returns the cached value of a column for a message, or for the thread the message
+     * belongs to.
+     *
+     * @param columnIndex
+     *         The value returned by {@link #getColumnIndex(String)}.
+     *
+     * @return {@code 0} or {@code 1}. {@code -1} if no value is cached.
+     */
+    public int getValue(long messageId, long threadRootId, int columnIndex) {
+        long present = 1L << (2 * columnIndex);
+
+        long entry = mMessageCache.get(messageId, 0);
+        if ((entry & present) == 0) {
+            entry = mThreadCache.get(threadRootId, 0);
+            if ((entry & present) == 0) {
+                return -1;
             }
         }
 
-        notifyChange();
+        return ((entry & (present << 1)) != 0) ? 1 : 0;
     }
 
-    public void setValueForThreads(List<Long> threadRootIds, String columnName, String value) {
-        synchronized (mThreadCache) {
-            for (Long threadRootId : threadRootIds) {
-                Map<String, String> map = mThreadCache.get(threadRootId);
-                if (map == null) {
-                    map = new HashMap<String, String>();
-                    mThreadCache.put(threadRootId, map);
-                }
-                map.put(columnName, value);
-            }
-        }
+    /**
+     * Returns {@code false} if no value is cached for any message or thread.
+     */
+    public boolean hasValues() {
+        return !mMessageCache.isEmpty() || !mThreadCache.isEmpty();
+    }
 
-        notifyChange();
+    public void setValueForMessages(List<Long> messageIds, String columnName, boolean value) {
+        setValue(mMessageCache, messageIds, columnName, value);
     }
 
+    public void setValueForThreads(List<Long> threadRootIds, String columnName, boolean value) {
+        setValue(mThreadCache, threadRootIds, columnName, value);
+    }
+
+    /**
+     * Drops the cached values once they were written to the database.
+     */
     public void removeValueForMessages(List<Long> messageIds, String columnName) {
-        synchronized (mMessageCache) {
-            for (Long messageId : messageIds) {
-                Map<String, String> map = mMessageCache.get(messageId);
-                if (map != null) {
-                    map.remove(columnName);
-                    if (map.size() == 0) {
-                        mMessageCache.remove(messageId);
-                    }
-                }
-            }
-        }
+        mMessageCache.clearBits(messageIds, getMask(columnName));
     }
 
+    /**
+     * Drops the cached values once they were written to the database.
+     */
     public void removeValueForThreads(List<Long> threadRootIds, String columnName) {
-        synchronized (mThreadCache) {
-            for (Long threadRootId : threadRootIds) {
-                Map<String, String> map = mThreadCache.get(threadRootId);
-                if (map != null) {
-                    map.remove(columnName);
-                    if (map.size() == 0) {
-                        mThreadCache.remove(threadRootId);
-                    }
-                }
-            }
-        }
+        mThreadCache.clearBits(threadRootIds, getMask(columnName));
     }
 
     public void hideMessages(List<Message> messages) {
-        synchronized (mHiddenMessageCache) {
-            for (Message message : messages) {
-                LocalMessage localMessage = (LocalMessage) message;
-                long messageId = localMessage.getId();
-                long folderId = ((LocalFolder) localMessage.getFolder()).getId();
-                mHiddenMessageCache.put(messageId, folderId);
-            }
+        long[] messageIds = new long[messages.size()];
+        long[] folderIds = new long[messages.size()];
+        getIds(messages.toArray(new Message[messages.size()]), messageIds, folderIds);
+
+        mHiddenMessageCache.putAll(messageIds, folderIds);
+
+        notifyChange();
+    }
+
+    public boolean isMessageHidden(long messageId, long folderId) {
+        return mHiddenMessageCache.get(messageId, -1) == folderId;
+    }
+
+    /**
+     * Returns {@code false} if no message is hidden.
+     */
+    public boolean hasHiddenMessages() {
+        return !mHiddenMessageCache.isEmpty();
+    }
+
+    public void unhideMessages(Message[] messages) {
+        long[] messageIds = new long[messages.length];
+        long[] folderIds = new long[messages.length];
+        getIds(messages, messageIds, folderIds);
+
+        mHiddenMessageCache.removeAll(messageIds, folderIds);
+    }
+
+    @Override
+    public String toString() {
+        return "EmailProviderCache " + mAccountUuid + ": messages (" + mMessageCache +
+                "), threads (" + mThreadCache + "), hidden (" + mHiddenMessageCache + ")";
+    }
+
+    private void setValue(BoundedLongMap cache, List<Long> ids, String columnName,
+            boolean value) {
+        long mask = getMask(columnName);
+        long present = mask & (mask >>> 1);
+        long evictionCount = cache.getEvictionCount();
+        cache.setBits(ids, mask, (value) ? mask : present);
+
+        if (K9.DEBUG && cache.getEvictionCount() != evictionCount) {
+            Log.d(K9.LOG_TAG, "Evicted values that weren't written to the database yet. " +
+                    toString());
         }
 
         notifyChange();
     }
 
-    public boolean isMessageHidden(Long messageId, long folderId) {
-        synchronized (mHiddenMessageCache) {
-            Long hiddenInFolder = mHiddenMessageCache.get(messageId);
-            return (hiddenInFolder != null && hiddenInFolder.longValue() == folderId);
+    private static long getMask(String columnName) {
+        int columnIndex = getColumnIndex(columnName);
+        if (columnIndex == -1) {
+            throw new IllegalArgumentException("Values of column " + columnName +
+                    " can't be cached");
         }
+
+        return 3L << (2 * columnIndex);
     }
 
-    public void unhideMessages(Message[] messages) {
-        synchronized (mHiddenMessageCache) {
-            for (Message message : messages) {
-                LocalMessage localMessage = (LocalMessage) message;
-                long messageId = localMessage.getId();
-                long folderId = ((LocalFolder) localMessage.getFolder()).getId();
-                Long hiddenInFolder = mHiddenMessageCache.get(messageId);
-
-                if (hiddenInFolder != null && hiddenInFolder.longValue() == folderId) {
-                    mHiddenMessageCache.remove(messageId);
-                }
-            }
+    private static void getIds(Message[] messages, long[] messageIds, long[] folderIds) {
+        for (int i = 0; i < messages.length; i++) {
+            LocalMessage localMessage = (LocalMessage) messages[i];
+            messageIds[i] = localMessage.getId();
+            folderIds[i] = ((LocalFolder) localMessage.getFolder()).getId();
         }
     }
 
@@ -20,6 +20,12 @@ public class EmailProviderCacheCursor extends CursorWrapper {
     private int mFolderIdColumn;
     private int mThreadRootColumn;
 
+    /**
+     * Maps the column indexes of this cursor to the column indexes of {@link EmailProviderCache}.
+     * {@code -1} for columns that are never cached.
+     */
+    private int[] mCacheColumns;
+
     /**
      * The cursor's current position.
      *
@@ -43,34 +49,38 @@ public class EmailProviderCacheCursor extends CursorWrapper {
                     ", " + ThreadColumns.ROOT);
         }
 
-        while (cursor.moveToNext()) {
-            long messageId = cursor.getLong(mMessageIdColumn);
-            long folderId = cursor.getLong(mFolderIdColumn);
-            if (mCache.isMessageHidden(messageId, folderId)) {
-                mHiddenRows.add(cursor.getPosition());
-            }
+        String[] columnNames = cursor.getColumnNames();
+        mCacheColumns = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            mCacheColumns[i] = EmailProviderCache.getColumnIndex(columnNames[i]);
         }
 
-        // Reset the cursor position
-        cursor.moveToFirst();
-        cursor.moveToPrevious();
+        if (mCache.hasHiddenMessages()) {
+            while (cursor.moveToNext()) {
+                long messageId = cursor.getLong(mMessageIdColumn);
+                long folderId = cursor.getLong(mFolderIdColumn);
+                if (mCache.isMessageHidden(messageId, folderId)) {
+                    mHiddenRows.add(cursor.getPosition());
+                }
+            }
+
+            // Reset the cursor position
+            cursor.moveToFirst();
+            cursor.moveToPrevious();
+        }
     }
 
     @Override
     public int getInt(int columnIndex) {
-        long messageId = getLong(mMessageIdColumn);
-        long threadRootId = getLong(mThreadRootColumn);
-
-        String columnName = getColumnName(columnIndex);
-        String value = mCache.getValueForMessage(messageId, columnName);
-
-        if (value != null) {
-            return Integer.valueOf(value);
-        }
-
-        value = mCache.getValueForThread(threadRootId, columnName);
-        if (value != null) {
-            return Integer.valueOf(value);
+        int cacheColumn = mCacheColumns[columnIndex];
+        if (cacheColumn != -1 && mCache.hasValues()) {
+            long messageId = getLong(mMessageIdColumn);
+            long threadRootId = getLong(mThreadRootColumn);
+
+            int value = mCache.getValue(messageId, threadRootId, cacheColumn);
+            if (value != -1) {
+                return value;
+            }
         }
 
         return super.getInt(columnIndex);
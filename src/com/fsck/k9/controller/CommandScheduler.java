@@ -0,0 +1,262 @@
+package com.fsck.k9.controller;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of the commands run by the {@link MessagingController} thread.
+ *
+ * <p>
+ * Commands are taken by {@link Priority}, highest first. Within a priority the accounts take
+ * turns, so a long list of commands for one account doesn't delay the commands of the others.
+ * The commands of one account and priority run in the order they were added.
+ * </p>
+ * <p>
+ * A command can have a key. While a command with that key is waiting, another one with the same
+ * key isn't queued again. If the new command has a higher priority the waiting one is moved up
+ * instead.
+ * </p>
+ * <p>
+ * Commands that can't run yet are retried by {@link #retryLater(Task)} with an exponentially
+ * growing delay.
+ * </p>
+ */
+class CommandScheduler<C extends CommandScheduler.Task> {
+    /**
+     * Priority classes, highest first.
+     */
+    enum Priority {
+        /**
+         * Loading something the user is looking at, e.g. a message or attachment.
+         */
+        INTERACTIVE,
+
+        /**
+         * Carrying out something the user did, e.g. moving messages or refreshing a folder.
+         */
+        USER_ACTION,
+
+        /**
+         * Work triggered by a push notification of the server.
+         */
+        PUSH,
+
+        /**
+         * Periodic mail checks.
+         */
+        POLL,
+
+        /**
+         * Database maintenance.
+         */
+        MAINTENANCE
+    }
+
+    /**
+     * A queued command.
+     */
+    static class Task {
+        final Runnable runnable;
+        final String description;
+        final String accountUuid;
+        final String key;
+        Priority priority;
+
+        /**
+         * Number of times the command was retried by {@link CommandScheduler#retryLater(Task)}.
+         */
+        int retries = 0;
+
+        /**
+         * @param accountUuid
+         *         The account the command belongs to, or {@code null}.
+         * @param key
+         *         Identifies commands that do the same thing, or {@code null} if the command
+         *         must always be run.
+         */
+        Task(Priority priority, String accountUuid, String key, String description,
+                Runnable runnable) {
+            this.priority = priority;
+            this.accountUuid = accountUuid;
+            this.key = key;
+            this.description = description;
+            this.runnable = runnable;
+        }
+    }
+
+
+    private static final String NO_ACCOUNT = "";
+
+    private final long mInitialRetryDelay;
+    private final long mMaxRetryDelay;
+
+    /**
+     * Per priority, the waiting commands of each account. The account whose turn it is comes
+     * first. All access is guarded by {@code this}.
+     */
+    private final Map<Priority, LinkedHashMap<String, LinkedList<C>>> mQueues =
+            new EnumMap<Priority, LinkedHashMap<String, LinkedList<C>>>(Priority.class);
+    private final Map<String, C> mQueuedKeys = new HashMap<String, C>();
+    private int mSize = 0;
+
+    private ScheduledExecutorService mRetryTimer;
+
+
+    /**
+     * @param initialRetryDelay
+     *         Delay in milliseconds before a command is retried the first time. The delay
+     *         doubles with every retry up to {@code maxRetryDelay}.
+     */
+    CommandScheduler(long initialRetryDelay, long maxRetryDelay) {
+        mInitialRetryDelay = initialRetryDelay;
+        mMaxRetryDelay = maxRetryDelay;
+        for (Priority priority : Priority.values()) {
+            mQueues.put(priority, new LinkedHashMap<String, LinkedList<C>>());
+        }
+    }
+
+    /**
+     * Queues a command.
+     *
+     * @return {@code false} if a command with the same key is already waiting. {@code command}
+     *         is dropped in that case.
+     */
+    synchronized boolean put(C command) {
+        if (command.key != null) {
+            if (promote(command.key, command.priority)) {
+                return false;
+            }
+            mQueuedKeys.put(command.key, command);
+        }
+
+        add(command);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Moves the waiting command with the given key up to {@code priority} if it has a lower
+     * priority.
+     *
+     * @return {@code false} if no command with that key is waiting.
+     */
+    synchronized boolean promote(String key, Priority priority) {
+        C queued = mQueuedKeys.get(key);
+        if (queued == null) {
+            return false;
+        }
+
+        if (priority.compareTo(queued.priority) < 0) {
+            remove(queued);
+            queued.priority = priority;
+            add(queued);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the next command from the queue, waiting for one if necessary.
+     */
+    synchronized C take() throws InterruptedException {
+        while (mSize == 0) {
+            wait();
+        }
+
+        for (LinkedHashMap<String, LinkedList<C>> accounts : mQueues.values()) {
+            Iterator<Map.Entry<String, LinkedList<C>>> it = accounts.entrySet().iterator();
+            if (!it.hasNext()) {
+                continue;
+            }
+
+            Map.Entry<String, LinkedList<C>> entry = it.next();
+            LinkedList<C> commands = entry.getValue();
+            C command = commands.removeFirst();
+
+            // Let the next account go first next time
+            it.remove();
+            if (!commands.isEmpty()) {
+                accounts.put(entry.getKey(), commands);
+            }
+
+            mSize--;
+            if (command.key != null) {
+                mQueuedKeys.remove(command.key);
+            }
+            return command;
+        }
+
+        throw new IllegalStateException("Command count out of sync");
+    }
+
+    synchronized boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Queues {@code command} again after a delay that doubles with every retry.
+     *
+     * @return The delay in milliseconds.
+     */
+    long retryLater(final C command) {
+        long delay = mInitialRetryDelay;
+        for (int i = 0; i < command.retries && delay < mMaxRetryDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, mMaxRetryDelay);
+        command.retries++;
+
+        getRetryTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                put(command);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        return delay;
+    }
+
+    private synchronized ScheduledExecutorService getRetryTimer() {
+        if (mRetryTimer == null) {
+            mRetryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CommandRetry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mRetryTimer;
+    }
+
+    private void add(C command) {
+        LinkedHashMap<String, LinkedList<C>> accounts = mQueues.get(command.priority);
+        String account = (command.accountUuid != null) ? command.accountUuid : NO_ACCOUNT;
+        LinkedList<C> commands = accounts.get(account);
+        if (commands == null) {
+            commands = new LinkedList<C>();
+            accounts.put(account, commands);
+        }
+        commands.add(command);
+        mSize++;
+    }
+
+    private void remove(C command) {
+        LinkedHashMap<String, LinkedList<C>> accounts = mQueues.get(command.priority);
+        String account = (command.accountUuid != null) ? command.accountUuid : NO_ACCOUNT;
+        LinkedList<C> commands = accounts.get(account);
+        commands.remove(command);
+        if (commands.isEmpty()) {
+            accounts.remove(account);
+        }
+        mSize--;
+    }
+}
@@ -0,0 +1,334 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fsck.k9.mail.MessagingException;
+
+/**
+ * Stores downloaded items without holding up the thread that reads them from the network.
+ *
+ * <p>
+ * Items passed to {@link #add(Object)} are prepared on the {@code workers} executor, e.g. to
+ * extract the text of a message. The executor may be shared by several pipelines and is not shut
+ * down by them. Each pipeline has a writer thread that collects the prepared items and stores up
+ * to {@code batchSize} of them at a time, so they can share one database transaction. The
+ * handler is told about every item on the writer thread once its batch has been stored.
+ * </p>
+ * <p>
+ * At most {@code capacity} items are waiting or being processed at any time. {@link #add(Object)}
+ * blocks when that limit is reached so a fast network connection can't fill the memory with
+ * downloaded items. If {@code ordered} is set items are stored in the order they were added,
+ * otherwise in the order their preparation finished.
+ * </p>
+ *
+ * @param <T>
+ *         The downloaded items.
+ * @param <P>
+ *         The prepared items.
+ * @param <R>
+ *         The stored items.
+ */
+class DownloadPipeline<T, P, R> {
+    private static final AtomicInteger sThreadNumber = new AtomicInteger(1);
+
+    /**
+     * Processes the items of a {@link DownloadPipeline}.
+     */
+    interface Handler<T, P, R> {
+        /**
+         * Prepares an item for storing. Called on a worker thread.
+         */
+        P prepare(T item) throws MessagingException;
+
+        /**
+         * Stores a batch of prepared items. Called on the writer thread.
+         *
+         * @return The stored items, in the same order as {@code items}.
+         */
+        List<R> store(List<P> items) throws MessagingException;
+
+        /**
+         * Called on the writer thread after {@code item} has been stored.
+         */
+        void stored(T item, R result);
+
+        /**
+         * Called on the writer thread if {@code item} couldn't be prepared or stored.
+         */
+        void failed(T item, MessagingException e);
+    }
+
+
+    private final Handler<T, P, R> mHandler;
+    private final int mBatchSize;
+    private final int mCapacity;
+    private final boolean mOrdered;
+    private final Semaphore mPermits;
+    private final Executor mWorkers;
+    private final Thread mWriter;
+
+    /**
+     * The number of items added to {@link #mWorkers} whose preparation hasn't finished yet.
+     * Guarded by {@link #mPreparingLock}.
+     */
+    private int mPreparing = 0;
+    private final Object mPreparingLock = new Object();
+
+    /**
+     * The items in the order they are stored. Ends with {@link #mEnd}.
+     */
+    private final BlockingQueue<Future<Entry>> mQueue = new LinkedBlockingQueue<Future<Entry>>();
+    private final Future<Entry> mEnd = new FutureTask<Entry>(new Runnable() {
+        @Override
+        public void run() {}
+    }, null);
+
+    /**
+     * Set if the handler threw an unexpected exception. Nothing is stored after that.
+     */
+    private volatile RuntimeException mFailure;
+
+
+    DownloadPipeline(Handler<T, P, R> handler, Executor workers, int batchSize, int capacity,
+            boolean ordered) {
+        mHandler = handler;
+        mBatchSize = Math.max(1, batchSize);
+        mCapacity = Math.max(1, capacity);
+        mOrdered = ordered;
+        mPermits = new Semaphore(mCapacity);
+        mWorkers = workers;
+
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "DownloadWriter-" + sThreadNumber.getAndIncrement());
+        mWriter.start();
+    }
+
+    /**
+     * Queues an item. Blocks while the pipeline is full.
+     */
+    void add(final T item) {
+        mPermits.acquireUninterruptibly();
+        if (mFailure != null) {
+            mPermits.release();
+            throw mFailure;
+        }
+
+        Callable<Entry> preparation = new Callable<Entry>() {
+            @Override
+            public Entry call() {
+                try {
+                    return new Entry(item, mHandler.prepare(item), null);
+                } catch (MessagingException e) {
+                    return new Entry(item, null, e);
+                }
+            }
+        };
+
+        FutureTask<Entry> task = new FutureTask<Entry>(preparation) {
+            @Override
+            protected void done() {
+                if (!mOrdered) {
+                    mQueue.add(this);
+                }
+                synchronized (mPreparingLock) {
+                    mPreparing--;
+                    mPreparingLock.notifyAll();
+                }
+            }
+        };
+
+        if (mOrdered) {
+            mQueue.add(task);
+        }
+        synchronized (mPreparingLock) {
+            mPreparing++;
+        }
+        mWorkers.execute(task);
+    }
+
+    /**
+     * Waits until all queued items have been stored and stops the writer thread of the pipeline.
+     *
+     * @throws RuntimeException
+     *         If the handler threw one.
+     */
+    void finish() {
+        boolean interrupted = false;
+
+        synchronized (mPreparingLock) {
+            while (mPreparing > 0) {
+                try {
+                    mPreparingLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        // All preparations are done, so in unordered mode the end marker is queued last, too
+        mQueue.add(mEnd);
+        while (mWriter.isAlive()) {
+            try {
+                mWriter.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        if (mFailure != null) {
+            throw mFailure;
+        }
+    }
+
+    private void write() {
+        List<Entry> batch = new ArrayList<Entry>(mBatchSize);
+        try {
+            boolean end = false;
+            while (!end) {
+                Future<Entry> future = takeUninterruptibly();
+                do {
+                    if (future == mEnd) {
+                        end = true;
+                        break;
+                    }
+
+                    Entry entry = getUninterruptibly(future);
+                    if (entry.error != null) {
+                        mHandler.failed(entry.item, entry.error);
+                        mPermits.release();
+                    } else {
+                        batch.add(entry);
+                    }
+                } while (batch.size() < mBatchSize && (future = mQueue.poll()) != null);
+
+                if (!batch.isEmpty()) {
+                    store(batch);
+                    batch.clear();
+                }
+            }
+        } catch (RuntimeException e) {
+            mFailure = e;
+            // Wake up add() so it can report the failure
+            mPermits.release(mCapacity);
+        }
+    }
+
+    /**
+     * Stores a batch of items. If that fails the items are stored one by one so a single broken
+     * item doesn't prevent the others from being stored.
+     */
+    private void store(List<Entry> batch) {
+        try {
+            List<P> prepared = new ArrayList<P>(batch.size());
+            for (Entry entry : batch) {
+                prepared.add(entry.prepared);
+            }
+
+            List<R> results;
+            try {
+                results = mHandler.store(prepared);
+            } catch (MessagingException e) {
+                if (batch.size() > 1) {
+                    for (Entry entry : batch) {
+                        store(entry);
+                    }
+                } else {
+                    mHandler.failed(batch.get(0).item, e);
+                }
+                return;
+            }
+
+            for (int i = 0, count = batch.size(); i < count; i++) {
+                mHandler.stored(batch.get(i).item, results.get(i));
+            }
+        } finally {
+            mPermits.release(batch.size());
+        }
+    }
+
+    private void store(Entry entry) {
+        try {
+            R result = mHandler.store(Collections.singletonList(entry.prepared)).get(0);
+            mHandler.stored(entry.item, result);
+        } catch (MessagingException e) {
+            mHandler.failed(entry.item, e);
+        }
+    }
+
+    private Future<Entry> takeUninterruptibly() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return mQueue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Entry getUninterruptibly(Future<Entry> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    private class Entry {
+        final T item;
+        final P prepared;
+        final MessagingException error;
+
+        Entry(T item, P prepared, MessagingException error) {
+            this.item = item;
+            this.prepared = prepared;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+
+/**
+ * Runs folder synchronizations on a bounded number of worker threads.
+ *
+ * <p>
+ * Folders of different accounts are synchronized concurrently. Within an account at most
+ * {@code limit} folders are synchronized at the same time, the remaining ones wait in a
+ * per-account queue and are started in the order they were submitted. Free worker slots are
+ * handed out to the waiting accounts in turn so a single account with many folders can't
+ * starve the others.
+ * </p>
+ * <p>
+ * A waiting synchronization can be moved to the front with {@link #promote(String)}, e.g. when
+ * the user asks for a folder whose periodic check hasn't started yet.
+ * </p>
+ */
+class FolderSyncScheduler {
+    private static final AtomicInteger sThreadNumber = new AtomicInteger(1);
+
+    private final int mMaxThreads;
+    private final ExecutorService mExecutor;
+
+    /**
+     * Queues of the accounts with waiting or running synchronizations, in order of arrival.
+     * All access is guarded by {@code this}.
+     */
+    private final Map<String, AccountQueue> mQueues = new LinkedHashMap<String, AccountQueue>();
+    private final Map<String, WaitingSync> mWaitingKeys = new HashMap<String, WaitingSync>();
+    private int mRunning = 0;
+
+    FolderSyncScheduler(int maxThreads) {
+        mMaxThreads = maxThreads;
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "FolderSync-" + sThreadNumber.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * Queues {@code task} for execution.
+     *
+     * @param accountUuid
+     *         The account the folder belongs to.
+     * @param limit
+     *         Maximum number of folders of that account to synchronize concurrently.
+     * @param key
+     *         Identifies the task for {@link #promote(String)} while it's waiting, or
+     *         {@code null}.
+     * @param task
+     *         The synchronization to run.
+     */
+    synchronized void submit(String accountUuid, int limit, String key, Runnable task) {
+        AccountQueue queue = mQueues.get(accountUuid);
+        if (queue == null) {
+            queue = new AccountQueue(accountUuid);
+            mQueues.put(accountUuid, queue);
+        }
+        queue.limit = Math.max(1, limit);
+
+        WaitingSync sync = new WaitingSync(key, task, queue);
+        queue.pending.add(sync);
+        if (key != null) {
+            mWaitingKeys.put(key, sync);
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Moves the waiting task with the given key to the front of its account's queue, and gives
+     * that account the next free worker slot.
+     *
+     * @return {@code false} if no task with that key is waiting.
+     */
+    synchronized boolean promote(String key) {
+        WaitingSync sync = mWaitingKeys.get(key);
+        if (sync == null) {
+            return false;
+        }
+
+        AccountQueue queue = sync.queue;
+        queue.pending.remove(sync);
+        queue.pending.addFirst(sync);
+
+        // Re-insert the other accounts behind this one
+        List<AccountQueue> others = new ArrayList<AccountQueue>(mQueues.values());
+        others.remove(queue);
+        mQueues.clear();
+        mQueues.put(queue.accountUuid, queue);
+        for (AccountQueue other : others) {
+            mQueues.put(other.accountUuid, other);
+        }
+
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Returns whether any synchronization is waiting or running.
+     */
+    synchronized boolean isBusy() {
+        return !mQueues.isEmpty();
+    }
+
+    private synchronized void finished(AccountQueue queue) {
+        queue.running--;
+        mRunning--;
+
+        if (queue.running == 0 && queue.pending.isEmpty()) {
+            mQueues.remove(queue.accountUuid);
+        }
+        dispatch();
+    }
+
+    /**
+     * Starts waiting tasks, one per account and pass, until all worker slots are in use or no
+     * account may start another task.
+     */
+    private void dispatch() {
+        boolean started = true;
+        while (mRunning < mMaxThreads && started) {
+            started = false;
+            for (Iterator<AccountQueue> it = mQueues.values().iterator(); it.hasNext() && mRunning < mMaxThreads; ) {
+                AccountQueue queue = it.next();
+                if (queue.pending.isEmpty()) {
+                    if (queue.running == 0) {
+                        it.remove();
+                    }
+                    continue;
+                }
+
+                if (queue.running < queue.limit) {
+                    WaitingSync sync = queue.pending.poll();
+                    if (sync.key != null) {
+                        mWaitingKeys.remove(sync.key);
+                    }
+                    start(queue, sync.task);
+                    started = true;
+                }
+            }
+        }
+    }
+
+    private void start(final AccountQueue queue, final Runnable task) {
+        queue.running++;
+        mRunning++;
+
+        if (K9.DEBUG)
+            Log.v(K9.LOG_TAG, "Starting folder sync for account " + queue.accountUuid + ", " +
+                  queue.running + " running for account, " + mRunning + " running in total");
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.e(K9.LOG_TAG, "Error running folder sync for account " + queue.accountUuid, e);
+                } finally {
+                    finished(queue);
+                }
+            }
+        });
+    }
+
+    private static class WaitingSync {
+        final String key;
+        final Runnable task;
+        final AccountQueue queue;
+
+        WaitingSync(String key, Runnable task, AccountQueue queue) {
+            this.key = key;
+            this.task = task;
+            this.queue = queue;
+        }
+    }
+
+    private static class AccountQueue {
+        final String accountUuid;
+        final LinkedList<WaitingSync> pending = new LinkedList<WaitingSync>();
+        int running = 0;
+        int limit = 1;
+
+        AccountQueue(String accountUuid) {
+            this.accountUuid = accountUuid;
+        }
+    }
+}
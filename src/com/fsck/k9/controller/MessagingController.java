@@ -11,6 +11,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -56,6 +57,8 @@ import com.fsck.k9.activity.NotificationDeleteConfirmation;
 import com.fsck.k9.activity.setup.AccountSetupIncoming;
 import com.fsck.k9.activity.setup.AccountSetupOutgoing;
 import com.fsck.k9.cache.EmailProviderCache;
+import com.fsck.k9.controller.CommandScheduler.Priority;
+import com.fsck.k9.controller.PendingFlagChanges.FlagChange;
 import com.fsck.k9.helper.Contacts;
 import com.fsck.k9.helper.NotificationBuilder;
 import com.fsck.k9.helper.power.TracingPowerManager;
@@ -82,6 +85,9 @@ import com.fsck.k9.mail.store.LocalStore;
 import com.fsck.k9.mail.store.LocalStore.LocalFolder;
 import com.fsck.k9.mail.store.LocalStore.LocalMessage;
 import com.fsck.k9.mail.store.LocalStore.PendingCommand;
+import com.fsck.k9.mail.store.LocalStore.PreparedMessage;
+import com.fsck.k9.mail.store.LocalStore.SearchResultIterator;
+import com.fsck.k9.mail.store.MessageSnapshot;
 import com.fsck.k9.mail.store.Pop3Store;
 import com.fsck.k9.mail.store.UnavailableAccountException;
 import com.fsck.k9.mail.store.UnavailableStorageException;
@@ -89,6 +95,7 @@ import com.fsck.k9.provider.EmailProvider;
 import com.fsck.k9.provider.EmailProvider.StatsColumns;
 import com.fsck.k9.search.ConditionsTreeNode;
 import com.fsck.k9.search.LocalSearch;
+import com.fsck.k9.search.MergingIterator;
 import com.fsck.k9.search.SearchAccount;
 import com.fsck.k9.search.SearchSpecification;
 import com.fsck.k9.search.SqlQueryBuilder;
@@ -181,8 +188,67 @@ public class MessagingController implements Runnable {
      */
     private static final int UNSYNC_CHUNK_SIZE = 5;
 
+    /**
+     * Maximum number of folders (of all accounts) that are synchronized at the same time
+     */
+    private static final int MAX_SYNC_THREADS = 6;
+
+    /**
+     * Number of messages per account that are loaded at a time by a local search
+     */
+    private static final int SEARCH_PAGE_SIZE = 50;
+
+    /**
+     * Delay before a command for an unavailable account is retried. Doubles with every retry up
+     * to {@link #COMMAND_MAX_RETRY_DELAY}.
+     */
+    private static final long COMMAND_RETRY_DELAY = 30 * 1000;
+    private static final long COMMAND_MAX_RETRY_DELAY = 30 * 60 * 1000;
+
+    /**
+     * Number of pending commands that are read from the database at a time
+     */
+    private static final int PENDING_COMMAND_PAGE_SIZE = 100;
+
+    /**
+     * Maximum number of consecutive flag change commands that are sent to the server together.
+     * A run of flag changes may continue on the following pages of the queue, this keeps the
+     * number of commands held in memory bounded.
+     */
+    private static final int PENDING_FLAG_COMMAND_BATCH_SIZE = 10 * PENDING_COMMAND_PAGE_SIZE;
+
+    /**
+     * Settings of the pipeline that stores downloaded small messages, see
+     * {@link DownloadPipeline}: the number of threads extracting the message contents (shared
+     * by all synchronizations), the number of messages stored per transaction, the maximum number of messages waiting to be
+     * stored before the download is paused, and whether messages are stored in download order.
+     */
+    private static final int STORE_WORKER_THREADS = 2;
+    private static final int STORE_BATCH_SIZE = 20;
+    private static final int STORE_QUEUE_CAPACITY = 50;
+    private static final boolean STORE_IN_ORDER = true;
+
+    /**
+     * The bits of {@link Flag#X_DOWNLOADED_FULL} and {@link Flag#X_DOWNLOADED_PARTIAL} in
+     * {@link MessageSnapshot#getFlagBits(int)}.
+     */
+    private static final int DOWNLOADED_FLAG_BITS = LocalStore.getFlagBit(Flag.X_DOWNLOADED_FULL) |
+            LocalStore.getFlagBit(Flag.X_DOWNLOADED_PARTIAL);
+
+    /**
+     * Orders messages of a local search, newest first.
+     */
+    private static final Comparator<LocalMessage> SEARCH_RESULT_COMPARATOR =
+            new Comparator<LocalMessage>() {
+        @Override
+        public int compare(LocalMessage lhs, LocalMessage rhs) {
+            return rhs.getSentDate().compareTo(lhs.getSentDate());
+        }
+    };
+
     private static MessagingController inst = null;
-    private BlockingQueue<Command> mCommands = new PriorityBlockingQueue<Command>();
+    private final CommandScheduler<Command> mCommands =
+            new CommandScheduler<Command>(COMMAND_RETRY_DELAY, COMMAND_MAX_RETRY_DELAY);
 
     private Thread mThread;
     private Set<MessagingListener> mListeners = new CopyOnWriteArraySet<MessagingListener>();
@@ -193,6 +259,36 @@ public class MessagingController implements Runnable {
 
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
 
+    /**
+     * The worker threads of the {@link DownloadPipeline}s, see {@link #getStoreWorkers()}.
+     */
+    private ExecutorService mStoreWorkers;
+
+    private final FolderSyncScheduler mSyncScheduler = new FolderSyncScheduler(MAX_SYNC_THREADS);
+
+    /**
+     * Per-account locks that keep pending commands from being processed by multiple folder
+     * synchronizations at once.
+     */
+    private final ConcurrentHashMap<String, Object> mPendingCommandsLocks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Folder synchronizations that have been queued but not started yet, by
+     * {@link #getSyncKey(Account, String)}. All access is guarded by the map itself.
+     */
+    private final Map<String, QueuedSync> mQueuedSyncs = new HashMap<String, QueuedSync>();
+
+    /**
+     * Number of sync requests that were merged into a waiting sync of the same folder.
+     */
+    private final AtomicInteger mCoalescedSyncs = new AtomicInteger(0);
+
+    /**
+     * Number of periodic checks that were skipped because push had updated the folder since
+     * they were requested.
+     */
+    private final AtomicInteger mSyncsSatisfiedByPush = new AtomicInteger(0);
+
     private MessagingListener checkMailListener = null;
 
     private MemorizingListener memorizingListener = new MemorizingListener();
@@ -352,8 +448,7 @@ public class MessagingController implements Runnable {
         EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(),
                 mApplication.getApplicationContext());
         String columnName = LocalStore.getColumnNameForFlag(flag);
-        String value = Integer.toString((newState) ? 1 : 0);
-        cache.setValueForMessages(messageIds, columnName, value);
+        cache.setValueForMessages(messageIds, columnName, newState);
     }
 
     private void removeFlagFromCache(final Account account, final List<Long> messageIds,
@@ -371,8 +466,7 @@ public class MessagingController implements Runnable {
         EmailProviderCache cache = EmailProviderCache.getCache(account.getUuid(),
                 mApplication.getApplicationContext());
         String columnName = LocalStore.getColumnNameForFlag(flag);
-        String value = Integer.toString((newState) ? 1 : 0);
-        cache.setValueForThreads(threadRootIds, columnName, value);
+        cache.setValueForThreads(threadRootIds, columnName, newState);
     }
 
     private void removeFlagForThreadsFromCache(final Account account, final List<Long> messageIds,
@@ -412,7 +506,7 @@ public class MessagingController implements Runnable {
     }
 
     public boolean isBusy() {
-        return mBusy;
+        return mBusy || mSyncScheduler.isBusy();
     }
 
     @Override
@@ -427,34 +521,25 @@ public class MessagingController implements Runnable {
                     commandDescription = command.description;
 
                     if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, "Running " + (command.isForeground ? "Foreground" : "Background") + " command '" + command.description + "', seq = " + command.sequence);
+                        Log.i(K9.LOG_TAG, "Running " + command.priority + " command '" + command.description + "'");
 
                     mBusy = true;
                     try {
                         command.runnable.run();
                     } catch (UnavailableAccountException e) {
                         // retry later
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                try {
-                                    sleep(30 * 1000);
-                                    mCommands.put(command);
-                                } catch (InterruptedException e) {
-                                    Log.e(K9.LOG_TAG, "interrupted while putting a pending command for"
-                                          + " an unavailable account back into the queue."
-                                          + " THIS SHOULD NEVER HAPPEN.");
-                                }
-                            }
-                        } .start();
+                        long delay = mCommands.retryLater(command);
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "Account unavailable, retrying command '" +
+                                  command.description + "' in " + (delay / 1000) + " s");
                     }
 
                     if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, (command.isForeground ? "Foreground" : "Background") +
+                        Log.i(K9.LOG_TAG, command.priority +
                               " Command '" + command.description + "' completed");
 
                     for (MessagingListener l : getListeners(command.listener)) {
-                        l.controllerCommandCompleted(!mCommands.isEmpty());
+                        l.controllerCommandCompleted(!mCommands.isEmpty() || mSyncScheduler.isBusy());
                     }
                 }
             } catch (Exception e) {
@@ -464,35 +549,31 @@ public class MessagingController implements Runnable {
         }
     }
 
-    private void put(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, true);
-    }
-
-    private void putBackground(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, false);
+    /**
+     * Queues a command for the controller thread.
+     *
+     * @param account
+     *         The account the command works on, or {@code null}. Commands of different accounts
+     *         with the same priority take turns.
+     * @param key
+     *         If not {@code null}, the command is dropped while another command with the same
+     *         key is waiting.
+     */
+    private void putCommand(Priority priority, Account account, String key, String description,
+            MessagingListener listener, Runnable runnable) {
+        String accountUuid = (account != null) ? account.getUuid() : null;
+        if (!mCommands.put(new Command(priority, accountUuid, key, description, listener, runnable))) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "Command '" + description + "' is already queued");
+        }
     }
 
-    private void putCommand(BlockingQueue<Command> queue, String description, MessagingListener listener, Runnable runnable, boolean isForeground) {
-        int retries = 10;
-        Exception e = null;
-        while (retries-- > 0) {
-            try {
-                Command command = new Command();
-                command.listener = listener;
-                command.runnable = runnable;
-                command.description = description;
-                command.isForeground = isForeground;
-                queue.put(command);
-                return;
-            } catch (InterruptedException ie) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ne) {
-                }
-                e = ie;
-            }
-        }
-        throw new Error(e);
+    /**
+     * Checks whether {@code listener} gets all callbacks anyway. Only then may a command with
+     * that listener be dropped in favor of an equal one that is already queued.
+     */
+    private boolean isRegistered(MessagingListener listener) {
+        return listener == null || mListeners.contains(listener);
     }
 
 
@@ -605,7 +686,7 @@ public class MessagingController implements Runnable {
     }
 
     private void doRefreshRemote(final Account account, final MessagingListener listener) {
-        put("doRefreshRemote", listener, new Runnable() {
+        putCommand(Priority.INTERACTIVE, account, null, "doRefreshRemote", listener, new Runnable() {
             @Override
             public void run() {
                 List <? extends Folder > localFolders = null;
@@ -682,66 +763,108 @@ public class MessagingController implements Runnable {
      * @throws MessagingException
      */
     public void searchLocalMessages(final LocalSearch search, final MessagingListener listener) {
+        searchLocalMessages(search, listener, -1);
+    }
+
+    /**
+     * Same as {@link #searchLocalMessages(LocalSearch, MessagingListener)} but only reports the
+     * newest {@code limit} messages.
+     */
+    public void searchLocalMessages(final LocalSearch search, final MessagingListener listener,
+            final int limit) {
         threadPool.execute(new Runnable() {
             @Override
             public void run() {
-                searchLocalMessagesSynchronous(search, listener);
+                searchLocalMessagesSynchronous(search, listener, limit);
             }
         });
     }
 
     public void searchLocalMessagesSynchronous(final LocalSearch search, final MessagingListener listener) {
+        searchLocalMessagesSynchronous(search, listener, -1);
+    }
+
+    /**
+     * Searches the local stores of all accounts of {@code search} and reports the messages
+     * newest first.
+     *
+     * <p>
+     * Each account's result is read in pages of {@value #SEARCH_PAGE_SIZE} messages. The first
+     * pages are loaded in parallel, then the results are merged by date. So reporting the first
+     * {@code limit} messages only reads about {@code limit} rows per account.
+     * </p>
+     *
+     * @param limit
+     *         The maximum number of messages to report, or {@code -1} to report all of them. The
+     *         statistics passed to {@link MessagingListener#searchStats(AccountStats)} only cover
+     *         the reported messages.
+     */
+    public void searchLocalMessagesSynchronous(final LocalSearch search,
+            final MessagingListener listener, int limit) {
         final AccountStats stats = new AccountStats();
         final HashSet<String> uuidSet = new HashSet<String>(Arrays.asList(search.getAccountUuids()));
         Account[] accounts = Preferences.getPreferences(mApplication.getApplicationContext()).getAccounts();
         boolean allAccounts = uuidSet.contains(SearchSpecification.ALL_ACCOUNTS);
 
-        // for every account we want to search do the query in the localstore
+        List<Account> searchAccounts = new ArrayList<Account>();
+        List<SearchResultIterator> results = new ArrayList<SearchResultIterator>();
         for (final Account account : accounts) {
 
             if (!allAccounts && !uuidSet.contains(account.getUuid())) {
                 continue;
             }
 
-            // Collecting statistics of the search result
-            MessageRetrievalListener retrievalListener = new MessageRetrievalListener() {
-                @Override
-                public void messageStarted(String message, int number, int ofTotal) {}
-                @Override
-                public void messagesFinished(int number) {}
-                @Override
-                public void messageFinished(Message message, int number, int ofTotal) {
-                    if (!isMessageSuppressed(message.getFolder().getAccount(), message)) {
-                        List<Message> messages = new ArrayList<Message>();
-
-                        messages.add(message);
-                        stats.unreadMessageCount += (!message.isSet(Flag.SEEN)) ? 1 : 0;
-                        stats.flaggedMessageCount += (message.isSet(Flag.FLAGGED)) ? 1 : 0;
-                        if (listener != null) {
-                            listener.listLocalMessagesAddMessages(account, null, messages);
-                        }
-                    }
-                }
-            };
-
             // alert everyone the search has started
             if (listener != null) {
                 listener.listLocalMessagesStarted(account, null);
             }
 
-            // build and do the query in the localstore
             try {
                 LocalStore localStore = account.getLocalStore();
-                localStore.searchForMessages(retrievalListener, search);
+                results.add(localStore.searchForMessagesNewestFirst(search, SEARCH_PAGE_SIZE));
+                searchAccounts.add(account);
             } catch (Exception e) {
                 if (listener != null) {
                     listener.listLocalMessagesFailed(account, null, e.getMessage());
+                    listener.listLocalMessagesFinished(account, null);
                 }
                 addErrorMessage(account, null, e);
-            } finally {
+            }
+        }
+
+        loadFirstSearchResultPages(results);
+
+        MergingIterator<LocalMessage> messages =
+                new MergingIterator<LocalMessage>(results, SEARCH_RESULT_COMPARATOR);
+        int count = 0;
+        while ((limit == -1 || count < limit) && messages.hasNext()) {
+            Account account = searchAccounts.get(messages.peekSourceIndex());
+            LocalMessage message = messages.next();
+
+            if (!isMessageSuppressed(account, message)) {
+                stats.unreadMessageCount += (!message.isSet(Flag.SEEN)) ? 1 : 0;
+                stats.flaggedMessageCount += (message.isSet(Flag.FLAGGED)) ? 1 : 0;
                 if (listener != null) {
-                    listener.listLocalMessagesFinished(account, null);
+                    List<Message> messageList = new ArrayList<Message>();
+                    messageList.add(message);
+                    listener.listLocalMessagesAddMessages(account, null, messageList);
                 }
+                count++;
+            }
+        }
+
+        for (int i = 0, len = results.size(); i < len; i++) {
+            Account account = searchAccounts.get(i);
+            MessagingException exception = results.get(i).getException();
+            if (exception != null) {
+                if (listener != null) {
+                    listener.listLocalMessagesFailed(account, null, exception.getMessage());
+                }
+                addErrorMessage(account, null, exception);
+            }
+
+            if (listener != null) {
+                listener.listLocalMessagesFinished(account, null);
             }
         }
 
@@ -751,6 +874,49 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Loads the first page of every search result in parallel.
+     *
+     * <p>
+     * The remaining pages are loaded by the merging thread when they are needed.
+     * </p>
+     */
+    private void loadFirstSearchResultPages(List<SearchResultIterator> results) {
+        if (results.size() < 2) {
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(results.size());
+        for (final SearchResultIterator result : results) {
+            futures.add(threadPool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    result.hasNext();
+                }
+            }));
+        }
+
+        // The iterators aren't thread-safe, so wait for all tasks before using them again
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.e(K9.LOG_TAG, "Error while loading search results", e.getCause());
+                    break;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
 
 
     public Future<?> searchRemoteMessages(final String acctUuid, final String folderName, final String query,
@@ -905,6 +1071,8 @@ public class MessagingController implements Runnable {
             if (localFolder.getVisibleLimit() > 0) {
                 localFolder.setVisibleLimit(localFolder.getVisibleLimit() + account.getDisplayCount());
             }
+            // Older messages are never reported as changed, so force a full sync of the window
+            localFolder.setModSeqState(0, 0);
             synchronizeMailbox(account, folder, listener, null);
         } catch (MessagingException me) {
             addErrorMessage(account, null, me);
@@ -927,14 +1095,109 @@ public class MessagingController implements Runnable {
      * @param providedRemoteFolder TODO
      */
     public void synchronizeMailbox(final Account account, final String folder, final MessagingListener listener, final Folder providedRemoteFolder) {
-        putBackground("synchronizeMailbox", listener, new Runnable() {
+        Priority priority = (providedRemoteFolder != null) ? Priority.PUSH : Priority.USER_ACTION;
+        String key = getSyncKey(account, folder);
+        final QueuedSync sync = queueSync(key, listener, providedRemoteFolder, false, true, null);
+        if (sync == null) {
+            /*
+             * Merged into a waiting sync, which may have to run sooner now. It's either a
+             * command or a periodic check waiting for a slot in mSyncScheduler.
+             */
+            if (!mCommands.promote(key, priority)) {
+                mSyncScheduler.promote(key);
+            }
+            return;
+        }
+
+        putCommand(priority, account, sync.key, "synchronizeMailbox", listener, new Runnable() {
             @Override
             public void run() {
-                synchronizeMailboxSynchronous(account, folder, listener, providedRemoteFolder);
+                startQueuedSync(sync);
+                try {
+                    synchronizeMailboxSynchronous(account, folder, sync.listener,
+                            sync.providedRemoteFolder);
+                } finally {
+                    sync.finished();
+                }
             }
         });
     }
 
+    private static String getSyncKey(Account account, String folderName) {
+        return "sync:" + account.getUuid() + ":" + folderName;
+    }
+
+    /**
+     * Registers a request to synchronize a folder.
+     *
+     * <p>
+     * If a sync of the same folder is waiting to be started, the request is merged into it
+     * instead of running the whole synchronization again. A listener that isn't registered
+     * has to be called by the sync itself. Only one such listener per sync is possible, and
+     * only syncs that always report to it take one.
+     * </p>
+     *
+     * @param poll
+     *         {@code true} for periodic checks, which may be skipped if the folder was checked or
+     *         updated by push recently.
+     * @param reportsToListener
+     *         {@code true} if the new sync will always call the listener's
+     *         {@code synchronizeMailbox*} methods, even if the folder was checked recently.
+     *
+     * @return The sync the caller has to schedule, or {@code null} if the request was merged.
+     */
+    private QueuedSync queueSync(String key, MessagingListener listener,
+            Folder providedRemoteFolder, boolean poll, boolean reportsToListener,
+            SyncGroup group) {
+        synchronized (mQueuedSyncs) {
+            QueuedSync queued = mQueuedSyncs.get(key);
+            if (queued != null) {
+                boolean merge = true;
+                if (listener != queued.listener && !isRegistered(listener)) {
+                    if (queued.reportsToListener && isRegistered(queued.listener)) {
+                        queued.listener = listener;
+                    } else {
+                        merge = false;
+                    }
+                }
+
+                if (merge) {
+                    if (queued.providedRemoteFolder == null) {
+                        queued.providedRemoteFolder = providedRemoteFolder;
+                    }
+                    queued.pollOnly &= poll;
+                    if (group != null) {
+                        queued.groups.add(group);
+                    }
+
+                    int coalesced = mCoalescedSyncs.incrementAndGet();
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "Merged request into waiting sync " + key + ", " +
+                              coalesced + " syncs coalesced so far");
+                    return null;
+                }
+            }
+
+            QueuedSync sync = new QueuedSync((queued == null) ? key : null, listener,
+                    providedRemoteFolder, poll, reportsToListener, group);
+            if (queued == null) {
+                mQueuedSyncs.put(key, sync);
+            }
+            return sync;
+        }
+    }
+
+    /**
+     * Called by a sync when it starts. Requests that arrive later aren't merged into it anymore.
+     */
+    private void startQueuedSync(QueuedSync sync) {
+        synchronized (mQueuedSyncs) {
+            if (sync.key != null && mQueuedSyncs.get(sync.key) == sync) {
+                mQueuedSyncs.remove(sync.key);
+            }
+        }
+    }
+
     /**
      * Start foreground synchronization of the specified folder. This is generally only called
      * by synchronizeMailbox.
@@ -979,10 +1242,6 @@ public class MessagingController implements Runnable {
                 commandException = e;
             }
 
-            /*
-             * Get the message list from the local store and create an index of
-             * the uids within the list.
-             */
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "SYNC: About to get local folder " + folder);
 
@@ -991,11 +1250,6 @@ public class MessagingController implements Runnable {
             final LocalFolder localFolder = tLocalFolder;
             localFolder.open(Folder.OPEN_MODE_RW);
             localFolder.updateLastUid();
-            Message[] localMessages = localFolder.getMessages(null);
-            HashMap<String, Message> localUidMap = new HashMap<String, Message>();
-            for (Message message : localMessages) {
-                localUidMap.put(message.getUid(), message);
-            }
 
             if (providedRemoteFolder != null) {
                 if (K9.DEBUG)
@@ -1057,87 +1311,23 @@ public class MessagingController implements Runnable {
                 visibleLimit = K9.DEFAULT_VISIBLE_LIMIT;
             }
 
-            Message[] remoteMessageArray = EMPTY_MESSAGE_ARRAY;
-            final ArrayList<Message> remoteMessages = new ArrayList<Message>();
-            HashMap<String, Message> remoteUidMap = new HashMap<String, Message>();
-
-            if (K9.DEBUG)
-                Log.v(K9.LOG_TAG, "SYNC: Remote message count for folder " + folder + " is " + remoteMessageCount);
-            final Date earliestDate = account.getEarliestPollDate();
-
-
-            if (remoteMessageCount > 0) {
-                /* Message numbers start at 1.  */
-                int remoteStart;
-                if (visibleLimit > 0) {
-                    remoteStart = Math.max(0, remoteMessageCount - visibleLimit) + 1;
-                } else {
-                    remoteStart = 1;
-                }
-                int remoteEnd = remoteMessageCount;
-
-                if (K9.DEBUG)
-                    Log.v(K9.LOG_TAG, "SYNC: About to get messages " + remoteStart + " through " + remoteEnd + " for folder " + folder);
-
-                final AtomicInteger headerProgress = new AtomicInteger(0);
-                for (MessagingListener l : getListeners(listener)) {
-                    l.synchronizeMailboxHeadersStarted(account, folder);
-                }
-
-
-                remoteMessageArray = remoteFolder.getMessages(remoteStart, remoteEnd, earliestDate, null);
-
-                int messageCount = remoteMessageArray.length;
-
-                for (Message thisMess : remoteMessageArray) {
-                    headerProgress.incrementAndGet();
-                    for (MessagingListener l : getListeners(listener)) {
-                        l.synchronizeMailboxHeadersProgress(account, folder, headerProgress.get(), messageCount);
-                    }
-                    Message localMessage = localUidMap.get(thisMess.getUid());
-                    if (localMessage == null || !localMessage.olderThan(earliestDate)) {
-                        remoteMessages.add(thisMess);
-                        remoteUidMap.put(thisMess.getUid(), thisMess);
-                    }
-                }
-                if (K9.DEBUG)
-                    Log.v(K9.LOG_TAG, "SYNC: Got " + remoteUidMap.size() + " messages for folder " + folder);
-
-                remoteMessageArray = null;
-                for (MessagingListener l : getListeners(listener)) {
-                    l.synchronizeMailboxHeadersFinished(account, folder, headerProgress.get(), remoteUidMap.size());
-                }
-
-            } else if (remoteMessageCount < 0) {
-                throw new Exception("Message count " + remoteMessageCount + " for folder " + folder);
+            int newMessages;
+            if (isModSeqSyncPossible(account, localFolder, remoteFolder, remoteMessageCount, visibleLimit)) {
+                newMessages = synchronizeChangedMessages(account, folder, localFolder, remoteFolder, listener);
+            } else {
+                newMessages = synchronizeMessageWindow(account, folder, localFolder, remoteFolder,
+                        remoteMessageCount, visibleLimit, listener);
             }
 
             /*
-             * Remove any messages that are in the local store but no longer on the remote store or are too old
+             * Remember the mod-sequence so the next sync only needs to ask for changes. This has to
+             * happen after all changes have been applied locally.
              */
-            if (account.syncRemoteDeletions()) {
-                ArrayList<Message> destroyMessages = new ArrayList<Message>();
-                for (Message localMessage : localMessages) {
-                    if (remoteUidMap.get(localMessage.getUid()) == null) {
-                        destroyMessages.add(localMessage);
-                    }
-                }
-
-
-                localFolder.destroyMessages(destroyMessages.toArray(EMPTY_MESSAGE_ARRAY));
-
-                for (Message destroyMessage : destroyMessages) {
-                    for (MessagingListener l : getListeners(listener)) {
-                        l.synchronizeMailboxRemovedMessage(account, folder, destroyMessage);
-                    }
-                }
+            if (remoteFolder.supportsModSeqSync()) {
+                localFolder.setModSeqState(remoteFolder.getUidValidity(), remoteFolder.getHighestModSeq());
+            } else if (localFolder.getHighestModSeq() != 0) {
+                localFolder.setModSeqState(0, 0);
             }
-            localMessages = null;
-
-            /*
-             * Now we download the actual content of messages.
-             */
-            int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages, false);
 
             int unreadMessageCount = localFolder.getUnreadMessageCount();
             for (MessagingListener l : getListeners()) {
@@ -1204,6 +1394,218 @@ public class MessagingController implements Runnable {
     }
 
 
+    /**
+     * Synchronize the newest {@code visibleLimit} messages of the remote folder by comparing the
+     * complete list of UIDs and flags with the local store.
+     *
+     * @return The number of new messages.
+     */
+    private int synchronizeMessageWindow(final Account account, final String folder,
+            final LocalFolder localFolder, final Folder remoteFolder, int remoteMessageCount,
+            int visibleLimit, final MessagingListener listener) throws Exception {
+        /*
+         * Get the UIDs, dates and flags of the messages in the local store. Loading the complete
+         * messages isn't necessary to compare them with the remote message list.
+         */
+        MessageSnapshot localMessages = localFolder.getMessageSnapshot();
+        boolean[] remoteMessageExists = new boolean[localMessages.size()];
+
+        Message[] remoteMessageArray = EMPTY_MESSAGE_ARRAY;
+        final ArrayList<Message> remoteMessages = new ArrayList<Message>();
+        HashMap<String, Message> remoteUidMap = new HashMap<String, Message>();
+
+        if (K9.DEBUG)
+            Log.v(K9.LOG_TAG, "SYNC: Remote message count for folder " + folder + " is " + remoteMessageCount);
+        final Date earliestDate = account.getEarliestPollDate();
+
+
+        if (remoteMessageCount > 0) {
+            /* Message numbers start at 1.  */
+            int remoteStart;
+            if (visibleLimit > 0) {
+                remoteStart = Math.max(0, remoteMessageCount - visibleLimit) + 1;
+            } else {
+                remoteStart = 1;
+            }
+            int remoteEnd = remoteMessageCount;
+
+            if (K9.DEBUG)
+                Log.v(K9.LOG_TAG, "SYNC: About to get messages " + remoteStart + " through " + remoteEnd + " for folder " + folder);
+
+            final AtomicInteger headerProgress = new AtomicInteger(0);
+            for (MessagingListener l : getListeners(listener)) {
+                l.synchronizeMailboxHeadersStarted(account, folder);
+            }
+
+
+            remoteMessageArray = remoteFolder.getMessages(remoteStart, remoteEnd, earliestDate, null);
+
+            int messageCount = remoteMessageArray.length;
+
+            for (Message thisMess : remoteMessageArray) {
+                headerProgress.incrementAndGet();
+                for (MessagingListener l : getListeners(listener)) {
+                    l.synchronizeMailboxHeadersProgress(account, folder, headerProgress.get(), messageCount);
+                }
+                int localIndex = localMessages.indexOf(thisMess.getUid());
+                if (localIndex == -1 || !localMessages.olderThan(localIndex, earliestDate)) {
+                    remoteMessages.add(thisMess);
+                    remoteUidMap.put(thisMess.getUid(), thisMess);
+                    if (localIndex != -1) {
+                        remoteMessageExists[localIndex] = true;
+                    }
+                }
+            }
+            if (K9.DEBUG)
+                Log.v(K9.LOG_TAG, "SYNC: Got " + remoteUidMap.size() + " messages for folder " + folder);
+
+            remoteMessageArray = null;
+            for (MessagingListener l : getListeners(listener)) {
+                l.synchronizeMailboxHeadersFinished(account, folder, headerProgress.get(), remoteUidMap.size());
+            }
+
+        } else if (remoteMessageCount < 0) {
+            throw new Exception("Message count " + remoteMessageCount + " for folder " + folder);
+        }
+
+        /*
+         * Remove any messages that are in the local store but no longer on the remote store or are too old
+         */
+        if (account.syncRemoteDeletions()) {
+            ArrayList<String> destroyUids = new ArrayList<String>();
+            for (int i = 0, count = localMessages.size(); i < count; i++) {
+                if (!remoteMessageExists[i]) {
+                    String uid = localMessages.getUid(i);
+                    if (!remoteUidMap.containsKey(uid)) {
+                        destroyUids.add(uid);
+                    }
+                }
+            }
+
+            Message[] destroyMessages = EMPTY_MESSAGE_ARRAY;
+            if (!destroyUids.isEmpty()) {
+                destroyMessages = localFolder.getMessages(destroyUids.toArray(EMPTY_STRING_ARRAY), null);
+            }
+
+            localFolder.destroyMessages(destroyMessages);
+
+            for (Message destroyMessage : destroyMessages) {
+                for (MessagingListener l : getListeners(listener)) {
+                    l.synchronizeMailboxRemovedMessage(account, folder, destroyMessage);
+                }
+            }
+        }
+        localMessages = null;
+
+        /*
+         * Now we download the actual content of messages.
+         */
+        return downloadMessages(account, remoteFolder, localFolder, remoteMessages, false, false);
+    }
+
+    /**
+     * Check whether the remote folder can tell us what changed since the last sync (CONDSTORE/
+     * QRESYNC, see RFC 7162) so we don't have to compare the complete message window.
+     */
+    private boolean isModSeqSyncPossible(final Account account, final LocalFolder localFolder,
+            final Folder remoteFolder, int remoteMessageCount, int visibleLimit) throws MessagingException {
+        if (!remoteFolder.supportsModSeqSync()) {
+            return false;
+        }
+
+        long localModSeq = localFolder.getHighestModSeq();
+        if (localModSeq <= 0 || localFolder.getUidValidity() != remoteFolder.getUidValidity()) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "SYNC: No usable mod-sequence for folder " + localFolder.getName());
+            return false;
+        }
+
+        if (remoteFolder.getHighestModSeq() < localModSeq) {
+            Log.w(K9.LOG_TAG, "SYNC: HIGHESTMODSEQ of folder " + localFolder.getName() +
+                  " went backwards, doing a full sync");
+            return false;
+        }
+
+        /*
+         * If the local window isn't filled up yet (e.g. after the visible limit was raised) we
+         * have to fetch older messages which are never reported as changed.
+         */
+        if (account.getEarliestPollDate() == null) {
+            int expectedCount = (visibleLimit > 0) ? Math.min(visibleLimit, remoteMessageCount) : remoteMessageCount;
+            if (localFolder.getMessageCount() < expectedCount) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Only synchronize the messages that changed on the server since the last sync.
+     *
+     * @return The number of new messages.
+     */
+    private int synchronizeChangedMessages(final Account account, final String folder,
+            final LocalFolder localFolder, final Folder remoteFolder,
+            final MessagingListener listener) throws MessagingException {
+        long localModSeq = localFolder.getHighestModSeq();
+        if (remoteFolder.getHighestModSeq() == localModSeq) {
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "SYNC: Folder " + folder + " unchanged since modseq " + localModSeq);
+            return 0;
+        }
+
+        for (MessagingListener l : getListeners(listener)) {
+            l.synchronizeMailboxHeadersStarted(account, folder);
+        }
+
+        List<String> vanishedUids = new ArrayList<String>();
+        Message[] changedMessages = remoteFolder.getMessagesChangedSince(localModSeq, vanishedUids, null);
+
+        for (MessagingListener l : getListeners(listener)) {
+            l.synchronizeMailboxHeadersFinished(account, folder, changedMessages.length, changedMessages.length);
+        }
+
+        if (account.syncRemoteDeletions() && !vanishedUids.isEmpty()) {
+            Message[] destroyMessages = localFolder.getMessages(
+                    vanishedUids.toArray(EMPTY_STRING_ARRAY), null);
+
+            localFolder.destroyMessages(destroyMessages);
+
+            for (Message destroyMessage : destroyMessages) {
+                for (MessagingListener l : getListeners(listener)) {
+                    l.synchronizeMailboxRemovedMessage(account, folder, destroyMessage);
+                }
+            }
+        }
+
+        /*
+         * Changes to old messages we don't have locally are outside of our window. New messages
+         * always have a UID higher than anything we've seen before.
+         */
+        List<Message> messages = new ArrayList<Message>(Arrays.asList(changedMessages));
+        Integer lastUid = localFolder.getLastUid();
+        if (lastUid != null) {
+            for (Message message : localFolder.extractNewMessages(messages)) {
+                try {
+                    if (Long.parseLong(message.getUid()) <= lastUid) {
+                        messages.remove(message);
+                    }
+                } catch (NumberFormatException e) {
+                    // Keep the message
+                }
+            }
+        }
+
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "SYNC: " + changedMessages.length + " messages changed and " +
+                  vanishedUids.size() + " vanished since modseq " + localModSeq + " in folder " +
+                  folder + ", " + messages.size() + " of them are relevant");
+
+        // The CHANGEDSINCE response already contained the flags of the changed messages
+        return downloadMessages(account, remoteFolder, localFolder, messages, false, true);
+    }
+
     private void closeFolder(Folder f) {
         if (f != null) {
             f.close();
@@ -1251,6 +1653,9 @@ public class MessagingController implements Runnable {
      *            A list of messages objects that store the UIDs of which messages to download.
      * @param flagSyncOnly
      *            Only flags will be fetched from the remote store if this is {@code true}.
+     * @param flagsFetched
+     *            {@code true} if the flags of {@code inputMessages} have already been fetched
+     *            from the remote store and don't have to be fetched again.
      *
      * @return The number of downloaded messages that are not flagged as {@link Flag#SEEN}.
      *
@@ -1258,7 +1663,7 @@ public class MessagingController implements Runnable {
      */
     private int downloadMessages(final Account account, final Folder remoteFolder,
                                  final LocalFolder localFolder, List<Message> inputMessages,
-                                 boolean flagSyncOnly) throws MessagingException {
+                                 boolean flagSyncOnly, boolean flagsFetched) throws MessagingException {
 
         final Date earliestDate = account.getEarliestPollDate();
         Date downloadStarted = new Date(); // now
@@ -1285,10 +1690,29 @@ public class MessagingController implements Runnable {
 
         List<Message> messages = new ArrayList<Message>(inputMessages);
 
+        /*
+         * Look up all messages of the window with a few queries instead of loading every local
+         * message on its own.
+         */
+        long evaluationStart = System.currentTimeMillis();
+        List<String> uids = new ArrayList<String>(messages.size());
+        for (Message message : messages) {
+            if (!message.isSet(Flag.DELETED)) {
+                uids.add(message.getUid());
+            }
+        }
+        MessageSnapshot localMessages = localFolder.getMessageSnapshot(uids);
+
         for (Message message : messages) {
-            evaluateMessageForDownload(message, folder, localFolder, remoteFolder, account, unsyncedMessages, syncFlagMessages , flagSyncOnly);
+            evaluateMessageForDownload(message, folder, localFolder, localMessages, remoteFolder, account, unsyncedMessages, syncFlagMessages , flagSyncOnly);
         }
 
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "SYNC: Evaluated " + messages.size() + " messages for folder " + folder
+                  + " in " + (System.currentTimeMillis() - evaluationStart) + " ms, "
+                  + unsyncedMessages.size() + " to download, " + syncFlagMessages.size()
+                  + " to sync flags");
+
         final AtomicInteger progress = new AtomicInteger(0);
         final int todo = unsyncedMessages.size() + syncFlagMessages.size();
         for (MessagingListener l : getListeners()) {
@@ -1376,7 +1800,8 @@ public class MessagingController implements Runnable {
          * download.
          */
 
-        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, progress, todo);
+        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, flagsFetched,
+                progress, todo);
 
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Synced remote messages for folder " + folder + ", " + newMessages.get() + " new messages");
@@ -1412,6 +1837,7 @@ public class MessagingController implements Runnable {
     }
     private void evaluateMessageForDownload(final Message message, final String folder,
                                             final LocalFolder localFolder,
+                                            final MessageSnapshot localMessages,
                                             final Folder remoteFolder,
                                             final Account account,
                                             final List<Message> unsyncedMessages,
@@ -1422,9 +1848,9 @@ public class MessagingController implements Runnable {
             return;
         }
 
-        Message localMessage = localFolder.getMessage(message.getUid());
+        int localIndex = localMessages.indexOf(message.getUid());
 
-        if (localMessage == null) {
+        if (localIndex == -1) {
             if (!flagSyncOnly) {
                 if (!message.isSet(Flag.X_DOWNLOADED_FULL) && !message.isSet(Flag.X_DOWNLOADED_PARTIAL)) {
                     if (K9.DEBUG)
@@ -1438,7 +1864,7 @@ public class MessagingController implements Runnable {
                     // Store the updated message locally
                     localFolder.appendMessages(new Message[] { message });
 
-                    localMessage = localFolder.getMessage(message.getUid());
+                    Message localMessage = localFolder.getMessage(message.getUid());
 
                     localMessage.setFlag(Flag.X_DOWNLOADED_FULL, message.isSet(Flag.X_DOWNLOADED_FULL));
                     localMessage.setFlag(Flag.X_DOWNLOADED_PARTIAL, message.isSet(Flag.X_DOWNLOADED_PARTIAL));
@@ -1451,11 +1877,11 @@ public class MessagingController implements Runnable {
                     }
                 }
             }
-        } else if (!localMessage.isSet(Flag.DELETED)) {
+        } else if (!localMessages.isSet(localIndex, Flag.DELETED)) {
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "Message with uid " + message.getUid() + " is present in the local store");
 
-            if (!localMessage.isSet(Flag.X_DOWNLOADED_FULL) && !localMessage.isSet(Flag.X_DOWNLOADED_PARTIAL)) {
+            if ((localMessages.getFlagBits(localIndex) & DOWNLOADED_FLAG_BITS) == 0) {
                 if (K9.DEBUG)
                     Log.v(K9.LOG_TAG, "Message with uid " + message.getUid()
                           + " is not downloaded, even partially; trying again");
@@ -1616,6 +2042,11 @@ public class MessagingController implements Runnable {
                                        final AtomicInteger newMessages,
                                        final int todo,
                                        FetchProfile fp) throws MessagingException {
+        if (smallMessages.isEmpty()) {
+            // Don't start the pipeline threads for nothing
+            return;
+        }
+
         final String folder = remoteFolder.getName();
 
         final Date earliestDate = account.getEarliestPollDate();
@@ -1623,68 +2054,122 @@ public class MessagingController implements Runnable {
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Fetching small messages for folder " + folder);
 
-        remoteFolder.fetch(smallMessages.toArray(new Message[smallMessages.size()]),
-        fp, new MessageRetrievalListener() {
+        /*
+         * Storing a message takes a while, so it's done by a pipeline instead of the thread that
+         * reads from the server. The listeners are notified once a message has been committed.
+         */
+        final DownloadPipeline<Message, PreparedMessage, Message> pipeline =
+                new DownloadPipeline<Message, PreparedMessage, Message>(
+                new DownloadPipeline.Handler<Message, PreparedMessage, Message>() {
             @Override
-            public void messageFinished(final Message message, int number, int ofTotal) {
-                try {
+            public PreparedMessage prepare(Message message) throws MessagingException {
+                return localFolder.prepareMessage(message);
+            }
 
-                    if (!shouldImportMessage(account, folder, message, progress, earliestDate)) {
-                        progress.incrementAndGet();
+            @Override
+            public List<Message> store(List<PreparedMessage> messages) throws MessagingException {
+                return localFolder.storeSmallMessages(messages);
+            }
 
-                        return;
-                    }
+            @Override
+            public void stored(Message message, Message localMessage) {
+                progress.incrementAndGet();
 
-                    // Store the updated message locally
-                    final Message localMessage = localFolder.storeSmallMessage(message, new Runnable() {
-                        @Override
-                        public void run() {
-                            progress.incrementAndGet();
-                        }
-                    });
+                // Increment the number of "new messages" if the newly downloaded message is
+                // not marked as read.
+                if (!localMessage.isSet(Flag.SEEN)) {
+                    newMessages.incrementAndGet();
+                }
 
-                    // Increment the number of "new messages" if the newly downloaded message is
-                    // not marked as read.
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "About to notify listeners that we got a new small message "
+                          + account + ":" + folder + ":" + message.getUid());
+
+                // Update the listener with what we've found
+                for (MessagingListener l : getListeners()) {
+                    l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
+                    l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
                     if (!localMessage.isSet(Flag.SEEN)) {
-                        newMessages.incrementAndGet();
+                        l.synchronizeMailboxNewMessage(account, folder, localMessage);
                     }
+                }
+                // Send a notification of this message
 
-                    if (K9.DEBUG)
-                        Log.v(K9.LOG_TAG, "About to notify listeners that we got a new small message "
-                              + account + ":" + folder + ":" + message.getUid());
+                if (shouldNotifyForMessage(account, localFolder, message)) {
+                    // Notify with the localMessage so that we don't have to recalculate the content preview.
+                    notifyAccount(mApplication, account, localMessage, unreadBeforeStart);
+                }
+            }
 
-                    // Update the listener with what we've found
-                    for (MessagingListener l : getListeners()) {
-                        l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
-                        l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
-                        if (!localMessage.isSet(Flag.SEEN)) {
-                            l.synchronizeMailboxNewMessage(account, folder, localMessage);
-                        }
-                    }
-                    // Send a notification of this message
+            @Override
+            public void failed(Message message, MessagingException me) {
+                addErrorMessage(account, null, me);
+                Log.e(K9.LOG_TAG, "SYNC: fetch small messages", me);
+            }
+        }, getStoreWorkers(), STORE_BATCH_SIZE, STORE_QUEUE_CAPACITY, STORE_IN_ORDER);
 
-                    if (shouldNotifyForMessage(account, localFolder, message)) {
-                        // Notify with the localMessage so that we don't have to recalculate the content preview.
-                        notifyAccount(mApplication, account, localMessage, unreadBeforeStart);
+        try {
+            remoteFolder.fetch(smallMessages.toArray(new Message[smallMessages.size()]),
+            fp, new MessageRetrievalListener() {
+                @Override
+                public void messageFinished(final Message message, int number, int ofTotal) {
+                    if (!shouldImportMessage(account, folder, message, progress, earliestDate)) {
+                        progress.incrementAndGet();
+
+                        return;
                     }
 
-                } catch (MessagingException me) {
-                    addErrorMessage(account, null, me);
-                    Log.e(K9.LOG_TAG, "SYNC: fetch small messages", me);
+                    pipeline.add(message);
                 }
-            }
 
-            @Override
-            public void messageStarted(String uid, int number, int ofTotal) {}
+                @Override
+                public void messageStarted(String uid, int number, int ofTotal) {}
 
-            @Override
-            public void messagesFinished(int total) {}
-        });
+                @Override
+                public void messagesFinished(int total) {}
+            });
+        } catch (MessagingException e) {
+            finishAfterFailedFetch(pipeline);
+            throw e;
+        } catch (RuntimeException e) {
+            finishAfterFailedFetch(pipeline);
+            throw e;
+        }
+        pipeline.finish();
 
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Done fetching small messages for folder " + folder);
     }
 
+    /**
+     * Stores the messages that were downloaded before a fetch failed. A failure of the pipeline
+     * is only logged so it doesn't hide the exception of the fetch.
+     */
+    private static void finishAfterFailedFetch(DownloadPipeline<?, ?, ?> pipeline) {
+        try {
+            pipeline.finish();
+        } catch (RuntimeException e) {
+            Log.e(K9.LOG_TAG, "SYNC: Failed to store small messages after the fetch failed", e);
+        }
+    }
+
+    /**
+     * Returns the executor that prepares downloaded messages for all {@link DownloadPipeline}s.
+     * It's only created once messages are downloaded for the first time.
+     */
+    private synchronized ExecutorService getStoreWorkers() {
+        if (mStoreWorkers == null) {
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+            mStoreWorkers = Executors.newFixedThreadPool(STORE_WORKER_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "StoreWorker-" + threadNumber.getAndIncrement());
+                }
+            });
+        }
+        return mStoreWorkers;
+    }
+
 
 
     private void downloadLargeMessages(final Account account, final Folder remoteFolder,
@@ -1815,6 +2300,7 @@ public class MessagingController implements Runnable {
     private void refreshLocalMessageFlags(final Account account, final Folder remoteFolder,
                                           final LocalFolder localFolder,
                                           ArrayList<Message> syncFlagMessages,
+                                          boolean flagsFetched,
                                           final AtomicInteger progress,
                                           final int todo
                                          ) throws MessagingException {
@@ -1825,20 +2311,38 @@ public class MessagingController implements Runnable {
                 Log.d(K9.LOG_TAG, "SYNC: About to sync flags for "
                       + syncFlagMessages.size() + " remote messages for folder " + folder);
 
-            FetchProfile fp = new FetchProfile();
-            fp.add(FetchProfile.Item.FLAGS);
+            if (!flagsFetched) {
+                FetchProfile fp = new FetchProfile();
+                fp.add(FetchProfile.Item.FLAGS);
 
-            List<Message> undeletedMessages = new LinkedList<Message>();
-            for (Message message : syncFlagMessages) {
-                if (!message.isSet(Flag.DELETED)) {
-                    undeletedMessages.add(message);
+                List<Message> undeletedMessages = new LinkedList<Message>();
+                for (Message message : syncFlagMessages) {
+                    if (!message.isSet(Flag.DELETED)) {
+                        undeletedMessages.add(message);
+                    }
                 }
+
+                remoteFolder.fetch(undeletedMessages.toArray(EMPTY_MESSAGE_ARRAY), fp, null);
+            }
+
+            /*
+             * Compare the flags with a snapshot of the local flags first and only load the local
+             * messages whose flags actually changed.
+             */
+            List<String> uids = new ArrayList<String>(syncFlagMessages.size());
+            for (Message remoteMessage : syncFlagMessages) {
+                uids.add(remoteMessage.getUid());
             }
+            MessageSnapshot localMessages = localFolder.getMessageSnapshot(uids);
 
-            remoteFolder.fetch(undeletedMessages.toArray(EMPTY_MESSAGE_ARRAY), fp, null);
             for (Message remoteMessage : syncFlagMessages) {
-                Message localMessage = localFolder.getMessage(remoteMessage.getUid());
-                boolean messageChanged = syncFlags(localMessage, remoteMessage);
+                int localIndex = localMessages.indexOf(remoteMessage.getUid());
+                boolean messageChanged = false;
+                Message localMessage = null;
+                if (localIndex != -1 && flagsChanged(account, localMessages, localIndex, remoteMessage)) {
+                    localMessage = localFolder.getMessage(remoteMessage.getUid());
+                    messageChanged = syncFlags(localMessage, remoteMessage);
+                }
                 if (messageChanged) {
                     boolean shouldBeNotifiedOf = false;
                     if (localMessage.isSet(Flag.DELETED) || isMessageSuppressed(account, localMessage)) {
@@ -1875,6 +2379,25 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Check whether {@link #syncFlags(Message, Message)} would change the local message.
+     */
+    private boolean flagsChanged(Account account, MessageSnapshot localMessages, int localIndex,
+            Message remoteMessage) {
+        if (localMessages.isSet(localIndex, Flag.DELETED)) {
+            return false;
+        }
+        if (remoteMessage.isSet(Flag.DELETED)) {
+            return account.syncRemoteDeletions();
+        }
+        for (Flag flag : MessagingController.SYNC_FLAGS) {
+            if (remoteMessage.isSet(flag) != localMessages.isSet(localIndex, flag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean syncFlags(Message localMessage, Message remoteMessage) throws MessagingException {
         boolean messageChanged = false;
         if (localMessage == null || localMessage.isSet(Flag.DELETED)) {
@@ -1927,7 +2450,8 @@ public class MessagingController implements Runnable {
     }
 
     private void processPendingCommands(final Account account) {
-        putBackground("processPendingCommands", null, new Runnable() {
+        putCommand(Priority.USER_ACTION, account, "processPendingCommands:" + account.getUuid(),
+                "processPendingCommands", null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -1950,11 +2474,30 @@ public class MessagingController implements Runnable {
     }
 
     private void processPendingCommandsSynchronous(Account account) throws MessagingException {
+        /*
+         * Folders of an account may be synchronized in parallel and each synchronization starts
+         * by processing the account's pending commands. Serialize this so the commands are
+         * executed exactly once and in the order they were queued.
+         */
+        Object lock = mPendingCommandsLocks.get(account.getUuid());
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = mPendingCommandsLocks.putIfAbsent(account.getUuid(), newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+
+        synchronized (lock) {
+            processPendingCommandsLocked(account);
+        }
+    }
+
+    private void processPendingCommandsLocked(Account account) throws MessagingException {
         LocalStore localStore = account.getLocalStore();
-        ArrayList<PendingCommand> commands = localStore.getPendingCommands();
 
         int progress = 0;
-        int todo = commands.size();
+        int todo = localStore.getPendingCommandCount();
         if (todo == 0) {
             return;
         }
@@ -1966,59 +2509,102 @@ public class MessagingController implements Runnable {
 
         PendingCommand processingCommand = null;
         try {
-            for (PendingCommand command : commands) {
-                processingCommand = command;
-                if (K9.DEBUG)
-                    Log.d(K9.LOG_TAG, "Processing pending command '" + command + "'");
+            /*
+             * The queue is read in pages so a long queue doesn't have to be held in memory.
+             * Commands queued while we're busy are left for the next run.
+             */
+            PendingCommandReader reader = new PendingCommandReader(localStore, todo);
+            List<PendingCommand> commands = new ArrayList<PendingCommand>();
+            while (reader.readPage(commands)) {
+                int index = 0;
+                while (index < commands.size()) {
+                    PendingCommand command = commands.get(index);
+                    processingCommand = command;
 
-                String[] components = command.command.split("\\.");
-                String commandTitle = components[components.length - 1];
-                for (MessagingListener l : getListeners()) {
-                    l.pendingCommandStarted(account, commandTitle);
-                }
-                /*
-                 * We specifically do not catch any exceptions here. If a command fails it is
-                 * most likely due to a server or IO error and it must be retried before any
-                 * other command processes. This maintains the order of the commands.
-                 */
-                try {
-                    if (PENDING_COMMAND_APPEND.equals(command.command)) {
-                        processPendingAppend(command, account);
-                    } else if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
-                        processPendingSetFlag(command, account);
-                    } else if (PENDING_COMMAND_SET_FLAG.equals(command.command)) {
-                        processPendingSetFlagOld(command, account);
-                    } else if (PENDING_COMMAND_MARK_ALL_AS_READ.equals(command.command)) {
-                        processPendingMarkAllAsRead(command, account);
-                    } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK.equals(command.command)) {
-                        processPendingMoveOrCopyOld2(command, account);
-                    } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW.equals(command.command)) {
-                        processPendingMoveOrCopy(command, account);
-                    } else if (PENDING_COMMAND_MOVE_OR_COPY.equals(command.command)) {
-                        processPendingMoveOrCopyOld(command, account);
-                    } else if (PENDING_COMMAND_EMPTY_TRASH.equals(command.command)) {
-                        processPendingEmptyTrash(command, account);
-                    } else if (PENDING_COMMAND_EXPUNGE.equals(command.command)) {
-                        processPendingExpunge(command, account);
+                    /*
+                     * Consecutive flag changes are sent to the server together, even if they
+                     * continue on the next page. Processed commands are dropped before reading
+                     * it.
+                     */
+                    int batchEnd = index + 1;
+                    if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
+                        while (batchEnd - index < PENDING_FLAG_COMMAND_BATCH_SIZE) {
+                            if (batchEnd == commands.size()) {
+                                commands.subList(0, index).clear();
+                                batchEnd -= index;
+                                index = 0;
+                                if (!reader.readPage(commands)) {
+                                    break;
+                                }
+                            }
+                            if (!PENDING_COMMAND_SET_FLAG_BULK.equals(commands.get(batchEnd).command)) {
+                                break;
+                            }
+                            batchEnd++;
+                        }
                     }
-                    localStore.removePendingCommand(command);
-                    if (K9.DEBUG)
-                        Log.d(K9.LOG_TAG, "Done processing pending command '" + command + "'");
-                } catch (MessagingException me) {
-                    if (me.isPermanentFailure()) {
-                        addErrorMessage(account, null, me);
-                        Log.e(K9.LOG_TAG, "Failure of command '" + command + "' was permanent, removing command from queue");
-                        localStore.removePendingCommand(processingCommand);
-                    } else {
-                        throw me;
+                    List<PendingCommand> batch = commands.subList(index, batchEnd);
+                    index = batchEnd;
+
+                    if (K9.DEBUG) {
+                        if (batch.size() == 1) {
+                            Log.d(K9.LOG_TAG, "Processing pending command '" + command + "'");
+                        } else {
+                            Log.d(K9.LOG_TAG, "Processing " + batch.size() + " pending commands " +
+                                    "starting with '" + command + "'");
+                        }
                     }
-                } finally {
-                    progress++;
+
+                    String[] components = command.command.split("\\.");
+                    String commandTitle = components[components.length - 1];
                     for (MessagingListener l : getListeners()) {
-                        l.synchronizeMailboxProgress(account, null, progress, todo);
-                        l.pendingCommandCompleted(account, commandTitle);
+                        l.pendingCommandStarted(account, commandTitle);
+                    }
+                    /*
+                     * We specifically do not catch any exceptions here. If a command fails it is
+                     * most likely due to a server or IO error and it must be retried before any
+                     * other command processes. This maintains the order of the commands.
+                     */
+                    try {
+                        if (PENDING_COMMAND_APPEND.equals(command.command)) {
+                            processPendingAppend(command, account);
+                        } else if (PENDING_COMMAND_SET_FLAG_BULK.equals(command.command)) {
+                            processPendingSetFlag(batch, account);
+                        } else if (PENDING_COMMAND_SET_FLAG.equals(command.command)) {
+                            processPendingSetFlagOld(command, account);
+                        } else if (PENDING_COMMAND_MARK_ALL_AS_READ.equals(command.command)) {
+                            processPendingMarkAllAsRead(command, account);
+                        } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK.equals(command.command)) {
+                            processPendingMoveOrCopyOld2(command, account);
+                        } else if (PENDING_COMMAND_MOVE_OR_COPY_BULK_NEW.equals(command.command)) {
+                            processPendingMoveOrCopy(command, account);
+                        } else if (PENDING_COMMAND_MOVE_OR_COPY.equals(command.command)) {
+                            processPendingMoveOrCopyOld(command, account);
+                        } else if (PENDING_COMMAND_EMPTY_TRASH.equals(command.command)) {
+                            processPendingEmptyTrash(command, account);
+                        } else if (PENDING_COMMAND_EXPUNGE.equals(command.command)) {
+                            processPendingExpunge(command, account);
+                        }
+                        localStore.removePendingCommands(batch);
+                        if (K9.DEBUG)
+                            Log.d(K9.LOG_TAG, "Done processing pending command '" + command + "'");
+                    } catch (MessagingException me) {
+                        if (me.isPermanentFailure()) {
+                            addErrorMessage(account, null, me);
+                            Log.e(K9.LOG_TAG, "Failure of command '" + command + "' was permanent, removing command from queue");
+                            localStore.removePendingCommands(batch);
+                        } else {
+                            throw me;
+                        }
+                    } finally {
+                        progress += batch.size();
+                        for (MessagingListener l : getListeners()) {
+                            l.synchronizeMailboxProgress(account, null, progress, todo);
+                            l.pendingCommandCompleted(account, commandTitle);
+                        }
                     }
                 }
+                commands.clear();
             }
         } catch (MessagingException me) {
             notifyUserIfCertificateProblem(mApplication, me, account, true);
@@ -2032,6 +2618,43 @@ public class MessagingController implements Runnable {
         }
     }
 
+    /**
+     * Reads the first {@code todo} pending commands of an account, {@link #PENDING_COMMAND_PAGE_SIZE}
+     * at a time.
+     */
+    private static class PendingCommandReader {
+        private final LocalStore mLocalStore;
+        private final int mTodo;
+        private int mLoaded = 0;
+        private PendingCommand mLastLoaded = null;
+
+        PendingCommandReader(LocalStore localStore, int todo) {
+            mLocalStore = localStore;
+            mTodo = todo;
+        }
+
+        /**
+         * Appends the next page of commands to {@code commands}.
+         *
+         * @return {@code false} if there were no more commands.
+         */
+        boolean readPage(List<PendingCommand> commands) throws MessagingException {
+            if (mLoaded >= mTodo) {
+                return false;
+            }
+
+            List<PendingCommand> page = mLocalStore.getPendingCommands(mLastLoaded,
+                    Math.min(PENDING_COMMAND_PAGE_SIZE, mTodo - mLoaded));
+            if (page.isEmpty()) {
+                return false;
+            }
+            mLoaded += page.size();
+            mLastLoaded = page.get(page.size() - 1);
+            commands.addAll(page);
+            return true;
+        }
+    }
+
     /**
      * Process a pending append message command. This command uploads a local message to the
      * server, first checking to be sure that the server message is not newer than
@@ -2372,7 +2995,7 @@ public class MessagingController implements Runnable {
     }
 
     private void queueSetFlag(final Account account, final String folderName, final String newState, final String flag, final String[] uids) {
-        putBackground("queueSetFlag " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putCommand(Priority.USER_ACTION, account, null, "queueSetFlag " + account.getDescription() + ":" + folderName, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = new PendingCommand();
@@ -2389,26 +3012,70 @@ public class MessagingController implements Runnable {
         });
     }
     /**
-     * Processes a pending mark read or unread command.
+     * Processes consecutive pending set flag commands.
+     *
+     * <p>
+     * The changes are combined per folder, so only the last change of a flag is sent for every
+     * message and each remote folder is opened once. See {@link PendingFlagChanges}.
+     * </p>
      *
-     * @param command arguments = (String folder, String uid, boolean read)
+     * @param commands arguments = (String folder, String newState, String flag, String... uids)
      * @param account
      */
-    private void processPendingSetFlag(PendingCommand command, Account account)
+    private void processPendingSetFlag(List<PendingCommand> commands, Account account)
     throws MessagingException {
-        String folder = command.arguments[0];
+        Map<String, PendingFlagChanges> changesByFolder =
+                new LinkedHashMap<String, PendingFlagChanges>();
+        for (PendingCommand command : commands) {
+            String folder = command.arguments[0];
+            if (account.getErrorFolderName().equals(folder)) {
+                continue;
+            }
 
-        if (account.getErrorFolderName().equals(folder)) {
-            return;
-        }
+            boolean newState = Boolean.parseBoolean(command.arguments[1]);
+            Flag flag = Flag.valueOf(command.arguments[2]);
 
-        boolean newState = Boolean.parseBoolean(command.arguments[1]);
+            List<String> uids = new ArrayList<String>();
+            for (int i = 3; i < command.arguments.length; i++) {
+                String uid = command.arguments[i];
+                if (!uid.startsWith(K9.LOCAL_UID_PREFIX)) {
+                    uids.add(uid);
+                }
+            }
 
-        Flag flag = Flag.valueOf(command.arguments[2]);
+            PendingFlagChanges changes = changesByFolder.get(folder);
+            if (changes == null) {
+                changes = new PendingFlagChanges();
+                changesByFolder.put(folder, changes);
+            }
+            changes.add(flag, newState, uids.toArray(EMPTY_STRING_ARRAY));
+        }
 
         Store remoteStore = account.getRemoteStore();
+        for (Map.Entry<String, PendingFlagChanges> entry : changesByFolder.entrySet()) {
+            try {
+                processPendingSetFlag(remoteStore, entry.getKey(), entry.getValue());
+            } catch (MessagingException me) {
+                if (!me.isPermanentFailure()) {
+                    throw me;
+                }
+                // Don't let one folder keep the changes of the other folders from being sent
+                addErrorMessage(account, null, me);
+                Log.e(K9.LOG_TAG, "Failure to set flags in folder " + entry.getKey() +
+                        " was permanent, dropping changes", me);
+            }
+        }
+    }
+
+    private void processPendingSetFlag(Store remoteStore, String folder,
+            PendingFlagChanges changes) throws MessagingException {
+        List<FlagChange> flagChanges = changes.getChanges();
+        if (flagChanges.isEmpty()) {
+            return;
+        }
+
         Folder remoteFolder = remoteStore.getFolder(folder);
-        if (!remoteFolder.exists() || !remoteFolder.isFlagSupported(flag)) {
+        if (!remoteFolder.exists()) {
             return;
         }
 
@@ -2417,18 +3084,31 @@ public class MessagingController implements Runnable {
             if (remoteFolder.getMode() != Folder.OPEN_MODE_RW) {
                 return;
             }
-            List<Message> messages = new ArrayList<Message>();
-            for (int i = 3; i < command.arguments.length; i++) {
-                String uid = command.arguments[i];
-                if (!uid.startsWith(K9.LOCAL_UID_PREFIX)) {
-                    messages.add(remoteFolder.getMessage(uid));
+
+            for (FlagChange change : flagChanges) {
+                List<Flag> flags = new ArrayList<Flag>();
+                for (Flag flag : change.flags) {
+                    if (remoteFolder.isFlagSupported(flag)) {
+                        flags.add(flag);
+                    }
+                }
+                if (flags.isEmpty()) {
+                    continue;
                 }
-            }
 
-            if (messages.isEmpty()) {
-                return;
+                Message[] messages = new Message[change.uids.length];
+                for (int i = 0; i < messages.length; i++) {
+                    messages[i] = remoteFolder.getMessage(change.uids[i]);
+                }
+
+                if (K9.DEBUG)
+                    Log.d(K9.LOG_TAG, "processPendingSetFlag: folder = " + folder + ", flags = " +
+                            flags + ", newState = " + change.newState + ", messages = " +
+                            messages.length);
+
+                remoteFolder.setFlags(messages, flags.toArray(new Flag[flags.size()]),
+                        change.newState);
             }
-            remoteFolder.setFlags(messages.toArray(EMPTY_MESSAGE_ARRAY), new Flag[] { flag }, newState);
         } finally {
             closeFolder(remoteFolder);
         }
@@ -2474,7 +3154,7 @@ public class MessagingController implements Runnable {
         }
     }
     private void queueExpunge(final Account account, final String folderName) {
-        putBackground("queueExpunge " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putCommand(Priority.USER_ACTION, account, null, "queueExpunge " + account.getDescription() + ":" + folderName, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = new PendingCommand();
@@ -2809,13 +3489,18 @@ public class MessagingController implements Runnable {
         try {
             if (threadedList) {
                 localStore.setFlagForThreads(ids, flag, newState);
-                removeFlagForThreadsFromCache(account, ids, flag);
             } else {
                 localStore.setFlag(ids, flag, newState);
-                removeFlagFromCache(account, ids, flag);
             }
         } catch (MessagingException e) {
             Log.e(K9.LOG_TAG, "Couldn't set flags in local database", e);
+        } finally {
+            // Once the transaction is over the database has the authoritative value
+            if (threadedList) {
+                removeFlagForThreadsFromCache(account, ids, flag);
+            } else {
+                removeFlagFromCache(account, ids, flag);
+            }
         }
 
         // Read folder name and UID of messages from the database
@@ -2975,7 +3660,7 @@ public class MessagingController implements Runnable {
 
     public void loadMessageForViewRemote(final Account account, final String folder,
                                          final String uid, final MessagingListener listener) {
-        put("loadMessageForViewRemote", listener, new Runnable() {
+        putCommand(Priority.INTERACTIVE, account, null, "loadMessageForViewRemote", listener, new Runnable() {
             @Override
             public void run() {
                 loadMessageForViewRemoteSynchronous(account, folder, uid, listener, false, false);
@@ -3207,7 +3892,7 @@ public class MessagingController implements Runnable {
             l.loadAttachmentStarted(account, message, part, tag, true);
         }
 
-        put("loadAttachment", listener, new Runnable() {
+        putCommand(Priority.INTERACTIVE, account, null, "loadAttachment", listener, new Runnable() {
             @Override
             public void run() {
                 Folder remoteFolder = null;
@@ -3298,7 +3983,9 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessages(final Account account,
                                     MessagingListener listener) {
-        putBackground("sendPendingMessages", listener, new Runnable() {
+        putCommand(Priority.USER_ACTION, account,
+                isRegistered(listener) ? "sendPendingMessages:" + account.getUuid() : null,
+                "sendPendingMessages", listener, new Runnable() {
             @Override
             public void run() {
                 if (!account.isAvailable(mApplication)) {
@@ -3490,6 +4177,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessagesSynchronous(final Account account) {
         Folder localFolder = null;
+        Transport transport = null;
         Exception lastFailure = null;
         try {
             Store localStore = account.getLocalStore();
@@ -3520,7 +4208,8 @@ public class MessagingController implements Runnable {
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "Scanning folder '" + account.getOutboxFolderName() + "' (" + ((LocalFolder)localFolder).getId() + ") for messages to send");
 
-            Transport transport = Transport.getInstance(account);
+            // The transport keeps its connection open until all messages have been sent
+            transport = Transport.getInstance(account);
             for (Message message : localMessages) {
                 if (message.isSet(Flag.DELETED)) {
                     message.destroy();
@@ -3635,6 +4324,9 @@ public class MessagingController implements Runnable {
             if (lastFailure == null) {
                 cancelNotification(K9.SEND_FAILED_NOTIFICATION - account.getAccountNumber());
             }
+            if (transport != null) {
+                transport.close();
+            }
             closeFolder(localFolder);
         }
     }
@@ -3752,7 +4444,7 @@ public class MessagingController implements Runnable {
         };
 
 
-        put("getFolderUnread:" + account.getDescription() + ":" + folderName, l, unreadRunnable);
+        putCommand(Priority.INTERACTIVE, account, null, "getFolderUnread:" + account.getDescription() + ":" + folderName, l, unreadRunnable);
     }
 
 
@@ -3791,7 +4483,7 @@ public class MessagingController implements Runnable {
 
         suppressMessages(account, messages);
 
-        putBackground("moveMessages", null, new Runnable() {
+        putCommand(Priority.USER_ACTION, account, null, "moveMessages", null, new Runnable() {
             @Override
             public void run() {
                 moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, false,
@@ -3805,7 +4497,7 @@ public class MessagingController implements Runnable {
 
         suppressMessages(account, messages);
 
-        putBackground("moveMessagesInThread", null, new Runnable() {
+        putCommand(Priority.USER_ACTION, account, null, "moveMessagesInThread", null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3829,7 +4521,7 @@ public class MessagingController implements Runnable {
             final List<Message> messages, final String destFolder,
             final MessagingListener listener) {
 
-        putBackground("copyMessages", null, new Runnable() {
+        putCommand(Priority.USER_ACTION, account, null, "copyMessages", null, new Runnable() {
             @Override
             public void run() {
                 moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, true,
@@ -3841,7 +4533,7 @@ public class MessagingController implements Runnable {
     public void copyMessagesInThread(final Account account, final String srcFolder,
             final List<Message> messages, final String destFolder) {
 
-        putBackground("copyMessagesInThread", null, new Runnable() {
+        putCommand(Priority.USER_ACTION, account, null, "copyMessagesInThread", null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3957,7 +4649,7 @@ public class MessagingController implements Runnable {
     }
 
     public void expunge(final Account account, final String folder, final MessagingListener listener) {
-        putBackground("expunge", null, new Runnable() {
+        putCommand(Priority.USER_ACTION, account, null, "expunge", null, new Runnable() {
             @Override
             public void run() {
                 queueExpunge(account, folder);
@@ -3994,7 +4686,7 @@ public class MessagingController implements Runnable {
 
                 suppressMessages(account, messages);
 
-                putBackground("deleteThreads", null, new Runnable() {
+                putCommand(Priority.USER_ACTION, account, null, "deleteThreads", null, new Runnable() {
                     @Override
                     public void run() {
                         deleteThreadsSynchronous(account, folder.getName(), accountMessages);
@@ -4043,7 +4735,7 @@ public class MessagingController implements Runnable {
             final List<Message> accountMessages) {
                 suppressMessages(account, messages);
 
-                putBackground("deleteMessages", null, new Runnable() {
+                putCommand(Priority.USER_ACTION, account, null, "deleteMessages", null, new Runnable() {
                     @Override
                     public void run() {
                         deleteMessagesSynchronous(account, folder.getName(),
@@ -4166,7 +4858,7 @@ public class MessagingController implements Runnable {
 
                 // When we empty trash, we need to actually synchronize the folder
                 // or local deletes will never get cleaned up
-                synchronizeFolder(account, remoteFolder, true, 0, null);
+                synchronizeFolder(account, remoteFolder, true, 0, null, null);
                 compact(account, null);
 
 
@@ -4177,7 +4869,7 @@ public class MessagingController implements Runnable {
     }
 
     public void emptyTrash(final Account account, MessagingListener listener) {
-        putBackground("emptyTrash", listener, new Runnable() {
+        putCommand(Priority.USER_ACTION, account, null, "emptyTrash", listener, new Runnable() {
             @Override
             public void run() {
                 LocalFolder localFolder = null;
@@ -4324,9 +5016,17 @@ public class MessagingController implements Runnable {
         for (MessagingListener l : getListeners()) {
             l.checkMailStarted(context, account);
         }
-        putBackground("checkMail", listener, new Runnable() {
+        putCommand(useManualWakeLock ? Priority.USER_ACTION : Priority.POLL, account, null,
+                "checkMail", listener, new Runnable() {
             @Override
             public void run() {
+                // Finish the mail check once the synchronizations of all folders are done.
+                final SyncGroup checkGroup = new SyncGroup(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishCheckMail(context, account, wakeLock);
+                    }
+                });
 
                 try {
                     if (K9.DEBUG)
@@ -4342,32 +5042,38 @@ public class MessagingController implements Runnable {
                     }
 
                     for (final Account account : accounts) {
-                        checkMailForAccount(context, account, ignoreLastCheckedTime, prefs, listener);
+                        checkMailForAccount(context, account, ignoreLastCheckedTime, prefs, listener, checkGroup);
+                        buildFullTextIndex(account, null);
                     }
 
                 } catch (Exception e) {
                     Log.e(K9.LOG_TAG, "Unable to synchronize mail", e);
                     addErrorMessage(account, null, e);
                 }
-                putBackground("finalize sync", null, new Runnable() {
-                    @Override
-                    public void run() {
+                checkGroup.done();
+            }
+        });
+    }
 
-                        if (K9.DEBUG)
-                            Log.i(K9.LOG_TAG, "Finished mail sync");
+    private void finishCheckMail(final Context context, final Account account,
+                                 final TracingWakeLock wakeLock) {
+        putCommand(Priority.POLL, account, null, "finalize sync", null, new Runnable() {
+            @Override
+            public void run() {
 
-                        if (wakeLock != null) {
-                            wakeLock.release();
-                        }
-                        for (MessagingListener l : getListeners()) {
-                            l.checkMailFinished(context, account);
-                        }
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Finished mail sync");
 
-                    }
+                if (wakeLock != null) {
+                    wakeLock.release();
                 }
-                             );
+                for (MessagingListener l : getListeners()) {
+                    l.checkMailFinished(context, account);
+                }
+
             }
-        });
+        }
+                     );
     }
 
 
@@ -4375,7 +5081,8 @@ public class MessagingController implements Runnable {
     private void checkMailForAccount(final Context context, final Account account,
                                      final boolean ignoreLastCheckedTime,
                                      final Preferences prefs,
-                                     final MessagingListener listener) {
+                                     final MessagingListener listener,
+                                     final SyncGroup checkGroup) {
         if (!account.isAvailable(context)) {
             if (K9.DEBUG) {
                 Log.i(K9.LOG_TAG, "Skipping synchronizing unavailable account " + account.getDescription());
@@ -4396,6 +5103,15 @@ public class MessagingController implements Runnable {
 
         sendPendingMessages(account, listener);
 
+        checkGroup.add();
+        final SyncGroup accountGroup = new SyncGroup(new Runnable() {
+            @Override
+            public void run() {
+                clearNotificationFlag(context, account);
+                checkGroup.done();
+            }
+        });
+
         try {
             Account.FolderMode aDisplayMode = account.getFolderDisplayMode();
             Account.FolderMode aSyncMode = account.getFolderSyncMode();
@@ -4429,32 +5145,34 @@ public class MessagingController implements Runnable {
 
                     continue;
                 }
-                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener, accountGroup);
             }
         } catch (MessagingException e) {
             Log.e(K9.LOG_TAG, "Unable to synchronize account " + account.getName(), e);
             addErrorMessage(account, null, e);
         } finally {
-            putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
-                @Override
-                public void run() {
-                    if (K9.DEBUG)
-                        Log.v(K9.LOG_TAG, "Clearing notification flag for " + account.getDescription());
-                    account.setRingNotified(false);
-                    try {
-                        AccountStats stats = account.getStats(context);
-                        if (stats == null || stats.unreadMessageCount == 0) {
-                            notifyAccountCancel(context, account);
-                        }
-                    } catch (MessagingException e) {
-                        Log.e(K9.LOG_TAG, "Unable to getUnreadMessageCount for account: " + account, e);
+            accountGroup.done();
+        }
+    }
+
+    private void clearNotificationFlag(final Context context, final Account account) {
+        putCommand(Priority.MAINTENANCE, account, null, "clear notification flag for " + account.getDescription(), null, new Runnable() {
+            @Override
+            public void run() {
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "Clearing notification flag for " + account.getDescription());
+                account.setRingNotified(false);
+                try {
+                    AccountStats stats = account.getStats(context);
+                    if (stats == null || stats.unreadMessageCount == 0) {
+                        notifyAccountCancel(context, account);
                     }
+                } catch (MessagingException e) {
+                    Log.e(K9.LOG_TAG, "Unable to getUnreadMessageCount for account: " + account, e);
                 }
             }
-                         );
         }
-
-
+                     );
     }
 
 
@@ -4463,7 +5181,8 @@ public class MessagingController implements Runnable {
         final Folder folder,
         final boolean ignoreLastCheckedTime,
         final long accountInterval,
-        final MessagingListener listener) {
+        final MessagingListener listener,
+        final SyncGroup accountGroup) {
 
 
         if (K9.DEBUG)
@@ -4479,9 +5198,22 @@ public class MessagingController implements Runnable {
 
             return;
         }
-        putBackground("sync" + folder.getName(), null, new Runnable() {
+        if (accountGroup != null) {
+            accountGroup.add();
+        }
+        final QueuedSync sync = queueSync(getSyncKey(account, folder.getName()), listener, null,
+                !ignoreLastCheckedTime, false, accountGroup);
+        if (sync == null) {
+            return;
+        }
+        mSyncScheduler.submit(account.getUuid(), getMaxConcurrentSyncs(account), sync.key,
+                new Runnable() {
             @Override
             public void run() {
+                startQueuedSync(sync);
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Running folder sync " + account.getDescription() + ":" + folder.getName());
+
                 LocalFolder tLocalFolder = null;
                 try {
                     // In case multiple Commands get enqueued, don't run more than
@@ -4490,7 +5222,7 @@ public class MessagingController implements Runnable {
                     tLocalFolder = localStore.getFolder(folder.getName());
                     tLocalFolder.open(Folder.OPEN_MODE_RW);
 
-                    if (!ignoreLastCheckedTime && tLocalFolder.getLastChecked() >
+                    if (sync.pollOnly && tLocalFolder.getLastChecked() >
                     (System.currentTimeMillis() - accountInterval)) {
                         if (K9.DEBUG)
                             Log.v(K9.LOG_TAG, "Not running Command for folder " + folder.getName()
@@ -4498,9 +5230,26 @@ public class MessagingController implements Runnable {
                                   + " which would be too recent for the account period");
                         return;
                     }
+
+                    /*
+                     * While the folder is pushed, the server reports new messages and changes
+                     * right away. If that happened after this check was requested, the folder
+                     * is up to date already.
+                     */
+                    if (sync.pollOnly && pushers.containsKey(account) &&
+                            tLocalFolder.getLastPush() >= sync.queuedAt) {
+                        int satisfied = mSyncsSatisfiedByPush.incrementAndGet();
+                        if (K9.DEBUG)
+                            Log.v(K9.LOG_TAG, "Not running Command for folder " + folder.getName()
+                                  + ", updated by push @ " + new Date(tLocalFolder.getLastPush())
+                                  + ", " + satisfied + " checks satisfied by push so far");
+                        return;
+                    }
+
                     notifyFetchingMail(account, folder);
                     try {
-                        synchronizeMailboxSynchronous(account, folder.getName(), listener, null);
+                        synchronizeMailboxSynchronous(account, folder.getName(), sync.listener,
+                                sync.providedRemoteFolder);
                     } finally {
                         notifyFetchingMailCancel(account);
                     }
@@ -4511,18 +5260,39 @@ public class MessagingController implements Runnable {
                     addErrorMessage(account, null, e);
                 } finally {
                     closeFolder(tLocalFolder);
+                    sync.finished();
+
+                    for (MessagingListener l : getListeners(sync.listener)) {
+                        l.controllerCommandCompleted(!mCommands.isEmpty() || mSyncScheduler.isBusy());
+                    }
                 }
             }
         }
-                     );
+                             );
+
 
+    }
 
+    /**
+     * Returns how many folders of {@code account} may be synchronized in parallel. Every folder
+     * synchronization uses its own connection, so stores that don't maintain a connection per
+     * folder are limited to one.
+     */
+    private int getMaxConcurrentSyncs(Account account) {
+        try {
+            if (account.getRemoteStore().isParallelSyncCapable()) {
+                return Math.max(1, account.getMaxSyncConnections());
+            }
+        } catch (MessagingException e) {
+            Log.w(K9.LOG_TAG, "Unable to get remote store for account " + account.getDescription(), e);
+        }
+        return 1;
     }
 
 
 
     public void compact(final Account account, final MessagingListener ml) {
-        putBackground("compact:" + account.getDescription(), ml, new Runnable() {
+        putCommand(Priority.MAINTENANCE, account, null, "compact:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4544,7 +5314,7 @@ public class MessagingController implements Runnable {
     }
 
     public void clear(final Account account, final MessagingListener ml) {
-        putBackground("clear:" + account.getDescription(), ml, new Runnable() {
+        putCommand(Priority.MAINTENANCE, account, null, "clear:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4572,7 +5342,7 @@ public class MessagingController implements Runnable {
     }
 
     public void recreate(final Account account, final MessagingListener ml) {
-        putBackground("recreate:" + account.getDescription(), ml, new Runnable() {
+        putCommand(Priority.MAINTENANCE, account, null, "recreate:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4599,6 +5369,44 @@ public class MessagingController implements Runnable {
         });
     }
 
+    /**
+     * Adds messages that aren't in the full-text search index yet (e.g. after a database
+     * upgrade) to the index. Does nothing if the index is already complete.
+     */
+    public void buildFullTextIndex(final Account account, final MessagingListener ml) {
+        putCommand(Priority.MAINTENANCE, account, null, "buildFullTextIndex:" + account.getDescription(), ml, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LocalStore localStore = account.getLocalStore();
+                    if (localStore.isFullTextIndexComplete()) {
+                        return;
+                    }
+
+                    long start = System.currentTimeMillis();
+                    int added = localStore.buildFullTextIndex(new LocalStore.FullTextIndexListener() {
+                        @Override
+                        public void fullTextIndexProgress(int indexed, int total) {
+                            for (MessagingListener l : getListeners(ml)) {
+                                l.fullTextIndexProgress(account, indexed, total);
+                            }
+                        }
+                    });
+
+                    if (K9.DEBUG)
+                        Log.i(K9.LOG_TAG, "Added " + added + " messages of account " +
+                              account.getDescription() + " to the full-text index in " +
+                              (System.currentTimeMillis() - start) + " ms");
+                } catch (UnavailableStorageException e) {
+                    Log.i(K9.LOG_TAG, "Failed to build full-text index because storage is not available - trying again later.");
+                    throw new UnavailableAccountException(e);
+                } catch (Exception e) {
+                    Log.e(K9.LOG_TAG, "Failed to build full-text index for account " + account.getDescription(), e);
+                }
+            }
+        });
+    }
+
 
     private boolean shouldNotifyForMessage(Account account, LocalFolder localFolder, Message message) {
         // If we don't even have an account name, don't show the notification.
@@ -5152,30 +5960,84 @@ public class MessagingController implements Runnable {
         }
     }
 
-    static AtomicInteger sequencing = new AtomicInteger(0);
-    static class Command implements Comparable<Command> {
-        public Runnable runnable;
+    /**
+     * Keeps track of a number of asynchronous folder synchronizations and runs a callback once
+     * all of them are done.
+     *
+     * <p>
+     * The group starts out with one outstanding reference owned by its creator, so the callback
+     * can't run before the creator has added all synchronizations and called {@link #done()}.
+     * </p>
+     */
+    static class SyncGroup {
+        private final AtomicInteger mOutstanding = new AtomicInteger(1);
+        private final Runnable mOnFinished;
+
+        SyncGroup(Runnable onFinished) {
+            mOnFinished = onFinished;
+        }
+
+        void add() {
+            mOutstanding.incrementAndGet();
+        }
+
+        void done() {
+            if (mOutstanding.decrementAndGet() == 0) {
+                mOnFinished.run();
+            }
+        }
+    }
 
-        public MessagingListener listener;
+    /**
+     * A folder synchronization that may stand in for several requests.
+     *
+     * @see MessagingController#queueSync(String, MessagingListener, Folder, boolean, boolean, SyncGroup)
+     */
+    private static class QueuedSync {
+        final long queuedAt = System.currentTimeMillis();
 
-        public String description;
+        /**
+         * The key in {@link MessagingController#mQueuedSyncs}, or {@code null} if other requests
+         * can't be merged into this sync.
+         */
+        final String key;
+        final boolean reportsToListener;
+        final List<SyncGroup> groups = new ArrayList<SyncGroup>(1);
 
-        boolean isForeground;
+        // Modified while merging requests, guarded by mQueuedSyncs until the sync starts
+        MessagingListener listener;
+        Folder providedRemoteFolder;
+        boolean pollOnly;
 
-        int sequence = sequencing.getAndIncrement();
+        QueuedSync(String key, MessagingListener listener, Folder providedRemoteFolder,
+                boolean pollOnly, boolean reportsToListener, SyncGroup group) {
+            this.key = key;
+            this.listener = listener;
+            this.providedRemoteFolder = providedRemoteFolder;
+            this.pollOnly = pollOnly;
+            this.reportsToListener = reportsToListener;
+            if (group != null) {
+                groups.add(group);
+            }
+        }
 
-        @Override
-        public int compareTo(Command other) {
-            if (other.isForeground && !isForeground) {
-                return 1;
-            } else if (!other.isForeground && isForeground) {
-                return -1;
-            } else {
-                return (sequence - other.sequence);
+        void finished() {
+            for (SyncGroup group : groups) {
+                group.done();
             }
         }
     }
 
+    static class Command extends CommandScheduler.Task {
+        final MessagingListener listener;
+
+        Command(Priority priority, String accountUuid, String key, String description,
+                MessagingListener listener, Runnable runnable) {
+            super(priority, accountUuid, key, description, runnable);
+            this.listener = listener;
+        }
+    }
+
     public MessagingListener getCheckMailListener() {
         return checkMailListener;
     }
@@ -5315,7 +6177,7 @@ public class MessagingController implements Runnable {
                   + ", folder " + remoteFolder.getName());
 
         final CountDownLatch latch = new CountDownLatch(1);
-        putBackground("Push messageArrived of account " + account.getDescription()
+        putCommand(Priority.PUSH, account, null, "Push messageArrived of account " + account.getDescription()
         + ", folder " + remoteFolder.getName(), null, new Runnable() {
             @Override
             public void run() {
@@ -5326,7 +6188,7 @@ public class MessagingController implements Runnable {
                     localFolder.open(Folder.OPEN_MODE_RW);
 
                     account.setRingNotified(false);
-                    int newCount = downloadMessages(account, remoteFolder, localFolder, messages, flagSyncOnly);
+                    int newCount = downloadMessages(account, remoteFolder, localFolder, messages, flagSyncOnly, false);
 
                     int unreadMessageCount = localFolder.getUnreadMessageCount();
 
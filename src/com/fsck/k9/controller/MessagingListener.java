@@ -30,6 +30,12 @@ public class MessagingListener {
 
     public void accountSizeChanged(Account account, long oldSize, long newSize) {}
 
+    /**
+     * Called while {@link MessagingController#buildFullTextIndex(Account, MessagingListener)}
+     * adds existing messages to the full-text search index.
+     */
+    public void fullTextIndexProgress(Account account, int indexed, int total) {}
+
 
     public void listFoldersStarted(Account account) {}
 
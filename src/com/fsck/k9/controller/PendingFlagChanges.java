@@ -0,0 +1,100 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fsck.k9.mail.Flag;
+
+/**
+ * Collects the flag changes of several pending commands for one folder so they can be sent to
+ * the server with as few commands as possible.
+ *
+ * <p>
+ * For every message and flag only the last change is kept, so a message that was marked as read
+ * and then as unread again is only marked as unread. The remaining changes are grouped by new
+ * state and flag. Flags that are changed to the same state for the same set of messages are
+ * combined into one {@link FlagChange}.
+ * </p>
+ */
+class PendingFlagChanges {
+    /**
+     * The new state of every changed flag by message UID, in the order the UIDs were first seen.
+     */
+    private final Map<Flag, Map<String, Boolean>> mStates =
+            new EnumMap<Flag, Map<String, Boolean>>(Flag.class);
+
+
+    public void add(Flag flag, boolean newState, String[] uids) {
+        Map<String, Boolean> states = mStates.get(flag);
+        if (states == null) {
+            states = new LinkedHashMap<String, Boolean>();
+            mStates.put(flag, states);
+        }
+
+        for (String uid : uids) {
+            states.put(uid, newState);
+        }
+    }
+
+    public boolean isEmpty() {
+        return mStates.isEmpty();
+    }
+
+    public List<FlagChange> getChanges() {
+        Map<Set<String>, FlagChange> setChanges = new LinkedHashMap<Set<String>, FlagChange>();
+        Map<Set<String>, FlagChange> clearChanges = new LinkedHashMap<Set<String>, FlagChange>();
+
+        for (Map.Entry<Flag, Map<String, Boolean>> entry : mStates.entrySet()) {
+            Set<String> setUids = new LinkedHashSet<String>();
+            Set<String> clearUids = new LinkedHashSet<String>();
+            for (Map.Entry<String, Boolean> state : entry.getValue().entrySet()) {
+                if (state.getValue()) {
+                    setUids.add(state.getKey());
+                } else {
+                    clearUids.add(state.getKey());
+                }
+            }
+
+            addChange(setChanges, entry.getKey(), true, setUids);
+            addChange(clearChanges, entry.getKey(), false, clearUids);
+        }
+
+        List<FlagChange> changes = new ArrayList<FlagChange>(setChanges.values());
+        changes.addAll(clearChanges.values());
+        return changes;
+    }
+
+    private static void addChange(Map<Set<String>, FlagChange> changes, Flag flag,
+            boolean newState, Set<String> uids) {
+        if (uids.isEmpty()) {
+            return;
+        }
+
+        FlagChange change = changes.get(uids);
+        if (change == null) {
+            change = new FlagChange(newState, uids.toArray(new String[uids.size()]));
+            changes.put(uids, change);
+        }
+        change.flags.add(flag);
+    }
+
+
+    /**
+     * Sets or clears some flags of a set of messages.
+     */
+    static class FlagChange {
+        final List<Flag> flags = new ArrayList<Flag>();
+        final boolean newState;
+        final String[] uids;
+
+        FlagChange(boolean newState, String[] uids) {
+            this.newState = newState;
+            this.uids = uids;
+        }
+    }
+}
@@ -336,6 +336,21 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
     private static final int ACTIVITY_CHOOSE_FOLDER_MOVE = 1;
     private static final int ACTIVITY_CHOOSE_FOLDER_COPY = 2;
 
+    /**
+     * Number of messages that are initially loaded per account.
+     */
+    static final int MESSAGE_PAGE_SIZE = 100;
+
+    /**
+     * Value of {@link #mMessageLimit} when all messages are loaded.
+     */
+    private static final int NO_MESSAGE_LIMIT = -1;
+
+    /**
+     * Load the next page when a message this close to the end of the list is displayed.
+     */
+    private static final int LOAD_MORE_THRESHOLD = 20;
+
     private static final String ARG_SEARCH = "searchObject";
     private static final String ARG_THREADED_LIST = "threadedList";
     private static final String ARG_IS_THREAD_DISPLAY = "isThreadedDisplay";
@@ -391,6 +406,30 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
     private boolean[] mCursorValid;
     private int mUniqueIdColumn;
 
+    /**
+     * The maximum number of messages that are loaded per account, or {@link #NO_MESSAGE_LIMIT}
+     * if all messages are loaded.
+     *
+     * <p>
+     * Only the first messages (according to the sort order) are loaded from the database. When
+     * the user scrolls near the end of the list the limit is doubled and the loaders are
+     * restarted. Every restart queries all rows up to the limit again, so growing the limit
+     * geometrically keeps the total number of rows read proportional to the size of the list.
+     * </p>
+     */
+    private int mMessageLimit = MESSAGE_PAGE_SIZE;
+
+    /**
+     * {@code true} if at least one of the cursors was cut off by {@link #mMessageLimit}.
+     */
+    private boolean mMoreMessagesAvailable = false;
+
+    /**
+     * {@code true} if the user selected all messages while only some were loaded. The selection
+     * is made once the loaders have returned all messages.
+     */
+    private boolean mSelectAllPending = false;
+
     /**
      * Stores the name of the folder that we want to open as soon as possible after load.
      */
@@ -493,6 +532,7 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
         private static final int ACTION_GO_BACK = 5;
         private static final int ACTION_RESTORE_LIST_POSITION = 6;
         private static final int ACTION_OPEN_MESSAGE = 7;
+        private static final int ACTION_LOAD_MORE_MESSAGES = 8;
 
         private WeakReference<MessageListFragment> mFragment;
 
@@ -554,6 +594,11 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
             sendMessage(msg);
         }
 
+        public void loadMoreMessages() {
+            android.os.Message msg = android.os.Message.obtain(this, ACTION_LOAD_MORE_MESSAGES);
+            sendMessage(msg);
+        }
+
         @Override
         public void handleMessage(android.os.Message msg) {
             MessageListFragment fragment = mFragment.get();
@@ -604,6 +649,10 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
                     fragment.mFragmentListener.openMessage(messageReference);
                     break;
                 }
+                case ACTION_LOAD_MORE_MESSAGES: {
+                    fragment.restartLoader();
+                    break;
+                }
             }
         }
     }
@@ -1292,6 +1341,9 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
         Toast toast = Toast.makeText(getActivity(), toastString, Toast.LENGTH_SHORT);
         toast.show();
 
+        // Start with the first page of the new sort order
+        mMessageLimit = MESSAGE_PAGE_SIZE;
+
         LoaderManager loaderManager = getLoaderManager();
         for (int i = 0, len = mAccountUuids.length; i < len; i++) {
             loaderManager.restartLoader(i, null, this);
@@ -1949,6 +2001,8 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
             long uniqueId = cursor.getLong(mUniqueIdColumn);
             boolean selected = mSelected.contains(uniqueId);
 
+            maybeLoadMoreMessages(cursor.getPosition(), cursor.getCount());
+
 
             holder.chip.setBackgroundColor(account.getChipColor());
 
@@ -2215,6 +2269,7 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
             updateActionModeTitle();
             computeSelectAllVisibility();
         } else {
+            mSelectAllPending = false;
             mSelected.clear();
             mSelectedCount = 0;
             if (mActionMode != null) {
@@ -2288,6 +2343,13 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
         mAdapter.notifyDataSetChanged();
     }
 
+    /**
+     * @return The number of selected messages, counting all messages of selected threads.
+     */
+    int getSelectedCount() {
+        return mSelectedCount;
+    }
+
     private void updateActionModeTitle() {
         mActionMode.setTitle(String.format(getString(R.string.actionbar_selected), mSelectedCount));
     }
@@ -2991,6 +3053,15 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
     }
 
     public void selectAll() {
+        if (mMoreMessagesAvailable || !isLoadFinished()) {
+            // Batch operations work on the loaded rows, so load all messages before selecting them
+            mSelectAllPending = true;
+            mMoreMessagesAvailable = false;
+            mMessageLimit = NO_MESSAGE_LIMIT;
+            restartLoader();
+            return;
+        }
+
         setSelectionState(true);
     }
 
@@ -3314,6 +3385,13 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
             needConditions = true;
         }
 
+        if (!mIsThreadDisplay && mMessageLimit != NO_MESSAGE_LIMIT) {
+            uri = uri.buildUpon()
+                    .appendQueryParameter(EmailProvider.QUERY_PARAMETER_LIMIT,
+                            Integer.toString(mMessageLimit))
+                    .build();
+        }
+
         StringBuilder query = new StringBuilder();
         List<String> queryArgs = new ArrayList<String>();
         if (needConditions) {
@@ -3418,9 +3496,14 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
         mCursors[loaderId] = data;
         mCursorValid[loaderId] = true;
 
+        if (!mIsThreadDisplay) {
+            updateMoreMessagesAvailable();
+        }
+
         Cursor cursor;
         if (mCursors.length > 1) {
-            cursor = new MergeCursorWithUniqueId(mCursors, getComparator());
+            int limit = (mIsThreadDisplay) ? NO_MESSAGE_LIMIT : mMessageLimit;
+            cursor = new MergeCursorWithUniqueId(mCursors, getComparator(), limit);
             mUniqueIdColumn = cursor.getColumnIndex("_id");
         } else {
             cursor = data;
@@ -3456,9 +3539,48 @@ public class MessageListFragment extends SherlockFragment implements OnItemClick
             }
 
             mFragmentListener.updateMenu();
+
+            if (mSelectAllPending) {
+                mSelectAllPending = false;
+                setSelectionState(true);
+            }
         }
     }
 
+    private void updateMoreMessagesAvailable() {
+        if (mMessageLimit == NO_MESSAGE_LIMIT) {
+            mMoreMessagesAvailable = false;
+            return;
+        }
+
+        boolean moreMessagesAvailable = false;
+        for (Cursor cursor : mCursors) {
+            if (cursor != null && cursor.getCount() >= mMessageLimit) {
+                moreMessagesAvailable = true;
+                break;
+            }
+        }
+
+        mMoreMessagesAvailable = moreMessagesAvailable;
+    }
+
+    /**
+     * Doubles the number of messages loaded per account if the message at {@code position} is
+     * close to the end of the list.
+     */
+    private void maybeLoadMoreMessages(int position, int count) {
+        if (!mMoreMessagesAvailable || count - position > LOAD_MORE_THRESHOLD ||
+                !isLoadFinished()) {
+            return;
+        }
+
+        mMoreMessagesAvailable = false;
+        mMessageLimit *= 2;
+
+        // Don't restart the loaders while the adapter is binding views
+        mHandler.loadMoreMessages();
+    }
+
     public boolean isLoadFinished() {
         if (mCursorValid == null) {
             return false;
@@ -65,6 +65,11 @@ public class MergeCursor implements Cursor {
      */
     private final Comparator<Cursor> mComparator;
 
+    /**
+     * The maximum number of rows of this cursor, or {@code -1} for no limit.
+     */
+    private final int mLimit;
+
 
     /**
      * Constructor
@@ -75,8 +80,29 @@ public class MergeCursor implements Cursor {
      *         A comparator that is used to decide in what order the individual cursors are merged.
      */
     public MergeCursor(Cursor[] cursors, Comparator<Cursor> comparator) {
+        this(cursors, comparator, -1);
+    }
+
+    /**
+     * Constructor
+     *
+     * <p>
+     * When each of {@code cursors} only contains the first {@code limit} rows of its result, the
+     * first {@code limit} rows of the merged result are correct, but the ones after them may not
+     * be. So the merged cursor is cut off at {@code limit} rows.
+     * </p>
+     *
+     * @param cursors
+     *         The list of cursors this {@code MultiCursor} should combine.
+     * @param comparator
+     *         A comparator that is used to decide in what order the individual cursors are merged.
+     * @param limit
+     *         The maximum number of rows of the merged cursor, or {@code -1} for no limit.
+     */
+    public MergeCursor(Cursor[] cursors, Comparator<Cursor> comparator, int limit) {
         mCursors = cursors.clone();
         mComparator = comparator;
+        mLimit = limit;
 
         resetCursors();
     }
@@ -163,7 +189,7 @@ public class MergeCursor implements Cursor {
                 }
             }
 
-            mCount = count;
+            mCount = (mLimit >= 0) ? Math.min(count, mLimit) : count;
         }
 
         return mCount;
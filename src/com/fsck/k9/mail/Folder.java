@@ -187,6 +187,50 @@ public abstract class Folder {
         return true;
     }
 
+    /**
+     * Check whether the folder can report changes since a given mod-sequence (CONDSTORE/QRESYNC,
+     * see RFC 7162). Only meaningful after the folder has been opened.
+     *
+     * @return {@code true} if {@link #getMessagesChangedSince(long, List, MessageRetrievalListener)}
+     *         can be used. {@code false} otherwise.
+     */
+    public boolean supportsModSeqSync() {
+        return false;
+    }
+
+    /**
+     * @return The UIDVALIDITY value reported when the folder was opened, or -1 if unknown.
+     */
+    public long getUidValidity() {
+        return -1L;
+    }
+
+    /**
+     * @return The HIGHESTMODSEQ value reported when the folder was opened, or -1 if unknown.
+     */
+    public long getHighestModSeq() {
+        return -1L;
+    }
+
+    /**
+     * Fetch the flags of all messages that changed since the given mod-sequence.
+     *
+     * @param modSeq
+     *         The HIGHESTMODSEQ value recorded after the last successful synchronization.
+     * @param vanishedUids
+     *         Will be filled with the UIDs of messages that were expunged since {@code modSeq}.
+     * @param listener
+     *         Listener to notify as we fetch messages.
+     *
+     * @return The messages that changed, with their flags set.
+     *
+     * @see #supportsModSeqSync()
+     */
+    public Message[] getMessagesChangedSince(long modSeq, List<String> vanishedUids,
+            MessageRetrievalListener listener) throws MessagingException {
+        throw new MessagingException("K-9 does not support mod-sequences on this folder type");
+    }
+
     @Override
     public String toString() {
         return getName();
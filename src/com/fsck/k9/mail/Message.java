@@ -12,6 +12,7 @@ import com.fsck.k9.K9;
 import com.fsck.k9.activity.MessageReference;
 import com.fsck.k9.mail.filter.CountingOutputStream;
 import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.filter.SizeEstimatingOutputStream;
 import com.fsck.k9.mail.store.UnavailableStorageException;
 
 
@@ -266,6 +267,28 @@ public abstract class Message implements Part, CompositeBody {
         return 0;
     }
 
+    /**
+     * Estimates the size of the message as written by {@code writeTo()}.
+     *
+     * <p>
+     * Unlike {@link #calculateSize()} this doesn't read bodies that know their encoded size,
+     * e.g. stored attachments, so it's cheap even for large messages. Use it for checks that
+     * don't need the exact number of bytes.
+     * </p>
+     */
+    public long estimateSize() {
+        try {
+            SizeEstimatingOutputStream out = new SizeEstimatingOutputStream();
+            writeTo(out);
+            return out.getCount();
+        } catch (IOException e) {
+            Log.e(K9.LOG_TAG, "Failed to estimate a message size", e);
+        } catch (MessagingException e) {
+            Log.e(K9.LOG_TAG, "Failed to estimate a message size", e);
+        }
+        return 0;
+    }
+
     /**
      * Copy the contents of this object into another {@code Message} object.
      *
@@ -238,6 +238,14 @@ public abstract class Store {
         return false;
     }
 
+    /**
+     * Whether different folders of this store may be synchronized concurrently, each using its
+     * own connection to the server.
+     */
+    public boolean isParallelSyncCapable() {
+        return false;
+    }
+
     public boolean isSeenFlagSupported() {
         return true;
     }
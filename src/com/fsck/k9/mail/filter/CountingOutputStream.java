@@ -8,7 +8,7 @@ import java.io.OutputStream;
  * makes that count available to callers.
  */
 public class CountingOutputStream extends OutputStream {
-    private long mCount;
+    protected long mCount;
 
     public CountingOutputStream() {
     }
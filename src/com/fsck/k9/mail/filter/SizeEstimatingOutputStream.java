@@ -0,0 +1,18 @@
+package com.fsck.k9.mail.filter;
+
+/**
+ * A {@link CountingOutputStream} that bodies can report their size to instead of writing their
+ * contents.
+ *
+ * <p>
+ * Used by {@link com.fsck.k9.mail.Message#estimateSize()}. A body that is passed this stream and
+ * knows how many bytes it would write calls {@link #skip(long)} and returns, so large
+ * attachments don't have to be read and encoded just to find out their size.
+ * </p>
+ */
+public class SizeEstimatingOutputStream extends CountingOutputStream {
+
+    public void skip(long count) {
+        mCount += count;
+    }
+}
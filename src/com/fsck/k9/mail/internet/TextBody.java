@@ -30,8 +30,9 @@ public class TextBody implements Body {
     }
 
     public void writeTo(OutputStream out) throws IOException, MessagingException {
-        if (mBody != null) {
-            byte[] bytes = mBody.getBytes(mCharset);
+        String body = getText();
+        if (body != null) {
+            byte[] bytes = body.getBytes(mCharset);
             if (MimeUtil.ENC_8BIT.equalsIgnoreCase(mEncoding)) {
                 out.write(bytes);
             } else {
@@ -57,8 +58,9 @@ public class TextBody implements Body {
     public InputStream getInputStream() throws MessagingException {
         try {
             byte[] b;
-            if (mBody != null) {
-                b = mBody.getBytes(mCharset);
+            String body = getText();
+            if (body != null) {
+                b = body.getBytes(mCharset);
             } else {
                 b = EMPTY_BYTE_ARRAY;
             }
@@ -72,10 +74,18 @@ public class TextBody implements Body {
         mEncoding = encoding;
     }
 
+    public String getEncoding() {
+        return mEncoding;
+    }
+
     public void setCharset(String charset) {
         mCharset = charset;
     }
 
+    public String getCharset() {
+        return mCharset;
+    }
+
     public Integer getComposedMessageLength() {
         return mComposedMessageLength;
     }
@@ -0,0 +1,65 @@
+package com.fsck.k9.mail.store;
+
+/**
+ * Splits large message bodies into chunks that are stored in separate database rows.
+ *
+ * <p>
+ * Storing a multi-megabyte body in a single TEXT column means binding, and later reading it
+ * back into a {@code CursorWindow}, as one contiguous buffer. Rows larger than the cursor
+ * window can't be read at all. Bodies longer than {@link #CHUNK_SIZE} characters are therefore
+ * stored as a sequence of chunks of at most that size.
+ * </p>
+ * <p>
+ * Chunk boundaries are moved back to just after whitespace, a quote or {@code >} if one of
+ * these is found near the end of a chunk. This way URLs and attribute values, e.g.
+ * {@code cid:} references that are rewritten after an attachment was saved, never span two
+ * chunks and can be processed chunk by chunk. Surrogate pairs are never split.
+ * </p>
+ */
+class BodyChunker {
+    /**
+     * Maximum number of characters stored in a single chunk.
+     */
+    static final int CHUNK_SIZE = 128 * 1024;
+
+    /**
+     * How far back from the maximum chunk end to look for a preferred split position.
+     */
+    private static final int SPLIT_SEARCH_RANGE = 4 * 1024;
+
+
+    static boolean needsChunking(String text) {
+        return text != null && text.length() > CHUNK_SIZE;
+    }
+
+    /**
+     * Returns the end (exclusive) of the chunk starting at {@code start}.
+     */
+    static int nextChunkEnd(CharSequence text, int start) {
+        return nextChunkEnd(text, start, CHUNK_SIZE);
+    }
+
+    static int nextChunkEnd(CharSequence text, int start, int chunkSize) {
+        int length = text.length();
+        int maxEnd = start + chunkSize;
+        if (maxEnd >= length) {
+            return length;
+        }
+
+        int minEnd = Math.max(start + 1, maxEnd - Math.min(SPLIT_SEARCH_RANGE, chunkSize / 2));
+        for (int end = maxEnd; end > minEnd; end--) {
+            if (isSplitCharacter(text.charAt(end - 1))) {
+                return end;
+            }
+        }
+
+        if (Character.isHighSurrogate(text.charAt(maxEnd - 1))) {
+            return maxEnd - 1;
+        }
+        return maxEnd;
+    }
+
+    private static boolean isSplitCharacter(char c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '>' || c == '"' || c == '\'';
+    }
+}
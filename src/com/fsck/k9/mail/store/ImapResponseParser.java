@@ -4,6 +4,7 @@ import android.text.TextUtils;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
+import com.fsck.k9.mail.store.imap.ImapInputStream;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -17,14 +18,26 @@ public class ImapResponseParser {
     private static final SimpleDateFormat badDateTimeFormat2 = new SimpleDateFormat("E, dd MMM yyyy HH:mm:ss Z", Locale.US);
     private static final SimpleDateFormat badDateTimeFormat3 = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss", Locale.US);
 
-    private PeekableInputStream mIn;
+    private ImapInputStream mIn;
     private ImapResponse mResponse;
     private Exception mException;
 
-    public ImapResponseParser(PeekableInputStream in) {
+    public ImapResponseParser(ImapInputStream in) {
         this.mIn = in;
     }
 
+    /**
+     * Creates a parser that reads from a {@link PeekableInputStream}.
+     *
+     * <p>
+     * The stream is wrapped in an {@link ImapInputStream}, so it must not be read directly while
+     * the parser is in use.
+     * </p>
+     */
+    public ImapResponseParser(PeekableInputStream in) {
+        this(new ImapInputStream(in));
+    }
+
     public ImapResponse readResponse() throws IOException {
         return readResponse(null);
     }
@@ -240,31 +253,7 @@ public class ImapResponseParser {
     }
 
     private String parseAtom() throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while (true) {
-            ch = mIn.peek();
-            if (ch == -1) {
-                throw new IOException("parseAtom(): end of stream reached");
-            } else if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                       ch == '[' || ch == ']' ||
-                       // docs claim that flags are \ atom but atom isn't supposed to
-                       // contain
-                       // * and some flags contain *
-                       // ch == '%' || ch == '*' ||
-//                    ch == '%' ||
-                       // TODO probably should not allow \ and should recognize
-                       // it as a flag instead
-                       // ch == '"' || ch == '\' ||
-                       ch == '"' || (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f) {
-                if (sb.length() == 0) {
-                    throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
-                }
-                return sb.toString();
-            } else {
-                sb.append((char)mIn.read());
-            }
-        }
+        return mIn.readAtom();
     }
 
     /**
@@ -325,44 +314,15 @@ public class ImapResponseParser {
 
     private String parseQuoted() throws IOException {
         expect('"');
-
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        boolean escape = false;
-        while ((ch = mIn.read()) != -1) {
-            if (!escape && (ch == '\\')) {
-                // Found the escape character
-                escape = true;
-            } else if (!escape && (ch == '"')) {
-                return sb.toString();
-            } else {
-                sb.append((char)ch);
-                escape = false;
-            }
-        }
-        throw new IOException("parseQuoted(): end of stream reached");
+        return mIn.readQuoted();
     }
 
     private String readStringUntil(char end) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = mIn.read()) != -1) {
-            if (ch == end) {
-                return sb.toString();
-            } else {
-                sb.append((char)ch);
-            }
-        }
-        throw new IOException("readStringUntil(): end of stream reached");
+        return mIn.readStringUntil(end);
     }
 
-    private int expect(char ch) throws IOException {
-        int d;
-        if ((d = mIn.read()) != ch) {
-            throw new IOException(String.format("Expected %04x (%c) but got %04x (%c)", (int)ch,
-                                                ch, d, (char)d));
-        }
-        return d;
+    private void expect(char ch) throws IOException {
+        mIn.expect(ch);
     }
 
     /**
@@ -1,7 +1,6 @@
 
 package com.fsck.k9.mail.store;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -45,8 +44,6 @@ import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
@@ -58,6 +55,7 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.beetstra.jutf7.CharsetProvider;
@@ -86,7 +84,6 @@ import com.fsck.k9.mail.ServerSettings;
 import com.fsck.k9.mail.Store;
 import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
-import com.fsck.k9.mail.filter.PeekableInputStream;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessage;
@@ -94,10 +91,13 @@ import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.imap.CompressionStats;
+import com.fsck.k9.mail.store.imap.DeflateTransport;
+import com.fsck.k9.mail.store.imap.FetchWindowSizer;
+import com.fsck.k9.mail.store.imap.ImapInputStream;
 import com.fsck.k9.mail.store.imap.ImapUtility;
 import com.fsck.k9.mail.transport.imap.ImapSettings;
 import com.jcraft.jzlib.JZlib;
-import com.jcraft.jzlib.ZOutputStream;
 
 /**
  * <pre>
@@ -121,8 +121,24 @@ public class ImapStore extends Store {
     private static int MAX_DELAY_TIME = 5 * 60 * 1000; // 5 minutes
     private static int NORMAL_DELAY_TIME = 5000;
 
+    /**
+     * Number of running push threads of all accounts. Every push thread has its own connection.
+     * Only used for debug output.
+     */
+    private static final AtomicInteger sPushThreadCount = new AtomicInteger(0);
+
+    /**
+     * Number of folders watched by the running push threads of all accounts.
+     */
+    private static final AtomicInteger sPushFolderCount = new AtomicInteger(0);
+
     private static int FETCH_WINDOW_SIZE = 100;
 
+    /**
+     * Maximum number of {@code UID FETCH} commands sent ahead of their tagged completion.
+     */
+    private static final int FETCH_PIPELINE_DEPTH = 3;
+
     private Set<Flag> mPermanentFlagsIndex = new HashSet<Flag>();
 
     private static final String CAPABILITY_IDLE = "IDLE";
@@ -136,6 +152,18 @@ public class ImapStore extends Store {
     private static final String CAPABILITY_COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
     private static final String COMMAND_COMPRESS_DEFLATE = "COMPRESS DEFLATE";
 
+    /**
+     * Flush mode used at the end of every command sent over a compressed connection.
+     * {@link JZlib#Z_PARTIAL_FLUSH} needs fewer bytes per command than {@link JZlib#Z_SYNC_FLUSH}.
+     */
+    private static final int COMPRESSION_FLUSH_MODE = JZlib.Z_PARTIAL_FLUSH;
+
+    private static final String CAPABILITY_NOTIFY = "NOTIFY";
+    private static final String COMMAND_NOTIFY = "NOTIFY SET";
+
+    private static final String CAPABILITY_QRESYNC = "QRESYNC";
+    private static final String COMMAND_ENABLE_QRESYNC = "ENABLE QRESYNC";
+
     private static final Message[] EMPTY_MESSAGE_ARRAY = new Message[0];
 
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
@@ -398,6 +426,16 @@ public class ImapStore extends Store {
             return mAccount.useCompression(type);
         }
 
+        @Override
+        public int getCompressionLevel(final int type) {
+            return mAccount.getCompressionLevel(type);
+        }
+
+        @Override
+        public CompressionStats getCompressionStats() {
+            return mCompressionStats;
+        }
+
         @Override
         public String getPathPrefix() {
             return mPathPrefix;
@@ -447,6 +485,24 @@ public class ImapStore extends Store {
      */
     private HashMap<String, ImapFolder> mFolderCache = new HashMap<String, ImapFolder>();
 
+    /**
+     * Adaptive {@code UID FETCH} window sizes, keyed by the fetched data items. Fetching flags
+     * and fetching bodies have very different per-message costs, so they are sized separately.
+     */
+    private final Map<String, FetchWindowSizer> mFetchWindowSizers =
+        new HashMap<String, FetchWindowSizer>();
+
+    /**
+     * Byte counters of all compressed connections of this account.
+     */
+    private final CompressionStats mCompressionStats = new CompressionStats();
+
+    /**
+     * Set once a connection showed that the server doesn't support {@code NOTIFY}, so
+     * {@link ImapPusher} doesn't try it again.
+     */
+    private volatile boolean mNotifyUnsupported = false;
+
     public ImapStore(Account account) throws MessagingException {
         super(account);
 
@@ -719,28 +775,57 @@ public class ImapStore extends Store {
      * @return
      */
     private ImapConnection getConnection() throws MessagingException {
-        synchronized (mConnections) {
-            ImapConnection connection = null;
-            while ((connection = mConnections.poll()) != null) {
-                try {
-                    connection.executeSimpleCommand("NOOP");
-                    break;
-                } catch (IOException ioe) {
-                    connection.close();
-                }
-            }
-            if (connection == null) {
-                connection = new ImapConnection(new StoreImapSettings());
+        ImapConnection connection;
+        while ((connection = pollConnection()) != null) {
+            // Check the connection outside of the lock so folders synchronized in parallel
+            // don't wait for each other's NOOP round trips.
+            try {
+                connection.executeSimpleCommand("NOOP");
+                return connection;
+            } catch (IOException ioe) {
+                connection.close();
             }
-            return connection;
+        }
+        return new ImapConnection(new StoreImapSettings());
+    }
+
+    private ImapConnection pollConnection() {
+        synchronized (mConnections) {
+            return mConnections.poll();
         }
     }
 
+    /**
+     * Returns a connection to the pool. At most {@link Account#getMaxSyncConnections()} idle
+     * connections are kept; surplus connections left over from parallel synchronization are
+     * closed.
+     */
     private void releaseConnection(ImapConnection connection) {
         if (connection != null && connection.isOpen()) {
             synchronized (mConnections) {
-                mConnections.offer(connection);
+                if (mConnections.size() < Math.max(1, mAccount.getMaxSyncConnections())) {
+                    mConnections.offer(connection);
+                    return;
+                }
+            }
+            if (K9.DEBUG)
+                Log.v(K9.LOG_TAG, "Closing surplus connection " + connection.getLogId());
+            connection.close();
+        }
+    }
+
+    /**
+     * Returns the window sizer for {@code UID FETCH} commands requesting {@code fetchItems},
+     * creating it with the default window size if necessary.
+     */
+    private FetchWindowSizer getFetchWindowSizer(String fetchItems) {
+        synchronized (mFetchWindowSizers) {
+            FetchWindowSizer windowSizer = mFetchWindowSizers.get(fetchItems);
+            if (windowSizer == null) {
+                windowSizer = new FetchWindowSizer(FETCH_WINDOW_SIZE);
+                mFetchWindowSizers.put(fetchItems, windowSizer);
             }
+            return windowSizer;
         }
     }
 
@@ -813,6 +898,18 @@ public class ImapStore extends Store {
     public boolean isExpungeCapable() {
         return true;
     }
+    @Override
+    public boolean isParallelSyncCapable() {
+        return true;
+    }
+
+    /**
+     * Returns the byte counters of all connections of this account that used
+     * {@code COMPRESS=DEFLATE}, including the push connections.
+     */
+    public CompressionStats getCompressionStats() {
+        return mCompressionStats;
+    }
 
 
     class ImapFolder extends Folder {
@@ -825,6 +922,8 @@ public class ImapStore extends Store {
         private ImapStore store = null;
         Map<Long, String> msgSeqUidMap = new ConcurrentHashMap<Long, String>();
         private boolean mInSearch = false;
+        protected volatile long mUidValidity = -1L;
+        protected volatile long mHighestModSeq = -1L;
 
         public ImapFolder(ImapStore nStore, String name) {
             super(nStore.getAccount());
@@ -904,6 +1003,8 @@ public class ImapStore extends Store {
             // 2 OK [READ-WRITE] Select completed.
             try {
                 msgSeqUidMap.clear();
+                mUidValidity = -1L;
+                mHighestModSeq = -1L;
                 String command = String.format("%s %s", mode == OPEN_MODE_RW ? "SELECT"
                         : "EXAMINE", encodeString(encodeFolderName(getPrefixedName())));
 
@@ -942,6 +1043,14 @@ public class ImapStore extends Store {
                                     } else if ("READ-WRITE".equalsIgnoreCase(key)) {
                                         mMode = OPEN_MODE_RW;
                                     }
+                                } else if ("UIDVALIDITY".equalsIgnoreCase(key) && bracketed.size() > 1) {
+                                    mUidValidity = bracketed.getLong(1);
+                                } else if ("HIGHESTMODSEQ".equalsIgnoreCase(key) && bracketed.size() > 1) {
+                                    // * OK [HIGHESTMODSEQ 715194045007] Highest
+                                    mHighestModSeq = bracketed.getLong(1);
+                                } else if ("NOMODSEQ".equalsIgnoreCase(key)) {
+                                    // The server doesn't support persistent mod-sequences for this mailbox
+                                    mHighestModSeq = -1L;
                                 }
                             }
                         }
@@ -957,6 +1066,23 @@ public class ImapStore extends Store {
             }
         }
 
+        @Override
+        public boolean supportsModSeqSync() {
+            ImapConnection connection = mConnection;
+            return connection != null && connection.isQresyncEnabled() &&
+                   mUidValidity > 0 && mHighestModSeq > 0;
+        }
+
+        @Override
+        public long getUidValidity() {
+            return mUidValidity;
+        }
+
+        @Override
+        public long getHighestModSeq() {
+            return mHighestModSeq;
+        }
+
         /**
          * Parses an string like PERMANENTFLAGS (\Answered \Flagged \Deleted // \Seen \Draft NonJunk
          * $label1 \*)
@@ -1465,6 +1591,60 @@ public class ImapStore extends Store {
             return messages.toArray(EMPTY_MESSAGE_ARRAY);
         }
 
+        /**
+         * Uses {@code UID FETCH ... (CHANGEDSINCE ... VANISHED)} (RFC 7162) to get the flags of
+         * all messages that were modified and the UIDs of all messages that were expunged since
+         * {@code modSeq}.
+         */
+        @Override
+        public Message[] getMessagesChangedSince(long modSeq, List<String> vanishedUids,
+                MessageRetrievalListener listener) throws MessagingException {
+            checkOpen(); //only need READ access
+            if (!supportsModSeqSync()) {
+                throw new MessagingException("QRESYNC is not enabled for " + getLogId());
+            }
+
+            ArrayList<Message> messages = new ArrayList<Message>();
+            try {
+                List<ImapResponse> responses = executeSimpleCommand(
+                        String.format(Locale.US, "UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE %d VANISHED)", modSeq));
+
+                for (ImapResponse response : responses) {
+                    if (response.mTag != null) {
+                        continue;
+                    }
+
+                    if (ImapUtility.isVanishedResponse(response)) {
+                        vanishedUids.addAll(ImapUtility.getVanishedUids(response));
+                    } else if (ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+                        String uid = fetchList.getKeyedString("UID");
+                        if (uid == null) {
+                            continue;
+                        }
+
+                        ImapMessage message = new ImapMessage(uid, this);
+                        if (listener != null) {
+                            listener.messageStarted(uid, messages.size(), -1);
+                        }
+                        handleFetchResponse(message, fetchList);
+                        messages.add(message);
+                        if (listener != null) {
+                            listener.messageFinished(message, messages.size(), -1);
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, "Got " + messages.size() + " changed and " + vanishedUids.size() +
+                      " vanished messages since modseq " + modSeq + " for " + getLogId());
+
+            return messages.toArray(EMPTY_MESSAGE_ARRAY);
+        }
+
         @Override
         public void fetch(Message[] messages, FetchProfile fp, MessageRetrievalListener listener)
         throws MessagingException {
@@ -1515,81 +1695,145 @@ public class ImapStore extends Store {
 
 
 
-            for (int windowStart = 0; windowStart < messages.length; windowStart += (FETCH_WINDOW_SIZE)) {
-                List<String> uidWindow = uids.subList(windowStart, Math.min((windowStart + FETCH_WINDOW_SIZE), messages.length));
+            String fetchItems = Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
+            FetchWindowSizer windowSizer = getFetchWindowSizer(fetchItems);
 
-                try {
-                    mConnection.sendCommand(String.format("UID FETCH %s (%s)",
-                                                          Utility.combine(uidWindow.toArray(new String[uidWindow.size()]), ','),
-                                                          Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                                                         ), false);
-                    ImapResponse response;
-                    int messageNumber = 0;
+            ImapResponseParser.IImapResponseCallback callback = null;
+            if (fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE)) {
+                callback = new FetchBodyCallback(messageMap);
+            }
+
+            /*
+             * Keep up to FETCH_PIPELINE_DEPTH commands outstanding so the server can start
+             * sending the next window while we're still processing the current one. A window
+             * is measured from the completion of the previous one, so the round trip of
+             * pipelined commands doesn't count against it.
+             */
+            LinkedList<PendingFetch> pendingFetches = new LinkedList<PendingFetch>();
+            int nextWindowStart = 0;
+            int messageNumber = 0;
 
-                    ImapResponseParser.IImapResponseCallback callback = null;
-                    if (fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        callback = new FetchBodyCallback(messageMap);
+            try {
+                long windowStartTime = SystemClock.elapsedRealtime();
+                long windowStartBytes = mConnection.getBytesRead();
+
+                while (nextWindowStart < messages.length || !pendingFetches.isEmpty()) {
+                    while (nextWindowStart < messages.length &&
+                            pendingFetches.size() < FETCH_PIPELINE_DEPTH) {
+                        int windowSize = windowSizer.getWindowSize();
+                        int windowEnd = Math.min(nextWindowStart + windowSize, messages.length);
+                        List<String> uidWindow = uids.subList(nextWindowStart, windowEnd);
+
+                        String tag = mConnection.sendCommand(String.format("UID FETCH %s (%s)",
+                                Utility.combine(uidWindow.toArray(new String[uidWindow.size()]), ','),
+                                fetchItems), false);
+                        pendingFetches.add(new PendingFetch(tag, windowSize, uidWindow.size()));
+                        nextWindowStart = windowEnd;
                     }
 
-                    do {
-                        response = mConnection.readResponse(callback);
-
-                        if (response.mTag == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
-                            ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
-                            String uid = fetchList.getKeyedString("UID");
-                            long msgSeq = response.getLong(0);
-                            if (uid != null) {
-                                try {
-                                    msgSeqUidMap.put(msgSeq, uid);
-                                    if (K9.DEBUG) {
-                                        Log.v(K9.LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map " /*+ msgSeqUidMap.toString() */);
-                                    }
-                                } catch (Exception e) {
-                                    Log.e(K9.LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
+                    ImapResponse response = mConnection.readResponse(callback);
+
+                    if (response.mTag != null) {
+                        PendingFetch completed = removePendingFetch(pendingFetches, response.mTag);
+                        if (completed == null) {
+                            Log.w(K9.LOG_TAG, "Got tagged response for unknown command " + response +
+                                  " for " + getLogId());
+                            continue;
+                        }
+
+                        long now = SystemClock.elapsedRealtime();
+                        long bytesRead = mConnection.getBytesRead();
+                        windowSizer.windowCompleted(completed.windowSize, completed.messageCount,
+                                now - windowStartTime, bytesRead - windowStartBytes);
+                        windowStartTime = now;
+                        windowStartBytes = bytesRead;
+                        continue;
+                    }
+
+                    if (ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+                        String uid = fetchList.getKeyedString("UID");
+                        long msgSeq = response.getLong(0);
+                        if (uid != null) {
+                            try {
+                                msgSeqUidMap.put(msgSeq, uid);
+                                if (K9.DEBUG) {
+                                    Log.v(K9.LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map " /*+ msgSeqUidMap.toString() */);
                                 }
+                            } catch (Exception e) {
+                                Log.e(K9.LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
                             }
+                        }
 
-                            Message message = messageMap.get(uid);
-                            if (message == null) {
-                                if (K9.DEBUG)
-                                    Log.d(K9.LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
+                        Message message = messageMap.get(uid);
+                        if (message == null) {
+                            if (K9.DEBUG)
+                                Log.d(K9.LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
 
-                                handleUntaggedResponse(response);
-                                continue;
-                            }
-                            if (listener != null) {
-                                listener.messageStarted(uid, messageNumber++, messageMap.size());
-                            }
+                            handleUntaggedResponse(response);
+                            continue;
+                        }
+                        if (listener != null) {
+                            listener.messageStarted(uid, messageNumber++, messageMap.size());
+                        }
 
-                            ImapMessage imapMessage = (ImapMessage) message;
+                        ImapMessage imapMessage = (ImapMessage) message;
 
-                            Object literal = handleFetchResponse(imapMessage, fetchList);
+                        Object literal = handleFetchResponse(imapMessage, fetchList);
 
-                            if (literal != null) {
-                                if (literal instanceof String) {
-                                    String bodyString = (String)literal;
-                                    InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
-                                    imapMessage.parse(bodyStream);
-                                } else if (literal instanceof Integer) {
-                                    // All the work was done in FetchBodyCallback.foundLiteral()
-                                } else {
-                                    // This shouldn't happen
-                                    throw new MessagingException("Got FETCH response with bogus parameters");
-                                }
+                        if (literal != null) {
+                            if (literal instanceof String) {
+                                String bodyString = (String)literal;
+                                InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
+                                imapMessage.parse(bodyStream);
+                            } else if (literal instanceof Integer) {
+                                // All the work was done in FetchBodyCallback.foundLiteral()
+                            } else {
+                                // This shouldn't happen
+                                throw new MessagingException("Got FETCH response with bogus parameters");
                             }
+                        }
 
-                            if (listener != null) {
-                                listener.messageFinished(message, messageNumber, messageMap.size());
-                            }
-                        } else {
-                            handleUntaggedResponse(response);
+                        if (listener != null) {
+                            listener.messageFinished(message, messageNumber, messageMap.size());
                         }
+                    } else {
+                        handleUntaggedResponse(response);
+                    }
+                }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            } finally {
+                if (!pendingFetches.isEmpty()) {
+                    /*
+                     * We're leaving with responses to pipelined commands still on the wire, e.g.
+                     * because parsing a message or the listener failed. They would be read as
+                     * responses to the next command, so the connection can't be used anymore.
+                     */
+                    Log.w(K9.LOG_TAG, "Closing connection with " + pendingFetches.size() +
+                          " unfinished FETCH commands for " + getLogId());
+                    if (mConnection != null) {
+                        mConnection.close();
+                    }
+                    close();
+                }
+            }
 
-                    } while (response.mTag == null);
-                } catch (IOException ioe) {
-                    throw ioExceptionHandler(mConnection, ioe);
+            if (K9.DEBUG) {
+                Log.d(K9.LOG_TAG, "Fetched " + messages.length + " messages (" + fetchItems +
+                      ") for " + getLogId() + ": " + windowSizer);
+            }
+        }
+
+        private PendingFetch removePendingFetch(List<PendingFetch> pendingFetches, String tag) {
+            for (Iterator<PendingFetch> it = pendingFetches.iterator(); it.hasNext(); ) {
+                PendingFetch pendingFetch = it.next();
+                if (pendingFetch.tag.equalsIgnoreCase(tag)) {
+                    it.remove();
+                    return pendingFetch;
                 }
             }
+            return null;
         }
 
 
@@ -1797,6 +2041,14 @@ public class ImapStore extends Store {
                     if (K9.DEBUG)
                         Log.d(K9.LOG_TAG, "Got untagged EXPUNGE with mMessageCount " + mMessageCount + " for " + getLogId());
                 }
+
+                // With QRESYNC enabled the server sends VANISHED instead of EXPUNGE
+                if (ImapUtility.isVanishedResponse(response) && !ImapUtility.isVanishedEarlier(response) &&
+                        mMessageCount > 0) {
+                    mMessageCount = Math.max(0, mMessageCount - ImapUtility.getVanishedUids(response).size());
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "Got untagged VANISHED with mMessageCount " + mMessageCount + " for " + getLogId());
+                }
 //            if (response.size() > 1) {
 //                Object bracketedObj = response.get(1);
 //                if (bracketedObj instanceof ImapList)
@@ -2192,7 +2444,7 @@ public class ImapStore extends Store {
             }
             try {
                 executeSimpleCommand(String.format("UID STORE %s %sFLAGS.SILENT (%s)",
-                                                   Utility.combine(uids, ','),
+                                                   ImapUtility.toSequenceSet(uids),
                                                    value ? "+" : "-",
                                                    combineFlags(flags)));
             } catch (IOException ioe) {
@@ -2354,11 +2606,13 @@ public class ImapStore extends Store {
      */
     public static class ImapConnection {
         protected Socket mSocket;
-        protected PeekableInputStream mIn;
+        protected ImapInputStream mIn;
         protected OutputStream mOut;
         protected ImapResponseParser mParser;
         protected int mNextCommandTag;
         protected Set<String> capabilities = new HashSet<String>();
+        protected boolean mQresyncEnabled = false;
+        protected DeflateTransport mDeflateTransport;
 
         private ImapSettings mSettings;
 
@@ -2370,6 +2624,13 @@ public class ImapStore extends Store {
             return "conn" + hashCode();
         }
 
+        /**
+         * Returns the number of bytes received since the current input stream was set up.
+         */
+        public long getBytesRead() {
+            return (mIn != null) ? mIn.getBytesRead() : 0;
+        }
+
         private List<ImapResponse> receiveCapabilities(List<ImapResponse> responses) {
             for (ImapResponse response : responses) {
                 ImapList capabilityList = null;
@@ -2414,6 +2675,7 @@ public class ImapStore extends Store {
             boolean authSuccess = false;
 
             mNextCommandTag = 1;
+            mQresyncEnabled = false;
             try {
                 Security.setProperty("networkaddress.cache.ttl", "0");
             } catch (Exception e) {
@@ -2469,8 +2731,7 @@ public class ImapStore extends Store {
 
                 setReadTimeout(Store.SOCKET_READ_TIMEOUT);
 
-                mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(),
-                                              1024));
+                mIn = new ImapInputStream(mSocket.getInputStream());
                 mParser = new ImapResponseParser(mIn);
                 mOut = mSocket.getOutputStream();
 
@@ -2507,8 +2768,7 @@ public class ImapStore extends Store {
                         mSocket = sslContext.getSocketFactory().createSocket(mSocket, mSettings.getHost(), mSettings.getPort(),
                                   true);
                         mSocket.setSoTimeout(Store.SOCKET_READ_TIMEOUT);
-                        mIn = new PeekableInputStream(new BufferedInputStream(mSocket
-                                                      .getInputStream(), 1024));
+                        mIn = new ImapInputStream(mSocket.getInputStream());
                         mParser = new ImapResponseParser(mIn);
                         mOut = mSocket.getOutputStream();
                     } else if (mSettings.getConnectionSecurity() == CONNECTION_SECURITY_TLS_REQUIRED) {
@@ -2547,6 +2807,7 @@ public class ImapStore extends Store {
                 if (hasCapability(CAPABILITY_COMPRESS_DEFLATE)) {
                     ConnectivityManager connectivityManager = (ConnectivityManager)K9.app.getSystemService(Context.CONNECTIVITY_SERVICE);
                     boolean useCompression = true;
+                    int compressionLevel = JZlib.Z_BEST_SPEED;
 
                     NetworkInfo netInfo = connectivityManager.getActiveNetworkInfo();
                     if (netInfo != null) {
@@ -2554,6 +2815,7 @@ public class ImapStore extends Store {
                         if (K9.DEBUG)
                             Log.d(K9.LOG_TAG, "On network type " + type);
                         useCompression = mSettings.useCompression(type);
+                        compressionLevel = mSettings.getCompressionLevel(type);
 
                     }
                     if (K9.DEBUG)
@@ -2561,15 +2823,15 @@ public class ImapStore extends Store {
                     if (useCompression) {
                         try {
                             executeSimpleCommand(COMMAND_COMPRESS_DEFLATE);
-                            Inflater inf = new Inflater(true);
-                            InflaterInputStream zInputStream = new InflaterInputStream(mSocket.getInputStream(), inf);
-                            mIn = new PeekableInputStream(new BufferedInputStream(zInputStream, 1024));
+                            mDeflateTransport = new DeflateTransport(mSocket.getInputStream(),
+                                    mSocket.getOutputStream(), compressionLevel,
+                                    COMPRESSION_FLUSH_MODE, mSettings.getCompressionStats());
+                            mIn = new ImapInputStream(mDeflateTransport.getInputStream());
                             mParser = new ImapResponseParser(mIn);
-                            ZOutputStream zOutputStream = new ZOutputStream(mSocket.getOutputStream(), JZlib.Z_BEST_SPEED, true);
-                            mOut = new BufferedOutputStream(zOutputStream, 1024);
-                            zOutputStream.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
+                            mOut = new BufferedOutputStream(mDeflateTransport.getOutputStream(), 1024);
                             if (K9.DEBUG) {
-                                Log.i(K9.LOG_TAG, "Compression enabled for " + getLogId());
+                                Log.i(K9.LOG_TAG, "Compression enabled for " + getLogId() +
+                                        " (level " + compressionLevel + ")");
                             }
                         } catch (Exception e) {
                             Log.e(K9.LOG_TAG, "Unable to negotiate compression", e);
@@ -2578,6 +2840,10 @@ public class ImapStore extends Store {
                 }
 
 
+                if (hasCapability(CAPABILITY_QRESYNC)) {
+                    enableQresync();
+                }
+
                 if (K9.DEBUG)
                     Log.d(K9.LOG_TAG, "NAMESPACE = " + hasCapability(CAPABILITY_NAMESPACE)
                           + ", mPathPrefix = " + mSettings.getPathPrefix());
@@ -2702,6 +2968,37 @@ public class ImapStore extends Store {
             }
         }
 
+        /**
+         * Enable QRESYNC (and thereby CONDSTORE) for this connection, see RFC 7162.
+         *
+         * <p>
+         * Failure is not fatal, we'll just fall back to full flag synchronization.
+         * </p>
+         */
+        private void enableQresync() throws IOException {
+            try {
+                List<ImapResponse> responses = executeSimpleCommand(COMMAND_ENABLE_QRESYNC);
+                for (ImapResponse response : responses) {
+                    if (response.mTag == null && ImapResponseParser.equalsIgnoreCase(response.get(0), "ENABLED")) {
+                        for (int i = 1, count = response.size(); i < count; i++) {
+                            if (ImapResponseParser.equalsIgnoreCase(response.get(i), CAPABILITY_QRESYNC)) {
+                                mQresyncEnabled = true;
+                            }
+                        }
+                    }
+                }
+            } catch (MessagingException e) {
+                Log.w(K9.LOG_TAG, "Unable to enable " + CAPABILITY_QRESYNC + " for " + getLogId(), e);
+            }
+
+            if (K9.DEBUG)
+                Log.d(K9.LOG_TAG, CAPABILITY_QRESYNC + " enabled = " + mQresyncEnabled + " for " + getLogId());
+        }
+
+        protected boolean isQresyncEnabled() {
+            return mQresyncEnabled;
+        }
+
         protected void setReadTimeout(int millis) throws SocketException {
             Socket sock = mSocket;
             if (sock != null) {
@@ -2735,6 +3032,15 @@ public class ImapStore extends Store {
             IOUtils.closeQuietly(mIn);
             IOUtils.closeQuietly(mOut);
             IOUtils.closeQuietly(mSocket);
+            if (mDeflateTransport != null) {
+                mDeflateTransport.release();
+                if (K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "Compression of " + getLogId() + ": " +
+                            mDeflateTransport.getStats() + "; account total: " +
+                            mSettings.getCompressionStats());
+                }
+                mDeflateTransport = null;
+            }
             mIn = null;
             mOut = null;
             mSocket = null;
@@ -2970,6 +3276,7 @@ public class ImapStore extends Store {
                     wakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
                     if (K9.DEBUG)
                         Log.i(K9.LOG_TAG, "Pusher starting for " + getLogId());
+                    pushThreadStarted(1);
 
                     while (!stop.get()) {
                         try {
@@ -3109,6 +3416,7 @@ public class ImapStore extends Store {
                     } catch (Exception me) {
                         Log.e(K9.LOG_TAG, "Got exception while closing for " + getLogId(), me);
                     } finally {
+                        pushThreadStopped(1);
                         wakeLock.release();
                     }
                 }
@@ -3123,7 +3431,8 @@ public class ImapStore extends Store {
                 Object responseType = response.get(1);
                 if (ImapResponseParser.equalsIgnoreCase(responseType, "FETCH")
                         || ImapResponseParser.equalsIgnoreCase(responseType, "EXPUNGE")
-                        || ImapResponseParser.equalsIgnoreCase(responseType, "EXISTS")) {
+                        || ImapResponseParser.equalsIgnoreCase(responseType, "EXISTS")
+                        || ImapUtility.isVanishedResponse(response)) {
                     if (K9.DEBUG)
                         Log.d(K9.LOG_TAG, "Storing response " + response + " for later processing");
 
@@ -3250,7 +3559,18 @@ public class ImapStore extends Store {
         protected int processUntaggedResponse(long oldMessageCount, ImapResponse response, List<Long> flagSyncMsgSeqs, List<String> removeMsgUids) {
             super.handleUntaggedResponse(response);
             int messageCountDelta = 0;
-            if (response.mTag == null && response.size() > 1) {
+            if (response.mTag == null && ImapUtility.isVanishedResponse(response)) {
+                // QRESYNC servers report expunged messages by UID, no msgSeq bookkeeping needed
+                List<String> vanishedUids = ImapUtility.getVanishedUids(response);
+                if (K9.DEBUG)
+                    Log.d(K9.LOG_TAG, "Got untagged VANISHED for UIDs " + vanishedUids + " for " + getLogId());
+
+                removeMsgUids.addAll(vanishedUids);
+                msgSeqUidMap.clear();
+                if (!ImapUtility.isVanishedEarlier(response)) {
+                    messageCountDelta = -vanishedUids.size();
+                }
+            } else if (response.mTag == null && response.size() > 1) {
                 try {
                     Object responseType = response.get(1);
                     if (ImapResponseParser.equalsIgnoreCase(responseType, "FETCH")) {
@@ -3369,7 +3689,7 @@ public class ImapStore extends Store {
                         boolean started = false;
                         Object responseType = response.get(1);
                         if (ImapResponseParser.equalsIgnoreCase(responseType, "EXISTS") || ImapResponseParser.equalsIgnoreCase(responseType, "EXPUNGE") ||
-                                ImapResponseParser.equalsIgnoreCase(responseType, "FETCH")) {
+                                ImapResponseParser.equalsIgnoreCase(responseType, "FETCH") || ImapUtility.isVanishedResponse(response)) {
                             if (!started) {
                                 wakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
                                 started = true;
@@ -3394,6 +3714,344 @@ public class ImapStore extends Store {
             }
         }
     }
+
+    /**
+     * Watches several folders over a single connection using the {@code NOTIFY} extension
+     * (RFC 5465).
+     *
+     * <p>
+     * The server is asked to report new and expunged messages of all pushed folders with
+     * untagged {@code STATUS} responses while the connection is idling. No folder is selected on
+     * this connection. A folder that was reported as changed is synchronized using a temporary
+     * {@link ImapFolder} from the connection pool.
+     * </p>
+     * <p>
+     * If the server turns out not to support {@code NOTIFY}, the {@link ImapPusher} is asked to
+     * fall back to one {@link ImapFolderPusher} per folder.
+     * </p>
+     */
+    public class ImapNotifyPusher implements UntaggedHandler {
+        final ImapPusher pusher;
+        final List<String> folderNames;
+        final PushReceiver receiver;
+        Thread listeningThread = null;
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicBoolean idling = new AtomicBoolean(false);
+        final AtomicBoolean doneSent = new AtomicBoolean(false);
+        final AtomicBoolean needsReconnect = new AtomicBoolean(false);
+        final AtomicInteger delayTime = new AtomicInteger(NORMAL_DELAY_TIME);
+        final AtomicInteger idleFailureCount = new AtomicInteger(0);
+        final Set<String> changedFolders = new LinkedHashSet<String>();
+        Map<String, String> folderNamesByServerName = new HashMap<String, String>();
+        volatile ImapConnection mConnection;
+        TracingWakeLock wakeLock = null;
+
+        public ImapNotifyPusher(ImapPusher pusher, List<String> folderNames, PushReceiver receiver) {
+            this.pusher = pusher;
+            this.folderNames = new ArrayList<String>(folderNames);
+            this.receiver = receiver;
+            TracingPowerManager pm = TracingPowerManager.getPowerManager(receiver.getContext());
+            wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "ImapNotifyPusher " + mAccount.getDescription());
+            wakeLock.setReferenceCounted(false);
+        }
+
+        protected String getLogId() {
+            ImapConnection conn = mConnection;
+            return "notify:" + mAccount.getDescription() + ":" + folderNames.size() + " folders/" +
+                   ((conn == null) ? "no connection" : conn.getLogId());
+        }
+
+        public void refresh() throws IOException, MessagingException {
+            if (idling.get()) {
+                wakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
+                sendDone();
+            }
+        }
+
+        private void sendDone() throws IOException, MessagingException {
+            if (doneSent.compareAndSet(false, true)) {
+                ImapConnection conn = mConnection;
+                if (conn != null) {
+                    conn.setReadTimeout(Store.SOCKET_READ_TIMEOUT);
+                    conn.sendContinuation("DONE");
+                }
+            }
+        }
+
+        public void start() {
+            Runnable runner = new Runnable() {
+                public void run() {
+                    wakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
+                    if (K9.DEBUG)
+                        Log.i(K9.LOG_TAG, "Pusher starting for " + getLogId());
+                    pushThreadStarted(folderNames.size());
+
+                    boolean fellBack = false;
+                    while (!stop.get()) {
+                        try {
+                            ImapConnection conn = mConnection;
+                            if (conn == null || !conn.isOpen() || needsReconnect.getAndSet(false)) {
+                                closeConnection();
+                                conn = openConnection();
+                                if (conn == null) {
+                                    // No NOTIFY support, the ImapPusher took over
+                                    fellBack = true;
+                                    break;
+                                }
+                            }
+
+                            syncChangedFolders();
+                            if (stop.get()) {
+                                continue;
+                            }
+
+                            if (K9.DEBUG)
+                                Log.i(K9.LOG_TAG, "About to IDLE for " + getLogId());
+
+                            setPushActive(true);
+                            idling.set(true);
+                            doneSent.set(false);
+
+                            conn.setReadTimeout((mAccount.getIdleRefreshMinutes() * 60 * 1000) + IDLE_READ_TIMEOUT_INCREMENT);
+                            conn.executeSimpleCommand(COMMAND_IDLE, false, ImapNotifyPusher.this);
+                            idling.set(false);
+                            delayTime.set(NORMAL_DELAY_TIME);
+                            idleFailureCount.set(0);
+                        } catch (Exception e) {
+                            wakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
+                            idling.set(false);
+                            setPushActive(false);
+                            closeConnection();
+                            if (stop.get()) {
+                                Log.i(K9.LOG_TAG, "Got exception while idling, but stop is set for " + getLogId());
+                            } else {
+                                receiver.pushError("Push error for " + mAccount.getDescription(), e);
+                                Log.e(K9.LOG_TAG, "Got exception while idling for " + getLogId(), e);
+                                int delayTimeInt = delayTime.get();
+                                receiver.sleep(wakeLock, delayTimeInt);
+                                delayTimeInt *= 2;
+                                if (delayTimeInt > MAX_DELAY_TIME) {
+                                    delayTimeInt = MAX_DELAY_TIME;
+                                }
+                                delayTime.set(delayTimeInt);
+                                if (idleFailureCount.incrementAndGet() > IDLE_FAILURE_COUNT_LIMIT) {
+                                    Log.e(K9.LOG_TAG, "Disabling pusher for " + getLogId() + " after " + idleFailureCount.get() + " consecutive errors");
+                                    receiver.pushError("Push disabled for " + mAccount.getDescription() + " after " + idleFailureCount.get() + " consecutive errors", e);
+                                    stop.set(true);
+                                }
+                            }
+                        }
+                    }
+                    if (!fellBack) {
+                        setPushActive(false);
+                    }
+                    if (K9.DEBUG)
+                        Log.i(K9.LOG_TAG, "Pusher for " + getLogId() + " is exiting");
+                    closeConnection();
+                    pushThreadStopped(folderNames.size());
+                    wakeLock.release();
+                }
+            };
+            listeningThread = new Thread(runner);
+            listeningThread.start();
+        }
+
+        /**
+         * Opens a new connection and enables notifications for all pushed folders.
+         *
+         * @return The connection, or {@code null} if the server doesn't support {@code NOTIFY}
+         *         or rejected the notifications.
+         */
+        private ImapConnection openConnection() throws IOException, MessagingException {
+            ImapConnection conn = new ImapConnection(new StoreImapSettings());
+            mConnection = conn;
+            conn.open();
+
+            if (!conn.hasCapability(CAPABILITY_NOTIFY) || !conn.isIdleCapable()) {
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Server doesn't support NOTIFY, using IDLE for each folder of " + mAccount.getDescription());
+                useFolderPushers();
+                return null;
+            }
+
+            Map<String, String> serverNames = new HashMap<String, String>();
+            StringBuilder mailboxes = new StringBuilder();
+            for (String folderName : folderNames) {
+                ImapFolder folder = new ImapFolder(ImapStore.this, folderName);
+                String serverName = encodeFolderName(folder.getPrefixedName());
+                serverNames.put(serverName, folderName);
+                if (mailboxes.length() > 0) {
+                    mailboxes.append(' ');
+                }
+                mailboxes.append(encodeString(serverName));
+            }
+            folderNamesByServerName = serverNames;
+
+            try {
+                conn.executeSimpleCommand(String.format("%s (mailboxes (%s) (MessageNew MessageExpunge))",
+                                                        COMMAND_NOTIFY, mailboxes));
+            } catch (ImapException e) {
+                // A NO or BAD answer won't change when we try again later
+                Log.w(K9.LOG_TAG, "Server rejected NOTIFY, using IDLE for each folder of " + mAccount.getDescription(), e);
+                useFolderPushers();
+                return null;
+            }
+
+            // Changes that happened while we weren't connected aren't reported
+            if (mAccount.isPushPollOnConnect()) {
+                synchronized (changedFolders) {
+                    changedFolders.addAll(folderNames);
+                }
+            }
+            return conn;
+        }
+
+        /**
+         * Stops this pusher and lets a {@link ImapFolderPusher} push each folder instead.
+         */
+        private void useFolderPushers() {
+            mNotifyUnsupported = true;
+            closeConnection();
+            stop.set(true);
+            pusher.fallBackToFolderPushers(this);
+        }
+
+        private void closeConnection() {
+            ImapConnection conn = mConnection;
+            mConnection = null;
+            if (conn != null) {
+                conn.close();
+            }
+        }
+
+        private void syncChangedFolders() throws MessagingException {
+            while (!stop.get()) {
+                String folderName;
+                synchronized (changedFolders) {
+                    Iterator<String> iterator = changedFolders.iterator();
+                    if (!iterator.hasNext()) {
+                        return;
+                    }
+                    folderName = iterator.next();
+                    iterator.remove();
+                }
+
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Folder " + folderName + " changed, syncing for " + getLogId());
+
+                /*
+                 * A private instance, the cached folders may be in use by other threads. Opened
+                 * read-write, so setting flags or expunging while it's used for the sync doesn't
+                 * have to select the folder a second time.
+                 */
+                ImapFolder folder = new ImapFolder(ImapStore.this, folderName);
+                try {
+                    folder.open(OPEN_MODE_RW);
+                    receiver.syncFolder(folder);
+                } finally {
+                    folder.close();
+                }
+            }
+        }
+
+        private void setPushActive(boolean enabled) {
+            for (String folderName : folderNames) {
+                receiver.setPushActive(folderName, enabled);
+            }
+        }
+
+        public void stop() {
+            stop.set(true);
+            if (listeningThread != null) {
+                listeningThread.interrupt();
+            }
+            ImapConnection conn = mConnection;
+            if (conn != null) {
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "Closing mConnection to stop pushing for " + getLogId());
+                conn.close();
+            }
+        }
+
+        public void handleAsyncUntaggedResponse(ImapResponse response) {
+            if (K9.DEBUG)
+                Log.v(K9.LOG_TAG, "Got async response: " + response);
+
+            if (stop.get()) {
+                try {
+                    sendDone();
+                } catch (Exception e) {
+                    Log.e(K9.LOG_TAG, "Exception while sending DONE for " + getLogId(), e);
+                }
+            } else if (response.mTag == null) {
+                String changedFolder = null;
+                boolean overflow = false;
+                if (response.size() > 1 && ImapResponseParser.equalsIgnoreCase(response.get(0), "STATUS")) {
+                    changedFolder = getFolderNameForServerName(response.getString(1));
+                } else if (response.size() > 1 && ImapResponseParser.equalsIgnoreCase(response.get(0), "NO")
+                        && response.get(1) instanceof ImapList
+                        && ImapResponseParser.equalsIgnoreCase(((ImapList) response.get(1)).get(0), "NOTIFICATIONOVERFLOW")) {
+                    // The server stopped sending notifications, see RFC 5465, section 5.8
+                    overflow = true;
+                }
+
+                if (changedFolder != null || overflow) {
+                    wakeLock.acquire(K9.PUSH_WAKE_LOCK_TIMEOUT);
+                    synchronized (changedFolders) {
+                        if (overflow) {
+                            changedFolders.addAll(folderNames);
+                        } else {
+                            changedFolders.add(changedFolder);
+                        }
+                    }
+                    if (overflow) {
+                        needsReconnect.set(true);
+                    }
+
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "Got useful async untagged response: " + response + " for " + getLogId());
+
+                    try {
+                        sendDone();
+                    } catch (Exception e) {
+                        Log.e(K9.LOG_TAG, "Exception while sending DONE for " + getLogId(), e);
+                    }
+                } else if (response.mCommandContinuationRequested) {
+                    if (K9.DEBUG)
+                        Log.d(K9.LOG_TAG, "Idling " + getLogId());
+
+                    wakeLock.release();
+                }
+            }
+        }
+
+        private String getFolderNameForServerName(String serverName) {
+            String folderName = folderNamesByServerName.get(serverName);
+            if (folderName == null && mAccount.getInboxFolderName().equalsIgnoreCase(serverName)) {
+                // INBOX is case-insensitive
+                folderName = mAccount.getInboxFolderName();
+            }
+            return folderName;
+        }
+    }
+
+    /**
+     * Logs how many push threads and connections are used for how many folders.
+     */
+    private static void pushThreadStarted(int folderCount) {
+        int threads = sPushThreadCount.incrementAndGet();
+        int folders = sPushFolderCount.addAndGet(folderCount);
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "IMAP push now uses " + threads + " threads/connections for " + folders + " folders");
+    }
+
+    private static void pushThreadStopped(int folderCount) {
+        int threads = sPushThreadCount.decrementAndGet();
+        int folders = sPushFolderCount.addAndGet(-folderCount);
+        if (K9.DEBUG)
+            Log.d(K9.LOG_TAG, "IMAP push now uses " + threads + " threads/connections for " + folders + " folders");
+    }
+
     @Override
     public Pusher getPusher(PushReceiver receiver) {
         return new ImapPusher(this, receiver);
@@ -3406,6 +4064,12 @@ public class ImapStore extends Store {
 
         HashMap<String, ImapFolderPusher> folderPushers = new HashMap<String, ImapFolderPusher>();
 
+        /**
+         * Watches all folders if the server supports {@code NOTIFY}. Guarded by
+         * {@link #folderPushers}.
+         */
+        ImapNotifyPusher notifyPusher = null;
+
         public ImapPusher(ImapStore store, PushReceiver receiver) {
             mStore = store;
             mReceiver = receiver;
@@ -3415,19 +4079,50 @@ public class ImapStore extends Store {
             stop();
             synchronized (folderPushers) {
                 setLastRefresh(System.currentTimeMillis());
-                for (String folderName : folderNames) {
-                    ImapFolderPusher pusher = folderPushers.get(folderName);
-                    if (pusher == null) {
-                        pusher = new ImapFolderPusher(mStore, folderName, mReceiver);
-                        folderPushers.put(folderName, pusher);
-                        pusher.start();
-                    }
+                if (folderNames.size() > 1 && !mNotifyUnsupported) {
+                    notifyPusher = new ImapNotifyPusher(this, folderNames, mReceiver);
+                    notifyPusher.start();
+                } else {
+                    startFolderPushers(folderNames);
                 }
             }
         }
 
+        private void startFolderPushers(List<String> folderNames) {
+            for (String folderName : folderNames) {
+                ImapFolderPusher pusher = folderPushers.get(folderName);
+                if (pusher == null) {
+                    pusher = new ImapFolderPusher(mStore, folderName, mReceiver);
+                    folderPushers.put(folderName, pusher);
+                    pusher.start();
+                }
+            }
+        }
+
+        /**
+         * Called by an {@link ImapNotifyPusher} that found out the server doesn't support
+         * {@code NOTIFY}.
+         */
+        void fallBackToFolderPushers(ImapNotifyPusher pusher) {
+            synchronized (folderPushers) {
+                if (notifyPusher != pusher) {
+                    // Stopped or restarted in the meantime
+                    return;
+                }
+                notifyPusher = null;
+                startFolderPushers(pusher.folderNames);
+            }
+        }
+
         public void refresh() {
             synchronized (folderPushers) {
+                if (notifyPusher != null) {
+                    try {
+                        notifyPusher.refresh();
+                    } catch (Exception e) {
+                        Log.e(K9.LOG_TAG, "Got exception while refreshing for " + notifyPusher.getLogId(), e);
+                    }
+                }
                 for (ImapFolderPusher folderPusher : folderPushers.values()) {
                     try {
                         folderPusher.refresh();
@@ -3443,6 +4138,16 @@ public class ImapStore extends Store {
                 Log.i(K9.LOG_TAG, "Requested stop of IMAP pusher");
 
             synchronized (folderPushers) {
+                if (notifyPusher != null) {
+                    try {
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "Requesting stop of IMAP notifyPusher " + notifyPusher.getLogId());
+                        notifyPusher.stop();
+                    } catch (Exception e) {
+                        Log.e(K9.LOG_TAG, "Got exception while stopping " + notifyPusher.getLogId(), e);
+                    }
+                    notifyPusher = null;
+                }
                 for (ImapFolderPusher folderPusher : folderPushers.values()) {
                     try {
                         if (K9.DEBUG)
@@ -3511,6 +4216,22 @@ public class ImapStore extends Store {
         List<ImapResponse> search() throws IOException, MessagingException;
     }
 
+    /**
+     * A {@code UID FETCH} command that has been sent but whose tagged response hasn't been
+     * received yet.
+     */
+    private static class PendingFetch {
+        final String tag;
+        final int windowSize;
+        final int messageCount;
+
+        PendingFetch(String tag, int windowSize, int messageCount) {
+            this.tag = tag;
+            this.windowSize = windowSize;
+            this.messageCount = messageCount;
+        }
+    }
+
     private static class FetchBodyCallback implements ImapResponseParser.IImapResponseCallback {
         private HashMap<String, Message> mMessageMap;
 
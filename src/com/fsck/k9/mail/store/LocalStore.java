@@ -10,17 +10,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Pattern;
@@ -64,6 +63,7 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
 import com.fsck.k9.mail.Store;
 import com.fsck.k9.mail.filter.Base64OutputStream;
+import com.fsck.k9.mail.filter.SizeEstimatingOutputStream;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessage;
@@ -77,6 +77,7 @@ import com.fsck.k9.mail.store.StorageManager.StorageProvider;
 import com.fsck.k9.provider.AttachmentProvider;
 import com.fsck.k9.provider.EmailProvider;
 import com.fsck.k9.provider.EmailProvider.MessageColumns;
+import com.fsck.k9.search.FullTextNormalizer;
 import com.fsck.k9.search.LocalSearch;
 import com.fsck.k9.search.SearchSpecification.Attribute;
 import com.fsck.k9.search.SearchSpecification.Searchfield;
@@ -101,14 +102,15 @@ public class LocalStore extends Store implements Serializable {
      * in the correct order.
      */
     static private String GET_MESSAGES_COLS =
-        "subject, sender_list, date, uid, flags, messages.id, to_list, cc_list, " +
+        "subject, sender_list, date, uid, flag_bits, messages.id, to_list, cc_list, " +
         "bcc_list, reply_to_list, attachment_count, internal_date, messages.message_id, " +
         "folder_id, preview, threads.id, threads.root, deleted, read, flagged, answered, " +
         "forwarded ";
 
     private static final String GET_FOLDER_COLS =
         "folders.id, name, visible_limit, last_updated, status, push_state, last_pushed, " +
-        "integrate, top_group, poll_class, push_class, display_class";
+        "integrate, top_group, poll_class, push_class, display_class, uid_validity, " +
+        "highest_mod_seq";
 
     private static final int FOLDER_ID_INDEX = 0;
     private static final int FOLDER_NAME_INDEX = 1;
@@ -122,13 +124,21 @@ public class LocalStore extends Store implements Serializable {
     private static final int FOLDER_SYNC_CLASS_INDEX = 9;
     private static final int FOLDER_PUSH_CLASS_INDEX = 10;
     private static final int FOLDER_DISPLAY_CLASS_INDEX = 11;
+    private static final int FOLDER_UID_VALIDITY_INDEX = 12;
+    private static final int FOLDER_HIGHEST_MOD_SEQ_INDEX = 13;
 
-    private static final String[] UID_CHECK_PROJECTION = { "uid" };
+    /**
+     * Columns read by {@link LocalFolder#getMessageSnapshot()}.
+     */
+    private static final String[] SNAPSHOT_PROJECTION = {
+        "uid", "id", "date", "flag_bits", "deleted", "read", "flagged", "answered", "forwarded"
+    };
 
     /**
-     * Maximum number of UIDs to check for existence at once.
+     * Maximum number of UIDs to check for existence at once. Stays well below SQLite's limit of
+     * 999 parameters per statement.
      *
-     * @see LocalFolder#extractNewMessages(List)
+     * @see LocalFolder#getMessageSnapshot(List)
      */
     private static final int UID_CHECK_BATCH_SIZE = 500;
 
@@ -146,7 +156,20 @@ public class LocalStore extends Store implements Serializable {
      */
     private static final int THREAD_FLAG_UPDATE_BATCH_SIZE = 500;
 
-    public static final int DB_VERSION = 49;
+    public static final int DB_VERSION = 57;
+
+    /**
+     * Values of the {@code type} column of {@code message_body_chunks}.
+     */
+    private static final int BODY_CHUNK_TYPE_TEXT = 0;
+    private static final int BODY_CHUNK_TYPE_HTML = 1;
+
+    /**
+     * Number of messages added to the full-text index per transaction when building the index.
+     *
+     * @see #buildFullTextIndex(FullTextIndexListener)
+     */
+    private static final int FULLTEXT_INDEX_BATCH_SIZE = 100;
 
 
     public static String getColumnNameForFlag(Flag flag) {
@@ -169,6 +192,71 @@ public class LocalStore extends Store implements Serializable {
         }
     }
 
+    /**
+     * Returns the bit used for a flag in the {@code flag_bits} column of the {@code messages}
+     * table.
+     *
+     * <p>
+     * The values are stored in the database and must never change.
+     * </p>
+     *
+     * @return The bit, or {@code 0} for flags that are stored in a separate column (see
+     *         {@link #getColumnNameForFlag(Flag)} and the {@code deleted} column).
+     */
+    public static int getFlagBit(Flag flag) {
+        switch (flag) {
+            case DRAFT: {
+                return 1 << 0;
+            }
+            case RECENT: {
+                return 1 << 1;
+            }
+            case X_DESTROYED: {
+                return 1 << 2;
+            }
+            case X_SEND_FAILED: {
+                return 1 << 3;
+            }
+            case X_SEND_IN_PROGRESS: {
+                return 1 << 4;
+            }
+            case X_DOWNLOADED_FULL: {
+                return 1 << 5;
+            }
+            case X_DOWNLOADED_PARTIAL: {
+                return 1 << 6;
+            }
+            case X_REMOTE_COPY_STARTED: {
+                return 1 << 7;
+            }
+            case X_GOT_ALL_HEADERS: {
+                return 1 << 8;
+            }
+            default: {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the SQL assignment that sets or clears a flag in the {@code messages} table.
+     */
+    private static String getFlagUpdateExpression(Flag flag, boolean newState) {
+        int bit = getFlagBit(flag);
+        if (bit != 0) {
+            return "flag_bits = " + (newState ? "flag_bits | " + bit : "flag_bits & ~" + bit);
+        }
+        return getColumnNameForFlag(flag) + " = " + (newState ? "1" : "0");
+    }
+
+    private static int serializeFlagBits(Flag[] flags) {
+        int bits = 0;
+        for (Flag flag : flags) {
+            bits |= getFlagBit(flag);
+        }
+        return bits;
+    }
+
 
     protected String uUid = null;
 
@@ -178,6 +266,12 @@ public class LocalStore extends Store implements Serializable {
 
     private ContentResolver mContentResolver;
 
+    /**
+     * Set once we know that every message has an entry in {@code messages_fulltext}. The index
+     * is kept up to date by {@link LocalFolder#appendMessages(Message[])} from then on.
+     */
+    private volatile boolean mFullTextIndexComplete = false;
+
     /**
      * local://localhost/path/to/database/uuid.db
      * This constructor is only used by {@link Store#getLocalInstance(Account, Application)}
@@ -238,7 +332,8 @@ public class LocalStore extends Store implements Serializable {
                     db.execSQL("CREATE TABLE folders (id INTEGER PRIMARY KEY, name TEXT, "
                                + "last_updated INTEGER, unread_count INTEGER, visible_limit INTEGER, status TEXT, "
                                + "push_state TEXT, last_pushed INTEGER, flagged_count INTEGER default 0, "
-                               + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT"
+                               + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT, "
+                               + "uid_validity INTEGER, highest_mod_seq INTEGER"
                                + ")");
 
                     db.execSQL("CREATE INDEX IF NOT EXISTS folder_name ON folders (name)");
@@ -250,7 +345,7 @@ public class LocalStore extends Store implements Serializable {
                             "uid TEXT, " +
                             "subject TEXT, " +
                             "date INTEGER, " +
-                            "flags TEXT, " +
+                            "flag_bits INTEGER default 0, " +
                             "sender_list TEXT, " +
                             "to_list TEXT, " +
                             "cc_list TEXT, " +
@@ -272,8 +367,8 @@ public class LocalStore extends Store implements Serializable {
                             ")");
 
                     db.execSQL("DROP TABLE IF EXISTS headers");
-                    db.execSQL("CREATE TABLE headers (id INTEGER PRIMARY KEY, message_id INTEGER, name TEXT, value TEXT)");
-                    db.execSQL("CREATE INDEX IF NOT EXISTS header_folder ON headers (message_id)");
+                    db.execSQL("DROP TABLE IF EXISTS message_headers");
+                    db.execSQL("CREATE TABLE message_headers (message_id INTEGER PRIMARY KEY, data BLOB)");
 
                     db.execSQL("CREATE INDEX IF NOT EXISTS msg_uid ON messages (uid, folder_id)");
                     db.execSQL("DROP INDEX IF EXISTS msg_folder_id");
@@ -292,6 +387,9 @@ public class LocalStore extends Store implements Serializable {
                     db.execSQL("DROP INDEX IF EXISTS msg_composite");
                     db.execSQL("CREATE INDEX IF NOT EXISTS msg_composite ON messages (deleted, empty,folder_id,flagged,read)");
 
+                    db.execSQL("DROP INDEX IF EXISTS msg_date");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS msg_date ON messages (date)");
+
 
 
                     db.execSQL("DROP TABLE IF EXISTS threads");
@@ -325,14 +423,25 @@ public class LocalStore extends Store implements Serializable {
 
                     db.execSQL("DROP TABLE IF EXISTS pending_commands");
                     db.execSQL("CREATE TABLE pending_commands " +
-                               "(id INTEGER PRIMARY KEY, command TEXT, arguments TEXT)");
+                               "(id INTEGER PRIMARY KEY, command TEXT, arguments TEXT, data BLOB)");
 
                     db.execSQL("DROP TRIGGER IF EXISTS delete_folder");
                     db.execSQL("CREATE TRIGGER delete_folder BEFORE DELETE ON folders BEGIN DELETE FROM messages WHERE old.id = folder_id; END;");
 
+                    db.execSQL("DROP TABLE IF EXISTS message_body_chunks");
+                    db.execSQL("CREATE TABLE message_body_chunks (id INTEGER PRIMARY KEY, " +
+                               "message_id INTEGER, type INTEGER, seq INTEGER, data TEXT)");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS message_body_chunks_message " +
+                               "ON message_body_chunks (message_id, type, seq)");
+
+                    db.execSQL("DROP TABLE IF EXISTS messages_fulltext");
+                    createFullTextTable(db);
+
                     db.execSQL("DROP TRIGGER IF EXISTS delete_message");
                     db.execSQL("CREATE TRIGGER delete_message BEFORE DELETE ON messages BEGIN DELETE FROM attachments WHERE old.id = message_id; "
-                               + "DELETE FROM headers where old.id = message_id; END;");
+                               + "DELETE FROM message_headers WHERE old.id = message_id; "
+                               + "DELETE FROM message_body_chunks WHERE old.id = message_id; "
+                               + "DELETE FROM messages_fulltext WHERE docid = old.id; END;");
                 } else {
                     // in the case that we're starting out at 29 or newer, run all the needed updates
 
@@ -703,6 +812,83 @@ public class LocalStore extends Store implements Serializable {
                         db.execSQL("CREATE INDEX IF NOT EXISTS msg_composite ON messages (deleted, empty,folder_id,flagged,read)");
 
                     }
+                    if (db.getVersion() < 50) {
+                        // V50: Remember UIDVALIDITY and HIGHESTMODSEQ for CONDSTORE/QRESYNC syncs
+                        try {
+                            db.execSQL("ALTER TABLE folders ADD uid_validity INTEGER");
+                            db.execSQL("ALTER TABLE folders ADD highest_mod_seq INTEGER");
+                        } catch (SQLiteException e) {
+                            if (! e.getMessage().startsWith("duplicate column name:")) {
+                                throw e;
+                            }
+                        }
+                    }
+                    if (db.getVersion() < 51) {
+                        // V51: Store large message bodies in chunks
+                        db.execSQL("CREATE TABLE IF NOT EXISTS message_body_chunks (id INTEGER PRIMARY KEY, " +
+                                   "message_id INTEGER, type INTEGER, seq INTEGER, data TEXT)");
+                        db.execSQL("CREATE INDEX IF NOT EXISTS message_body_chunks_message " +
+                                   "ON message_body_chunks (message_id, type, seq)");
+
+                        db.execSQL("DROP TRIGGER IF EXISTS delete_message");
+                        db.execSQL("CREATE TRIGGER delete_message BEFORE DELETE ON messages BEGIN DELETE FROM attachments WHERE old.id = message_id; "
+                                   + "DELETE FROM headers where old.id = message_id; "
+                                   + "DELETE FROM message_body_chunks WHERE old.id = message_id; END;");
+                    }
+                    if (db.getVersion() < 52) {
+                        // V52: Full-text index of message bodies. Existing messages are added to
+                        // the index in the background by MessagingController.buildFullTextIndex().
+                        createFullTextTable(db);
+
+                        db.execSQL("DROP TRIGGER IF EXISTS delete_message");
+                        db.execSQL("CREATE TRIGGER delete_message BEFORE DELETE ON messages BEGIN DELETE FROM attachments WHERE old.id = message_id; "
+                                   + "DELETE FROM headers where old.id = message_id; "
+                                   + "DELETE FROM message_body_chunks WHERE old.id = message_id; "
+                                   + "DELETE FROM messages_fulltext WHERE docid = old.id; END;");
+                    }
+                    if (db.getVersion() < 53) {
+                        // V53: Store all headers of a message in a single row
+                        db.execSQL("CREATE TABLE IF NOT EXISTS message_headers (message_id INTEGER PRIMARY KEY, data BLOB)");
+                        convertHeadersToBlocks(db);
+                        db.execSQL("DROP TABLE IF EXISTS headers");
+
+                        db.execSQL("DROP TRIGGER IF EXISTS delete_message");
+                        db.execSQL("CREATE TRIGGER delete_message BEFORE DELETE ON messages BEGIN DELETE FROM attachments WHERE old.id = message_id; "
+                                   + "DELETE FROM message_headers WHERE old.id = message_id; "
+                                   + "DELETE FROM message_body_chunks WHERE old.id = message_id; "
+                                   + "DELETE FROM messages_fulltext WHERE docid = old.id; END;");
+                    }
+                    if (db.getVersion() < 54) {
+                        // V54: Replace the comma-separated 'flags' column with the bit mask 'flag_bits'
+                        try {
+                            db.execSQL("ALTER TABLE messages ADD flag_bits INTEGER default 0");
+                        } catch (SQLiteException e) {
+                            if (! e.getMessage().startsWith("duplicate column name:")) {
+                                throw e;
+                            }
+                        }
+                        convertFlagsToBits(db);
+                    }
+                    if (db.getVersion() < 55) {
+                        // V55: Let the message list read the newest messages without sorting the whole table
+                        db.execSQL("CREATE INDEX IF NOT EXISTS msg_date ON messages (date)");
+                    }
+                    if (db.getVersion() < 56) {
+                        // V56: Store the arguments of pending commands as a PendingCommandBlock
+                        try {
+                            db.execSQL("ALTER TABLE pending_commands ADD data BLOB");
+                        } catch (SQLiteException e) {
+                            if (! e.getMessage().startsWith("duplicate column name:")) {
+                                throw e;
+                            }
+                        }
+                        convertPendingCommandsToBlocks(db);
+                    }
+                    if (db.getVersion() < 57) {
+                        // V57: The full-text index stores normalized words, see FullTextNormalizer.
+                        // Messages are indexed again by MessagingController.buildFullTextIndex().
+                        db.execSQL("DELETE FROM messages_fulltext");
+                    }
                 }
 
                 db.setVersion(DB_VERSION);
@@ -717,6 +903,107 @@ public class LocalStore extends Store implements Serializable {
             }
         }
 
+        /**
+         * Creates the full-text index table. The {@code docid} of a row is the {@code id} of the
+         * message in the {@code messages} table.
+         *
+         * <p>FTS4 is only available on Android 3.0 and newer, so we fall back to FTS3.</p>
+         */
+        private void createFullTextTable(SQLiteDatabase db) {
+            try {
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS messages_fulltext USING fts4 (fulltext)");
+            } catch (SQLiteException e) {
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS messages_fulltext USING fts3 (fulltext)");
+            }
+        }
+
+        private void convertFlagsToBits(SQLiteDatabase db) {
+            Cursor cursor = db.rawQuery("SELECT id, flags FROM messages " +
+                    "WHERE flags IS NOT NULL AND flags != ''", null);
+            try {
+                ContentValues cv = new ContentValues();
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    int bits = 0;
+                    for (String flagStr : cursor.getString(1).split(",")) {
+                        try {
+                            bits |= getFlagBit(Flag.valueOf(flagStr));
+                        } catch (Exception e) {
+                            // Ignore bad flags
+                        }
+                    }
+
+                    cv.clear();
+                    cv.put("flag_bits", bits);
+                    cv.putNull("flags");
+                    db.update("messages", cv, "id = ?", new String[] { Long.toString(id) });
+                }
+            } finally {
+                Utility.closeQuietly(cursor);
+            }
+        }
+
+        /**
+         * Moves the rows of the old {@code headers} table, one per header field, into one
+         * {@link HeaderBlock} per message.
+         */
+        private void convertHeadersToBlocks(SQLiteDatabase db) {
+            Cursor cursor = db.rawQuery("SELECT message_id, name, value FROM headers " +
+                    "ORDER BY message_id, id", null);
+            try {
+                ContentValues cv = new ContentValues();
+                HeaderBlock block = null;
+                long messageId = -1;
+                while (true) {
+                    boolean hasNext = cursor.moveToNext();
+                    if (block != null && (!hasNext || cursor.getLong(0) != messageId)) {
+                        cv.clear();
+                        cv.put("message_id", messageId);
+                        cv.put("data", block.toByteArray());
+                        db.replace("message_headers", null, cv);
+                        block = null;
+                    }
+                    if (!hasNext) {
+                        break;
+                    }
+
+                    if (block == null) {
+                        block = new HeaderBlock();
+                        messageId = cursor.getLong(0);
+                    }
+                    block.add(cursor.getString(1), cursor.getString(2));
+                }
+            } finally {
+                Utility.closeQuietly(cursor);
+            }
+        }
+
+        /**
+         * Re-encodes the URL-encoded, comma-separated arguments of the queued commands as
+         * {@link PendingCommandBlock}s.
+         */
+        private void convertPendingCommandsToBlocks(SQLiteDatabase db) {
+            Cursor cursor = db.rawQuery("SELECT id, arguments FROM pending_commands " +
+                    "WHERE data IS NULL", null);
+            try {
+                ContentValues cv = new ContentValues();
+                while (cursor.moveToNext()) {
+                    String[] arguments = cursor.getString(1).split(",");
+                    for (int i = 0; i < arguments.length; i++) {
+                        arguments[i] = Utility.fastUrlDecode(arguments[i]);
+                    }
+
+                    cv.clear();
+                    cv.put("data", PendingCommandBlock.encode(arguments));
+                    cv.putNull("arguments");
+                    db.update("pending_commands", cv, "id = ?",
+                            new String[] { Long.toString(cursor.getLong(0)) });
+                }
+            } finally {
+                Utility.closeQuietly(cursor);
+            }
+        }
+
         private void update41Metadata(final SQLiteDatabase  db, SharedPreferences prefs, int id, String name) {
 
 
@@ -934,6 +1221,139 @@ public class LocalStore extends Store implements Serializable {
         database.recreate();
     }
 
+    /**
+     * Receives progress updates from {@link LocalStore#buildFullTextIndex(FullTextIndexListener)}.
+     */
+    public interface FullTextIndexListener {
+        void fullTextIndexProgress(int indexed, int total);
+    }
+
+    /**
+     * Checks whether every message has been added to the full-text index.
+     *
+     * <p>
+     * Searches only use the index once this returns {@code true}; until then they fall back to
+     * {@code LIKE} so messages that haven't been indexed yet are still found.
+     * </p>
+     */
+    public boolean isFullTextIndexComplete() throws UnavailableStorageException {
+        if (mFullTextIndexComplete) {
+            return true;
+        }
+
+        boolean complete = database.execute(false, new DbCallback<Boolean>() {
+            @Override
+            public Boolean doDbWork(final SQLiteDatabase db) {
+                Cursor cursor = db.rawQuery("SELECT m.id FROM messages m " +
+                        "LEFT JOIN messages_fulltext f ON (f.docid = m.id) " +
+                        "WHERE f.docid IS NULL AND m.deleted = 0 AND (m.empty IS NULL OR m.empty != 1) " +
+                        "LIMIT 1", null);
+                try {
+                    return !cursor.moveToFirst();
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
+            }
+        });
+
+        mFullTextIndexComplete = complete;
+        return complete;
+    }
+
+    /**
+     * Adds all messages that are missing from the full-text index, e.g. after the database was
+     * upgraded from a version without the index.
+     *
+     * <p>
+     * Messages are indexed in batches of {@value #FULLTEXT_INDEX_BATCH_SIZE}, each in its own
+     * transaction, so the database isn't locked for long periods of time.
+     * </p>
+     *
+     * @param listener
+     *         Notified after each batch. May be {@code null}.
+     *
+     * @return The number of messages that were added to the index.
+     */
+    public int buildFullTextIndex(final FullTextIndexListener listener) throws MessagingException {
+        if (mFullTextIndexComplete) {
+            return 0;
+        }
+
+        final int total = database.execute(false, new DbCallback<Integer>() {
+            @Override
+            public Integer doDbWork(final SQLiteDatabase db) {
+                Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM messages m " +
+                        "LEFT JOIN messages_fulltext f ON (f.docid = m.id) " +
+                        "WHERE f.docid IS NULL AND m.deleted = 0 AND (m.empty IS NULL OR m.empty != 1)",
+                        null);
+                try {
+                    return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
+            }
+        });
+
+        int indexed = 0;
+        long lastId = -1;
+        while (true) {
+            final long startId = lastId;
+            long[] batch = database.execute(true, new DbCallback<long[]>() {
+                @Override
+                public long[] doDbWork(final SQLiteDatabase db) {
+                    return indexFullTextBatch(db, startId);
+                }
+            });
+
+            if (batch[0] == 0) {
+                break;
+            }
+
+            indexed += (int) batch[0];
+            lastId = batch[1];
+
+            if (listener != null) {
+                listener.fullTextIndexProgress(indexed, Math.max(indexed, total));
+            }
+        }
+
+        mFullTextIndexComplete = true;
+        return indexed;
+    }
+
+    /**
+     * Indexes up to {@value #FULLTEXT_INDEX_BATCH_SIZE} unindexed messages with an ID greater
+     * than {@code startId}.
+     *
+     * @return The number of indexed messages and the ID of the last of them.
+     */
+    private long[] indexFullTextBatch(SQLiteDatabase db, long startId) {
+        Cursor cursor = db.rawQuery("SELECT m.id, m.text_content FROM messages m " +
+                "LEFT JOIN messages_fulltext f ON (f.docid = m.id) " +
+                "WHERE f.docid IS NULL AND m.deleted = 0 AND (m.empty IS NULL OR m.empty != 1) " +
+                "AND m.id > ? ORDER BY m.id LIMIT " + FULLTEXT_INDEX_BATCH_SIZE,
+                new String[] { Long.toString(startId) });
+        try {
+            long count = 0;
+            long lastId = startId;
+            while (cursor.moveToNext()) {
+                long messageId = cursor.getLong(0);
+                String text = cursor.getString(1);
+
+                if ((getChunkedBodyTypes(db, messageId) & (1 << BODY_CHUNK_TYPE_TEXT)) != 0) {
+                    text = loadChunkedBody(db, messageId, BODY_CHUNK_TYPE_TEXT);
+                }
+
+                updateFullTextIndex(db, messageId, text);
+                count++;
+                lastId = messageId;
+            }
+            return new long[] { count, lastId };
+        } finally {
+            Utility.closeQuietly(cursor);
+        }
+    }
+
     public void pruneCachedAttachments() throws MessagingException {
         pruneCachedAttachments(false);
     }
@@ -1020,32 +1440,15 @@ public class LocalStore extends Store implements Serializable {
         });
     }
 
-    public ArrayList<PendingCommand> getPendingCommands() throws UnavailableStorageException {
-        return database.execute(false, new DbCallback<ArrayList<PendingCommand>>() {
+    public int getPendingCommandCount() throws UnavailableStorageException {
+        return database.execute(false, new DbCallback<Integer>() {
             @Override
-            public ArrayList<PendingCommand> doDbWork(final SQLiteDatabase db) throws WrappedException {
+            public Integer doDbWork(final SQLiteDatabase db) {
                 Cursor cursor = null;
                 try {
-                    cursor = db.query("pending_commands",
-                                      new String[] { "id", "command", "arguments" },
-                                      null,
-                                      null,
-                                      null,
-                                      null,
-                                      "id ASC");
-                    ArrayList<PendingCommand> commands = new ArrayList<PendingCommand>();
-                    while (cursor.moveToNext()) {
-                        PendingCommand command = new PendingCommand();
-                        command.mId = cursor.getLong(0);
-                        command.command = cursor.getString(1);
-                        String arguments = cursor.getString(2);
-                        command.arguments = arguments.split(",");
-                        for (int i = 0; i < command.arguments.length; i++) {
-                            command.arguments[i] = Utility.fastUrlDecode(command.arguments[i]);
-                        }
-                        commands.add(command);
-                    }
-                    return commands;
+                    cursor = db.rawQuery("SELECT COUNT(*) FROM pending_commands", null);
+                    cursor.moveToFirst();
+                    return cursor.getInt(0);
                 } finally {
                     Utility.closeQuietly(cursor);
                 }
@@ -1053,24 +1456,78 @@ public class LocalStore extends Store implements Serializable {
         });
     }
 
+    /**
+     * Reads the pending commands in the order they were queued, one page at a time.
+     *
+     * <p>
+     * Commands that can't be decoded are deleted and skipped. If a whole page is unreadable
+     * the following page is read, so an empty list always means there are no more commands.
+     * </p>
+     *
+     * @param previous
+     *         The last command of the previous page, or {@code null} to start with the oldest
+     *         command.
+     * @param limit
+     *         The maximum number of commands to return.
+     */
+    public ArrayList<PendingCommand> getPendingCommands(final PendingCommand previous,
+            final int limit) throws UnavailableStorageException {
+        return database.execute(false, new DbCallback<ArrayList<PendingCommand>>() {
+            @Override
+            public ArrayList<PendingCommand> doDbWork(final SQLiteDatabase db) throws WrappedException {
+                long previousId = (previous == null) ? 0 : previous.mId;
+                ArrayList<PendingCommand> commands = new ArrayList<PendingCommand>();
+                List<String> unreadableIds = new ArrayList<String>();
+                do {
+                    unreadableIds.clear();
+                    Cursor cursor = null;
+                    try {
+                        cursor = db.query("pending_commands",
+                                          new String[] { "id", "command", "data" },
+                                          "id > ?",
+                                          new String[] { Long.toString(previousId) },
+                                          null,
+                                          null,
+                                          "id ASC",
+                                          Integer.toString(limit));
+                        while (cursor.moveToNext()) {
+                            PendingCommand command = new PendingCommand();
+                            command.mId = cursor.getLong(0);
+                            command.command = cursor.getString(1);
+                            try {
+                                command.arguments = PendingCommandBlock.decode(cursor.getBlob(2));
+                                commands.add(command);
+                            } catch (IllegalArgumentException e) {
+                                Log.e(K9.LOG_TAG, "Dropping unreadable pending command " +
+                                        command.command, e);
+                                unreadableIds.add(Long.toString(command.mId));
+                            }
+                        }
+                    } finally {
+                        Utility.closeQuietly(cursor);
+                    }
+
+                    for (String id : unreadableIds) {
+                        db.delete("pending_commands", "id = ?", new String[] { id });
+                    }
+                } while (commands.isEmpty() && !unreadableIds.isEmpty());
+
+                return commands;
+            }
+        });
+    }
+
     public void addPendingCommand(PendingCommand command) throws UnavailableStorageException {
-        try {
-            for (int i = 0; i < command.arguments.length; i++) {
-                command.arguments[i] = URLEncoder.encode(command.arguments[i], "UTF-8");
+        final ContentValues cv = new ContentValues();
+        cv.put("command", command.command);
+        cv.put("data", PendingCommandBlock.encode(command.arguments));
+        database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                db.insert("pending_commands", "command", cv);
+                return null;
             }
-            final ContentValues cv = new ContentValues();
-            cv.put("command", command.command);
-            cv.put("arguments", Utility.combine(command.arguments, ','));
-            database.execute(false, new DbCallback<Void>() {
-                @Override
-                public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    db.insert("pending_commands", "command", cv);
-                    return null;
-                }
-            });
-        } catch (UnsupportedEncodingException usee) {
-            throw new Error("Aparently UTF-8 has been lost to the annals of history.");
-        }
+        });
     }
 
     public void removePendingCommand(final PendingCommand command) throws UnavailableStorageException {
@@ -1083,6 +1540,20 @@ public class LocalStore extends Store implements Serializable {
         });
     }
 
+    public void removePendingCommands(final List<PendingCommand> commands)
+            throws UnavailableStorageException {
+        database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                for (PendingCommand command : commands) {
+                    db.delete("pending_commands", "id = ?",
+                            new String[] { Long.toString(command.mId) });
+                }
+                return null;
+            }
+        });
+    }
+
     public void removePendingCommands() throws UnavailableStorageException {
         database.execute(false, new DbCallback<Void>() {
             @Override
@@ -1125,28 +1596,198 @@ public class LocalStore extends Store implements Serializable {
     public Message[] searchForMessages(MessageRetrievalListener retrievalListener,
                                         LocalSearch search) throws MessagingException {
 
-        StringBuilder query = new StringBuilder();
         List<String> queryArgs = new ArrayList<String>();
+        String sqlQuery = buildSearchQuery(search, queryArgs) + " ORDER BY date DESC";
+
+        String[] selectionArgs = queryArgs.toArray(EMPTY_STRING_ARRAY);
+
+        if (K9.DEBUG) {
+            Log.d(K9.LOG_TAG, "Query = " + sqlQuery);
+        }
+
+        return getMessages(retrievalListener, null, sqlQuery, selectionArgs);
+    }
+
+    /**
+     * Returns the messages matching {@code search}, newest first.
+     *
+     * <p>
+     * Unlike {@link #searchForMessages(MessageRetrievalListener, LocalSearch)} the messages are
+     * loaded while iterating, {@code pageSize} rows at a time. Every page continues after the
+     * date and ID of the last message of the previous one, so the database never has to count
+     * or skip rows and the first page is available after reading {@code pageSize} rows.
+     * </p>
+     */
+    public SearchResultIterator searchForMessagesNewestFirst(LocalSearch search, int pageSize) {
+        List<String> queryArgs = new ArrayList<String>();
+        String sqlQuery = buildSearchQuery(search, queryArgs);
+
+        return new SearchResultIterator(sqlQuery, queryArgs.toArray(EMPTY_STRING_ARRAY),
+                pageSize);
+    }
+
+    /**
+     * Builds the {@code SELECT} statement of a search without {@code ORDER BY} clause.
+     */
+    private String buildSearchQuery(LocalSearch search, List<String> queryArgs) {
+        StringBuilder query = new StringBuilder();
         SqlQueryBuilder.buildWhereClause(mAccount, search.getConditions(), query, queryArgs);
 
         // Avoid "ambiguous column name" error by prefixing "id" with the message table name
         String where = SqlQueryBuilder.addPrefixToSelection(new String[] { "id" },
                 "messages.", query.toString());
 
-        String[] selectionArgs = queryArgs.toArray(EMPTY_STRING_ARRAY);
-
-        String sqlQuery = "SELECT " + GET_MESSAGES_COLS + "FROM messages " +
+        return "SELECT " + GET_MESSAGES_COLS + "FROM messages " +
                 "LEFT JOIN threads ON (threads.message_id = messages.id) " +
                 "LEFT JOIN folders ON (folders.id = messages.folder_id) WHERE " +
                 "((empty IS NULL OR empty != 1) AND deleted = 0)" +
-                ((!StringUtils.isNullOrEmpty(where)) ? " AND (" + where + ")" : "") +
-                " ORDER BY date DESC";
+                ((!StringUtils.isNullOrEmpty(where)) ? " AND (" + where + ")" : "");
+    }
 
-        if (K9.DEBUG) {
-            Log.d(K9.LOG_TAG, "Query = " + sqlQuery);
+    /**
+     * Iterates over the result of {@link LocalStore#searchForMessagesNewestFirst(LocalSearch, int)}.
+     *
+     * <p>
+     * Messages are ordered by {@code date DESC, id DESC}. SQLite sorts {@code NULL} dates last.
+     * If loading a page fails the iteration ends early and {@link #getException()} returns the
+     * cause.
+     * </p>
+     */
+    public class SearchResultIterator implements Iterator<LocalMessage> {
+        private static final int DATE_COLUMN = 2;
+        private static final int ID_COLUMN = 5;
+        private static final int FOLDER_ID_COLUMN = 13;
+
+        private final String mQuery;
+        private final String[] mArgs;
+        private final int mPageSize;
+
+        private final List<LocalMessage> mPage = new ArrayList<LocalMessage>();
+        private int mPageIndex = 0;
+        private boolean mLastPage = false;
+
+        /**
+         * Folders are shared by all messages of a result. Opening a folder for each message
+         * would cost a query per message.
+         */
+        private final Map<Long, LocalFolder> mFolders = new HashMap<Long, LocalFolder>();
+
+        /*
+         * The keyset of the last loaded row
+         */
+        private boolean mLastDateNull = false;
+        private long mLastDate;
+        private long mLastId = -1;
+
+        private MessagingException mException;
+
+
+        SearchResultIterator(String query, String[] args, int pageSize) {
+            mQuery = query;
+            mArgs = args;
+            mPageSize = pageSize;
         }
 
-        return getMessages(retrievalListener, null, sqlQuery, selectionArgs);
+        @Override
+        public boolean hasNext() {
+            if (mPageIndex < mPage.size()) {
+                return true;
+            }
+            if (mLastPage) {
+                return false;
+            }
+
+            try {
+                loadNextPage();
+            } catch (MessagingException e) {
+                Log.e(K9.LOG_TAG, "Error while loading search results of account " +
+                        mAccount.getDescription(), e);
+                mException = e;
+                mPage.clear();
+                mLastPage = true;
+            }
+
+            return mPageIndex < mPage.size();
+        }
+
+        @Override
+        public LocalMessage next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return mPage.get(mPageIndex++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Returns the exception that ended the iteration early, or {@code null}.
+         */
+        public MessagingException getException() {
+            return mException;
+        }
+
+        private void loadNextPage() throws MessagingException {
+            mPage.clear();
+            mPageIndex = 0;
+
+            final StringBuilder query = new StringBuilder(mQuery);
+            final List<String> args = new ArrayList<String>(mArgs.length + 3);
+            args.addAll(Arrays.asList(mArgs));
+
+            if (mLastId != -1) {
+                if (mLastDateNull) {
+                    query.append(" AND (date IS NULL AND messages.id < ?)");
+                } else {
+                    query.append(" AND (date < ? OR (date = ? AND messages.id < ?) OR " +
+                            "date IS NULL)");
+                    args.add(Long.toString(mLastDate));
+                    args.add(Long.toString(mLastDate));
+                }
+                args.add(Long.toString(mLastId));
+            }
+            query.append(" ORDER BY date DESC, messages.id DESC LIMIT ");
+            query.append(mPageSize);
+
+            try {
+                database.execute(false, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                        Cursor cursor = db.rawQuery(query.toString(),
+                                args.toArray(EMPTY_STRING_ARRAY));
+                        try {
+                            while (cursor.moveToNext()) {
+                                long folderId = cursor.getLong(FOLDER_ID_COLUMN);
+                                LocalFolder folder = mFolders.get(folderId);
+
+                                LocalMessage message = new LocalMessage(null, folder);
+                                message.populateFromGetMessageCursor(cursor);
+                                if (folder == null) {
+                                    mFolders.put(folderId, (LocalFolder) message.getFolder());
+                                }
+                                mPage.add(message);
+
+                                mLastDateNull = cursor.isNull(DATE_COLUMN);
+                                mLastDate = cursor.getLong(DATE_COLUMN);
+                                mLastId = cursor.getLong(ID_COLUMN);
+                            }
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        } finally {
+                            Utility.closeQuietly(cursor);
+                        }
+                        return null;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw (MessagingException) e.getCause();
+            }
+
+            mLastPage = (mPage.size() < mPageSize);
+        }
     }
 
     /*
@@ -1303,6 +1944,160 @@ public class LocalStore extends Store implements Serializable {
     }
 
 
+    /**
+     * Returns the value to store in the {@code text_content} column.
+     *
+     * <p>
+     * If the text is stored in chunks the column only holds the first chunk. That's enough for
+     * the message list preview and keeps the start of the message searchable.
+     * </p>
+     */
+    private static String getInlineText(String text) {
+        if (text == null || text.length() == 0) {
+            return null;
+        }
+        if (BodyChunker.needsChunking(text)) {
+            return text.substring(0, BodyChunker.nextChunkEnd(text, 0));
+        }
+        return text;
+    }
+
+    /**
+     * Returns the value to store in the {@code html_content} column; {@code null} if the HTML
+     * is stored in chunks.
+     */
+    private static String getInlineHtml(String html) {
+        if (html == null || html.length() == 0 || BodyChunker.needsChunking(html)) {
+            return null;
+        }
+        return html;
+    }
+
+    /**
+     * Replaces the body chunks of a message with those of {@code text} and {@code html}.
+     * Bodies that are small enough to be stored inline don't get any chunks.
+     */
+    private void saveBodyChunks(SQLiteDatabase db, long messageId, String text, String html) {
+        db.delete("message_body_chunks", "message_id = ?",
+                  new String[] { Long.toString(messageId) });
+
+        if (BodyChunker.needsChunking(text)) {
+            insertBodyChunks(db, messageId, BODY_CHUNK_TYPE_TEXT, text);
+        }
+        if (BodyChunker.needsChunking(html)) {
+            insertBodyChunks(db, messageId, BODY_CHUNK_TYPE_HTML, html);
+        }
+    }
+
+    /**
+     * Replaces the full-text index entry of a message.
+     *
+     * <p>
+     * The text is stored normalized by {@link FullTextNormalizer}, the form the search terms
+     * are converted to by {@link SqlQueryBuilder}.
+     * </p>
+     */
+    private void updateFullTextIndex(SQLiteDatabase db, long messageId, String text) {
+        ContentValues cv = new ContentValues();
+        cv.put("docid", messageId);
+        cv.put("fulltext", FullTextNormalizer.normalize(text));
+        db.replace("messages_fulltext", null, cv);
+    }
+
+    private void insertBodyChunks(SQLiteDatabase db, long messageId, int type, String content) {
+        ContentValues cv = new ContentValues();
+        int seq = 0;
+        for (int start = 0, length = content.length(); start < length; seq++) {
+            int end = BodyChunker.nextChunkEnd(content, start);
+            cv.clear();
+            cv.put("message_id", messageId);
+            cv.put("type", type);
+            cv.put("seq", seq);
+            cv.put("data", content.substring(start, end));
+            db.insert("message_body_chunks", null, cv);
+            start = end;
+        }
+    }
+
+    /**
+     * Returns a bit mask of the {@code BODY_CHUNK_TYPE_*} values stored in chunks for a message.
+     */
+    private int getChunkedBodyTypes(SQLiteDatabase db, long messageId) {
+        Cursor cursor = db.rawQuery("SELECT DISTINCT type FROM message_body_chunks WHERE message_id = ?",
+                                    new String[] { Long.toString(messageId) });
+        try {
+            int types = 0;
+            while (cursor.moveToNext()) {
+                types |= 1 << cursor.getInt(0);
+            }
+            return types;
+        } finally {
+            Utility.closeQuietly(cursor);
+        }
+    }
+
+    /**
+     * Reads a single chunk of a message body.
+     *
+     * @return The chunk or {@code null} if there is no chunk with that sequence number.
+     */
+    private String loadBodyChunk(final long messageId, final int type, final int seq)
+    throws UnavailableStorageException {
+        return database.execute(false, new DbCallback<String>() {
+            @Override
+            public String doDbWork(final SQLiteDatabase db) {
+                Cursor cursor = db.rawQuery("SELECT data FROM message_body_chunks " +
+                        "WHERE message_id = ? AND type = ? AND seq = ?", new String[] {
+                            Long.toString(messageId), Integer.toString(type), Integer.toString(seq)
+                        });
+                try {
+                    return cursor.moveToNext() ? cursor.getString(0) : null;
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads all chunks of a message body and joins them.
+     */
+    private String loadChunkedBody(SQLiteDatabase db, long messageId, int type) {
+        Cursor cursor = db.rawQuery("SELECT data FROM message_body_chunks " +
+                "WHERE message_id = ? AND type = ? ORDER BY seq", new String[] {
+                    Long.toString(messageId), Integer.toString(type)
+                });
+        try {
+            StringBuilder sb = new StringBuilder();
+            while (cursor.moveToNext()) {
+                sb.append(cursor.getString(0));
+            }
+            return sb.toString();
+        } finally {
+            Utility.closeQuietly(cursor);
+        }
+    }
+
+    private LocalTextBody createLocalTextBody(long messageId, String text, String html,
+            int chunkedTypes) {
+        if (chunkedTypes == 0) {
+            return new LocalTextBody(text, html);
+        }
+
+        boolean textChunked = (chunkedTypes & (1 << BODY_CHUNK_TYPE_TEXT)) != 0;
+        boolean htmlChunked = (chunkedTypes & (1 << BODY_CHUNK_TYPE_HTML)) != 0;
+        return new LocalChunkedTextBody(messageId,
+                textChunked ? null : text, textChunked ? BODY_CHUNK_TYPE_TEXT : -1,
+                htmlChunked ? null : html, htmlChunked ? BODY_CHUNK_TYPE_HTML : -1);
+    }
+
+    private TextBody createHtmlBody(long messageId, String html, int chunkedTypes) {
+        if ((chunkedTypes & (1 << BODY_CHUNK_TYPE_HTML)) == 0) {
+            return new TextBody(html);
+        }
+        return new LocalChunkedTextBody(messageId, null, BODY_CHUNK_TYPE_HTML, null, -1);
+    }
+
     private String serializeFlags(Flag[] flags) {
         List<Flag> extraFlags = new ArrayList<Flag>();
 
@@ -1338,6 +2133,8 @@ public class LocalStore extends Store implements Serializable {
         private FolderClass mPushClass = FolderClass.SECOND_CLASS;
         private boolean mInTopGroup = false;
         private String mPushState = null;
+        private long mUidValidity = 0;
+        private long mHighestModSeq = 0;
         private boolean mIntegrate = false;
         // mLastUid is used during syncs. It holds the highest UID within the local folder so we
         // know whether or not an unread message added to the local folder is actually "new" or not.
@@ -1419,6 +2216,8 @@ public class LocalStore extends Store implements Serializable {
             mName = cursor.getString(FOLDER_NAME_INDEX);
             mVisibleLimit = cursor.getInt(FOLDER_VISIBLE_LIMIT_INDEX);
             mPushState = cursor.getString(FOLDER_PUSH_STATE_INDEX);
+            mUidValidity = cursor.getLong(FOLDER_UID_VALIDITY_INDEX);
+            mHighestModSeq = cursor.getLong(FOLDER_HIGHEST_MOD_SEQ_INDEX);
             super.setStatus(cursor.getString(FOLDER_STATUS_INDEX));
             // Only want to set the local variable stored in the super class.  This class
             // does a DB update on setLastChecked
@@ -1671,10 +2470,58 @@ public class LocalStore extends Store implements Serializable {
             } catch (WrappedException e) {
                 throw(MessagingException) e.getCause();
             }
-        }
+        }
+
+        public String getPushState() {
+            return mPushState;
+        }
+
+        /**
+         * @return The UIDVALIDITY value that was valid when {@link #getHighestModSeq()} was
+         *         recorded, or 0 if unknown.
+         */
+        public long getUidValidity() {
+            return mUidValidity;
+        }
+
+        /**
+         * @return The HIGHESTMODSEQ value of the remote folder after the last successful
+         *         synchronization, or 0 if unknown.
+         */
+        public long getHighestModSeq() {
+            return mHighestModSeq;
+        }
+
+        /**
+         * Store the mod-sequence state of the remote folder (see RFC 7162) so the next
+         * synchronization only needs to ask for changes.
+         *
+         * @param uidValidity
+         *         The UIDVALIDITY value of the remote folder. Use 0 to clear the state.
+         * @param highestModSeq
+         *         The HIGHESTMODSEQ value of the remote folder. Use 0 to clear the state.
+         */
+        public void setModSeqState(final long uidValidity, final long highestModSeq) throws MessagingException {
+            try {
+                database.execute(false, new DbCallback<Void>() {
+                    @Override
+                    public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                        try {
+                            open(OPEN_MODE_RW);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                        db.execSQL("UPDATE folders SET uid_validity = ?, highest_mod_seq = ? WHERE id = ?",
+                                new Object[] { uidValidity, highestModSeq, mFolderId });
+                        return null;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
 
-        public String getPushState() {
-            return mPushState;
+            mUidValidity = uidValidity;
+            mHighestModSeq = highestModSeq;
         }
         @Override
         public FolderClass getDisplayClass() {
@@ -1846,19 +2693,26 @@ public class LocalStore extends Store implements Serializable {
                                         String htmlContent = cursor.getString(0);
                                         String textContent = cursor.getString(1);
                                         String mimeType = cursor.getString(2);
+
+                                        // Large bodies are stored in chunks and only read when needed
+                                        int chunkedTypes = getChunkedBodyTypes(db, localMessage.mId);
+                                        boolean hasText = (textContent != null);
+                                        boolean hasHtml = (htmlContent != null) ||
+                                                (chunkedTypes & (1 << BODY_CHUNK_TYPE_HTML)) != 0;
+
                                         if (mimeType != null && mimeType.toLowerCase(Locale.US).startsWith("multipart/")) {
                                             // If this is a multipart message, preserve both text
                                             // and html parts, as well as the subtype.
                                             mp.setSubType(mimeType.toLowerCase(Locale.US).replaceFirst("^multipart/", ""));
-                                            if (textContent != null) {
-                                                LocalTextBody body = new LocalTextBody(textContent, htmlContent);
+                                            if (hasText) {
+                                                LocalTextBody body = createLocalTextBody(localMessage.mId, textContent, htmlContent, chunkedTypes);
                                                 MimeBodyPart bp = new MimeBodyPart(body, "text/plain");
                                                 mp.addBodyPart(bp);
                                             }
 
                                             if (mAccount.getMessageFormat() != MessageFormat.TEXT) {
-                                                if (htmlContent != null) {
-                                                    TextBody body = new TextBody(htmlContent);
+                                                if (hasHtml) {
+                                                    TextBody body = createHtmlBody(localMessage.mId, htmlContent, chunkedTypes);
                                                     MimeBodyPart bp = new MimeBodyPart(body, "text/html");
                                                     mp.addBodyPart(bp);
                                                 }
@@ -1869,7 +2723,7 @@ public class LocalStore extends Store implements Serializable {
                                                 // If it turns out that this is the only part in the parent
                                                 // MimeMultipart, it'll get fixed below before we attach to
                                                 // the message.
-                                                if (textContent != null && htmlContent != null && !mimeType.equalsIgnoreCase("multipart/alternative")) {
+                                                if (hasText && hasHtml && !mimeType.equalsIgnoreCase("multipart/alternative")) {
                                                     MimeMultipart alternativeParts = mp;
                                                     alternativeParts.setSubType("alternative");
                                                     mp = new MimeMultipart();
@@ -1879,16 +2733,16 @@ public class LocalStore extends Store implements Serializable {
                                         } else if (mimeType != null && mimeType.equalsIgnoreCase("text/plain")) {
                                             // If it's text, add only the plain part. The MIME
                                             // container will drop away below.
-                                            if (textContent != null) {
-                                                LocalTextBody body = new LocalTextBody(textContent, htmlContent);
+                                            if (hasText) {
+                                                LocalTextBody body = createLocalTextBody(localMessage.mId, textContent, htmlContent, chunkedTypes);
                                                 MimeBodyPart bp = new MimeBodyPart(body, "text/plain");
                                                 mp.addBodyPart(bp);
                                             }
                                         } else if (mimeType != null && mimeType.equalsIgnoreCase("text/html")) {
                                             // If it's html, add only the html part. The MIME
                                             // container will drop away below.
-                                            if (htmlContent != null) {
-                                                TextBody body = new TextBody(htmlContent);
+                                            if (hasHtml) {
+                                                TextBody body = createHtmlBody(localMessage.mId, htmlContent, chunkedTypes);
                                                 MimeBodyPart bp = new MimeBodyPart(body, "text/html");
                                                 mp.addBodyPart(bp);
                                             }
@@ -1896,12 +2750,12 @@ public class LocalStore extends Store implements Serializable {
                                             // MIME type not set. Grab whatever part we can get,
                                             // with Text taking precedence. This preserves pre-HTML
                                             // composition behaviour.
-                                            if (textContent != null) {
-                                                LocalTextBody body = new LocalTextBody(textContent, htmlContent);
+                                            if (hasText) {
+                                                LocalTextBody body = createLocalTextBody(localMessage.mId, textContent, htmlContent, chunkedTypes);
                                                 MimeBodyPart bp = new MimeBodyPart(body, "text/plain");
                                                 mp.addBodyPart(bp);
-                                            } else if (htmlContent != null) {
-                                                TextBody body = new TextBody(htmlContent);
+                                            } else if (hasHtml) {
+                                                TextBody body = createHtmlBody(localMessage.mId, htmlContent, chunkedTypes);
                                                 MimeBodyPart bp = new MimeBodyPart(body, "text/html");
                                                 mp.addBodyPart(bp);
                                             }
@@ -1954,9 +2808,12 @@ public class LocalStore extends Store implements Serializable {
                                                             Uri.parse(contentUri),
                                                             mApplication);
                                                 } else {
-                                                    body = new LocalAttachmentBody(
-                                                            Uri.parse(contentUri),
-                                                            mApplication);
+                                                    LocalAttachmentBody attachmentBody =
+                                                            new LocalAttachmentBody(
+                                                                    Uri.parse(contentUri),
+                                                                    mApplication);
+                                                    attachmentBody.setSize(size);
+                                                    body = attachmentBody;
                                                 }
                                             }
 
@@ -2033,56 +2890,36 @@ public class LocalStore extends Store implements Serializable {
         }
 
         /**
-         * Populate the header fields of the given list of messages by reading
-         * the saved header data from the database.
+         * Populate the header fields of the given message by reading the saved header data
+         * from the database.
          *
-         * @param messages
-         *            The messages whose headers should be loaded.
+         * @param message
+         *            The message whose headers should be loaded.
          * @throws UnavailableStorageException
          */
-        private void populateHeaders(final List<LocalMessage> messages) throws UnavailableStorageException {
-            database.execute(false, new DbCallback<Void>() {
+        private void populateHeaders(final LocalMessage message) throws UnavailableStorageException {
+            byte[] data = database.execute(false, new DbCallback<byte[]>() {
                 @Override
-                public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
-                    Cursor cursor = null;
-                    if (messages.isEmpty()) {
-                        return null;
-                    }
+                public byte[] doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                    Cursor cursor = db.rawQuery("SELECT data FROM message_headers WHERE message_id = ?",
+                            new String[] { Long.toString(message.getId()) });
                     try {
-                        Map<Long, LocalMessage> popMessages = new HashMap<Long, LocalMessage>();
-                        List<String> ids = new ArrayList<String>();
-                        StringBuilder questions = new StringBuilder();
-
-                        for (int i = 0; i < messages.size(); i++) {
-                            if (i != 0) {
-                                questions.append(", ");
-                            }
-                            questions.append("?");
-                            LocalMessage message = messages.get(i);
-                            Long id = message.getId();
-                            ids.add(Long.toString(id));
-                            popMessages.put(id, message);
-
-                        }
-
-                        cursor = db.rawQuery(
-                                     "SELECT message_id, name, value FROM headers " + "WHERE message_id in ( " + questions + ") ORDER BY id ASC",
-                                     ids.toArray(EMPTY_STRING_ARRAY));
-
-
-                        while (cursor.moveToNext()) {
-                            Long id = cursor.getLong(0);
-                            String name = cursor.getString(1);
-                            String value = cursor.getString(2);
-                            //Log.i(K9.LOG_TAG, "Retrieved header name= " + name + ", value = " + value + " for message " + id);
-                            popMessages.get(id).addHeader(name, value);
-                        }
+                        return cursor.moveToNext() ? cursor.getBlob(0) : null;
                     } finally {
                         Utility.closeQuietly(cursor);
                     }
-                    return null;
                 }
             });
+
+            if (data == null) {
+                return;
+            }
+
+            // Decode outside of the database lock
+            HeaderBlock.Reader reader = new HeaderBlock.Reader(data);
+            while (reader.next()) {
+                message.addHeader(reader.getName(), reader.getValue());
+            }
         }
 
         public String getMessageUidById(final long id) throws MessagingException {
@@ -2192,15 +3029,70 @@ public class LocalStore extends Store implements Serializable {
         }
 
         @Override
-        public Message[] getMessages(String[] uids, MessageRetrievalListener listener)
+        public Message[] getMessages(final String[] uids, MessageRetrievalListener listener)
         throws MessagingException {
             open(OPEN_MODE_RW);
             if (uids == null) {
                 return getMessages(listener);
             }
-            ArrayList<Message> messages = new ArrayList<Message>();
+
+            /*
+             * Load the messages with a query per UID_CHECK_BATCH_SIZE UIDs instead of one query
+             * per message. The sync passes thousands of UIDs here, e.g. for VANISHED responses.
+             */
+            final Map<String, LocalMessage> messagesByUid;
+            try {
+                messagesByUid = database.execute(false, new DbCallback<Map<String, LocalMessage>>() {
+                    @Override
+                    public Map<String, LocalMessage> doDbWork(final SQLiteDatabase db) throws WrappedException {
+                        Map<String, LocalMessage> result = new HashMap<String, LocalMessage>(uids.length);
+                        List<String> selectionArgs = new ArrayList<String>();
+                        int start = 0;
+
+                        while (start < uids.length) {
+                            StringBuilder query = new StringBuilder();
+                            query.append("SELECT ").append(GET_MESSAGES_COLS)
+                                 .append("FROM messages ")
+                                 .append("LEFT JOIN threads ON (threads.message_id = messages.id) ")
+                                 .append("WHERE folder_id = ? AND uid IN (");
+                            selectionArgs.add(Long.toString(mFolderId));
+
+                            int count = Math.min(uids.length - start, UID_CHECK_BATCH_SIZE);
+                            for (int i = start, end = start + count; i < end; i++) {
+                                query.append((i > start) ? ",?" : "?");
+                                selectionArgs.add(uids[i]);
+                            }
+                            query.append(")");
+
+                            Cursor cursor = db.rawQuery(query.toString(),
+                                    selectionArgs.toArray(EMPTY_STRING_ARRAY));
+                            try {
+                                while (cursor.moveToNext()) {
+                                    LocalMessage message = new LocalMessage(null, LocalFolder.this);
+                                    message.populateFromGetMessageCursor(cursor);
+                                    result.put(message.getUid(), message);
+                                }
+                            } catch (MessagingException e) {
+                                throw new WrappedException(e);
+                            } finally {
+                                Utility.closeQuietly(cursor);
+                            }
+
+                            selectionArgs.clear();
+                            start += count;
+                        }
+
+                        return result;
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+
+            // Keep the order of the UIDs we were given
+            ArrayList<Message> messages = new ArrayList<Message>(messagesByUid.size());
             for (String uid : uids) {
-                Message message = getMessage(uid);
+                Message message = messagesByUid.get(uid);
                 if (message != null) {
                     messages.add(message);
                 }
@@ -2292,7 +3184,7 @@ public class LocalStore extends Store implements Serializable {
 
                                 cv.clear();
                                 cv.put("uid", oldUID);
-                                cv.putNull("flags");
+                                cv.put("flag_bits", 0);
                                 cv.put("read", 1);
                                 cv.put("deleted", 1);
                                 cv.put("folder_id", mFolderId);
@@ -2343,24 +3235,26 @@ public class LocalStore extends Store implements Serializable {
         }
 
         /**
-         * Convenience transaction wrapper for storing a message and set it as fully downloaded. Implemented mainly to speed up DB transaction commit.
+         * Stores several messages prepared with {@link #prepareMessage(Message)} in one
+         * transaction and marks them as fully downloaded.
          *
-         * @param message Message to store. Never <code>null</code>.
-         * @param runnable What to do before setting {@link Flag#X_DOWNLOADED_FULL}. Never <code>null</code>.
-         * @return The local version of the message. Never <code>null</code>.
-         * @throws MessagingException
+         * @return The local messages, in the same order as {@code messages}.
          */
-        public Message storeSmallMessage(final Message message, final Runnable runnable) throws MessagingException {
-            return database.execute(true, new DbCallback<Message>() {
+        public List<Message> storeSmallMessages(final List<PreparedMessage> messages)
+                throws MessagingException {
+            open(OPEN_MODE_RW);
+            return database.execute(true, new DbCallback<List<Message>>() {
                 @Override
-                public Message doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                public List<Message> doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
-                        appendMessages(new Message[] { message });
-                        final String uid = message.getUid();
-                        final Message result = getMessage(uid);
-                        runnable.run();
-                        // Set a flag indicating this message has now be fully downloaded
-                        result.setFlag(Flag.X_DOWNLOADED_FULL, true);
+                        appendPreparedMessages(messages, false);
+                        List<Message> result = new ArrayList<Message>(messages.size());
+                        for (PreparedMessage preparedMessage : messages) {
+                            Message localMessage = getMessage(preparedMessage.message.getUid());
+                            // Set a flag indicating this message has now be fully downloaded
+                            localMessage.setFlag(Flag.X_DOWNLOADED_FULL, true);
+                            result.add(localMessage);
+                        }
                         return result;
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
@@ -2450,16 +3344,56 @@ public class LocalStore extends Store implements Serializable {
          */
         private Map<String, String> appendMessages(final Message[] messages, final boolean copy) throws MessagingException {
             open(OPEN_MODE_RW);
+            List<PreparedMessage> preparedMessages = new ArrayList<PreparedMessage>(messages.length);
+            for (Message message : messages) {
+                preparedMessages.add(prepareMessage(message));
+            }
+            return appendPreparedMessages(preparedMessages, copy);
+        }
+
+        /**
+         * Extracts the text, HTML and attachments of a message the way
+         * {@link #appendMessages(Message[])} stores them.
+         *
+         * <p>
+         * This doesn't touch the database, so it can run on any thread before the message is
+         * stored with {@link #storeSmallMessages(List)}.
+         * </p>
+         */
+        public PreparedMessage prepareMessage(Message message) throws MessagingException {
+            if (!(message instanceof MimeMessage)) {
+                throw new Error("LocalStore can only store Messages that extend MimeMessage");
+            }
+
+            boolean isDraft = (message.getHeader(K9.IDENTITY_HEADER) != null);
+
+            if (isDraft) {
+                // Don't modify the text/plain or text/html part of our own
+                // draft messages because this will cause the values stored in
+                // the identity header to be wrong.
+                ViewableContainer container = MimeUtility.extractPartsFromDraft(message);
+
+                return new PreparedMessage(message, container.text, container.html,
+                        container.attachments);
+            }
+
+            ViewableContainer container =
+                    MimeUtility.extractTextAndAttachments(mApplication, message);
+
+            return new PreparedMessage(message, container.text,
+                    HtmlConverter.convertEmoji2Img(container.html), container.attachments);
+        }
+
+        private Map<String, String> appendPreparedMessages(final List<PreparedMessage> preparedMessages,
+                final boolean copy) throws MessagingException {
             try {
                 final Map<String, String> uidMap = new HashMap<String, String>();
                 database.execute(true, new DbCallback<Void>() {
                     @Override
                     public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                         try {
-                            for (Message message : messages) {
-                                if (!(message instanceof MimeMessage)) {
-                                    throw new Error("LocalStore can only store Messages that extend MimeMessage");
-                                }
+                            for (PreparedMessage preparedMessage : preparedMessages) {
+                                Message message = preparedMessage.message;
 
                                 long oldMessageId = -1;
                                 String uid = message.getUid();
@@ -2504,31 +3438,10 @@ public class LocalStore extends Store implements Serializable {
                                     parentId = threadInfo.parentId;
                                 }
 
-                                boolean isDraft = (message.getHeader(K9.IDENTITY_HEADER) != null);
-
-                                List<Part> attachments;
-                                String text;
-                                String html;
-                                if (isDraft) {
-                                    // Don't modify the text/plain or text/html part of our own
-                                    // draft messages because this will cause the values stored in
-                                    // the identity header to be wrong.
-                                    ViewableContainer container =
-                                            MimeUtility.extractPartsFromDraft(message);
-
-                                    text = container.text;
-                                    html = container.html;
-                                    attachments = container.attachments;
-                                } else {
-                                    ViewableContainer container =
-                                            MimeUtility.extractTextAndAttachments(mApplication, message);
-
-                                    attachments = container.attachments;
-                                    text = container.text;
-                                    html = HtmlConverter.convertEmoji2Img(container.html);
-                                }
-
-                                String preview = Message.calculateContentPreview(text);
+                                List<Part> attachments = preparedMessage.attachments;
+                                String text = preparedMessage.text;
+                                String html = preparedMessage.html;
+                                String preview = preparedMessage.preview;
 
                                 try {
                                     ContentValues cv = new ContentValues();
@@ -2537,7 +3450,7 @@ public class LocalStore extends Store implements Serializable {
                                     cv.put("sender_list", Address.pack(message.getFrom()));
                                     cv.put("date", message.getSentDate() == null
                                            ? System.currentTimeMillis() : message.getSentDate().getTime());
-                                    cv.put("flags", serializeFlags(message.getFlags()));
+                                    cv.put("flag_bits", serializeFlagBits(message.getFlags()));
                                     cv.put("deleted", message.isSet(Flag.DELETED) ? 1 : 0);
                                     cv.put("read", message.isSet(Flag.SEEN) ? 1 : 0);
                                     cv.put("flagged", message.isSet(Flag.FLAGGED) ? 1 : 0);
@@ -2547,8 +3460,8 @@ public class LocalStore extends Store implements Serializable {
                                     cv.put("to_list", Address.pack(message.getRecipients(RecipientType.TO)));
                                     cv.put("cc_list", Address.pack(message.getRecipients(RecipientType.CC)));
                                     cv.put("bcc_list", Address.pack(message.getRecipients(RecipientType.BCC)));
-                                    cv.put("html_content", html.length() > 0 ? html : null);
-                                    cv.put("text_content", text.length() > 0 ? text : null);
+                                    cv.put("html_content", getInlineHtml(html));
+                                    cv.put("text_content", getInlineText(text));
                                     cv.put("preview", preview.length() > 0 ? preview : null);
                                     cv.put("reply_to_list", Address.pack(message.getReplyTo()));
                                     cv.put("attachment_count", attachments.size());
@@ -2584,6 +3497,9 @@ public class LocalStore extends Store implements Serializable {
                                         msgId = oldMessageId;
                                     }
 
+                                    saveBodyChunks(db, msgId, text, html);
+                                    updateFullTextIndex(db, msgId, text);
+
                                     for (Part attachment : attachments) {
                                         saveAttachment(msgId, attachment, copy);
                                     }
@@ -2637,7 +3553,7 @@ public class LocalStore extends Store implements Serializable {
 
                             try {
                                 db.execSQL("UPDATE messages SET "
-                                           + "uid = ?, subject = ?, sender_list = ?, date = ?, flags = ?, "
+                                           + "uid = ?, subject = ?, sender_list = ?, date = ?, flag_bits = ?, "
                                            + "folder_id = ?, to_list = ?, cc_list = ?, bcc_list = ?, "
                                            + "html_content = ?, text_content = ?, preview = ?, reply_to_list = ?, "
                                            + "attachment_count = ?, read = ?, flagged = ?, answered = ?, forwarded = ? "
@@ -2649,7 +3565,7 @@ public class LocalStore extends Store implements Serializable {
                                                message.getSentDate() == null ? System
                                                .currentTimeMillis() : message.getSentDate()
                                                .getTime(),
-                                               serializeFlags(message.getFlags()),
+                                               serializeFlagBits(message.getFlags()),
                                                mFolderId,
                                                Address.pack(message
                                                             .getRecipients(RecipientType.TO)),
@@ -2657,8 +3573,8 @@ public class LocalStore extends Store implements Serializable {
                                                             .getRecipients(RecipientType.CC)),
                                                Address.pack(message
                                                             .getRecipients(RecipientType.BCC)),
-                                               html.length() > 0 ? html : null,
-                                               text.length() > 0 ? text : null,
+                                               getInlineHtml(html),
+                                               getInlineText(text),
                                                preview.length() > 0 ? preview : null,
                                                Address.pack(message.getReplyTo()),
                                                attachments.size(),
@@ -2669,6 +3585,9 @@ public class LocalStore extends Store implements Serializable {
                                                message.mId
                                            });
 
+                                saveBodyChunks(db, message.mId, text, html);
+                                updateFullTextIndex(db, message.mId, text);
+
                                 for (int i = 0, count = attachments.size(); i < count; i++) {
                                     Part attachment = attachments.get(i);
                                     saveAttachment(message.mId, attachment, false);
@@ -2702,27 +3621,28 @@ public class LocalStore extends Store implements Serializable {
                 @Override
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
 
-                    deleteHeaders(id);
+                    HeaderBlock block = new HeaderBlock();
                     for (String name : message.getHeaderNames()) {
-                            String[] values = message.getHeader(name);
-                            for (String value : values) {
-                                ContentValues cv = new ContentValues();
-                                cv.put("message_id", id);
-                                cv.put("name", name);
-                                cv.put("value", value);
-                                db.insert("headers", "name", cv);
-                            }
+                        String[] values = message.getHeader(name);
+                        for (String value : values) {
+                            block.add(name, value);
+                        }
                     }
 
+                    ContentValues cv = new ContentValues();
+                    cv.put("message_id", id);
+                    cv.put("data", block.toByteArray());
+                    db.replace("message_headers", null, cv);
+
                     // Remember that all headers for this message have been saved, so it is
                     // not necessary to download them again in case the user wants to see all headers.
                     List<Flag> appendedFlags = new ArrayList<Flag>();
                     appendedFlags.addAll(Arrays.asList(message.getFlags()));
                     appendedFlags.add(Flag.X_GOT_ALL_HEADERS);
 
-                    db.execSQL("UPDATE messages " + "SET flags = ? " + " WHERE id = ?",
+                    db.execSQL("UPDATE messages " + "SET flag_bits = ? " + " WHERE id = ?",
                                new Object[]
-                               { serializeFlags(appendedFlags.toArray(EMPTY_FLAG_ARRAY)), id });
+                               { serializeFlagBits(appendedFlags.toArray(EMPTY_FLAG_ARRAY)), id });
 
                     return null;
                 }
@@ -2733,7 +3653,7 @@ public class LocalStore extends Store implements Serializable {
             database.execute(false, new DbCallback<Void>() {
                 @Override
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
-                    db.execSQL("DELETE FROM headers WHERE message_id = ?", new Object[]
+                    db.execSQL("DELETE FROM message_headers WHERE message_id = ?", new Object[]
                                { id });
                     return null;
                 }
@@ -2902,6 +3822,31 @@ public class LocalStore extends Store implements Serializable {
                                 } finally {
                                     Utility.closeQuietly(cursor);
                                 }
+
+                                // Chunk boundaries never split a URL, so each chunk can be
+                                // rewritten on its own.
+                                cursor = db.query("message_body_chunks", new String[] { "id", "data" },
+                                                  "message_id = ? AND type = ?", new String[] {
+                                                      Long.toString(messageId),
+                                                      Integer.toString(BODY_CHUNK_TYPE_HTML)
+                                                  }, null, null, null);
+                                try {
+                                    while (cursor.moveToNext()) {
+                                        String data = cursor.getString(1);
+                                        String newData = data.replaceAll(
+                                                             Pattern.quote("cid:" + contentId),
+                                                             contentUri.toString());
+
+                                        if (!newData.equals(data)) {
+                                            ContentValues cv = new ContentValues();
+                                            cv.put("data", newData);
+                                            db.update("message_body_chunks", cv, "id = ?",
+                                                      new String[] { Long.toString(cursor.getLong(0)) });
+                                        }
+                                    }
+                                } finally {
+                                    Utility.closeQuietly(cursor);
+                                }
                             }
 
                             if (attachmentId != -1 && attachment instanceof LocalAttachmentBodyPart) {
@@ -3054,6 +3999,7 @@ public class LocalStore extends Store implements Serializable {
             notifyChange();
 
             setPushState(null);
+            setModSeqState(0, 0);
             setLastPush(0);
             setLastChecked(0);
             setVisibleLimit(mAccount.getDisplayCount());
@@ -3353,29 +4299,94 @@ public class LocalStore extends Store implements Serializable {
         public List<Message> extractNewMessages(final List<Message> messages)
                 throws MessagingException {
 
+            List<String> uids = new ArrayList<String>(messages.size());
+            for (Message message : messages) {
+                uids.add(message.getUid());
+            }
+
+            MessageSnapshot existingMessages = getMessageSnapshot(uids);
+
+            List<Message> result = new ArrayList<Message>();
+            for (Message message : messages) {
+                if (!existingMessages.contains(message.getUid())) {
+                    result.add(message);
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * Returns UID, ID, date and flags of all messages in this folder.
+         *
+         * <p>
+         * Contains the same messages as {@link #getMessages(MessageRetrievalListener)} but
+         * without loading a {@link LocalMessage} for each of them. Use this when only these values
+         * are needed, e.g. to compare the folder with the server.
+         * </p>
+         */
+        public MessageSnapshot getMessageSnapshot() throws MessagingException {
+            try {
+                return database.execute(false, new DbCallback<MessageSnapshot>() {
+                    @Override
+                    public MessageSnapshot doDbWork(final SQLiteDatabase db) throws WrappedException {
+                        try {
+                            open(OPEN_MODE_RW);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+
+                        Cursor cursor = db.query("messages", SNAPSHOT_PROJECTION,
+                                "(empty IS NULL OR empty != 1) AND folder_id = ?",
+                                new String[] { Long.toString(mFolderId) }, null, null, null);
+                        try {
+                            MessageSnapshot snapshot = new MessageSnapshot(cursor.getCount());
+                            addToSnapshot(snapshot, cursor);
+                            return snapshot;
+                        } finally {
+                            Utility.closeQuietly(cursor);
+                        }
+                    }
+                });
+            } catch (WrappedException e) {
+                throw(MessagingException) e.getCause();
+            }
+        }
+
+        /**
+         * Returns UID, ID, date and flags of the messages in this folder that have one of the
+         * given UIDs.
+         *
+         * <p>
+         * Unlike {@link #getMessageSnapshot()} this includes messages that were deleted and only
+         * kept as placeholder for their UID.
+         * </p>
+         */
+        public MessageSnapshot getMessageSnapshot(final List<String> uids)
+                throws MessagingException {
+
             try {
-                return database.execute(false, new DbCallback<List<Message>>() {
+                return database.execute(false, new DbCallback<MessageSnapshot>() {
                     @Override
-                    public List<Message> doDbWork(final SQLiteDatabase db) throws WrappedException {
+                    public MessageSnapshot doDbWork(final SQLiteDatabase db) throws WrappedException {
                         try {
                             open(OPEN_MODE_RW);
                         } catch (MessagingException e) {
                             throw new WrappedException(e);
                         }
 
-                        List<Message> result = new ArrayList<Message>();
+                        MessageSnapshot snapshot = new MessageSnapshot(uids.size());
 
                         List<String> selectionArgs = new ArrayList<String>();
-                        Set<String> existingMessages = new HashSet<String>();
                         int start = 0;
 
-                        while (start < messages.size()) {
+                        while (start < uids.size()) {
                             StringBuilder selection = new StringBuilder();
 
                             selection.append("folder_id = ? AND UID IN (");
                             selectionArgs.add(Long.toString(mFolderId));
 
-                            int count = Math.min(messages.size() - start, UID_CHECK_BATCH_SIZE);
+                            int count = Math.min(uids.size() - start, UID_CHECK_BATCH_SIZE);
 
                             for (int i = start, end = start + count; i < end; i++) {
                                 if (i > start) {
@@ -3384,43 +4395,59 @@ public class LocalStore extends Store implements Serializable {
                                     selection.append("?");
                                 }
 
-                                selectionArgs.add(messages.get(i).getUid());
+                                selectionArgs.add(uids.get(i));
                             }
 
                             selection.append(")");
 
-                            Cursor cursor = db.query("messages", UID_CHECK_PROJECTION,
+                            Cursor cursor = db.query("messages", SNAPSHOT_PROJECTION,
                                     selection.toString(), selectionArgs.toArray(EMPTY_STRING_ARRAY),
                                     null, null, null);
 
                             try {
-                                while (cursor.moveToNext()) {
-                                    String uid = cursor.getString(0);
-                                    existingMessages.add(uid);
-                                }
+                                addToSnapshot(snapshot, cursor);
                             } finally {
                                 Utility.closeQuietly(cursor);
                             }
 
-                            for (int i = start, end = start + count; i < end; i++) {
-                                Message message = messages.get(i);
-                                if (!existingMessages.contains(message.getUid())) {
-                                    result.add(message);
-                                }
-                            }
-
-                            existingMessages.clear();
                             selectionArgs.clear();
                             start += count;
                         }
 
-                        return result;
+                        return snapshot;
                     }
                 });
             } catch (WrappedException e) {
                 throw(MessagingException) e.getCause();
             }
         }
+
+        private void addToSnapshot(MessageSnapshot snapshot, Cursor cursor) {
+            while (cursor.moveToNext()) {
+                String uid = cursor.getString(0);
+                if (uid == null) {
+                    continue;
+                }
+
+                int flags = cursor.getInt(3);
+                if (cursor.getInt(4) == 1) {
+                    flags |= MessageSnapshot.DELETED;
+                }
+                if (cursor.getInt(5) == 1) {
+                    flags |= MessageSnapshot.SEEN;
+                }
+                if (cursor.getInt(6) == 1) {
+                    flags |= MessageSnapshot.FLAGGED;
+                }
+                if (cursor.getInt(7) == 1) {
+                    flags |= MessageSnapshot.ANSWERED;
+                }
+                if (cursor.getInt(8) == 1) {
+                    flags |= MessageSnapshot.FORWARDED;
+                }
+                snapshot.add(uid, cursor.getLong(1), cursor.getLong(2), flags);
+            }
+        }
     }
 
     public static class LocalTextBody extends TextBody {
@@ -3448,6 +4475,155 @@ public class LocalStore extends Store implements Serializable {
 
     }//LocalTextBody
 
+    /**
+     * A {@link LocalTextBody} whose text and/or display HTML is stored in the
+     * {@code message_body_chunks} table.
+     *
+     * <p>
+     * Nothing is read from the database until the body is used. {@link #writeTo(OutputStream)}
+     * and {@link #getInputStream()} stream the chunks one at a time; {@link #getText()} and
+     * {@link #getBodyForDisplay()} assemble the full string and keep it.
+     * </p>
+     */
+    class LocalChunkedTextBody extends LocalTextBody {
+        private final long mMessageId;
+        private final int mTextChunkType;
+        private final int mDisplayChunkType;
+        private volatile String mText;
+        private volatile String mBodyForDisplay;
+
+        /**
+         * @param text
+         *         The text if it's stored inline, otherwise {@code null}.
+         * @param textChunkType
+         *         The chunk type holding the text or {@code -1} if it's stored inline.
+         * @param bodyForDisplay
+         *         The display HTML if it's stored inline, otherwise {@code null}.
+         * @param displayChunkType
+         *         The chunk type holding the display HTML or {@code -1} if it's stored inline.
+         */
+        LocalChunkedTextBody(long messageId, String text, int textChunkType,
+                String bodyForDisplay, int displayChunkType) {
+            super(null);
+            mMessageId = messageId;
+            mTextChunkType = textChunkType;
+            mDisplayChunkType = displayChunkType;
+            mText = text;
+            mBodyForDisplay = bodyForDisplay;
+        }
+
+        @Override
+        public String getText() {
+            if (mText == null && mTextChunkType != -1) {
+                mText = loadChunks(mTextChunkType);
+            }
+            return mText;
+        }
+
+        @Override
+        public String getBodyForDisplay() {
+            if (mBodyForDisplay == null && mDisplayChunkType != -1) {
+                mBodyForDisplay = loadChunks(mDisplayChunkType);
+            }
+            return mBodyForDisplay;
+        }
+
+        @Override
+        public void setBodyForDisplay(String bodyForDisplay) {
+            mBodyForDisplay = bodyForDisplay;
+        }
+
+        @Override
+        public InputStream getInputStream() throws MessagingException {
+            if (mText != null || mTextChunkType == -1) {
+                return super.getInputStream();
+            }
+            return new ChunkInputStream(mTextChunkType);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException, MessagingException {
+            if (mText != null || mTextChunkType == -1) {
+                super.writeTo(out);
+                return;
+            }
+
+            InputStream in = getInputStream();
+            if (MimeUtil.ENC_8BIT.equalsIgnoreCase(getEncoding())) {
+                IOUtils.copy(in, out);
+            } else {
+                QuotedPrintableOutputStream qp = new QuotedPrintableOutputStream(out, false);
+                IOUtils.copy(in, qp);
+                qp.flush();
+                qp.close();
+            }
+        }
+
+        private String loadChunks(int type) {
+            try {
+                StringBuilder sb = new StringBuilder();
+                String chunk;
+                for (int seq = 0; (chunk = loadBodyChunk(mMessageId, type, seq)) != null; seq++) {
+                    sb.append(chunk);
+                }
+                return sb.toString();
+            } catch (UnavailableStorageException e) {
+                Log.e(K9.LOG_TAG, "Unable to load body of message " + mMessageId, e);
+                return null;
+            }
+        }
+
+        /**
+         * Reads the encoded text chunk by chunk.
+         */
+        private class ChunkInputStream extends InputStream {
+            private final int mType;
+            private int mNextSeq = 0;
+            private InputStream mCurrent = new ByteArrayInputStream(new byte[0]);
+            private boolean mEndReached = false;
+
+            ChunkInputStream(int type) {
+                mType = type;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int offset, int length) throws IOException {
+                while (true) {
+                    int count = mCurrent.read(b, offset, length);
+                    if (count != -1 || !nextChunk()) {
+                        return count;
+                    }
+                }
+            }
+
+            private boolean nextChunk() throws IOException {
+                if (mEndReached) {
+                    return false;
+                }
+
+                String chunk;
+                try {
+                    chunk = loadBodyChunk(mMessageId, mType, mNextSeq++);
+                } catch (UnavailableStorageException e) {
+                    throw new IOException("Unable to load body of message " + mMessageId);
+                }
+
+                if (chunk == null) {
+                    mEndReached = true;
+                    return false;
+                }
+                mCurrent = new ByteArrayInputStream(chunk.getBytes(getCharset()));
+                return true;
+            }
+        }
+    }
+
     public class LocalMessage extends MimeMessage {
         private long mId;
         private int mAttachmentCount;
@@ -3480,19 +4656,12 @@ public class LocalStore extends Store implements Serializable {
             }
             this.setInternalSentDate(new Date(cursor.getLong(2)));
             this.setUid(cursor.getString(3));
-            String flagList = cursor.getString(4);
-            if (flagList != null && flagList.length() > 0) {
-                String[] flags = flagList.split(",");
-
-                for (String flag : flags) {
-                    try {
-                        this.setFlagInternal(Flag.valueOf(flag), true);
-                    }
-
-                    catch (Exception e) {
-                        if (!"X_BAD_FLAG".equals(flag)) {
-                            Log.w(K9.LOG_TAG, "Unable to parse flag " + flag);
-                        }
+            int flagBits = cursor.getInt(4);
+            if (flagBits != 0) {
+                for (Flag flag : Flag.values()) {
+                    int bit = getFlagBit(flag);
+                    if (bit != 0 && (flagBits & bit) != 0) {
+                        this.setFlagInternal(flag, true);
                     }
                 }
             }
@@ -3694,7 +4863,7 @@ public class LocalStore extends Store implements Serializable {
                          * Set the flags on the message.
                          */
                         ContentValues cv = new ContentValues();
-                        cv.put("flags", serializeFlags(getFlags()));
+                        cv.put("flag_bits", serializeFlagBits(getFlags()));
                         cv.put("read", isSet(Flag.SEEN) ? 1 : 0);
                         cv.put("flagged", isSet(Flag.FLAGGED) ? 1 : 0);
                         cv.put("answered", isSet(Flag.ANSWERED) ? 1 : 0);
@@ -3758,6 +4927,8 @@ public class LocalStore extends Store implements Serializable {
                         }
 
                         db.delete("attachments", "message_id = ?", idArg);
+                        db.delete("message_body_chunks", "message_id = ?", idArg);
+                        db.delete("messages_fulltext", "docid = ?", idArg);
                         return null;
                     }
                 });
@@ -3912,10 +5083,8 @@ public class LocalStore extends Store implements Serializable {
         }
 
         private void loadHeaders() throws UnavailableStorageException {
-            ArrayList<LocalMessage> messages = new ArrayList<LocalMessage>();
-            messages.add(this);
             mHeadersLoaded = true; // set true before calling populate headers to stop recursion
-            ((LocalFolder) mFolder).populateHeaders(messages);
+            ((LocalFolder) mFolder).populateHeaders(this);
 
         }
 
@@ -4005,13 +5174,31 @@ public class LocalStore extends Store implements Serializable {
     }
 
     public abstract static class BinaryAttachmentBody implements Body {
+        /**
+         * Line length used by {@link Base64OutputStream}, without the line break.
+         */
+        private static final int BASE64_LINE_LENGTH = 76;
+
         protected String mEncoding;
 
+        /**
+         * Size of the decoded contents as stored in the database, or -1 if unknown.
+         */
+        private long mSize = -1;
+
         @Override
         public abstract InputStream getInputStream() throws MessagingException;
 
         @Override
         public void writeTo(OutputStream out) throws IOException, MessagingException {
+            if (out instanceof SizeEstimatingOutputStream) {
+                long encodedSize = getEncodedSize();
+                if (encodedSize != -1) {
+                    ((SizeEstimatingOutputStream) out).skip(encodedSize);
+                    return;
+                }
+            }
+
             InputStream in = getInputStream();
             try {
                 boolean closeStream = false;
@@ -4043,6 +5230,31 @@ public class LocalStore extends Store implements Serializable {
         public String getEncoding() {
             return mEncoding;
         }
+
+        public void setSize(long size) {
+            mSize = size;
+        }
+
+        /**
+         * Computes the number of bytes {@link #writeTo(OutputStream)} writes from the stored size.
+         *
+         * @return The size, or -1 if the size is unknown or depends on the contents.
+         */
+        private long getEncodedSize() {
+            if (mSize < 0 || MimeUtil.isQuotedPrintableEncoded(mEncoding)) {
+                return -1;
+            } else if (MimeUtil.isBase64Encoding(mEncoding)) {
+                long chars = (mSize + 2) / 3 * 4;
+                long lines = (chars + BASE64_LINE_LENGTH - 1) / BASE64_LINE_LENGTH;
+                long size = chars + 2 * lines;
+                if (mSize % 3 == 0 && chars % BASE64_LINE_LENGTH == 0) {
+                    // The encoder ends a full last line twice if no padding was needed
+                    size += 2;
+                }
+                return size;
+            }
+            return mSize;
+        }
     }
 
     public static class TempFileBody extends BinaryAttachmentBody {
@@ -4192,6 +5404,25 @@ public class LocalStore extends Store implements Serializable {
         }
     }
 
+    /**
+     * A message together with the content extracted by {@link LocalFolder#prepareMessage(Message)}.
+     */
+    public static class PreparedMessage {
+        public final Message message;
+        final String text;
+        final String html;
+        final List<Part> attachments;
+        final String preview;
+
+        PreparedMessage(Message message, String text, String html, List<Part> attachments) {
+            this.message = message;
+            this.text = text;
+            this.html = html;
+            this.attachments = attachments;
+            this.preview = Message.calculateContentPreview(text);
+        }
+    }
+
     public LockableDatabase getDatabase() {
         return database;
     }
@@ -4318,7 +5549,7 @@ public class LocalStore extends Store implements Serializable {
      * @param messageIds
      *         A list of primary keys in the "messages" table.
      * @param flag
-     *         The flag to change. This must be a flag with a separate column in the database.
+     *         The flag to change. Any flag but {@link Flag#DELETED}.
      * @param newState
      *         {@code true}, if the flag should be set. {@code false}, otherwise.
      *
@@ -4327,8 +5558,7 @@ public class LocalStore extends Store implements Serializable {
     public void setFlag(final List<Long> messageIds, final Flag flag, final boolean newState)
             throws MessagingException {
 
-        final ContentValues cv = new ContentValues();
-        cv.put(getColumnNameForFlag(flag), newState);
+        final String flagUpdate = getFlagUpdateExpression(flag, newState);
 
         doBatchSetSelection(new BatchSetSelection() {
 
@@ -4346,7 +5576,8 @@ public class LocalStore extends Store implements Serializable {
             public void doDbWork(SQLiteDatabase db, String selectionSet, String[] selectionArgs)
                     throws UnavailableStorageException {
 
-                db.update("messages", cv, "(empty IS NULL OR empty != 1) AND id" + selectionSet,
+                db.execSQL("UPDATE messages SET " + flagUpdate +
+                        " WHERE (empty IS NULL OR empty != 1) AND id" + selectionSet,
                         selectionArgs);
             }
 
@@ -4367,7 +5598,7 @@ public class LocalStore extends Store implements Serializable {
      * @param threadRootIds
      *         A list of root thread IDs.
      * @param flag
-     *         The flag to change. This must be a flag with a separate column in the database.
+     *         The flag to change. Any flag but {@link Flag#DELETED}.
      * @param newState
      *         {@code true}, if the flag should be set. {@code false}, otherwise.
      *
@@ -4376,7 +5607,7 @@ public class LocalStore extends Store implements Serializable {
     public void setFlagForThreads(final List<Long> threadRootIds, Flag flag, final boolean newState)
             throws MessagingException {
 
-        final String flagColumn = getColumnNameForFlag(flag);
+        final String flagUpdate = getFlagUpdateExpression(flag, newState);
 
         doBatchSetSelection(new BatchSetSelection() {
 
@@ -4394,7 +5625,7 @@ public class LocalStore extends Store implements Serializable {
             public void doDbWork(SQLiteDatabase db, String selectionSet, String[] selectionArgs)
                     throws UnavailableStorageException {
 
-                db.execSQL("UPDATE messages SET " + flagColumn + " = " + ((newState) ? "1" : "0") +
+                db.execSQL("UPDATE messages SET " + flagUpdate +
                         " WHERE id IN (" +
                         "SELECT m.id FROM threads t " +
                         "LEFT JOIN messages m ON (t.message_id = m.id) " +
@@ -1,6 +1,8 @@
 package com.fsck.k9.mail.store;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -11,6 +13,7 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.fsck.k9.K9;
@@ -19,6 +22,12 @@ import com.fsck.k9.mail.MessagingException;
 
 public class LockableDatabase {
 
+    /**
+     * Waits for a lock or transaction that take longer than this are logged when debug logging
+     * is enabled.
+     */
+    private static final long LOCK_WAIT_LOG_THRESHOLD_MILLIS = 50;
+
     /**
      * Callback interface for DB operations. Concept is similar to Spring
      * HibernateCallback.
@@ -141,6 +150,20 @@ public class LockableDatabase {
 
     private String uUid;
 
+    /**
+     * {@code true} if the database was opened in write-ahead logging mode.
+     *
+     * @see #openOrCreateDataspace(Application)
+     */
+    private boolean mWriteAheadLogging;
+
+    /**
+     * Accumulated lock wait times per caller, only collected when debug logging is enabled.
+     *
+     * @see #recordLockWait(String, long)
+     */
+    private final Map<String, LockWaitStats> mLockWaits = new HashMap<String, LockWaitStats>();
+
     /**
      * @param application
      *            Never <code>null</code>.
@@ -271,13 +294,21 @@ public class LockableDatabase {
      * @throws UnavailableStorageException
      */
     public <T> T execute(final boolean transactional, final DbCallback<T> callback) throws UnavailableStorageException {
+        final boolean debug = K9.DEBUG;
+        final long lockStart = debug ? SystemClock.elapsedRealtime() : 0;
         lockRead();
+        if (debug) {
+            recordLockWait("lock", lockStart);
+        }
         final boolean doTransaction = transactional && inTransaction.get() == null;
         try {
-            final boolean debug = K9.DEBUG;
             if (doTransaction) {
                 inTransaction.set(Boolean.TRUE);
-                mDb.beginTransaction();
+                final long transactionStart = debug ? SystemClock.elapsedRealtime() : 0;
+                beginTransaction();
+                if (debug) {
+                    recordLockWait("transaction", transactionStart);
+                }
             }
             try {
                 final T result = callback.doDbWork(mDb);
@@ -308,6 +339,60 @@ public class LockableDatabase {
         }
     }
 
+    /**
+     * Starts a transaction on {@link #mDb}.
+     *
+     * <p>
+     * In write-ahead logging mode the transaction is started in {@code IMMEDIATE} mode, as
+     * recommended by {@link SQLiteDatabase#enableWriteAheadLogging()}. Queries of other threads
+     * keep running on the reader connections while the transaction is open.
+     * </p>
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void beginTransaction() {
+        if (mWriteAheadLogging) {
+            mDb.beginTransactionNonExclusive();
+        } else {
+            mDb.beginTransaction();
+        }
+    }
+
+    /**
+     * Logs a wait for a lock or transaction if it took longer than
+     * {@link #LOCK_WAIT_LOG_THRESHOLD_MILLIS}, together with the total wait time of the calling
+     * method so far.
+     *
+     * <p>Must only be called from {@link #execute(boolean, DbCallback)}.</p>
+     */
+    private void recordLockWait(String what, long startMillis) {
+        long waited = SystemClock.elapsedRealtime() - startMillis;
+        if (waited < LOCK_WAIT_LOG_THRESHOLD_MILLIS) {
+            return;
+        }
+
+        // [0] is this method, [1] is execute()
+        String caller = new Exception().getStackTrace()[2].toString();
+
+        LockWaitStats stats;
+        synchronized (mLockWaits) {
+            stats = mLockWaits.get(caller);
+            if (stats == null) {
+                stats = new LockWaitStats();
+                mLockWaits.put(caller, stats);
+            }
+            stats.count++;
+            stats.totalMillis += waited;
+        }
+
+        Log.d(K9.LOG_TAG, "LockableDatabase: Waited " + waited + "ms for " + what + " in " + caller +
+                " (" + stats.count + " waits, " + stats.totalMillis + "ms total)");
+    }
+
+    private static class LockWaitStats {
+        int count;
+        long totalMillis;
+    }
+
     /**
      * @param newProviderId
      *            Never <code>null</code>.
@@ -392,6 +477,7 @@ public class LockableDatabase {
                     mDb = SQLiteDatabase.openOrCreateDatabase(databaseFile, null);
                 }
             }
+            configureJournalMode();
             if (mDb.getVersion() != mSchemaDefinition.getVersion()) {
                 mSchemaDefinition.doDbUpgrade(mDb);
             }
@@ -400,6 +486,40 @@ public class LockableDatabase {
         }
     }
 
+    /**
+     * Switches the database to write-ahead logging if {@link K9#useDatabaseWriteAheadLogging()}
+     * is enabled, or back to the default journal mode if it isn't.
+     *
+     * <p>
+     * With write-ahead logging {@link SQLiteDatabase} keeps one connection for writing and a
+     * pool of connections for reading. Queries, e.g. the message list queries of
+     * {@code EmailProvider}, then no longer wait for a long-running write transaction of a
+     * sync. The connection pool was only added in Android 4.1, so older versions always use
+     * the default mode.
+     * </p>
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void configureJournalMode() {
+        mWriteAheadLogging = false;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+
+        if (K9.useDatabaseWriteAheadLogging()) {
+            mWriteAheadLogging = mDb.enableWriteAheadLogging();
+            if (!mWriteAheadLogging) {
+                Log.w(K9.LOG_TAG, "LockableDatabase: Unable to enable write-ahead logging for DB " + uUid);
+            }
+        } else {
+            mDb.disableWriteAheadLogging();
+        }
+
+        if (K9.DEBUG) {
+            Log.d(K9.LOG_TAG, "LockableDatabase: Opened DB " + uUid + " with write-ahead logging " +
+                    (mWriteAheadLogging ? "enabled" : "disabled"));
+        }
+    }
+
     /**
      * @param providerId
      *            Never <code>null</code>.
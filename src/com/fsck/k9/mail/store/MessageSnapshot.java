@@ -0,0 +1,256 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Date;
+
+import com.fsck.k9.mail.Flag;
+
+/**
+ * The UIDs, database IDs, dates and flags of the messages in a local folder.
+ *
+ * <p>
+ * Synchronization only needs these values to compare the local folder with the server. Loading
+ * a {@code LocalMessage} for every message in a large folder creates several objects per
+ * message (addresses, dates, the flag set, ...) for no reason. A snapshot keeps the values in
+ * parallel primitive arrays instead. Numeric UIDs, i.e. all IMAP UIDs, are stored as
+ * {@code long}s, so for a typical IMAP folder no object is kept per message at all. Lookups
+ * by UID use an open addressing hash table of array indexes.
+ * </p>
+ * <p>
+ * Instances are created by {@code LocalFolder.getMessageSnapshot()} and are not thread-safe.
+ * </p>
+ */
+public class MessageSnapshot {
+    /*
+     * The flag bits of the "flag_bits" column use the lower bits, see LocalStore.getFlagBit().
+     * Flags that have their own column are stored in the upper bits.
+     */
+    static final int DELETED = 1 << 24;
+    static final int SEEN = 1 << 25;
+    static final int FLAGGED = 1 << 26;
+    static final int ANSWERED = 1 << 27;
+    static final int FORWARDED = 1 << 28;
+
+    private static final int FLAG_BITS_MASK = (1 << 24) - 1;
+    private static final int INITIAL_CAPACITY = 16;
+
+
+    private int mSize;
+    private long[] mNumericUids;
+    /**
+     * UIDs that aren't a plain number. Only allocated when the first such UID is added.
+     */
+    private String[] mOtherUids;
+    private long[] mIds;
+    private long[] mDates;
+    private int[] mFlags;
+
+    /**
+     * Hash table of {@code index + 1} values, {@code 0} marks a free slot. Built on first use.
+     */
+    private int[] mTable;
+
+
+    MessageSnapshot(int expectedSize) {
+        int capacity = Math.max(expectedSize, INITIAL_CAPACITY);
+        mNumericUids = new long[capacity];
+        mIds = new long[capacity];
+        mDates = new long[capacity];
+        mFlags = new int[capacity];
+    }
+
+    /**
+     * Adds a message.
+     *
+     * @param flags
+     *         The value of the {@code flag_bits} column combined with {@link #DELETED},
+     *         {@link #SEEN}, {@link #FLAGGED}, {@link #ANSWERED} and {@link #FORWARDED}.
+     */
+    void add(String uid, long id, long date, int flags) {
+        if (mSize == mIds.length) {
+            grow();
+        }
+
+        long numericUid = parseUid(uid);
+        if (numericUid < 0) {
+            if (mOtherUids == null) {
+                mOtherUids = new String[mIds.length];
+            }
+            mOtherUids[mSize] = uid;
+        }
+        mNumericUids[mSize] = numericUid;
+        mIds[mSize] = id;
+        mDates[mSize] = date;
+        mFlags[mSize] = flags;
+        mSize++;
+        mTable = null;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the index of the message with the given UID, or {@code -1} if there's none.
+     */
+    public int indexOf(String uid) {
+        if (uid == null || mSize == 0) {
+            return -1;
+        }
+        if (mTable == null) {
+            buildTable();
+        }
+
+        long numericUid = parseUid(uid);
+        int mask = mTable.length - 1;
+        int slot = hash(numericUid, uid) & mask;
+        int entry;
+        while ((entry = mTable[slot]) != 0) {
+            int index = entry - 1;
+            if (numericUid >= 0) {
+                if (mNumericUids[index] == numericUid) {
+                    return index;
+                }
+            } else if (mNumericUids[index] < 0 && uid.equals(mOtherUids[index])) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean contains(String uid) {
+        return indexOf(uid) != -1;
+    }
+
+    public String getUid(int index) {
+        long numericUid = mNumericUids[index];
+        return (numericUid >= 0) ? Long.toString(numericUid) : mOtherUids[index];
+    }
+
+    public long getId(int index) {
+        return mIds[index];
+    }
+
+    /**
+     * Returns the value of the {@code date} column, i.e. the date {@code LocalMessage} returns
+     * from {@code getSentDate()}.
+     */
+    public long getDate(int index) {
+        return mDates[index];
+    }
+
+    /**
+     * Returns the value of the {@code flag_bits} column.
+     */
+    public int getFlagBits(int index) {
+        return mFlags[index] & FLAG_BITS_MASK;
+    }
+
+    /**
+     * Checks one of the flags that is stored in its own column.
+     *
+     * @throws IllegalArgumentException
+     *         if {@code flag} is stored in the {@code flag_bits} column. Use
+     *         {@link #getFlagBits(int)} for those.
+     */
+    public boolean isSet(int index, Flag flag) {
+        return (mFlags[index] & getColumnFlag(flag)) != 0;
+    }
+
+    /**
+     * Same as {@link com.fsck.k9.mail.Message#olderThan(Date)} for the message at
+     * {@code index}.
+     */
+    public boolean olderThan(int index, Date earliestDate) {
+        return earliestDate != null && mDates[index] < earliestDate.getTime();
+    }
+
+    static int getColumnFlag(Flag flag) {
+        switch (flag) {
+            case DELETED: {
+                return DELETED;
+            }
+            case SEEN: {
+                return SEEN;
+            }
+            case FLAGGED: {
+                return FLAGGED;
+            }
+            case ANSWERED: {
+                return ANSWERED;
+            }
+            case FORWARDED: {
+                return FORWARDED;
+            }
+            default: {
+                throw new IllegalArgumentException("Flag " + flag + " isn't stored in a column");
+            }
+        }
+    }
+
+    /**
+     * Returns the UID as a number, or {@code -1} if it can't be restored exactly from its
+     * numeric value (not a number, a leading zero, or too long).
+     */
+    static long parseUid(String uid) {
+        int length = uid.length();
+        if (length == 0 || length > 18 || (length > 1 && uid.charAt(0) == '0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = uid.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int hash(long numericUid, String uid) {
+        int h = (numericUid >= 0) ? (int) (numericUid ^ (numericUid >>> 32)) : uid.hashCode();
+        // Spread consecutive UIDs over the table
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void buildTable() {
+        int capacity = Integer.highestOneBit(Math.max(mSize, 1) * 2 - 1) << 1;
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int index = 0; index < mSize; index++) {
+            long numericUid = mNumericUids[index];
+            String uid = (numericUid >= 0) ? null : mOtherUids[index];
+            int slot = hash(numericUid, uid) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = index + 1;
+        }
+        mTable = table;
+    }
+
+    private void grow() {
+        int capacity = mIds.length * 2;
+        mNumericUids = copyOf(mNumericUids, capacity);
+        mIds = copyOf(mIds, capacity);
+        mDates = copyOf(mDates, capacity);
+
+        int[] flags = new int[capacity];
+        System.arraycopy(mFlags, 0, flags, 0, mSize);
+        mFlags = flags;
+
+        if (mOtherUids != null) {
+            String[] otherUids = new String[capacity];
+            System.arraycopy(mOtherUids, 0, otherUids, 0, mSize);
+            mOtherUids = otherUids;
+        }
+    }
+
+    private long[] copyOf(long[] array, int capacity) {
+        long[] copy = new long[capacity];
+        System.arraycopy(array, 0, copy, 0, mSize);
+        return copy;
+    }
+}
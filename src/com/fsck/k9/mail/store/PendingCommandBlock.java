@@ -0,0 +1,193 @@
+package com.fsck.k9.mail.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Compact encoding of the arguments of a pending command, stored as a BLOB in the {@code data}
+ * column of the {@code pending_commands} table.
+ *
+ * <p>
+ * Before, the arguments were URL-encoded and joined with commas. A command moving thousands of
+ * messages became a large TEXT value that had to be split and decoded character by character
+ * whenever the queue was read.
+ * </p>
+ * <p>
+ * The block starts with a format version byte and the number of arguments as a base-128 varint.
+ * The arguments follow in their original order. A run of consecutive arguments that are plain
+ * decimal numbers, e.g. IMAP or POP3 UIDs, is stored as one item: the count followed by the
+ * zigzag-encoded differences between neighbouring values, so a run of ascending UIDs needs about
+ * one byte per UID. All other arguments are stored as UTF-8, prefixed with their length in bytes.
+ * {@code null} arguments are stored as empty strings.
+ * </p>
+ */
+class PendingCommandBlock {
+    static final int FORMAT_VERSION = 1;
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_NUMBERS = 1;
+
+    /**
+     * Longer numbers are stored as strings so parsing them can't overflow a {@code long}.
+     */
+    private static final int MAX_NUMBER_LENGTH = 18;
+
+    private static final String CHARSET = "UTF-8";
+
+
+    static byte[] encode(String[] arguments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(FORMAT_VERSION);
+        writeVarint(out, arguments.length);
+
+        int i = 0;
+        while (i < arguments.length) {
+            if (!isNumber(arguments[i])) {
+                out.write(TYPE_STRING);
+                writeString(out, arguments[i]);
+                i++;
+                continue;
+            }
+
+            int end = i + 1;
+            while (end < arguments.length && isNumber(arguments[end])) {
+                end++;
+            }
+
+            out.write(TYPE_NUMBERS);
+            writeVarint(out, end - i);
+            long previous = 0;
+            for (; i < end; i++) {
+                long value = Long.parseLong(arguments[i]);
+                long delta = value - previous;
+                writeVarint(out, (delta << 1) ^ (delta >> 63));
+                previous = value;
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    static String[] decode(byte[] data) {
+        if (data == null || data.length == 0 || data[0] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported pending command format");
+        }
+
+        Reader reader = new Reader(data);
+        String[] arguments = new String[reader.readCount()];
+        int i = 0;
+        while (i < arguments.length) {
+            int type = reader.readByte();
+            if (type == TYPE_STRING) {
+                arguments[i++] = reader.readString();
+            } else if (type == TYPE_NUMBERS) {
+                int count = reader.readCount();
+                if (count > arguments.length - i) {
+                    throw new IllegalArgumentException("Invalid pending command data");
+                }
+                long previous = 0;
+                for (int end = i + count; i < end; i++) {
+                    long zigzag = reader.readVarint();
+                    previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                    arguments[i] = Long.toString(previous);
+                }
+            } else {
+                throw new IllegalArgumentException("Invalid pending command data");
+            }
+        }
+
+        return arguments;
+    }
+
+    /**
+     * Checks whether {@code value} is stored in a numbers item. Only the canonical decimal form
+     * qualifies so the decoded string is identical to the original.
+     */
+    private static boolean isNumber(String value) {
+        int length = (value == null) ? 0 : value.length();
+        if (length == 0 || length > MAX_NUMBER_LENGTH || (length > 1 && value.charAt(0) == '0')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes;
+        try {
+            bytes = (value == null) ? new byte[0] : value.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+
+    private static class Reader {
+        private final byte[] mData;
+        private int mPosition = 1;
+
+        Reader(byte[] data) {
+            mData = data;
+        }
+
+        int readByte() {
+            if (mPosition >= mData.length) {
+                throw new IllegalArgumentException("Truncated pending command data");
+            }
+            return mData[mPosition++] & 0xFF;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 63) {
+                    throw new IllegalArgumentException("Invalid pending command data");
+                }
+                b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        /**
+         * Reads a count or length. Every element needs at least one byte, so larger values can
+         * only come from corrupt data.
+         */
+        int readCount() {
+            long count = readVarint();
+            if (count > mData.length - mPosition) {
+                throw new IllegalArgumentException("Truncated pending command data");
+            }
+            return (int) count;
+        }
+
+        String readString() {
+            int length = readCount();
+            try {
+                String value = new String(mData, mPosition, length, CHARSET);
+                mPosition += length;
+                return value;
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
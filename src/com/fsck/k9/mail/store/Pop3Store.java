@@ -58,6 +58,12 @@ public class Pop3Store extends Store {
     private static final String USER_CAPABILITY = "USER";
     private static final String TOP_CAPABILITY = "TOP";
 
+    /**
+     * Maximum number of commands sent ahead of their replies if the server supports PIPELINING.
+     * The commands are small, so they always fit into the socket buffers.
+     */
+    private static final int PIPELINING_WINDOW = 20;
+
     /**
      * Decodes a Pop3Store URI.
      *
@@ -563,10 +569,17 @@ public class Pop3Store extends Store {
                  * In extreme cases we'll do a UIDL command per message instead of a bulk
                  * download.
                  */
+                final List<Integer> msgNums = new ArrayList<Integer>(unindexedMessageCount);
+                List<String> commands = new ArrayList<String>(unindexedMessageCount);
                 for (int msgNum = start; msgNum <= end; msgNum++) {
-                    Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                    if (message == null) {
-                        String response = executeSimpleCommand(UIDL_COMMAND + " " + msgNum);
+                    if (mMsgNumToMsgMap.get(msgNum) == null) {
+                        msgNums.add(msgNum);
+                        commands.add(UIDL_COMMAND + " " + msgNum);
+                    }
+                }
+                executePipelined(commands, new ResponseHandler() {
+                    @Override
+                    public void handleResponse(int index, String response) {
                         // response = "+OK msgNum msgUid"
                         String[] uidParts = response.split(" +");
                         if (uidParts.length < 3 || !"+OK".equals(uidParts[0])) {
@@ -574,10 +587,9 @@ public class Pop3Store extends Store {
                             return;
                         }
                         String msgUid = uidParts[2];
-                        message = new Pop3Message(msgUid, this);
-                        indexMessage(msgNum, message);
+                        indexMessage(msgNums.get(index), new Pop3Message(msgUid, Pop3Folder.this));
                     }
-                }
+                });
             } else {
                 String response = executeSimpleCommand(UIDL_COMMAND);
                 while ((response = readLine()) != null) {
@@ -723,47 +735,59 @@ public class Pop3Store extends Store {
             } catch (IOException ioe) {
                 throw new MessagingException("fetch", ioe);
             }
+            Pop3Message[] pop3Messages = new Pop3Message[messages.length];
             for (int i = 0, count = messages.length; i < count; i++) {
                 Message message = messages[i];
                 if (!(message instanceof Pop3Message)) {
                     throw new MessagingException("Pop3Store.fetch called with non-Pop3 Message");
                 }
-                Pop3Message pop3Message = (Pop3Message)message;
+                pop3Messages[i] = (Pop3Message)message;
+            }
+
+            MessageRetrievalListener startedListener =
+                (listener != null && !fp.contains(FetchProfile.Item.ENVELOPE)) ? listener : null;
+            MessageRetrievalListener finishedListener =
+                (listener != null && !(fp.contains(FetchProfile.Item.ENVELOPE) && fp.size() == 1)) ?
+                listener : null;
+
+            if (fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE)) {
+                int lines = -1;
+                if (!fp.contains(FetchProfile.Item.BODY) &&
+                        mAccount.getMaximumAutoDownloadMessageSize() > 0) {
+                    /*
+                     * To convert the suggested download size we take the size
+                     * divided by the maximum line size (76).
+                     */
+                    lines = mAccount.getMaximumAutoDownloadMessageSize() / 76;
+                }
                 try {
-                    if (listener != null && !fp.contains(FetchProfile.Item.ENVELOPE)) {
-                        listener.messageStarted(pop3Message.getUid(), i, count);
-                    }
-                    if (fp.contains(FetchProfile.Item.BODY)) {
-                        fetchBody(pop3Message, -1);
-                    } else if (fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        /*
-                         * To convert the suggested download size we take the size
-                         * divided by the maximum line size (76).
-                         */
-                        if (mAccount.getMaximumAutoDownloadMessageSize() > 0) {
-                            fetchBody(pop3Message,
-                                      (mAccount.getMaximumAutoDownloadMessageSize() / 76));
-                        } else {
-                            fetchBody(pop3Message, -1);
-                        }
-                    } else if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                        /*
-                         * If the user is requesting STRUCTURE we are required to set the body
-                         * to null since we do not support the function.
-                         */
-                        pop3Message.setBody(null);
-                    }
-                    if (listener != null && !(fp.contains(FetchProfile.Item.ENVELOPE) && fp.size() == 1)) {
-                        listener.messageFinished(message, i, count);
-                    }
+                    fetchBodies(pop3Messages, lines, startedListener, finishedListener);
                 } catch (IOException ioe) {
                     throw new MessagingException("Unable to fetch message", ioe);
                 }
+                return;
+            }
+
+            for (int i = 0, count = pop3Messages.length; i < count; i++) {
+                Pop3Message pop3Message = pop3Messages[i];
+                if (startedListener != null) {
+                    startedListener.messageStarted(pop3Message.getUid(), i, count);
+                }
+                if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+                    /*
+                     * If the user is requesting STRUCTURE we are required to set the body
+                     * to null since we do not support the function.
+                     */
+                    pop3Message.setBody(null);
+                }
+                if (finishedListener != null) {
+                    finishedListener.messageFinished(pop3Message, i, count);
+                }
             }
         }
 
-        private void fetchEnvelope(Message[] messages,
-                                   MessageRetrievalListener listener)  throws IOException, MessagingException {
+        private void fetchEnvelope(final Message[] messages,
+                                   final MessageRetrievalListener listener)  throws IOException, MessagingException {
             int unsizedMessages = 0;
             for (Message message : messages) {
                 if (message.getSize() == -1) {
@@ -778,25 +802,34 @@ public class Pop3Store extends Store {
                  * In extreme cases we'll do a command per message instead of a bulk request
                  * to hopefully save some time and bandwidth.
                  */
-                for (int i = 0, count = messages.length; i < count; i++) {
-                    Message message = messages[i];
+                List<String> commands = new ArrayList<String>(messages.length);
+                for (Message message : messages) {
                     if (!(message instanceof Pop3Message)) {
                         throw new MessagingException("Pop3Store.fetch called with non-Pop3 Message");
                     }
-                    Pop3Message pop3Message = (Pop3Message)message;
-                    if (listener != null) {
-                        listener.messageStarted(pop3Message.getUid(), i, count);
-                    }
-                    String response = executeSimpleCommand(String.format(LIST_COMMAND + " %d",
-                                                           mUidToMsgNumMap.get(pop3Message.getUid())));
-                    String[] listParts = response.split(" ");
-                    //int msgNum = Integer.parseInt(listParts[1]);
-                    int msgSize = Integer.parseInt(listParts[2]);
-                    pop3Message.setSize(msgSize);
-                    if (listener != null) {
-                        listener.messageFinished(pop3Message, i, count);
-                    }
+                    commands.add(String.format(LIST_COMMAND + " %d",
+                                               mUidToMsgNumMap.get(message.getUid())));
                 }
+                executePipelined(commands, new ResponseHandler() {
+                    @Override
+                    public void handleResponse(int index, String response) throws MessagingException {
+                        Pop3Message pop3Message = (Pop3Message)messages[index];
+                        int count = messages.length;
+                        if (listener != null) {
+                            listener.messageStarted(pop3Message.getUid(), index, count);
+                        }
+                        if (isErrorResponse(response)) {
+                            throw new Pop3ErrorResponse(response);
+                        }
+                        String[] listParts = response.split(" ");
+                        //int msgNum = Integer.parseInt(listParts[1]);
+                        int msgSize = Integer.parseInt(listParts[2]);
+                        pop3Message.setSize(msgSize);
+                        if (listener != null) {
+                            listener.messageFinished(pop3Message, index, count);
+                        }
+                    }
+                });
             } else {
                 HashSet<String> msgUidIndex = new HashSet<String>();
                 for (Message message : messages) {
@@ -872,6 +905,70 @@ public class Pop3Store extends Store {
                                      mUidToMsgNumMap.get(message.getUid())));
             }
 
+            parseBody(message, lines);
+        }
+
+        /**
+         * Fetches the bodies of the given messages like {@link #fetchBody(Pop3Message, int)}.
+         *
+         * If the server supports PIPELINING the TOP or RETR commands are pipelined. When it's not
+         * yet known whether the server supports TOP, the first message is fetched on its own to
+         * find out.
+         */
+        private void fetchBodies(final Pop3Message[] messages, final int lines,
+                                 final MessageRetrievalListener startedListener,
+                                 final MessageRetrievalListener finishedListener)
+        throws IOException, MessagingException {
+            final int count = messages.length;
+            int probed = 0;
+            if (lines != -1 && !mTopNotSupported && !mCapabilities.top && count > 0) {
+                if (startedListener != null) {
+                    startedListener.messageStarted(messages[0].getUid(), 0, count);
+                }
+                fetchBody(messages[0], lines);
+                if (finishedListener != null) {
+                    finishedListener.messageFinished(messages[0], 0, count);
+                }
+                probed = 1;
+            }
+
+            boolean useTop = (lines != -1 && mCapabilities.top);
+            List<String> commands = new ArrayList<String>(count - probed);
+            for (int i = probed; i < count; i++) {
+                Integer msgNum = mUidToMsgNumMap.get(messages[i].getUid());
+                if (useTop) {
+                    commands.add(String.format(TOP_COMMAND + " %d %d", msgNum, lines));
+                } else {
+                    commands.add(String.format(RETR_COMMAND + " %d", msgNum));
+                }
+            }
+
+            final int first = probed;
+            executePipelined(commands, new ResponseHandler() {
+                @Override
+                public void handleResponse(int index, String response)
+                throws IOException, MessagingException {
+                    int i = first + index;
+                    Pop3Message message = messages[i];
+                    if (startedListener != null) {
+                        startedListener.messageStarted(message.getUid(), i, count);
+                    }
+                    if (isErrorResponse(response)) {
+                        throw new Pop3ErrorResponse(response);
+                    }
+                    parseBody(message, lines);
+                    if (finishedListener != null) {
+                        finishedListener.messageFinished(message, i, count);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Reads the multi-line reply to a TOP or RETR command into the given message.
+         */
+        private void parseBody(Pop3Message message, int lines)
+        throws IOException, MessagingException {
             try {
                 message.parse(new Pop3ResponseInputStream(mIn));
 
@@ -935,6 +1032,7 @@ public class Pop3Store extends Store {
             } catch (IOException ioe) {
                 throw new MessagingException("Could not get message number for uid " + uids, ioe);
             }
+            List<String> commands = new ArrayList<String>(messages.length);
             for (Message message : messages) {
 
                 Integer msgNum = mUidToMsgNumMap.get(message.getUid());
@@ -944,7 +1042,24 @@ public class Pop3Store extends Store {
                     me.setPermanentFailure(true);
                     throw me;
                 }
-                executeSimpleCommand(String.format(DELE_COMMAND + " %s", msgNum));
+                commands.add(String.format(DELE_COMMAND + " %s", msgNum));
+            }
+
+            /*
+             * Deletions are only committed by QUIT, so an error reply must not close the
+             * connection. Read all replies and report the first error afterwards.
+             */
+            final List<String> errors = new ArrayList<String>();
+            executePipelined(commands, new ResponseHandler() {
+                @Override
+                public void handleResponse(int index, String response) {
+                    if (isErrorResponse(response)) {
+                        errors.add(response);
+                    }
+                }
+            });
+            if (!errors.isEmpty()) {
+                throw new Pop3ErrorResponse(errors.get(0));
             }
         }
 
@@ -1036,7 +1151,7 @@ public class Pop3Store extends Store {
                 }
 
                 String response = readLine();
-                if (response.length() > 1 && response.charAt(0) == '-') {
+                if (isErrorResponse(response)) {
                     throw new Pop3ErrorResponse(response);
                 }
 
@@ -1049,6 +1164,61 @@ public class Pop3Store extends Store {
             }
         }
 
+        /**
+         * Sends a list of commands and hands the replies to {@code handler} in order.
+         *
+         * <p>
+         * If the server supports PIPELINING up to {@link #PIPELINING_WINDOW} commands are sent
+         * before their replies are read, so a batch doesn't pay one round trip per command.
+         * Otherwise every command is sent after the reply of the previous one has been handled.
+         * </p>
+         * <p>
+         * Error replies are passed to the handler like any other reply. If the handler throws
+         * while replies are still outstanding the connection is closed because it can't be used
+         * for further commands.
+         * </p>
+         */
+        private void executePipelined(List<String> commands, ResponseHandler handler)
+        throws MessagingException {
+            open(Folder.OPEN_MODE_RW);
+
+            int window = mCapabilities.pipelining ? PIPELINING_WINDOW : 1;
+            int count = commands.size();
+            int sent = 0;
+            int received = 0;
+            try {
+                for (; received < count; received++) {
+                    // Top up the window in one write once half of it has been answered
+                    if (sent < count && sent - received <= window / 2) {
+                        StringBuilder batch = new StringBuilder();
+                        for (; sent < count && sent - received < window; sent++) {
+                            String command = commands.get(sent);
+                            if (K9.DEBUG && K9.DEBUG_PROTOCOL_POP3) {
+                                Log.d(K9.LOG_TAG, ">>> " + command);
+                            }
+                            batch.append(command).append("\r\n");
+                        }
+                        mOut.write(batch.toString().getBytes());
+                        mOut.flush();
+                    }
+
+                    handler.handleResponse(received, readLine());
+                }
+            } catch (IOException e) {
+                closeIO();
+                throw new MessagingException("Unable to execute POP3 command", e);
+            } catch (MessagingException e) {
+                if (sent > received + 1) {
+                    closeIO();
+                }
+                throw e;
+            }
+        }
+
+        private boolean isErrorResponse(String response) {
+            return response.length() > 1 && response.charAt(0) == '-';
+        }
+
         @Override
         public boolean isFlagSupported(Flag flag) {
             return (flag == Flag.DELETED);
@@ -1110,6 +1280,20 @@ public class Pop3Store extends Store {
         }
     }
 
+    /**
+     * Handles the reply to one of the commands sent by {@link Pop3Folder#executePipelined}.
+     */
+    private interface ResponseHandler {
+        /**
+         * @param index
+         *         The index of the command in the list of commands.
+         * @param response
+         *         The first line of the reply. The rest of a multi-line reply has to be read by
+         *         the handler.
+         */
+        void handleResponse(int index, String response) throws IOException, MessagingException;
+    }
+
     static class Pop3Capabilities {
         public boolean stls;
         public boolean top;
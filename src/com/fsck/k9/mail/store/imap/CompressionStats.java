@@ -0,0 +1,73 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counters of {@code COMPRESS=DEFLATE} connections.
+ *
+ * <p>
+ * Each {@link DeflateTransport} has its own instance and also adds its bytes to the instance
+ * that {@code ImapStore} keeps for the whole account. "Compressed" counts the bytes on the
+ * wire, "uncompressed" what the IMAP layer sent or received.
+ * </p>
+ */
+public class CompressionStats {
+    private final AtomicLong mCompressedIn = new AtomicLong();
+    private final AtomicLong mUncompressedIn = new AtomicLong();
+    private final AtomicLong mCompressedOut = new AtomicLong();
+    private final AtomicLong mUncompressedOut = new AtomicLong();
+
+
+    void addCompressedIn(long count) {
+        mCompressedIn.addAndGet(count);
+    }
+
+    void addUncompressedIn(long count) {
+        mUncompressedIn.addAndGet(count);
+    }
+
+    void addCompressedOut(long count) {
+        mCompressedOut.addAndGet(count);
+    }
+
+    void addUncompressedOut(long count) {
+        mUncompressedOut.addAndGet(count);
+    }
+
+    public long getCompressedBytesIn() {
+        return mCompressedIn.get();
+    }
+
+    public long getUncompressedBytesIn() {
+        return mUncompressedIn.get();
+    }
+
+    public long getCompressedBytesOut() {
+        return mCompressedOut.get();
+    }
+
+    public long getUncompressedBytesOut() {
+        return mUncompressedOut.get();
+    }
+
+    /**
+     * Returns the number of bytes that didn't have to be transferred thanks to compression.
+     */
+    public long getBytesSaved() {
+        return (getUncompressedBytesIn() - getCompressedBytesIn()) +
+                (getUncompressedBytesOut() - getCompressedBytesOut());
+    }
+
+    @Override
+    public String toString() {
+        return "in " + describe(getCompressedBytesIn(), getUncompressedBytesIn()) +
+                ", out " + describe(getCompressedBytesOut(), getUncompressedBytesOut()) +
+                ", saved " + (getBytesSaved() / 1024) + " KiB";
+    }
+
+    private static String describe(long compressed, long uncompressed) {
+        String ratio = (compressed > 0) ?
+                String.format("%.1f", (double) uncompressed / compressed) : "-";
+        return compressed + "/" + uncompressed + " bytes (" + ratio + "x)";
+    }
+}
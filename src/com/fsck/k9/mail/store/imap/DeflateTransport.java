@@ -0,0 +1,231 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+
+/**
+ * The streams of an IMAP connection after {@code COMPRESS DEFLATE} (RFC 4978) was negotiated.
+ *
+ * <p>
+ * Received data is inflated through a {@link #BUFFER_SIZE} byte buffer. For sending, jzlib's
+ * {@code ZOutputStream} can't be used as is: it deflates every {@code write()} with the flush
+ * mode set on the stream, so each write ends a deflate block and is sent to the socket in
+ * 512 byte pieces. Instead, {@link DeflatingOutputStream} deflates writes without flushing
+ * into a {@link #BUFFER_SIZE} byte output buffer and only uses the configured flush mode when
+ * {@link OutputStream#flush()} is called, i.e. once per command.
+ * </p>
+ * <p>
+ * Compressed and uncompressed bytes are counted in a {@link CompressionStats} instance per
+ * connection and in the account's instance passed to the constructor.
+ * </p>
+ */
+public class DeflateTransport {
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    private final CompressionStats mStats = new CompressionStats();
+    private final CompressionStats mAccountStats;
+    private final Inflater mInflater;
+    private final InputStream mIn;
+    private final DeflatingOutputStream mOut;
+
+
+    /**
+     * @param in
+     *         The (possibly TLS) input stream of the socket.
+     * @param out
+     *         The (possibly TLS) output stream of the socket.
+     * @param level
+     *         The deflate compression level, 0 (none) to 9 (best).
+     * @param flushMode
+     *         {@link JZlib#Z_PARTIAL_FLUSH} or {@link JZlib#Z_SYNC_FLUSH}.
+     * @param accountStats
+     *         Counters to add this connection's bytes to. May be {@code null}.
+     */
+    public DeflateTransport(InputStream in, OutputStream out, int level, int flushMode,
+            CompressionStats accountStats) {
+        mAccountStats = accountStats;
+        mInflater = new Inflater(true);
+        mIn = new InflatingInputStream(new CountingInputStream(in), mInflater);
+        mOut = new DeflatingOutputStream(out, level, flushMode);
+    }
+
+    public InputStream getInputStream() {
+        return mIn;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOut;
+    }
+
+    /**
+     * Returns the counters of this connection.
+     */
+    public CompressionStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Releases the native inflater and the deflate state. Doesn't close the underlying streams.
+     */
+    public void release() {
+        mInflater.end();
+        mOut.release();
+    }
+
+    private void countCompressedIn(long count) {
+        mStats.addCompressedIn(count);
+        if (mAccountStats != null) {
+            mAccountStats.addCompressedIn(count);
+        }
+    }
+
+    private void countUncompressedIn(long count) {
+        mStats.addUncompressedIn(count);
+        if (mAccountStats != null) {
+            mAccountStats.addUncompressedIn(count);
+        }
+    }
+
+    private void countCompressedOut(long count) {
+        mStats.addCompressedOut(count);
+        if (mAccountStats != null) {
+            mAccountStats.addCompressedOut(count);
+        }
+    }
+
+    private void countUncompressedOut(long count) {
+        mStats.addUncompressedOut(count);
+        if (mAccountStats != null) {
+            mAccountStats.addUncompressedOut(count);
+        }
+    }
+
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                countCompressedIn(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                countCompressedIn(count);
+            }
+            return count;
+        }
+    }
+
+    private class InflatingInputStream extends InflaterInputStream {
+        InflatingInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater, BUFFER_SIZE);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                countUncompressedIn(count);
+            }
+            return count;
+        }
+    }
+
+    private class DeflatingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final int mFlushMode;
+        private final ZStream mStream = new ZStream();
+        private final byte[] mOutputBuffer = new byte[BUFFER_SIZE];
+        private int mOutputCount = 0;
+        private final byte[] mSingleByte = new byte[1];
+
+        DeflatingOutputStream(OutputStream out, int level, int flushMode) {
+            mOut = out;
+            mFlushMode = flushMode;
+            mStream.deflateInit(level, true);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mSingleByte[0] = (byte) b;
+            write(mSingleByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            countUncompressedOut(length);
+            deflate(buffer, offset, length, JZlib.Z_NO_FLUSH);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            deflate(mSingleByte, 0, 0, mFlushMode);
+            writeOutputBuffer();
+            mOut.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                mOut.close();
+            }
+        }
+
+        void release() {
+            mStream.deflateEnd();
+        }
+
+        private void deflate(byte[] buffer, int offset, int length, int flushMode)
+                throws IOException {
+            mStream.next_in = buffer;
+            mStream.next_in_index = offset;
+            mStream.avail_in = length;
+            do {
+                if (mOutputCount == mOutputBuffer.length) {
+                    writeOutputBuffer();
+                }
+                mStream.next_out = mOutputBuffer;
+                mStream.next_out_index = mOutputCount;
+                mStream.avail_out = mOutputBuffer.length - mOutputCount;
+
+                int result = mStream.deflate(flushMode);
+                if (result != JZlib.Z_OK && result != JZlib.Z_BUF_ERROR) {
+                    throw new IOException("Deflate failed: " + result + " " + mStream.msg);
+                }
+                mOutputCount = mStream.next_out_index;
+            } while (mStream.avail_in > 0 || mStream.avail_out == 0);
+
+            // Don't keep a reference to the caller's buffer
+            mStream.next_in = null;
+        }
+
+        private void writeOutputBuffer() throws IOException {
+            if (mOutputCount > 0) {
+                mOut.write(mOutputBuffer, 0, mOutputCount);
+                countCompressedOut(mOutputCount);
+                mOutputCount = 0;
+            }
+        }
+    }
+}
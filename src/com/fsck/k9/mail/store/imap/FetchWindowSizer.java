@@ -0,0 +1,116 @@
+package com.fsck.k9.mail.store.imap;
+
+/**
+ * Chooses the number of messages to request with a single {@code UID FETCH} command.
+ *
+ * <p>
+ * {@code ImapFolder.fetch()} keeps several {@code UID FETCH} commands outstanding on a
+ * connection. To keep the link busy each window has to take noticeably longer to transfer than
+ * a round trip, but a window shouldn't grow so large that a single command transfers
+ * megabytes of data or takes many seconds to complete. After each window the measured
+ * duration and response size are fed back and the next window is doubled or halved
+ * accordingly, within {@link #MIN_WINDOW_SIZE} and {@link #MAX_WINDOW_SIZE}.
+ * </p>
+ * <p>
+ * Only windows that were requested with the current window size change it. The windows still
+ * outstanding when the size changes were measured at the old size, so one slow (or fast)
+ * period halves (or doubles) the size once, no matter how many commands are pipelined.
+ * </p>
+ * <p>
+ * Instances are thread-safe; {@code ImapStore} shares one per kind of fetch between all
+ * connections of an account.
+ * </p>
+ */
+public class FetchWindowSizer {
+    public static final int MIN_WINDOW_SIZE = 10;
+    public static final int MAX_WINDOW_SIZE = 500;
+
+    /**
+     * Windows completing faster than this are grown.
+     */
+    static final long TARGET_WINDOW_MILLIS = 1000;
+
+    /**
+     * Windows transferring more than this are shrunk.
+     */
+    static final long MAX_WINDOW_BYTES = 1024 * 1024;
+
+
+    private int mWindowSize;
+
+    private long mTotalMessages;
+    private long mTotalBytes;
+    private long mTotalMillis;
+    private long mLastBytesPerSecond;
+
+
+    public FetchWindowSizer(int initialWindowSize) {
+        mWindowSize = clamp(initialWindowSize);
+    }
+
+    public synchronized int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * Records the completion of a {@code UID FETCH} command and adapts the window size.
+     *
+     * @param windowSize
+     *         The value of {@link #getWindowSize()} when the command was sent.
+     * @param messageCount
+     *         Number of messages requested by the command.
+     * @param elapsedMillis
+     *         Time since the previous command completed (or since this one was sent, if nothing
+     *         was outstanding before it).
+     * @param bytes
+     *         Number of bytes received for the command.
+     */
+    public synchronized void windowCompleted(int windowSize, int messageCount, long elapsedMillis,
+            long bytes) {
+        mTotalMessages += messageCount;
+        mTotalBytes += bytes;
+        mTotalMillis += elapsedMillis;
+        if (elapsedMillis > 0) {
+            mLastBytesPerSecond = bytes * 1000 / elapsedMillis;
+        }
+
+        // Only adapt if the completed window was requested with the current size. A window
+        // sent before the last change, or a short last window, says nothing about what a full
+        // window of the current size costs.
+        if (windowSize != mWindowSize || messageCount < windowSize) {
+            return;
+        }
+
+        if (bytes > MAX_WINDOW_BYTES || elapsedMillis > 2 * TARGET_WINDOW_MILLIS) {
+            mWindowSize = clamp(mWindowSize / 2);
+        } else if (elapsedMillis < TARGET_WINDOW_MILLIS && bytes < MAX_WINDOW_BYTES / 2) {
+            mWindowSize = clamp(mWindowSize * 2);
+        }
+    }
+
+    /**
+     * Returns the throughput measured for the most recently completed window in bytes per
+     * second.
+     */
+    public synchronized long getLastBytesPerSecond() {
+        return mLastBytesPerSecond;
+    }
+
+    /**
+     * Returns the average throughput over all completed windows in bytes per second.
+     */
+    public synchronized long getAverageBytesPerSecond() {
+        return (mTotalMillis > 0) ? mTotalBytes * 1000 / mTotalMillis : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "window=" + mWindowSize + ", messages=" + mTotalMessages + ", bytes=" + mTotalBytes +
+                ", last=" + (mLastBytesPerSecond / 1024) + " KiB/s, average=" +
+                (getAverageBytesPerSecond() / 1024) + " KiB/s";
+    }
+
+    private static int clamp(int windowSize) {
+        return Math.max(MIN_WINDOW_SIZE, Math.min(MAX_WINDOW_SIZE, windowSize));
+    }
+}
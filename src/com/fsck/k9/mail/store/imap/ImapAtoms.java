@@ -0,0 +1,109 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.nio.charset.Charset;
+
+/**
+ * Turns token bytes read by {@link ImapInputStream} into strings.
+ *
+ * <p>
+ * Atoms that show up in nearly every response (response names, {@code FETCH} data items,
+ * system flags, response codes) are looked up in a small hash table and returned as shared
+ * string literals. This saves an allocation per token and, because the code comparing keys uses
+ * the same literals, lets {@link String#equalsIgnoreCase(String)} succeed on the identity check.
+ * </p>
+ */
+public class ImapAtoms {
+    /**
+     * IMAP responses are parsed byte by byte, i.e. every byte is mapped to the {@code char}
+     * with the same value.
+     */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final String[] WELL_KNOWN_ATOMS = {
+        "OK", "NO", "BAD", "BYE", "PREAUTH",
+        "FETCH", "UID", "FLAGS", "INTERNALDATE", "RFC822.SIZE", "RFC822.HEADER", "RFC822",
+        "BODY", "BODY.PEEK", "BODYSTRUCTURE", "ENVELOPE", "MODSEQ", "HEADER", "HEADER.FIELDS",
+        "TEXT", "MIME", "NIL",
+        "EXISTS", "RECENT", "EXPUNGE", "VANISHED", "EARLIER",
+        "CAPABILITY", "LIST", "XLIST", "LSUB", "SEARCH", "STATUS", "NAMESPACE", "ENABLED",
+        "ALERT", "PERMANENTFLAGS", "READ-ONLY", "READ-WRITE", "TRYCREATE", "UIDNEXT",
+        "UIDVALIDITY", "UNSEEN", "MESSAGES", "HIGHESTMODSEQ", "NOMODSEQ", "APPENDUID",
+        "COPYUID", "CLOSED",
+        "\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft", "\\Recent", "\\*",
+        "\\Noselect", "\\NoInferiors", "\\HasChildren", "\\HasNoChildren", "\\Marked",
+        "\\Unmarked",
+        "$Forwarded", "$MDNSent", "$Junk", "$NotJunk",
+        "CHARSET", "NAME", "BOUNDARY", "FILENAME", "FORMAT", "DELSP", "FLOWED",
+        "ATTACHMENT", "INLINE", "7BIT", "8BIT", "BASE64", "QUOTED-PRINTABLE",
+        "US-ASCII", "UTF-8", "ISO-8859-1",
+        "PLAIN", "HTML", "MULTIPART", "MIXED", "ALTERNATIVE", "RELATED", "MESSAGE",
+        "APPLICATION", "IMAGE",
+    };
+
+    private static final int TABLE_SIZE = 512;
+    private static final String[] TABLE = new String[TABLE_SIZE];
+    private static final byte[][] TABLE_BYTES = new byte[TABLE_SIZE][];
+
+    static {
+        for (String atom : WELL_KNOWN_ATOMS) {
+            byte[] bytes = atom.getBytes(ISO_8859_1);
+            int slot = hash(bytes, 0, bytes.length) & (TABLE_SIZE - 1);
+            while (TABLE[slot] != null && !TABLE[slot].equals(atom)) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            TABLE[slot] = atom;
+            TABLE_BYTES[slot] = bytes;
+        }
+    }
+
+    /**
+     * Returns the atom stored in {@code bytes[offset]..bytes[offset + length - 1]}.
+     *
+     * <p>
+     * Well-known atoms are returned as shared instances. Matching is case-sensitive; atoms with
+     * unusual case are simply materialized.
+     * </p>
+     */
+    public static String toAtom(byte[] bytes, int offset, int length) {
+        int slot = hash(bytes, offset, length) & (TABLE_SIZE - 1);
+        byte[] candidate;
+        while ((candidate = TABLE_BYTES[slot]) != null) {
+            if (regionEquals(candidate, bytes, offset, length)) {
+                return TABLE[slot];
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+
+        return toString(bytes, offset, length);
+    }
+
+    /**
+     * Materializes a string token without looking it up in the table of well-known atoms.
+     */
+    public static String toString(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        return new String(bytes, offset, length, ISO_8859_1);
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = length;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean regionEquals(byte[] candidate, byte[] bytes, int offset, int length) {
+        if (candidate.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (candidate[i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,301 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A buffering {@link InputStream} that lets the IMAP response parser scan tokens directly in its
+ * byte window.
+ *
+ * <p>
+ * Reading an IMAP response one {@code int} at a time through a chain of filter streams and
+ * appending every character to a {@link StringBuilder} is the dominant CPU cost when parsing
+ * large {@code UID FETCH} responses. This class keeps a single reusable byte window. Tokens
+ * that fit into the window are located with a tight loop over the array and turned into a
+ * {@code String} with one allocation; well-known atoms are returned as shared instances (see
+ * {@link ImapAtoms}) and don't allocate at all.
+ * </p>
+ * <p>
+ * Literals and other raw data are read with the regular {@code read()} methods, which drain the
+ * window before reading from the underlying stream. Everything that reads from the connection
+ * has to go through this stream, never through the wrapped stream.
+ * </p>
+ */
+public class ImapInputStream extends InputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final InputStream mIn;
+    private final byte[] mBuffer;
+    private int mPosition;
+    private int mLimit;
+    private long mBytesRead;
+
+    /**
+     * Scratch space for tokens that don't fit into the unread part of the window.
+     */
+    private byte[] mScratch = new byte[64];
+
+
+    public ImapInputStream(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ImapInputStream(InputStream in, int bufferSize) {
+        mIn = in;
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Returns the next byte without consuming it.
+     *
+     * @return The next byte or {@code -1} if the end of the stream has been reached.
+     */
+    public int peek() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition] & 0xFF;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        int buffered = mLimit - mPosition;
+        if (buffered == 0) {
+            if (length >= mBuffer.length) {
+                // Don't copy large reads through the window.
+                int count = mIn.read(b, offset, length);
+                if (count > 0) {
+                    mBytesRead += count;
+                }
+                return count;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            buffered = mLimit - mPosition;
+        }
+
+        int count = Math.min(buffered, length);
+        System.arraycopy(mBuffer, mPosition, b, offset, count);
+        mPosition += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+
+        int buffered = mLimit - mPosition;
+        if (buffered > 0) {
+            int count = (int) Math.min(buffered, n);
+            mPosition += count;
+            return count;
+        }
+
+        long skipped = mIn.skip(n);
+        mBytesRead += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (mLimit - mPosition) + mIn.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Returns the number of bytes read from the underlying stream so far.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Reads an atom.
+     *
+     * <p>
+     * The atom ends at the first byte for which {@link #isAtomEnd(int)} returns {@code true}.
+     * That byte is not consumed.
+     * </p>
+     *
+     * @return The atom. Never empty.
+     *
+     * @throws IOException
+     *         If the stream ended or the next byte can't start an atom.
+     */
+    public String readAtom() throws IOException {
+        int length = 0;
+        while (true) {
+            if (mPosition == mLimit && !fill()) {
+                throw new IOException("parseAtom(): end of stream reached");
+            }
+
+            int start = mPosition;
+            int end = mLimit;
+            byte[] buffer = mBuffer;
+            int i = start;
+            while (i < end && !isAtomEnd(buffer[i] & 0xFF)) {
+                i++;
+            }
+
+            if (i == end) {
+                // Keep the partial token in the scratch buffer and continue after refilling.
+                mPosition = end;
+                length = appendToScratch(length, buffer, start, end - start);
+                continue;
+            }
+
+            mPosition = i;
+            if (length == 0) {
+                if (i == start) {
+                    int ch = buffer[i] & 0xFF;
+                    throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
+                }
+                return ImapAtoms.toAtom(buffer, start, i - start);
+            }
+
+            length = appendToScratch(length, buffer, start, i - start);
+            return ImapAtoms.toAtom(mScratch, 0, length);
+        }
+    }
+
+    /**
+     * Reads a quoted string. The opening quote has to be consumed already; the closing quote is
+     * consumed but not part of the result.
+     */
+    public String readQuoted() throws IOException {
+        int length = 0;
+        boolean escape = false;
+        boolean needsCopy = false;
+        while (true) {
+            if (mPosition == mLimit && !fill()) {
+                throw new IOException("parseQuoted(): end of stream reached");
+            }
+
+            int start = mPosition;
+            int end = mLimit;
+            byte[] buffer = mBuffer;
+            for (int i = start; i < end; i++) {
+                int ch = buffer[i] & 0xFF;
+                if (!escape && ch == '\\') {
+                    // Found the escape character; drop it from the result.
+                    escape = true;
+                    needsCopy = true;
+                    length = appendToScratch(length, buffer, start, i - start);
+                    start = i + 1;
+                } else if (!escape && ch == '"') {
+                    mPosition = i + 1;
+                    if (!needsCopy) {
+                        return ImapAtoms.toString(buffer, start, i - start);
+                    }
+                    length = appendToScratch(length, buffer, start, i - start);
+                    return ImapAtoms.toString(mScratch, 0, length);
+                } else {
+                    escape = false;
+                }
+            }
+
+            needsCopy = true;
+            length = appendToScratch(length, buffer, start, end - start);
+            mPosition = end;
+        }
+    }
+
+    /**
+     * Reads everything up to the given byte. The terminating byte is consumed but not part of
+     * the result.
+     */
+    public String readStringUntil(char terminator) throws IOException {
+        int length = 0;
+        while (true) {
+            if (mPosition == mLimit && !fill()) {
+                throw new IOException("readStringUntil(): end of stream reached");
+            }
+
+            int start = mPosition;
+            int end = mLimit;
+            byte[] buffer = mBuffer;
+            for (int i = start; i < end; i++) {
+                if (buffer[i] == (byte) terminator) {
+                    mPosition = i + 1;
+                    if (length == 0) {
+                        return ImapAtoms.toString(buffer, start, i - start);
+                    }
+                    length = appendToScratch(length, buffer, start, i - start);
+                    return ImapAtoms.toString(mScratch, 0, length);
+                }
+            }
+
+            length = appendToScratch(length, buffer, start, end - start);
+            mPosition = end;
+        }
+    }
+
+    /**
+     * Consumes the next byte and makes sure it's the expected one.
+     */
+    public void expect(char expected) throws IOException {
+        int ch = read();
+        if (ch != expected) {
+            throw new IOException(String.format("Expected %04x (%c) but got %04x (%c)",
+                    (int) expected, expected, ch, (char) ch));
+        }
+    }
+
+    /**
+     * Checks whether {@code ch} terminates an atom.
+     *
+     * <p>
+     * Note: flags like {@code \Seen} and flags containing {@code *} are read as atoms.
+     * </p>
+     */
+    public static boolean isAtomEnd(int ch) {
+        return ch == '(' || ch == ')' || ch == '{' || ch == ' ' || ch == '[' || ch == ']' ||
+                ch == '"' || ch <= 0x1f || ch == 0x7f;
+    }
+
+    private boolean fill() throws IOException {
+        mPosition = 0;
+        mLimit = 0;
+        int count = mIn.read(mBuffer, 0, mBuffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        mLimit = count;
+        mBytesRead += count;
+        return true;
+    }
+
+    private int appendToScratch(int length, byte[] source, int offset, int count) {
+        if (count == 0) {
+            return length;
+        }
+
+        int required = length + count;
+        if (required > mScratch.length) {
+            byte[] scratch = new byte[Math.max(required, mScratch.length * 2)];
+            System.arraycopy(mScratch, 0, scratch, 0, length);
+            mScratch = scratch;
+        }
+        System.arraycopy(source, offset, mScratch, length, count);
+        return required;
+    }
+}
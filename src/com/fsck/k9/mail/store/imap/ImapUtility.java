@@ -20,8 +20,11 @@ package com.fsck.k9.mail.store.imap;
 import android.util.Log;
 
 import com.fsck.k9.K9;
+import com.fsck.k9.mail.store.ImapResponseParser;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -112,6 +115,109 @@ public class ImapUtility {
         return list;
     }
 
+    /**
+     * Builds the shortest sequence set per RFC 3501 that contains the given UIDs.
+     *
+     * <p>
+     * Numeric UIDs are sorted, duplicates are dropped, and runs of consecutive values are
+     * written as ranges, e.g. {@code 1:50,60,70:90}. Values that aren't valid 32-bit numbers are
+     * appended unchanged.
+     * </p>
+     *
+     * @param uids
+     *         The UIDs to include in the set.
+     *
+     * @return The sequence set string. An empty string if {@code uids} is empty.
+     */
+    public static String toSequenceSet(String[] uids) {
+        long[] values = new long[uids.length];
+        List<String> others = new ArrayList<String>();
+        int count = 0;
+        for (String uid : uids) {
+            long value = parseUid(uid);
+            if (value > 0) {
+                values[count++] = value;
+            } else {
+                others.add(uid);
+            }
+        }
+        Arrays.sort(values, 0, count);
+
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < count) {
+            long start = values[i];
+            long end = start;
+            while (++i < count && values[i] <= end + 1) {
+                end = values[i];
+            }
+
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(start);
+            if (end != start) {
+                sb.append(':').append(end);
+            }
+        }
+
+        for (String other : others) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(other);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Gets the UIDs reported by a {@code VANISHED} response per RFC 7162.
+     *
+     * <pre>
+     * expunged-resp = "VANISHED" [SP "(EARLIER)"] SP known-uids
+     * </pre>
+     *
+     * @param response
+     *         The untagged response as received by the server.
+     *
+     * @return The list of UIDs as strings. If {@code response} is not a {@code VANISHED} response
+     *         an empty list is returned.
+     */
+    public static List<String> getVanishedUids(ImapList response) {
+        if (!isVanishedResponse(response)) {
+            return new ArrayList<String>();
+        }
+
+        Object uidSet = response.get(response.size() - 1);
+        if (!(uidSet instanceof String)) {
+            return new ArrayList<String>();
+        }
+
+        return getImapSequenceValues((String) uidSet);
+    }
+
+    /**
+     * Check whether the given response is a {@code VANISHED} response.
+     */
+    public static boolean isVanishedResponse(ImapList response) {
+        return response.size() > 1 && ImapResponseParser.equalsIgnoreCase(response.get(0), "VANISHED");
+    }
+
+    /**
+     * Check whether the given {@code VANISHED} response carries the {@code (EARLIER)} tag, i.e.
+     * reports messages that were expunged before the current command and not in real time.
+     */
+    public static boolean isVanishedEarlier(ImapList response) {
+        if (!isVanishedResponse(response) || response.size() < 3) {
+            return false;
+        }
+
+        Object tag = response.get(1);
+        return (tag instanceof ImapList) && !((ImapList) tag).isEmpty() &&
+                ImapResponseParser.equalsIgnoreCase(((ImapList) tag).get(0), "EARLIER");
+    }
+
     private static boolean isNumberValid(String number) {
         try {
             long value = Long.parseLong(number);
@@ -127,6 +233,21 @@ public class ImapUtility {
         return false;
     }
 
+    /**
+     * Returns the value of a UID, or {@code -1} if it isn't a valid nz-number.
+     */
+    private static long parseUid(String uid) {
+        try {
+            long value = Long.parseLong(uid);
+            if (value > 0 && is32bitValue(value)) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        return -1;
+    }
+
     private static boolean is32bitValue(long value) {
         return ((value & ~0xFFFFFFFFL) == 0L);
     }
@@ -193,8 +193,17 @@ public class SmtpTransport extends Transport {
     PeekableInputStream mIn;
     OutputStream mOut;
     private boolean m8bitEncodingAllowed;
+    private boolean mPipeliningAllowed;
+    private boolean mChunkingAllowed;
+    private boolean mBinaryMimeAllowed;
     private int mLargestAcceptableMessage;
 
+    /**
+     * {@code true} if a mail transaction was started on the current connection. The next one has
+     * to be preceded by {@code RSET}.
+     */
+    private boolean mNeedsReset;
+
     public SmtpTransport(Account account) throws MessagingException {
         ServerSettings settings;
         try {
@@ -318,6 +327,11 @@ public class SmtpTransport extends Transport {
                 }
             }
 
+            mPipeliningAllowed = results.contains("PIPELINING");
+            mChunkingAllowed = results.contains("CHUNKING");
+            mBinaryMimeAllowed = mChunkingAllowed && results.contains("BINARYMIME");
+            mNeedsReset = false;
+
             boolean useAuthLogin = AUTH_LOGIN.equals(mAuthType);
             boolean useAuthPlain = AUTH_PLAIN.equals(mAuthType);
             boolean useAuthCramMD5 = AUTH_CRAM_MD5.equals(mAuthType);
@@ -474,16 +488,16 @@ public class SmtpTransport extends Transport {
     throws MessagingException {
         boolean possibleSend = false;
 
-        close();
-        open();
+        openOrReset();
 
-        if (!m8bitEncodingAllowed) {
+        if (!m8bitEncodingAllowed && !mBinaryMimeAllowed) {
             message.setUsing7bitTransport();
         }
         // If the message has attachments and our server has told us about a limit on
-        // the size of messages, count the message's size before sending it
+        // the size of messages, estimate the message's size before sending it. The estimate
+        // uses the stored attachment sizes, so the message is only serialized once.
         if (mLargestAcceptableMessage > 0 && ((LocalMessage)message).hasAttachments()) {
-            if (message.calculateSize() > mLargestAcceptableMessage) {
+            if (message.estimateSize() > mLargestAcceptableMessage) {
                 MessagingException me = new MessagingException("Message too large for server");
                 me.setPermanentFailure(possibleSend);
                 throw me;
@@ -492,25 +506,46 @@ public class SmtpTransport extends Transport {
 
         Address[] from = message.getFrom();
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from[0].getAddress() + ">"
-                    + (m8bitEncodingAllowed ? " BODY=8BITMIME" : ""));
-            for (String address : addresses) {
-                executeSimpleCommand("RCPT TO:" + "<" + address + ">");
-            }
-            executeSimpleCommand("DATA");
+            mNeedsReset = true;
+            sendEnvelope(from[0].getAddress(), addresses);
+
+            if (mChunkingAllowed) {
+                // RFC 3030: BDAT transfers the message as is, no dot-stuffing required
+                ChunkingOutputStream chunkOut = new ChunkingOutputStream();
+                EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
+                        mBinaryMimeAllowed ? chunkOut : new LineWrapOutputStream(chunkOut, 1000));
+
+                message.writeTo(msgOut);
+                msgOut.flush();
 
-            EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
-                    new LineWrapOutputStream(new SmtpDataStuffing(
-                            new BufferedOutputStream(mOut, 1024)), 1000));
+                possibleSend = true; // After the last chunk is attempted, we may have sent the message
+                chunkOut.finish();
+            } else {
+                executeSimpleCommand("DATA");
+
+                EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
+                        new LineWrapOutputStream(new SmtpDataStuffing(
+                                new BufferedOutputStream(mOut, 1024)), 1000));
 
-            message.writeTo(msgOut);
+                message.writeTo(msgOut);
 
-            // We use BufferedOutputStream. So make sure to call flush() !
-            msgOut.flush();
+                // We use BufferedOutputStream. So make sure to call flush() !
+                msgOut.flush();
 
-            possibleSend = true; // After the "\r\n." is attempted, we may have sent the message
-            executeSimpleCommand("\r\n.");
+                possibleSend = true; // After the "\r\n." is attempted, we may have sent the message
+                executeSimpleCommand("\r\n.");
+            }
         } catch (Exception e) {
+            if (e instanceof ChunkRejectedException) {
+                e = (Exception) e.getCause();
+            }
+
+            // After a negative reply the session can be reused. Otherwise the state of the
+            // connection is unknown.
+            if (!(e instanceof NegativeSmtpReplyException)) {
+                close();
+            }
+
             MessagingException me = new MessagingException("Unable to send message", e);
 
             // "5xx text" -responses are permanent failures
@@ -522,12 +557,93 @@ public class SmtpTransport extends Transport {
 
             me.setPermanentFailure(possibleSend);
             throw me;
-        } finally {
-            close();
         }
+    }
 
+    /**
+     * Makes sure there's a connection that is ready for a new mail transaction.
+     *
+     * <p>
+     * The connection is kept open between messages so sending several messages only costs one
+     * connection setup and authentication. If the server closed the connection in the
+     * meantime, {@code RSET} fails and a new connection is opened.
+     * </p>
+     */
+    private void openOrReset() throws MessagingException {
+        if (mSocket != null && mNeedsReset) {
+            try {
+                executeSimpleCommand("RSET");
+                mNeedsReset = false;
+            } catch (Exception e) {
+                if (K9.DEBUG && K9.DEBUG_PROTOCOL_SMTP) {
+                    Log.d(K9.LOG_TAG, "RSET failed, reconnecting", e);
+                }
+                close();
+            }
+        }
 
+        if (mSocket == null) {
+            try {
+                open();
+            } catch (MessagingException e) {
+                // Don't reuse a connection that failed to authenticate
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Sends the {@code MAIL FROM} and {@code RCPT TO} commands of a mail transaction.
+     *
+     * <p>
+     * If the server supports PIPELINING (RFC 2920) all commands are sent at once and the replies
+     * are read afterwards. {@code DATA} is only sent once all recipients have been accepted, so a
+     * rejected recipient still aborts the transaction before the message is transferred.
+     * </p>
+     *
+     * @throws NegativeSmtpReplyException
+     *         The negative reply to the first command that failed.
+     */
+    private void sendEnvelope(String from, List<String> addresses)
+    throws IOException, MessagingException {
+        String body = "";
+        if (mBinaryMimeAllowed) {
+            body = " BODY=BINARYMIME";
+        } else if (m8bitEncodingAllowed) {
+            body = " BODY=8BITMIME";
+        }
+
+        List<String> commands = new ArrayList<String>(addresses.size() + 1);
+        commands.add("MAIL FROM:" + "<" + from + ">" + body);
+        for (String address : addresses) {
+            commands.add("RCPT TO:" + "<" + address + ">");
+        }
+
+        if (!mPipeliningAllowed) {
+            for (String command : commands) {
+                executeSimpleCommand(command);
+            }
+            return;
+        }
 
+        writeLines(commands);
+
+        // Read all replies to keep the connection in sync, then report the first failure
+        NegativeSmtpReplyException firstFailure = null;
+        for (int i = 0, count = commands.size(); i < count; i++) {
+            try {
+                readResponse();
+            } catch (NegativeSmtpReplyException e) {
+                if (firstFailure == null) {
+                    firstFailure = e;
+                }
+            }
+        }
+
+        if (firstFailure != null) {
+            throw firstFailure;
+        }
     }
 
     @Override
@@ -555,6 +671,7 @@ public class SmtpTransport extends Transport {
         mIn = null;
         mOut = null;
         mSocket = null;
+        mNeedsReset = false;
     }
 
     private String readLine() throws IOException {
@@ -599,6 +716,22 @@ public class SmtpTransport extends Transport {
         mOut.flush();
     }
 
+    /**
+     * Writes several commands with a single {@code write()} call, see RFC 2920.
+     */
+    private void writeLines(List<String> commands) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String command : commands) {
+            if (K9.DEBUG && K9.DEBUG_PROTOCOL_SMTP) {
+                Log.d(K9.LOG_TAG, "SMTP >>> " + command);
+            }
+            sb.append(command).append("\r\n");
+        }
+
+        mOut.write(sb.toString().getBytes());
+        mOut.flush();
+    }
+
     private void checkLine(String line) throws MessagingException {
         int length = line.length();
         if (length < 1) {
@@ -631,11 +764,24 @@ public class SmtpTransport extends Transport {
 
     private List<String> executeSimpleCommand(String command, boolean sensitive)
     throws IOException, MessagingException {
-        List<String> results = new ArrayList<String>();
         if (command != null) {
             writeLine(command, sensitive);
         }
 
+        return readResponse();
+    }
+
+    /**
+     * Reads a (possibly multi-line) reply of the server.
+     *
+     * @return The text of the reply lines.
+     *
+     * @throws NegativeSmtpReplyException
+     *         If the reply code indicates an error.
+     */
+    private List<String> readResponse() throws IOException, MessagingException {
+        List<String> results = new ArrayList<String>();
+
         /*
          * Read lines as long as the length is 4 or larger, e.g. "220-banner text here".
          * Shorter lines are either errors of contain only a reply code. Those cases will
@@ -727,6 +873,102 @@ public class SmtpTransport extends Transport {
         }
     }
 
+    /**
+     * Sends the message in {@code BDAT} chunks (RFC 3030).
+     *
+     * <p>
+     * Data is collected in a buffer of {@value #CHUNK_SIZE} bytes and sent as one chunk whenever
+     * the buffer is full. {@link #finish()} sends the remaining data with {@code BDAT LAST}. If
+     * the server supports PIPELINING the replies are read after the last chunk, otherwise after
+     * every chunk.
+     * </p>
+     */
+    private class ChunkingOutputStream extends OutputStream {
+        private static final int CHUNK_SIZE = 256 * 1024;
+
+        private final byte[] mBuffer = new byte[CHUNK_SIZE];
+        private int mCount = 0;
+        private int mPendingReplies = 0;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mCount == mBuffer.length) {
+                sendChunk(false);
+            }
+            mBuffer[mCount++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (mCount == mBuffer.length) {
+                    sendChunk(false);
+                }
+                int count = Math.min(length, mBuffer.length - mCount);
+                System.arraycopy(buffer, offset, mBuffer, mCount, count);
+                mCount += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        void finish() throws IOException, MessagingException {
+            sendChunk(true);
+            readReplies();
+        }
+
+        private void sendChunk(boolean last) throws IOException {
+            String command = "BDAT " + mCount + (last ? " LAST" : "");
+            if (K9.DEBUG && K9.DEBUG_PROTOCOL_SMTP) {
+                Log.d(K9.LOG_TAG, "SMTP >>> " + command + " (" + mCount + " bytes)");
+            }
+
+            mOut.write(command.concat("\r\n").getBytes());
+            mOut.write(mBuffer, 0, mCount);
+            mOut.flush();
+            mCount = 0;
+            mPendingReplies++;
+
+            if (!mPipeliningAllowed && !last) {
+                try {
+                    readReplies();
+                } catch (MessagingException e) {
+                    // write() can't throw a MessagingException. finish() reports it instead.
+                    throw new ChunkRejectedException(e);
+                }
+            }
+        }
+
+        private void readReplies() throws IOException, MessagingException {
+            NegativeSmtpReplyException firstFailure = null;
+            for (; mPendingReplies > 0; mPendingReplies--) {
+                try {
+                    readResponse();
+                } catch (NegativeSmtpReplyException e) {
+                    if (firstFailure == null) {
+                        firstFailure = e;
+                    }
+                }
+            }
+
+            if (firstFailure != null) {
+                throw firstFailure;
+            }
+        }
+    }
+
+    /**
+     * Carries a negative reply to a {@code BDAT} command through {@link OutputStream#write(int)}.
+     */
+    private static class ChunkRejectedException extends IOException {
+        private static final long serialVersionUID = -3457398226473462915L;
+
+        ChunkRejectedException(MessagingException cause) {
+            super(cause.getMessage());
+            initCause(cause);
+        }
+    }
+
     /**
      * Exception that is thrown when the server sends a negative reply (reply codes 4xx or 5xx).
      */
@@ -3,6 +3,7 @@ package com.fsck.k9.mail.transport.imap;
 import com.fsck.k9.mail.store.ImapStore;
 import com.fsck.k9.mail.store.ImapStore.AuthType;
 import com.fsck.k9.mail.store.ImapStore.ImapConnection;
+import com.fsck.k9.mail.store.imap.CompressionStats;
 
 /**
  * Settings source for IMAP. Implemented in order to remove coupling between {@link ImapStore} and {@link ImapConnection}.
@@ -22,6 +23,10 @@ public interface ImapSettings {
 
     boolean useCompression(int type);
 
+    int getCompressionLevel(int type);
+
+    CompressionStats getCompressionStats();
+
     String getPathPrefix();
 
     void setPathPrefix(String prefix);
@@ -49,6 +49,15 @@ public class AccountSettings {
         s.put("chipColor", Settings.versions(
                 new V(1, new ColorSetting(0xFF0000FF))
             ));
+        s.put("compressionLevel.MOBILE", Settings.versions(
+                new V(33, new IntegerRangeSetting(0, 9, Account.DEFAULT_COMPRESSION_LEVEL))
+            ));
+        s.put("compressionLevel.OTHER", Settings.versions(
+                new V(33, new IntegerRangeSetting(0, 9, Account.DEFAULT_COMPRESSION_LEVEL))
+            ));
+        s.put("compressionLevel.WIFI", Settings.versions(
+                new V(33, new IntegerRangeSetting(0, 9, Account.DEFAULT_COMPRESSION_LEVEL))
+            ));
         s.put("cryptoApp", Settings.versions(
                 new V(1, new StringSetting(Apg.NAME))
             ));
@@ -111,6 +120,10 @@ public class AccountSettings {
         s.put("maxPushFolders", Settings.versions(
                 new V(1, new IntegerRangeSetting(0, 100, 10))
             ));
+        s.put("maxSyncConnections", Settings.versions(
+                new V(31, new IntegerResourceSetting(Account.DEFAULT_MAX_SYNC_CONNECTIONS,
+                        R.array.account_settings_max_sync_connections_values))
+            ));
         s.put("maximumAutoDownloadMessageSize", Settings.versions(
                 new V(1, new IntegerResourceSetting(32768,
                         R.array.account_settings_autodownload_message_size_values))
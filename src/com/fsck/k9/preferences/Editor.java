@@ -15,12 +15,9 @@ public class Editor implements android.content.SharedPreferences.Editor {
     private ArrayList<String> removals = new ArrayList<String>();
     private boolean removeAll = false;
 
-    Map<String, String> snapshot = new HashMap<String, String>();
-
 
     protected Editor(Storage storage) {
         this.storage = storage;
-        snapshot.putAll(storage.getAll());
     }
 
     public void copy(android.content.SharedPreferences input) {
@@ -70,6 +67,17 @@ public class Editor implements android.content.SharedPreferences.Editor {
     public void commitChanges() {
         long startTime = System.currentTimeMillis();
         Log.i(K9.LOG_TAG, "Committing preference changes");
+
+        // Folder settings that haven't been loaded yet are loaded here, outside of the transaction
+        final Map<String, String> oldValues = new HashMap<String, String>();
+        for (String key : changes.keySet()) {
+            oldValues.put(key, storage.getString(key, null));
+        }
+        if (removeAll) {
+            // Every removed key is reported to the listeners
+            storage.loadAllFolderSettings();
+        }
+
         Runnable committer = new Runnable() {
             public void run() {
                 if (removeAll) {
@@ -82,7 +90,7 @@ public class Editor implements android.content.SharedPreferences.Editor {
                 for (Entry<String, String> entry : changes.entrySet()) {
                     String key = entry.getKey();
                     String newValue = entry.getValue();
-                    String oldValue = snapshot.get(key);
+                    String oldValue = oldValues.get(key);
                     if (removeAll || removals.contains(key) || !newValue.equals(oldValue)) {
                         insertables.put(key, newValue);
                     }
@@ -61,6 +61,9 @@ public class GlobalSettings {
         s.put("countSearchMessages", Settings.versions(
                 new V(1, new BooleanSetting(false))
             ));
+        s.put("databaseWriteAheadLogging", Settings.versions(
+                new V(32, new BooleanSetting(false))
+            ));
         s.put("enableDebugLogging", Settings.versions(
                 new V(1, new BooleanSetting(false))
             ));
@@ -14,12 +14,48 @@ import com.fsck.k9.helper.Utility;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * {@link SharedPreferences} stored in a database.
+ *
+ * <p>
+ * The settings of individual folders make up most of the stored values but are only needed once
+ * a folder is used. They are left out when the values are loaded at startup and loaded for one
+ * account at a time when the first of them is read. Everything that needs all values, like
+ * {@link #getAll()}, loads the remaining folder settings first.
+ * </p>
+ */
 public class Storage implements SharedPreferences {
+    /**
+     * Key suffixes of folder settings. Their keys look like {@code <account UUID>.<folder name>
+     * <suffix>}.
+     */
+    private static final String[] FOLDER_SETTINGS_SUFFIXES = {
+        ".displayMode", ".syncMode", ".pushMode", ".inTopGroup", ".integrate"
+    };
+
+    /**
+     * Selects the rows holding folder settings. Matches the keys accepted by
+     * {@link #getFolderSettingsPrefix(String)}.
+     */
+    private static final String FOLDER_SETTINGS_SELECTION;
+    static {
+        StringBuilder selection = new StringBuilder("(");
+        for (String suffix : FOLDER_SETTINGS_SUFFIXES) {
+            if (selection.length() > 1) {
+                selection.append(" OR ");
+            }
+            selection.append("primkey GLOB '*.*").append(suffix).append("'");
+        }
+        FOLDER_SETTINGS_SELECTION = selection.append(")").toString();
+    }
+
+
     private static ConcurrentHashMap<Context, Storage> storages =
         new ConcurrentHashMap<Context, Storage>();
 
@@ -37,6 +73,14 @@ public class Storage implements SharedPreferences {
         new ThreadLocal<SQLiteDatabase>();
     private ThreadLocal<ArrayList<String>> workingChangedKeys = new ThreadLocal<ArrayList<String>>();
 
+    /**
+     * Key prefixes (account UUIDs) whose folder settings have been loaded. Only modified while
+     * holding {@code this}, like loading values and committing changes.
+     */
+    private final ConcurrentHashMap<String, Boolean> loadedFolderSettings =
+        new ConcurrentHashMap<String, Boolean>();
+    private volatile boolean allFolderSettingsLoaded = false;
+
 
     private Context context = null;
 
@@ -168,31 +212,131 @@ public class Storage implements SharedPreferences {
         }
     }
 
+    /**
+     * Loads all values except for the folder settings.
+     */
     private void loadValues() {
         long startTime = System.currentTimeMillis();
         Log.i(K9.LOG_TAG, "Loading preferences from DB into Storage");
+        int count = loadValues("NOT " + FOLDER_SETTINGS_SELECTION, null);
+        long endTime = System.currentTimeMillis();
+        Log.i(K9.LOG_TAG, "Preferences load of " + count + " values took " + (endTime - startTime) + "ms");
+    }
+
+    /**
+     * Loads the folder settings of the account whose UUID is {@code prefix} unless that has
+     * already been done.
+     */
+    private synchronized void loadFolderSettings(String prefix) {
+        if (allFolderSettingsLoaded || loadedFolderSettings.containsKey(prefix)) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        // Uses the primary key index: "/" is the character following "."
+        int count = loadValues("primkey >= ? AND primkey < ? AND " + FOLDER_SETTINGS_SELECTION,
+                new String[] { prefix + ".", prefix + "/" });
+        loadedFolderSettings.put(prefix, Boolean.TRUE);
+        if (K9.DEBUG) {
+            long endTime = System.currentTimeMillis();
+            Log.d(K9.LOG_TAG, "Loading " + count + " folder settings for " + prefix + " took " +
+                  (endTime - startTime) + "ms");
+        }
+    }
+
+    /**
+     * Loads the folder settings that haven't been loaded yet.
+     */
+    synchronized void loadAllFolderSettings() {
+        if (allFolderSettingsLoaded) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        StringBuilder selection = new StringBuilder(FOLDER_SETTINGS_SELECTION);
+        String[] loaded = loadedFolderSettings.keySet().toArray(new String[0]);
+        String[] selectionArgs = new String[loaded.length * 2];
+        for (int i = 0; i < loaded.length; i++) {
+            selection.append(" AND NOT (primkey >= ? AND primkey < ?)");
+            selectionArgs[i * 2] = loaded[i] + ".";
+            selectionArgs[i * 2 + 1] = loaded[i] + "/";
+        }
+        int count = loadValues(selection.toString(), selectionArgs);
+        allFolderSettingsLoaded = true;
+        long endTime = System.currentTimeMillis();
+        Log.i(K9.LOG_TAG, "Loading remaining " + count + " folder settings took " + (endTime - startTime) + "ms");
+    }
+
+    /**
+     * Adds the rows matching {@code selection} to the loaded values. Inside of a transaction
+     * they are added to the working copy, too.
+     *
+     * @return The number of rows loaded.
+     */
+    private int loadValues(String selection, String[] selectionArgs) {
+        Map<String, String> values = new HashMap<String, String>();
         Cursor cursor = null;
         SQLiteDatabase mDb = null;
         try {
             mDb = openDB();
 
-            cursor = mDb.rawQuery("SELECT primkey, value FROM preferences_storage", null);
+            cursor = mDb.rawQuery("SELECT primkey, value FROM preferences_storage WHERE " + selection,
+                                  selectionArgs);
             while (cursor.moveToNext()) {
-                String key = cursor.getString(0);
-                String value = cursor.getString(1);
-                if (K9.DEBUG) {
-                    Log.d(K9.LOG_TAG, "Loading key '" + key + "', value = '" + value + "'");
-                }
-                storage.put(key, value);
+                values.put(cursor.getString(0), cursor.getString(1));
             }
         } finally {
             Utility.closeQuietly(cursor);
             if (mDb != null) {
                 mDb.close();
             }
-            long endTime = System.currentTimeMillis();
-            Log.i(K9.LOG_TAG, "Preferences load took " + (endTime - startTime) + "ms");
         }
+
+        storage.putAll(values);
+        ConcurrentHashMap<String, String> working = workingStorage.get();
+        if (working != null) {
+            working.putAll(values);
+        }
+        return values.size();
+    }
+
+    /**
+     * Returns the account UUID if {@code key} is the key of a folder setting, {@code null}
+     * otherwise.
+     */
+    private static String getFolderSettingsPrefix(String key) {
+        for (String suffix : FOLDER_SETTINGS_SUFFIXES) {
+            if (key.endsWith(suffix)) {
+                int separator = key.indexOf('.');
+                if (separator < key.length() - suffix.length()) {
+                    return key.substring(0, separator);
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes sure the value of {@code key} has been loaded.
+     */
+    private void ensureLoaded(String key) {
+        if (allFolderSettingsLoaded) {
+            return;
+        }
+
+        String prefix = getFolderSettingsPrefix(key);
+        if (prefix != null && !loadedFolderSettings.containsKey(prefix)) {
+            loadFolderSettings(prefix);
+        }
+    }
+
+    /**
+     * Returns the value of {@code key}, loading it first if necessary.
+     */
+    private String getValue(String key) {
+        ensureLoaded(key);
+        return storage.get(key);
     }
 
     private Storage(Context context) {
@@ -257,43 +401,68 @@ public class Storage implements SharedPreferences {
         workingStorage.get().clear();
     }
 
+    /**
+     * Runs {@code dbWork} in a database transaction.
+     *
+     * <p>
+     * Holds the lock that guards loading values, so folder settings loaded by other threads
+     * don't get lost when the changed copy of the values replaces the current one.
+     * </p>
+     */
     protected void doInTransaction(Runnable dbWork) {
-        ConcurrentHashMap<String, String> newStorage = new ConcurrentHashMap<String, String>();
-        newStorage.putAll(storage);
-        workingStorage.set(newStorage);
-
-        SQLiteDatabase mDb = openDB();
-        workingDB.set(mDb);
-
         ArrayList<String> changedKeys = new ArrayList<String>();
-        workingChangedKeys.set(changedKeys);
 
-        mDb.beginTransaction();
-        try {
-            dbWork.run();
-            mDb.setTransactionSuccessful();
-            storage = newStorage;
-            for (String changedKey : changedKeys) {
-                for (OnSharedPreferenceChangeListener listener : listeners) {
-                    listener.onSharedPreferenceChanged(this, changedKey);
-                }
+        synchronized (this) {
+            ConcurrentHashMap<String, String> newStorage = new ConcurrentHashMap<String, String>();
+            newStorage.putAll(storage);
+            workingStorage.set(newStorage);
+
+            SQLiteDatabase mDb = openDB();
+            workingDB.set(mDb);
+
+            workingChangedKeys.set(changedKeys);
+
+            mDb.beginTransaction();
+            try {
+                dbWork.run();
+                mDb.setTransactionSuccessful();
+                storage = newStorage;
+            } finally {
+                workingDB.remove();
+                workingStorage.remove();
+                workingChangedKeys.remove();
+                mDb.endTransaction();
+                mDb.close();
+            }
+        }
+
+        for (String changedKey : changedKeys) {
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                listener.onSharedPreferenceChanged(this, changedKey);
             }
-        } finally {
-            workingDB.remove();
-            workingStorage.remove();
-            workingChangedKeys.remove();
-            mDb.endTransaction();
-            mDb.close();
         }
     }
 
     public long size() {
+        loadAllFolderSettings();
         return storage.size();
     }
 
+    /**
+     * Returns {@code true} if no values are stored. Unlike {@link #size()} this doesn't load the
+     * folder settings if there are other values.
+     */
+    public boolean isEmpty() {
+        if (!storage.isEmpty()) {
+            return false;
+        }
+        loadAllFolderSettings();
+        return storage.isEmpty();
+    }
+
     //@Override
     public boolean contains(String key) {
-        return storage.contains(key);
+        return getValue(key) != null;
     }
 
     //@Override
@@ -303,12 +472,13 @@ public class Storage implements SharedPreferences {
 
     //@Override
     public Map<String, String> getAll() {
+        loadAllFolderSettings();
         return storage;
     }
 
     //@Override
     public boolean getBoolean(String key, boolean defValue) {
-        String val = storage.get(key);
+        String val = getValue(key);
         if (val == null) {
             return defValue;
         }
@@ -317,7 +487,7 @@ public class Storage implements SharedPreferences {
 
     //@Override
     public float getFloat(String key, float defValue) {
-        String val = storage.get(key);
+        String val = getValue(key);
         if (val == null) {
             return defValue;
         }
@@ -331,7 +501,7 @@ public class Storage implements SharedPreferences {
 
     //@Override
     public int getInt(String key, int defValue) {
-        String val = storage.get(key);
+        String val = getValue(key);
         if (val == null) {
             return defValue;
         }
@@ -345,7 +515,7 @@ public class Storage implements SharedPreferences {
 
     //@Override
     public long getLong(String key, long defValue) {
-        String val = storage.get(key);
+        String val = getValue(key);
         if (val == null) {
             return defValue;
         }
@@ -359,7 +529,7 @@ public class Storage implements SharedPreferences {
 
     //@Override
     public String getString(String key, String defValue) {
-        String val = storage.get(key);
+        String val = getValue(key);
         if (val == null) {
             return defValue;
         }
@@ -48,6 +48,16 @@ public class EmailProvider extends ContentProvider {
 
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * Query parameter of the message list URIs that limits the number of returned rows.
+     *
+     * <p>
+     * The rows are the first ones according to the sort order. A list that wants to show more
+     * messages queries again with a larger limit.
+     * </p>
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
 
     /*
      * Constants that are used for the URI matching.
@@ -140,7 +150,7 @@ public class EmailProvider extends ContentProvider {
         public static final String CC_LIST = "cc_list";
         public static final String BCC_LIST = "bcc_list";
         public static final String REPLY_TO_LIST = "reply_to_list";
-        public static final String FLAGS = "flags";
+        public static final String FLAG_BITS = "flag_bits";
         public static final String ATTACHMENT_COUNT = "attachment_count";
         public static final String FOLDER_ID = "folder_id";
         public static final String PREVIEW = "preview";
@@ -173,6 +183,8 @@ public class EmailProvider extends ContentProvider {
         public static final String POLL_CLASS = "poll_class";
         public static final String PUSH_CLASS = "push_class";
         public static final String DISPLAY_CLASS = "display_class";
+        public static final String UID_VALIDITY = "uid_validity";
+        public static final String HIGHEST_MOD_SEQ = "highest_mod_seq";
     }
 
     public interface ThreadColumns {
@@ -235,13 +247,14 @@ public class EmailProvider extends ContentProvider {
                 }
 
                 String[] dbProjection = dbColumnNames.toArray(new String[0]);
+                String limit = getLimit(uri);
 
                 if (match == MESSAGES) {
                     cursor = getMessages(accountUuid, dbProjection, selection, selectionArgs,
-                            sortOrder);
+                            sortOrder, limit);
                 } else if (match == MESSAGES_THREADED) {
                     cursor = getThreadedMessages(accountUuid, dbProjection, selection,
-                            selectionArgs, sortOrder);
+                            selectionArgs, sortOrder, limit);
                 } else if (match == MESSAGES_THREAD) {
                     String threadId = segments.get(3);
                     cursor = getThread(accountUuid, dbProjection, threadId, sortOrder);
@@ -291,8 +304,29 @@ public class EmailProvider extends ContentProvider {
         throw new RuntimeException("not implemented yet");
     }
 
+    /**
+     * Returns the value of {@link #QUERY_PARAMETER_LIMIT}, or {@code null} if there's no limit.
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+
+        try {
+            if (Integer.parseInt(limit) < 0) {
+                throw new IllegalArgumentException("Negative limit: " + limit);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit: " + limit, e);
+        }
+
+        return limit;
+    }
+
     protected Cursor getMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final String limit) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -346,11 +380,15 @@ public class EmailProvider extends ContentProvider {
                         query.append(" ORDER BY ");
                         query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
                                 "m.", sortOrder));
+                        if (limit != null) {
+                            query.append(" LIMIT ");
+                            query.append(limit);
+                        }
 
                         cursor = db.rawQuery(query.toString(), selectionArgs);
                     } else {
                         cursor = db.query(MESSAGES_TABLE, projection, where, selectionArgs, null,
-                                null, sortOrder);
+                                null, sortOrder, limit);
                     }
 
                     return cursor;
@@ -362,7 +400,8 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getThreadedMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final String limit) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -422,6 +461,10 @@ public class EmailProvider extends ContentProvider {
                         query.append(SqlQueryBuilder.addPrefixToSelection(
                                 FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
                     }
+                    if (limit != null) {
+                        query.append(" LIMIT ");
+                        query.append(limit);
+                    }
 
                     return db.rawQuery(query.toString(), selectionArgs);
                 }
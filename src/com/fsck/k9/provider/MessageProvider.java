@@ -285,17 +285,41 @@ public class MessageProvider extends ContentProvider {
         @Override
         public Cursor query(final Uri uri, final String[] projection, final String selection,
                             final String[] selectionArgs, final String sortOrder) throws Exception {
-            return getMessages(projection);
+            return getMessages(projection, getLimit(uri));
+        }
+
+        /**
+         * Returns the value of {@link #QUERY_PARAMETER_LIMIT}, or {@code -1} if there's no limit.
+         */
+        private int getLimit(final Uri uri) {
+            final String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+            if (limit == null) {
+                return -1;
+            }
+
+            final int value;
+            try {
+                value = Integer.parseInt(limit);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit: " + limit, e);
+            }
+            if (value < 0) {
+                throw new IllegalArgumentException("Negative limit: " + limit);
+            }
+
+            return value;
         }
 
         /**
          * @param projection
          *            Projection to use. If <code>null</code>, use the default
          *            projection.
+         * @param limit
+         *            Maximum number of messages to return, <code>-1</code> for all.
          * @return Never <code>null</code>.
          * @throws InterruptedException
          */
-        protected MatrixCursor getMessages(final String[] projection) throws InterruptedException {
+        protected MatrixCursor getMessages(final String[] projection, final int limit) throws InterruptedException {
             final BlockingQueue<List<MessageInfoHolder>> queue = new SynchronousQueue<List<MessageInfoHolder>>();
 
             // new code for integrated inbox, only execute this once as it will be processed afterwards via the listener
@@ -303,12 +327,11 @@ public class MessageProvider extends ContentProvider {
             final MessagingController msgController = MessagingController.getInstance(K9.app);
 
             msgController.searchLocalMessages(integratedInboxAccount.getRelatedSearch(),
-                                              new MesssageInfoHolderRetrieverListener(queue));
-
-            final List<MessageInfoHolder> holders = queue.take();
+                                              new MesssageInfoHolderRetrieverListener(queue), limit);
 
+            // The messages are reported newest first
             // TODO add sort order parameter
-            Collections.sort(holders, new ReverseDateComparator());
+            final List<MessageInfoHolder> holders = queue.take();
 
             final String[] projectionToUse;
             if (projection == null) {
@@ -936,6 +959,12 @@ public class MessageProvider extends ContentProvider {
 
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * Optional query parameter of {@code inbox_messages/} that limits the number of returned
+     * messages.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     private static final String[] DEFAULT_MESSAGE_PROJECTION = new String[] {
         MessageColumns._ID,
         MessageColumns.SEND_DATE,
@@ -1103,6 +1132,9 @@ public class MessageProvider extends ContentProvider {
             // back to retrieve the handler from the list
             final QueryHandler handler = mQueryHandlers.get(code);
             cursor = handler.query(uri, projection, selection, selectionArgs, sortOrder);
+        } catch (IllegalArgumentException e) {
+            // Invalid query parameters are the caller's fault, like an unrecognized URI
+            throw e;
         } catch (Exception e) {
             Log.e(K9.LOG_TAG, "Unable to execute query for URI: " + uri, e);
             return null;
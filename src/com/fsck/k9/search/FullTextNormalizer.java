@@ -0,0 +1,55 @@
+package com.fsck.k9.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits text into the words that are stored in and searched for in the full-text index.
+ *
+ * <p>
+ * SQLite's {@code simple} tokenizer only lower-cases ASCII letters and treats every non-ASCII
+ * character, including punctuation like typographic quotes, as part of a word. So the text is
+ * split and lower-cased here before it is written to the index, and search terms are
+ * processed the same way. The tokenizer then only sees lower-case words separated by spaces.
+ * </p>
+ */
+public class FullTextNormalizer {
+
+    /**
+     * Returns the words of {@code text}, lower-cased and separated by single spaces.
+     */
+    public static String normalize(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        StringBuilder normalized = new StringBuilder(text.length());
+        for (String word : getWords(text)) {
+            if (normalized.length() > 0) {
+                normalized.append(' ');
+            }
+            normalized.append(word);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Returns the lower-cased words of {@code text}. A word is a sequence of letters and digits.
+     */
+    public static List<String> getWords(String text) {
+        List<String> words = new ArrayList<String>();
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordChar = (i < length) && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start == -1) {
+                start = i;
+            } else if (!wordChar && start != -1) {
+                words.add(text.substring(start, i).toLowerCase(Locale.US));
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,132 @@
+package com.fsck.k9.search;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several sorted iterators into one sorted iterator.
+ *
+ * <p>
+ * The head element of every source is kept in a heap. Each call to {@link #next()} takes the
+ * smallest head and reads one more element from the source it came from. So the first
+ * {@code n} results only require reading at most {@code n} elements from each source, which
+ * allows the sources to load their elements lazily.
+ * </p>
+ * <p>
+ * Elements that compare equal are returned in the order of the sources.
+ * </p>
+ *
+ * @param <T>
+ *         The type of the elements.
+ */
+public class MergingIterator<T> implements Iterator<T> {
+    private final PriorityQueue<Head<T>> mHeap;
+    private final List<? extends Iterator<? extends T>> mSources;
+    private boolean mInitialized = false;
+
+
+    /**
+     * @param sources
+     *         The iterators to merge. Each one has to return its elements in the order defined by
+     *         {@code comparator}.
+     * @param comparator
+     *         The order of the elements.
+     */
+    public MergingIterator(List<? extends Iterator<? extends T>> sources,
+            final Comparator<? super T> comparator) {
+        mSources = sources;
+        mHeap = new PriorityQueue<Head<T>>(Math.max(sources.size(), 1), new Comparator<Head<T>>() {
+            @Override
+            public int compare(Head<T> lhs, Head<T> rhs) {
+                int result = comparator.compare(lhs.element, rhs.element);
+                return (result != 0) ? result : lhs.sourceIndex - rhs.sourceIndex;
+            }
+        });
+    }
+
+    @Override
+    public boolean hasNext() {
+        initialize();
+        return !mHeap.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        initialize();
+
+        Head<T> head = mHeap.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+
+        T element = head.element;
+        advance(head);
+
+        return element;
+    }
+
+    /**
+     * Returns the index of the source the element returned by the next call to {@link #next()}
+     * comes from.
+     *
+     * @throws NoSuchElementException
+     *         if there are no more elements.
+     */
+    public int peekSourceIndex() {
+        initialize();
+
+        Head<T> head = mHeap.peek();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+
+        return head.sourceIndex;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Reads the first element of every source. This is deferred until the first access so the
+     * sources are only queried when the result is actually used.
+     */
+    private void initialize() {
+        if (mInitialized) {
+            return;
+        }
+
+        for (int i = 0, len = mSources.size(); i < len; i++) {
+            advance(new Head<T>(i));
+        }
+        mInitialized = true;
+    }
+
+    /**
+     * Reuses {@code head} for the next element of its source, or drops it if the source is
+     * exhausted.
+     */
+    private void advance(Head<T> head) {
+        Iterator<? extends T> source = mSources.get(head.sourceIndex);
+        if (source.hasNext()) {
+            head.element = source.next();
+            mHeap.add(head);
+        } else {
+            head.element = null;
+        }
+    }
+
+
+    private static class Head<T> {
+        final int sourceIndex;
+        T element;
+
+        Head(int sourceIndex) {
+            this.sourceIndex = sourceIndex;
+        }
+    }
+}
@@ -44,7 +44,14 @@ public interface SearchSpecification extends Parcelable {
         NOT_STARTSWITH,
 
         ENDSWITH,
-        NOT_ENDSWITH
+        NOT_ENDSWITH,
+
+        /**
+         * Full-text match against the search index. Every word of the value has to be found as
+         * a word or word prefix. Only supported for {@link Searchfield#MESSAGE_CONTENTS}; other
+         * fields are treated like {@link #CONTAINS}.
+         */
+        MATCHES
     }
 
     ///////////////////////////////////////////////////////////////
@@ -3,6 +3,7 @@ package com.fsck.k9.search;
 import java.util.List;
 
 import com.fsck.k9.Account;
+import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.store.LocalStore;
@@ -72,8 +73,16 @@ public class SqlQueryBuilder {
                     }
                     break;
                 }
+                case FLAG: {
+                    appendFlagCondition(condition, query);
+                    break;
+                }
                 default: {
-                    appendCondition(condition, query, selectionArgs);
+                    if (condition.attribute == Attribute.MATCHES) {
+                        appendFullTextCondition(account, condition, query, selectionArgs);
+                    } else {
+                        appendCondition(condition, query, selectionArgs);
+                    }
                 }
             }
         } else {
@@ -93,6 +102,94 @@ public class SqlQueryBuilder {
         appendExprRight(condition, query, selectionArgs);
     }
 
+    /**
+     * Tests a flag using its column or its bit in {@code flag_bits}. The value of the condition
+     * is the name of a {@link Flag}. All negated attributes test for the flag not being set.
+     */
+    private static void appendFlagCondition(SearchCondition condition, StringBuilder query) {
+        Flag flag;
+        try {
+            flag = Flag.valueOf(condition.value);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Unknown flag: " + condition.value);
+        }
+
+        boolean set;
+        switch (condition.attribute) {
+            case NOT_CONTAINS:
+            case NOT_EQUALS:
+            case NOT_STARTSWITH:
+            case NOT_ENDSWITH: {
+                set = false;
+                break;
+            }
+            default: {
+                set = true;
+                break;
+            }
+        }
+
+        if (flag == Flag.DELETED) {
+            query.append("deleted = ").append(set ? "1" : "0");
+            return;
+        }
+
+        int bit = LocalStore.getFlagBit(flag);
+        if (bit != 0) {
+            query.append("(flag_bits & ").append(bit).append(set ? ") != 0" : ") = 0");
+        } else {
+            query.append(LocalStore.getColumnNameForFlag(flag)).append(set ? " = 1" : " = 0");
+        }
+    }
+
+    private static void appendFullTextCondition(Account account, SearchCondition condition,
+            StringBuilder query, List<String> selectionArgs) {
+        String matchQuery = (condition.field == Searchfield.MESSAGE_CONTENTS) ?
+                buildFullTextQuery(condition.value) : null;
+
+        if (matchQuery != null && isFullTextIndexComplete(account)) {
+            query.append("id IN (SELECT docid FROM messages_fulltext WHERE messages_fulltext MATCH ?)");
+            selectionArgs.add(matchQuery);
+        } else {
+            // Fall back to a substring search while the index is still being built
+            query.append(getColumnName(condition));
+            query.append(" LIKE ?");
+            selectionArgs.add("%" + condition.value + "%");
+        }
+    }
+
+    /**
+     * Converts the user's search string into an FTS query that matches messages containing all
+     * of the words (or words starting with them).
+     *
+     * <p>
+     * The words are normalized with {@link FullTextNormalizer}, like the indexed text. They are
+     * lower-cased, so words like "or" and "near" aren't parsed as operators.
+     * </p>
+     *
+     * @return The query or {@code null} if {@code value} doesn't contain any words.
+     */
+    static String buildFullTextQuery(String value) {
+        StringBuilder matchQuery = new StringBuilder();
+        for (String word : FullTextNormalizer.getWords(value)) {
+            if (matchQuery.length() > 0) {
+                matchQuery.append(' ');
+            }
+            matchQuery.append(word);
+            matchQuery.append('*');
+        }
+
+        return (matchQuery.length() > 0) ? matchQuery.toString() : null;
+    }
+
+    private static boolean isFullTextIndexComplete(Account account) {
+        try {
+            return account.getLocalStore().isFullTextIndexComplete();
+        } catch (MessagingException e) {
+            return false;
+        }
+    }
+
     private static long getFolderId(Account account, String folderName) {
         long folderId = 0;
         try {
@@ -132,7 +229,7 @@ public class SqlQueryBuilder {
                 break;
             }
             case FLAG: {
-                columnName = "flags";
+                columnName = "flag_bits";
                 break;
             }
             case ID: {
@@ -208,6 +305,7 @@ public class SqlQueryBuilder {
             case NOT_CONTAINS:
                 query.append("NOT ");
                 //$FALL-THROUGH$
+            case MATCHES:
             case CONTAINS: {
                 query.append("LIKE ?");
                 selectionArg = "%" + value + "%";
@@ -3,8 +3,10 @@ package android.util;
 public class Log {
     public static int v(String tag, String message) { return 0; }
     public static int d(String tag, String message) { return 0; }
+    public static int d(String tag, String message, Throwable th) { return 0; }
     public static int i(String tag, String message) { return 0; }
     public static int w(String tag, String message) { return 0; }
+    public static int w(String tag, String message, Throwable th) { return 0; }
     public static int e(String tag, String message) { return 0; }
     public static int e(String tag, String message, Throwable th) { return 0; }
 }
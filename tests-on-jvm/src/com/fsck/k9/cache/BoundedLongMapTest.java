@@ -0,0 +1,92 @@
+package com.fsck.k9.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class BoundedLongMapTest extends TestCase {
+
+    public void testSetAndClearBits() {
+        BoundedLongMap map = new BoundedLongMap(10);
+        map.setBits(Arrays.asList(1L, 2L), 0x3, 0x3);
+        map.setBits(Arrays.asList(2L, 3L), 0xC, 0x4);
+
+        assertEquals(3, map.size());
+        assertEquals(0x3, map.get(1, -1));
+        assertEquals(0x7, map.get(2, -1));
+        assertEquals(0x4, map.get(3, -1));
+        assertEquals(-1, map.get(4, -1));
+
+        map.clearBits(Arrays.asList(1L, 2L, 4L), 0x3);
+        assertEquals("entries without bits are removed", -1, map.get(1, -1));
+        assertEquals(0x4, map.get(2, -1));
+        assertEquals(2, map.size());
+
+        assertEquals(4, map.getHitCount());
+        assertEquals(2, map.getMissCount());
+    }
+
+    public void testPutAndRemoveIfMapped() {
+        BoundedLongMap map = new BoundedLongMap(10);
+        map.putAll(new long[] { 1, 2 }, new long[] { 10, 20 });
+        map.putAll(new long[] { 2 }, new long[] { 21 });
+
+        map.removeAll(new long[] { 1, 2 }, new long[] { 10, 20 });
+        assertEquals(-1, map.get(1, -1));
+        assertEquals("value changed, so the entry stays", 21, map.get(2, -1));
+    }
+
+    public void testDuplicateKeysInOneWrite() {
+        BoundedLongMap map = new BoundedLongMap(10);
+        map.putAll(new long[] { 5, 5, 5 }, new long[] { 1, 2, 3 });
+
+        assertEquals(1, map.size());
+        assertEquals(3, map.get(5, -1));
+    }
+
+    public void testLeastRecentlyUsedEntriesAreEvicted() {
+        BoundedLongMap map = new BoundedLongMap(8);
+        List<Long> keys = new ArrayList<Long>();
+        for (long key = 1; key <= 8; key++) {
+            keys.add(key);
+        }
+        map.setBits(keys, 1, 1);
+
+        // Use the first half of the entries so the second half is evicted
+        for (long key = 1; key <= 4; key++) {
+            assertEquals(1, map.get(key, 0));
+        }
+        map.setBits(Arrays.asList(9L), 1, 1);
+
+        assertEquals(6, map.size());
+        assertEquals(3, map.getEvictionCount());
+        for (long key = 1; key <= 4; key++) {
+            assertEquals(1, map.get(key, 0));
+        }
+        assertEquals(1, map.get(9, 0));
+        assertEquals(0, map.get(5, 0));
+        assertEquals(0, map.get(6, 0));
+        assertEquals(0, map.get(7, 0));
+        assertEquals(1, map.get(8, 0));
+    }
+
+    public void testLargeBatch() {
+        BoundedLongMap map = new BoundedLongMap(100000);
+        List<Long> keys = new ArrayList<Long>();
+        for (long key = 1; key <= 20000; key++) {
+            keys.add(key * 1000);
+        }
+        map.setBits(keys, 1, 1);
+
+        assertEquals(20000, map.size());
+        for (Long key : keys) {
+            assertEquals(1, map.get(key, 0));
+        }
+        assertEquals(0, map.get(1, 0));
+
+        map.clearBits(keys, 1);
+        assertTrue(map.isEmpty());
+    }
+}
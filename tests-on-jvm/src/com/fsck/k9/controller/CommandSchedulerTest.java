@@ -0,0 +1,122 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.controller.CommandScheduler.Priority;
+import com.fsck.k9.controller.CommandScheduler.Task;
+
+public class CommandSchedulerTest extends TestCase {
+    private CommandScheduler<Task> mScheduler = new CommandScheduler<Task>(20, 100);
+
+
+    public void testHigherPriorityGoesFirst() throws Exception {
+        mScheduler.put(task(Priority.MAINTENANCE, "a", null, "compact"));
+        mScheduler.put(task(Priority.POLL, "a", null, "poll"));
+        mScheduler.put(task(Priority.INTERACTIVE, "a", null, "view"));
+        mScheduler.put(task(Priority.USER_ACTION, null, null, "move"));
+
+        assertEquals("view", mScheduler.take().description);
+        assertEquals("move", mScheduler.take().description);
+        assertEquals("poll", mScheduler.take().description);
+        assertEquals("compact", mScheduler.take().description);
+        assertTrue(mScheduler.isEmpty());
+    }
+
+    public void testAccountsTakeTurns() throws Exception {
+        mScheduler.put(task(Priority.POLL, "a", null, "a1"));
+        mScheduler.put(task(Priority.POLL, "a", null, "a2"));
+        mScheduler.put(task(Priority.POLL, "a", null, "a3"));
+        mScheduler.put(task(Priority.POLL, "b", null, "b1"));
+        mScheduler.put(task(Priority.POLL, "c", null, "c1"));
+        mScheduler.put(task(Priority.POLL, "b", null, "b2"));
+
+        assertEquals("a1 b1 c1 a2 b2 a3", takeAll());
+    }
+
+    public void testDuplicateIsDropped() throws Exception {
+        assertTrue(mScheduler.put(task(Priority.USER_ACTION, "a", "sync:a:INBOX", "sync1")));
+        assertTrue(mScheduler.put(task(Priority.USER_ACTION, "a", null, "move")));
+        assertFalse(mScheduler.put(task(Priority.USER_ACTION, "a", "sync:a:INBOX", "sync2")));
+
+        assertEquals("sync1 move", takeAll());
+
+        // Once taken, the key may be queued again
+        assertTrue(mScheduler.put(task(Priority.USER_ACTION, "a", "sync:a:INBOX", "sync3")));
+        assertEquals("sync3", takeAll());
+    }
+
+    public void testDuplicateRaisesPriority() throws Exception {
+        mScheduler.put(task(Priority.MAINTENANCE, "a", "sync:a:INBOX", "sync"));
+        mScheduler.put(task(Priority.POLL, "a", null, "poll"));
+        assertFalse(mScheduler.put(task(Priority.USER_ACTION, "a", "sync:a:INBOX", "sync2")));
+
+        assertEquals("sync poll", takeAll());
+    }
+
+    public void testPromote() throws Exception {
+        mScheduler.put(task(Priority.POLL, "a", "sync:a:INBOX", "sync"));
+        mScheduler.put(task(Priority.PUSH, "a", null, "push"));
+
+        assertFalse(mScheduler.promote("sync:a:Sent", Priority.USER_ACTION));
+        assertTrue(mScheduler.promote("sync:a:INBOX", Priority.USER_ACTION));
+        // Never lowers the priority
+        assertTrue(mScheduler.promote("sync:a:INBOX", Priority.MAINTENANCE));
+
+        assertEquals("sync push", takeAll());
+    }
+
+    public void testRetryBacksOffExponentially() throws Exception {
+        Task task = task(Priority.USER_ACTION, "a", null, "retry");
+        assertEquals(20, mScheduler.retryLater(task));
+        assertEquals("retry", mScheduler.take().description);
+
+        assertEquals(40, mScheduler.retryLater(task));
+        assertEquals(80, mScheduler.retryLater(task));
+        assertEquals(100, mScheduler.retryLater(task));
+        assertEquals(100, mScheduler.retryLater(task));
+        for (int i = 0; i < 4; i++) {
+            assertSame(task, mScheduler.take());
+        }
+    }
+
+    public void testTakeWaitsForCommand() throws Exception {
+        final List<String> taken = new ArrayList<String>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    taken.add(mScheduler.take().description);
+                } catch (InterruptedException e) {
+                    // ends the test thread
+                }
+            }
+        };
+        thread.start();
+
+        Thread.sleep(50);
+        assertTrue(taken.isEmpty());
+        mScheduler.put(task(Priority.POLL, "a", null, "late"));
+        thread.join(1000);
+
+        assertEquals("[late]", taken.toString());
+    }
+
+
+    private String takeAll() throws InterruptedException {
+        StringBuilder result = new StringBuilder();
+        while (!mScheduler.isEmpty()) {
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(mScheduler.take().description);
+        }
+        return result.toString();
+    }
+
+    private static Task task(Priority priority, String accountUuid, String key, String description) {
+        return new Task(priority, accountUuid, key, description, null);
+    }
+}
@@ -0,0 +1,191 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.mail.MessagingException;
+
+public class DownloadPipelineTest extends TestCase {
+    private ExecutorService mWorkers;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWorkers = Executors.newFixedThreadPool(3);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWorkers.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testItemsAreStoredInOrderAndInBatches() {
+        RecordingHandler handler = new RecordingHandler();
+        DownloadPipeline<Integer, String, String> pipeline =
+                new DownloadPipeline<Integer, String, String>(handler, mWorkers, 10, 50, true);
+        for (int i = 0; i < 200; i++) {
+            pipeline.add(i);
+        }
+        pipeline.finish();
+
+        assertEquals(200, handler.stored.size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals("stored:" + i, handler.stored.get(i));
+        }
+        assertTrue(handler.batches.get() < 200);
+        assertTrue(handler.maxBatchSize <= 10);
+        assertTrue(handler.failed.isEmpty());
+    }
+
+    public void testUnorderedPipelineStoresEverything() {
+        RecordingHandler handler = new RecordingHandler();
+        DownloadPipeline<Integer, String, String> pipeline =
+                new DownloadPipeline<Integer, String, String>(handler, mWorkers, 7, 20, false);
+        for (int i = 0; i < 100; i++) {
+            pipeline.add(i);
+        }
+        pipeline.finish();
+
+        assertEquals(100, handler.stored.size());
+        assertEquals(100, new HashSet<String>(handler.stored).size());
+    }
+
+    public void testFailuresOnlyAffectTheirItem() {
+        RecordingHandler handler = new RecordingHandler();
+        handler.prepareFailure = 3;
+        handler.storeFailure = 7;
+        DownloadPipeline<Integer, String, String> pipeline =
+                new DownloadPipeline<Integer, String, String>(handler, mWorkers, 5, 10, true);
+        for (int i = 0; i < 20; i++) {
+            pipeline.add(i);
+        }
+        pipeline.finish();
+
+        assertEquals(18, handler.stored.size());
+        assertFalse(handler.stored.contains("stored:3"));
+        assertFalse(handler.stored.contains("stored:7"));
+        assertEquals(2, handler.failed.size());
+        assertTrue(handler.failed.contains(3));
+        assertTrue(handler.failed.contains(7));
+    }
+
+    public void testCapacityLimitsItemsInFlight() {
+        RecordingHandler handler = new RecordingHandler();
+        handler.storeDelay = 5;
+        DownloadPipeline<Integer, String, String> pipeline =
+                new DownloadPipeline<Integer, String, String>(handler, mWorkers, 2, 4, true);
+        for (int i = 0; i < 30; i++) {
+            pipeline.add(i);
+            assertTrue(i + 1 - handler.done.get() <= 4);
+        }
+        pipeline.finish();
+
+        assertEquals(30, handler.stored.size());
+    }
+
+    public void testUnexpectedExceptionIsRethrown() {
+        RecordingHandler handler = new RecordingHandler();
+        handler.crash = 2;
+        DownloadPipeline<Integer, String, String> pipeline =
+                new DownloadPipeline<Integer, String, String>(handler, mWorkers, 1, 2, true);
+        try {
+            for (int i = 0; i < 10; i++) {
+                pipeline.add(i);
+            }
+            pipeline.finish();
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            assertEquals("crash", e.getMessage());
+        }
+    }
+
+    public void testPipelinesShareTheWorkers() {
+        RecordingHandler first = new RecordingHandler();
+        RecordingHandler second = new RecordingHandler();
+        DownloadPipeline<Integer, String, String> firstPipeline =
+                new DownloadPipeline<Integer, String, String>(first, mWorkers, 5, 10, true);
+        DownloadPipeline<Integer, String, String> secondPipeline =
+                new DownloadPipeline<Integer, String, String>(second, mWorkers, 5, 10, false);
+        for (int i = 0; i < 50; i++) {
+            firstPipeline.add(i);
+            secondPipeline.add(i);
+        }
+        firstPipeline.finish();
+        assertEquals(50, first.stored.size());
+        secondPipeline.finish();
+        assertEquals(50, new HashSet<String>(second.stored).size());
+
+        assertFalse(mWorkers.isShutdown());
+        DownloadPipeline<Integer, String, String> thirdPipeline =
+                new DownloadPipeline<Integer, String, String>(first, mWorkers, 5, 10, true);
+        thirdPipeline.add(50);
+        thirdPipeline.finish();
+        assertEquals("stored:50", first.stored.get(50));
+    }
+
+
+    private static class RecordingHandler implements DownloadPipeline.Handler<Integer, String, String> {
+        final List<String> stored = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> failed = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        volatile int maxBatchSize = 0;
+        int prepareFailure = -1;
+        int storeFailure = -1;
+        int crash = -1;
+        long storeDelay = 0;
+
+        @Override
+        public String prepare(Integer item) throws MessagingException {
+            if (item == prepareFailure) {
+                throw new MessagingException("prepare " + item);
+            }
+            return Integer.toString(item);
+        }
+
+        @Override
+        public List<String> store(List<String> items) throws MessagingException {
+            if (storeDelay > 0) {
+                try {
+                    Thread.sleep(storeDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            batches.incrementAndGet();
+            maxBatchSize = Math.max(maxBatchSize, items.size());
+
+            List<String> result = new ArrayList<String>(items.size());
+            for (String item : items) {
+                if (item.equals(Integer.toString(storeFailure))) {
+                    throw new MessagingException("store " + item);
+                }
+                if (item.equals(Integer.toString(crash))) {
+                    throw new IllegalStateException("crash");
+                }
+                result.add("stored:" + item);
+            }
+            return result;
+        }
+
+        @Override
+        public void stored(Integer item, String result) {
+            stored.add(result);
+            done.incrementAndGet();
+        }
+
+        @Override
+        public void failed(Integer item, MessagingException e) {
+            failed.add(item);
+            done.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.fsck.k9.controller;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class FolderSyncSchedulerTest extends TestCase {
+    private final ConcurrentHashMap<String, AtomicInteger> mRunning = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentHashMap<String, AtomicInteger> mMaxRunning = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger mTotalRunning = new AtomicInteger();
+    private final AtomicInteger mMaxTotalRunning = new AtomicInteger();
+
+    public void testPerAccountAndGlobalLimits() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(4);
+        CountDownLatch finished = new CountDownLatch(30);
+
+        for (int i = 0; i < 10; i++) {
+            scheduler.submit("a", 1, null, new FakeSync("a", finished));
+            scheduler.submit("b", 2, null, new FakeSync("b", finished));
+            scheduler.submit("c", 3, null, new FakeSync("c", finished));
+        }
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(1, mMaxRunning.get("a").get());
+        assertTrue(mMaxRunning.get("b").get() <= 2);
+        assertTrue(mMaxRunning.get("c").get() <= 3);
+        assertTrue(mMaxTotalRunning.get() <= 4);
+        assertTrue("Accounts weren't synchronized in parallel", mMaxTotalRunning.get() > 1);
+
+        waitUntilIdle(scheduler);
+    }
+
+    public void testTasksOfAnAccountRunInOrder() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(4);
+        final StringBuffer order = new StringBuffer();
+        final CountDownLatch finished = new CountDownLatch(5);
+
+        for (int i = 0; i < 5; i++) {
+            final int number = i;
+            scheduler.submit("a", 1, null, new Runnable() {
+                @Override
+                public void run() {
+                    order.append(number);
+                    finished.countDown();
+                }
+            });
+        }
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals("01234", order.toString());
+        waitUntilIdle(scheduler);
+    }
+
+    public void testFailingTaskReleasesSlot() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        scheduler.submit("a", 1, null, new Runnable() {
+            @Override
+            public void run() {
+                throw new RuntimeException("sync failed");
+            }
+        });
+        scheduler.submit("a", 1, null, new Runnable() {
+            @Override
+            public void run() {
+                finished.countDown();
+            }
+        });
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        waitUntilIdle(scheduler);
+    }
+
+    public void testPromoteMovesWaitingTaskToFront() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(1);
+        final StringBuffer order = new StringBuffer();
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(4);
+
+        scheduler.submit("a", 1, "running", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                finished.countDown();
+            }
+        });
+        scheduler.submit("a", 1, "a1", new OrderedSync("1", order, finished));
+        scheduler.submit("b", 1, "b2", new OrderedSync("2", order, finished));
+        scheduler.submit("a", 1, "a3", new OrderedSync("3", order, finished));
+
+        assertTrue(scheduler.promote("a3"));
+        assertFalse("A running task can't be promoted", scheduler.promote("running"));
+        assertFalse(scheduler.promote("unknown"));
+        blocker.countDown();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals("312", order.toString());
+        assertFalse("A finished task can't be promoted", scheduler.promote("a3"));
+        waitUntilIdle(scheduler);
+    }
+
+    public void testPromoteGivesAccountNextSlot() throws Exception {
+        FolderSyncScheduler scheduler = new FolderSyncScheduler(1);
+        final StringBuffer order = new StringBuffer();
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(3);
+
+        scheduler.submit("a", 1, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                finished.countDown();
+            }
+        });
+        scheduler.submit("a", 1, "a1", new OrderedSync("1", order, finished));
+        scheduler.submit("b", 1, "b2", new OrderedSync("2", order, finished));
+
+        assertTrue(scheduler.promote("b2"));
+        blocker.countDown();
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals("21", order.toString());
+        waitUntilIdle(scheduler);
+    }
+
+    private void waitUntilIdle(FolderSyncScheduler scheduler) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (scheduler.isBusy() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(scheduler.isBusy());
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while ((current = max.get()) < value && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    private static class OrderedSync implements Runnable {
+        private final String mName;
+        private final StringBuffer mOrder;
+        private final CountDownLatch mFinished;
+
+        OrderedSync(String name, StringBuffer order, CountDownLatch finished) {
+            mName = name;
+            mOrder = order;
+            mFinished = finished;
+        }
+
+        @Override
+        public void run() {
+            mOrder.append(mName);
+            mFinished.countDown();
+        }
+    }
+
+    private class FakeSync implements Runnable {
+        private final String mAccount;
+        private final CountDownLatch mFinished;
+
+        FakeSync(String account, CountDownLatch finished) {
+            mAccount = account;
+            mFinished = finished;
+            mRunning.putIfAbsent(account, new AtomicInteger());
+            mMaxRunning.putIfAbsent(account, new AtomicInteger());
+        }
+
+        @Override
+        public void run() {
+            updateMax(mMaxRunning.get(mAccount), mRunning.get(mAccount).incrementAndGet());
+            updateMax(mMaxTotalRunning, mTotalRunning.incrementAndGet());
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                // ignore
+            } finally {
+                mTotalRunning.decrementAndGet();
+                mRunning.get(mAccount).decrementAndGet();
+                mFinished.countDown();
+            }
+        }
+    }
+}
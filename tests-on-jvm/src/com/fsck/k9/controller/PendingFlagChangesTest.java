@@ -0,0 +1,67 @@
+package com.fsck.k9.controller;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.controller.PendingFlagChanges.FlagChange;
+import com.fsck.k9.mail.Flag;
+
+public class PendingFlagChangesTest extends TestCase {
+
+    public void testChangesOfTheSameFlagAreCombined() {
+        PendingFlagChanges changes = new PendingFlagChanges();
+        changes.add(Flag.SEEN, true, new String[] { "1", "2" });
+        changes.add(Flag.SEEN, true, new String[] { "3" });
+        changes.add(Flag.SEEN, true, new String[] { "2", "4" });
+
+        List<FlagChange> result = changes.getChanges();
+        assertEquals(1, result.size());
+        assertChange(result.get(0), true, new Flag[] { Flag.SEEN }, "1", "2", "3", "4");
+    }
+
+    public void testLaterChangeWins() {
+        PendingFlagChanges changes = new PendingFlagChanges();
+        changes.add(Flag.SEEN, true, new String[] { "1", "2", "3" });
+        changes.add(Flag.SEEN, false, new String[] { "2" });
+        changes.add(Flag.SEEN, true, new String[] { "5" });
+        changes.add(Flag.SEEN, false, new String[] { "5" });
+
+        List<FlagChange> result = changes.getChanges();
+        assertEquals(2, result.size());
+        assertChange(result.get(0), true, new Flag[] { Flag.SEEN }, "1", "3");
+        assertChange(result.get(1), false, new Flag[] { Flag.SEEN }, "2", "5");
+    }
+
+    public void testFlagsWithTheSameMessagesAreCombined() {
+        PendingFlagChanges changes = new PendingFlagChanges();
+        changes.add(Flag.FLAGGED, true, new String[] { "1", "2" });
+        changes.add(Flag.SEEN, true, new String[] { "2", "1" });
+        changes.add(Flag.ANSWERED, true, new String[] { "1" });
+        changes.add(Flag.DELETED, false, new String[] { "1", "2" });
+
+        List<FlagChange> result = changes.getChanges();
+        assertEquals(3, result.size());
+        assertChange(result.get(0), true, new Flag[] { Flag.SEEN, Flag.FLAGGED }, "2", "1");
+        assertChange(result.get(1), true, new Flag[] { Flag.ANSWERED }, "1");
+        assertChange(result.get(2), false, new Flag[] { Flag.DELETED }, "1", "2");
+    }
+
+    public void testEmpty() {
+        PendingFlagChanges changes = new PendingFlagChanges();
+        assertTrue(changes.isEmpty());
+        assertTrue(changes.getChanges().isEmpty());
+
+        changes.add(Flag.SEEN, true, new String[0]);
+        assertTrue(changes.getChanges().isEmpty());
+    }
+
+
+    private static void assertChange(FlagChange change, boolean newState, Flag[] flags,
+            String... uids) {
+        assertEquals(newState, change.newState);
+        assertEquals(Arrays.asList(flags), change.flags);
+        assertEquals(Arrays.asList(uids), Arrays.asList(change.uids));
+    }
+}
@@ -0,0 +1,66 @@
+package com.fsck.k9.mail.store;
+
+import junit.framework.TestCase;
+
+public class BodyChunkerTest extends TestCase {
+
+    public void testSmallBodiesAreNotChunked() {
+        assertFalse(BodyChunker.needsChunking(null));
+        assertFalse(BodyChunker.needsChunking(""));
+        assertFalse(BodyChunker.needsChunking(repeat('a', BodyChunker.CHUNK_SIZE)));
+        assertTrue(BodyChunker.needsChunking(repeat('a', BodyChunker.CHUNK_SIZE + 1)));
+    }
+
+    public void testChunksReassembleToOriginal() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 3 * BodyChunker.CHUNK_SIZE + 17; i++) {
+            sb.append("<p><img src=\"cid:part").append(i).append("@example.com\"> line ").append(i)
+                    .append("</p>\r\n");
+        }
+        String html = sb.toString();
+
+        StringBuilder reassembled = new StringBuilder();
+        int chunks = 0;
+        for (int start = 0; start < html.length(); chunks++) {
+            int end = BodyChunker.nextChunkEnd(html, start);
+            assertTrue(end > start);
+            assertTrue(end - start <= BodyChunker.CHUNK_SIZE);
+
+            String chunk = html.substring(start, end);
+            // No cid: reference may be split between two chunks
+            assertFalse(chunk.matches("(?s).*cid:[^\"]*"));
+            reassembled.append(chunk);
+            start = end;
+        }
+
+        assertEquals(4, chunks);
+        assertEquals(html, reassembled.toString());
+    }
+
+    public void testSplitsAfterPreferredCharacter() {
+        String text = "aaaaaaa bbbbbbbbbbbbbbb";
+
+        assertEquals(8, BodyChunker.nextChunkEnd(text, 0, 12));
+    }
+
+    public void testHardSplitWithoutPreferredCharacter() {
+        String text = repeat('x', 50);
+
+        assertEquals(20, BodyChunker.nextChunkEnd(text, 0, 20));
+        assertEquals(50, BodyChunker.nextChunkEnd(text, 40, 20));
+    }
+
+    public void testSurrogatePairIsNotSplit() {
+        String text = repeat('x', 19) + "😀" + repeat('x', 20);
+
+        assertEquals(19, BodyChunker.nextChunkEnd(text, 0, 20));
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
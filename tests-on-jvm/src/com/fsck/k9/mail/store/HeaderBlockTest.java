@@ -0,0 +1,78 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class HeaderBlockTest extends TestCase {
+
+    public void testRoundTrip() {
+        HeaderBlock block = new HeaderBlock();
+        block.add("Subject", "Grüße aus Zürich");
+        block.add("Received", "from mx.example.com");
+        block.add("Received", "from localhost");
+        block.add("X-Empty", "");
+
+        HeaderBlock.Reader reader = new HeaderBlock.Reader(block.toByteArray());
+        assertNext(reader, "Subject", "Grüße aus Zürich");
+        assertNext(reader, "Received", "from mx.example.com");
+        assertNext(reader, "Received", "from localhost");
+        assertNext(reader, "X-Empty", "");
+        assertFalse(reader.next());
+    }
+
+    public void testLongValue() {
+        char[] chars = new char[70000];
+        Arrays.fill(chars, 'a');
+        String value = new String(chars);
+
+        HeaderBlock block = new HeaderBlock();
+        block.add("References", value);
+
+        HeaderBlock.Reader reader = new HeaderBlock.Reader(block.toByteArray());
+        assertNext(reader, "References", value);
+        assertFalse(reader.next());
+    }
+
+    public void testNullValueIsStoredAsEmptyString() {
+        HeaderBlock block = new HeaderBlock();
+        block.add("X-Null", null);
+
+        HeaderBlock.Reader reader = new HeaderBlock.Reader(block.toByteArray());
+        assertNext(reader, "X-Null", "");
+    }
+
+    public void testEmptyBlock() {
+        HeaderBlock.Reader reader = new HeaderBlock.Reader(new HeaderBlock().toByteArray());
+        assertFalse(reader.next());
+    }
+
+    public void testTruncatedBlock() {
+        HeaderBlock block = new HeaderBlock();
+        block.add("Subject", "Hello");
+        byte[] data = block.toByteArray();
+
+        HeaderBlock.Reader reader = new HeaderBlock.Reader(Arrays.copyOf(data, data.length - 2));
+        try {
+            reader.next();
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testUnknownFormat() {
+        try {
+            new HeaderBlock.Reader(new byte[] { 42 });
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void assertNext(HeaderBlock.Reader reader, String name, String value) {
+        assertTrue(reader.next());
+        assertEquals(name, reader.getName());
+        assertEquals(value, reader.getValue());
+    }
+}
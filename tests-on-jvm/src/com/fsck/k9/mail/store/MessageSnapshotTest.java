@@ -0,0 +1,93 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Date;
+
+import com.fsck.k9.mail.Flag;
+import junit.framework.TestCase;
+
+public class MessageSnapshotTest extends TestCase {
+
+    public void testLookupOfNumericAndOtherUids() {
+        MessageSnapshot snapshot = new MessageSnapshot(2);
+        snapshot.add("17", 1, 1000, 0);
+        snapshot.add("K9LOCAL:5b2c", 2, 2000, 0);
+        snapshot.add("007", 3, 3000, 0);
+        snapshot.add("4", 4, 4000, MessageSnapshot.SEEN);
+
+        assertEquals(4, snapshot.size());
+        assertEquals(0, snapshot.indexOf("17"));
+        assertEquals(1, snapshot.indexOf("K9LOCAL:5b2c"));
+        assertEquals(2, snapshot.indexOf("007"));
+        assertEquals(3, snapshot.indexOf("4"));
+        assertEquals(-1, snapshot.indexOf("7"));
+        assertEquals(-1, snapshot.indexOf("18"));
+        assertEquals(-1, snapshot.indexOf(null));
+
+        assertEquals("17", snapshot.getUid(0));
+        assertEquals("K9LOCAL:5b2c", snapshot.getUid(1));
+        assertEquals("007", snapshot.getUid(2));
+        assertEquals(3, snapshot.getId(2));
+        assertEquals(4000, snapshot.getDate(3));
+    }
+
+    public void testManyMessages() {
+        MessageSnapshot snapshot = new MessageSnapshot(0);
+        for (int uid = 1; uid <= 30000; uid++) {
+            snapshot.add(Integer.toString(uid), uid + 100, uid, 0);
+        }
+
+        for (int uid = 1; uid <= 30000; uid += 7) {
+            int index = snapshot.indexOf(Integer.toString(uid));
+            assertEquals(uid - 1, index);
+            assertEquals(uid + 100, snapshot.getId(index));
+        }
+        assertFalse(snapshot.contains("30001"));
+        assertFalse(snapshot.contains("0"));
+    }
+
+    public void testAddAfterLookup() {
+        MessageSnapshot snapshot = new MessageSnapshot(1);
+        snapshot.add("1", 1, 0, 0);
+        assertFalse(snapshot.contains("2"));
+
+        snapshot.add("2", 2, 0, 0);
+        assertTrue(snapshot.contains("2"));
+    }
+
+    public void testFlags() {
+        MessageSnapshot snapshot = new MessageSnapshot(1);
+        snapshot.add("1", 1, 0, (1 << 5) | MessageSnapshot.SEEN | MessageSnapshot.FORWARDED);
+
+        assertTrue(snapshot.isSet(0, Flag.SEEN));
+        assertTrue(snapshot.isSet(0, Flag.FORWARDED));
+        assertFalse(snapshot.isSet(0, Flag.DELETED));
+        assertFalse(snapshot.isSet(0, Flag.FLAGGED));
+        assertFalse(snapshot.isSet(0, Flag.ANSWERED));
+        assertEquals(1 << 5, snapshot.getFlagBits(0));
+
+        try {
+            snapshot.isSet(0, Flag.DRAFT);
+            fail("Flags of the flag_bits column can't be checked with isSet()");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testOlderThan() {
+        MessageSnapshot snapshot = new MessageSnapshot(1);
+        snapshot.add("1", 1, 5000, 0);
+
+        assertFalse(snapshot.olderThan(0, null));
+        assertFalse(snapshot.olderThan(0, new Date(5000)));
+        assertTrue(snapshot.olderThan(0, new Date(5001)));
+    }
+
+    public void testParseUid() {
+        assertEquals(0, MessageSnapshot.parseUid("0"));
+        assertEquals(4294967295L, MessageSnapshot.parseUid("4294967295"));
+        assertEquals(-1, MessageSnapshot.parseUid(""));
+        assertEquals(-1, MessageSnapshot.parseUid("01"));
+        assertEquals(-1, MessageSnapshot.parseUid("-1"));
+        assertEquals(-1, MessageSnapshot.parseUid("1234567890123456789"));
+    }
+}
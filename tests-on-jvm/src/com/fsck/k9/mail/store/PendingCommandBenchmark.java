@@ -0,0 +1,167 @@
+package com.fsck.k9.mail.store;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Compares the URL-encoded, comma-separated format of the arguments of a pending command with
+ * {@link PendingCommandBlock}, for move commands of 100 to 50,000 messages.
+ *
+ * <p>
+ * The old format is encoded and decoded like {@code LocalStore.addPendingCommand()} and
+ * {@code LocalStore.getPendingCommands()} did before the arguments were stored as blocks:
+ * {@link URLEncoder} and {@code Utility.combine()} to encode, {@link String#split(String)} and
+ * {@code Utility.fastUrlDecode()} to decode. {@code Utility} needs the Android classes, so the
+ * two methods are copied here.
+ * </p>
+ *
+ * <p>
+ * The benchmark reports the size of the stored value and the time spent encoding and decoding
+ * it. Decoding happens every time the queue is processed, so it matters more than encoding.
+ * </p>
+ *
+ * <p>Run with {@code java com.fsck.k9.mail.store.PendingCommandBenchmark}.</p>
+ */
+public class PendingCommandBenchmark {
+    private static final int[] MESSAGE_COUNTS = { 100, 5000, 50000 };
+    private static final int ITERATIONS = 20;
+
+    public static void main(String[] args) throws Exception {
+        // Warm up the JIT so the first row isn't mostly interpreted code
+        String[] warmUp = createMoveArguments(MESSAGE_COUNTS[MESSAGE_COUNTS.length - 1]);
+        for (int i = 0; i < ITERATIONS; i++) {
+            decodeText(encodeText(warmUp));
+            PendingCommandBlock.decode(PendingCommandBlock.encode(warmUp));
+        }
+
+        System.out.println(String.format("%8s %12s %12s %10s %10s %10s %10s", "messages",
+                "text bytes", "block bytes", "text enc", "text dec", "block enc", "block dec"));
+
+        for (int count : MESSAGE_COUNTS) {
+            String[] arguments = createMoveArguments(count);
+
+            String text = null;
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                text = encodeText(arguments);
+            }
+            long textEncodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                decodeText(text);
+            }
+            long textDecodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+            byte[] block = null;
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                block = PendingCommandBlock.encode(arguments);
+            }
+            long blockEncodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                PendingCommandBlock.decode(block);
+            }
+            long blockDecodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+            System.out.println(String.format("%8d %12d %12d %8.2f ms %7.2f ms %7.2f ms %7.2f ms",
+                    count, text.getBytes("UTF-8").length, block.length, textEncodeNanos / 1e6,
+                    textDecodeNanos / 1e6, blockEncodeNanos / 1e6, blockDecodeNanos / 1e6));
+        }
+    }
+
+    /**
+     * Arguments of a move command: source folder, destination folder, copy, UID mapping, UIDs.
+     */
+    private static String[] createMoveArguments(int count) {
+        String[] arguments = new String[4 + count];
+        arguments[0] = "INBOX";
+        arguments[1] = "Archive/2013";
+        arguments[2] = "false";
+        arguments[3] = "false";
+        long uid = 250000;
+        for (int i = 0; i < count; i++) {
+            uid += 1 + (i % 7 == 0 ? 5 : 0);
+            arguments[4 + i] = Long.toString(uid);
+        }
+        return arguments;
+    }
+
+    /**
+     * The old {@code LocalStore.addPendingCommand()}.
+     */
+    private static String encodeText(String[] arguments) throws Exception {
+        String[] encoded = new String[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            encoded[i] = URLEncoder.encode(arguments[i], "UTF-8");
+        }
+        return combine(encoded, ',');
+    }
+
+    /**
+     * The old {@code LocalStore.getPendingCommands()}.
+     */
+    private static String[] decodeText(String text) {
+        String[] arguments = text.split(",");
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = fastUrlDecode(arguments[i]);
+        }
+        return arguments;
+    }
+
+    /**
+     * Copy of {@code Utility.combine(Object[], char)}.
+     */
+    private static String combine(Object[] parts, char separator) {
+        if (parts == null) {
+            return null;
+        } else if (parts.length == 0) {
+            return "";
+        } else if (parts.length == 1) {
+            return parts[0].toString();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(parts[0]);
+        for (int i = 1; i < parts.length; ++i) {
+            sb.append(separator);
+            sb.append(parts[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Copy of {@code Utility.fastUrlDecode(String)}.
+     */
+    private static String fastUrlDecode(String s) {
+        try {
+            byte[] bytes = s.getBytes("UTF-8");
+            byte ch;
+            int length = 0;
+            for (int i = 0, count = bytes.length; i < count; i++) {
+                ch = bytes[i];
+                if (ch == '%') {
+                    int h = (bytes[i + 1] - '0');
+                    int l = (bytes[i + 2] - '0');
+                    if (h > 9) {
+                        h -= 7;
+                    }
+                    if (l > 9) {
+                        l -= 7;
+                    }
+                    bytes[length] = (byte)((h << 4) | l);
+                    i += 2;
+                } else if (ch == '+') {
+                    bytes[length] = ' ';
+                } else {
+                    bytes[length] = bytes[i];
+                }
+                length++;
+            }
+            return new String(bytes, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class PendingCommandBlockTest extends TestCase {
+
+    public void testRoundTrip() {
+        assertRoundTrip("INBOX", "Archive", "false", "17", "18", "19", "4294967295", "3");
+        assertRoundTrip("Grüße, Ordner", "a,b%2C", "", "K9LOCAL:12", "007", "-5", "0");
+        assertRoundTrip("1", "2");
+        assertRoundTrip();
+    }
+
+    public void testLongNumbersAreKeptAsStrings() {
+        assertRoundTrip("999999999999999999", "1000000000000000000", "99999999999999999999");
+    }
+
+    public void testNullIsStoredAsEmptyString() {
+        String[] decoded = PendingCommandBlock.decode(
+                PendingCommandBlock.encode(new String[] { "INBOX", null }));
+        assertEquals(Arrays.asList("INBOX", ""), Arrays.asList(decoded));
+    }
+
+    public void testAscendingUidsNeedOneBytePerUid() {
+        String[] arguments = new String[5002];
+        arguments[0] = "INBOX";
+        arguments[1] = "true";
+        for (int i = 2; i < arguments.length; i++) {
+            arguments[i] = Integer.toString(100000 + i * 3);
+        }
+
+        byte[] data = PendingCommandBlock.encode(arguments);
+        assertTrue("size: " + data.length, data.length < 5000 + 32);
+        assertEquals(Arrays.asList(arguments), Arrays.asList(PendingCommandBlock.decode(data)));
+    }
+
+    public void testInvalidData() {
+        byte[] data = PendingCommandBlock.encode(new String[] { "INBOX", "1", "2" });
+
+        assertInvalid(new byte[0]);
+        assertInvalid(new byte[] { 99, 0 });
+        assertInvalid(Arrays.copyOf(data, data.length - 1));
+        assertInvalid(new byte[] { PendingCommandBlock.FORMAT_VERSION, 1, 7 });
+    }
+
+
+    private static void assertRoundTrip(String... arguments) {
+        String[] decoded = PendingCommandBlock.decode(PendingCommandBlock.encode(arguments));
+        assertEquals(Arrays.asList(arguments), Arrays.asList(decoded));
+    }
+
+    private static void assertInvalid(byte[] data) {
+        try {
+            PendingCommandBlock.decode(data);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
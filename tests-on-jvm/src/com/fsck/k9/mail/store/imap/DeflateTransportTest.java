@@ -0,0 +1,134 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.jcraft.jzlib.JZlib;
+import junit.framework.TestCase;
+
+public class DeflateTransportTest extends TestCase {
+    private static final String COMMAND = "5 UID FETCH 1:* (UID FLAGS RFC822.SIZE)\r\n";
+
+
+    public void testCommandsAreFlushedIndividually() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DeflateTransport transport = createTransport(new byte[0], wire, null);
+        OutputStream out = transport.getOutputStream();
+
+        byte[] command = COMMAND.getBytes("US-ASCII");
+        out.write(command);
+        assertEquals("nothing is sent before flush()", 0, wire.size());
+
+        out.flush();
+        assertEquals(COMMAND, inflate(wire.toByteArray()));
+
+        out.write(command);
+        out.flush();
+        assertEquals(COMMAND + COMMAND, inflate(wire.toByteArray()));
+
+        CompressionStats stats = transport.getStats();
+        assertEquals(2 * command.length, stats.getUncompressedBytesOut());
+        assertEquals(wire.size(), stats.getCompressedBytesOut());
+        transport.release();
+    }
+
+    public void testOutputLargerThanBuffer() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DeflateTransport transport = createTransport(new byte[0], wire, null);
+        OutputStream out = transport.getOutputStream();
+
+        // Random letters compress poorly, so the output buffer has to be emptied before flush().
+        byte[] data = new byte[3 * DeflateTransport.BUFFER_SIZE + 17];
+        new Random(42).nextBytes(data);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + (data[i] & 0x0F));
+        }
+        out.write(data, 0, 1000);
+        out.write(data, 1000, data.length - 1000);
+        out.flush();
+
+        assertEquals(new String(data, "US-ASCII"), inflate(wire.toByteArray()));
+        transport.release();
+    }
+
+    public void testInputIsInflatedAndCounted() throws Exception {
+        StringBuilder response = new StringBuilder();
+        for (int i = 1; i <= 200; i++) {
+            response.append("* ").append(i).append(" FETCH (UID ").append(1000 + i)
+                    .append(" FLAGS (\\Seen))\r\n");
+        }
+        byte[] compressed = deflate(response.toString());
+
+        CompressionStats accountStats = new CompressionStats();
+        DeflateTransport transport = createTransport(compressed, new ByteArrayOutputStream(),
+                accountStats);
+        InputStream in = transport.getInputStream();
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int count;
+        while (received.size() < response.length() && (count = in.read(buffer)) != -1) {
+            received.write(buffer, 0, count);
+        }
+
+        assertEquals(response.toString(), received.toString("US-ASCII"));
+        assertEquals(response.length(), transport.getStats().getUncompressedBytesIn());
+        assertEquals(compressed.length, transport.getStats().getCompressedBytesIn());
+        assertEquals(response.length(), accountStats.getUncompressedBytesIn());
+        assertTrue(accountStats.getBytesSaved() > 0);
+        transport.release();
+    }
+
+    public void testAccountStatsSumConnections() throws Exception {
+        CompressionStats accountStats = new CompressionStats();
+        byte[] command = COMMAND.getBytes("US-ASCII");
+        for (int i = 0; i < 2; i++) {
+            DeflateTransport transport = createTransport(new byte[0],
+                    new ByteArrayOutputStream(), accountStats);
+            transport.getOutputStream().write(command);
+            transport.getOutputStream().flush();
+            transport.release();
+        }
+
+        assertEquals(2 * command.length, accountStats.getUncompressedBytesOut());
+    }
+
+
+    private static DeflateTransport createTransport(byte[] input, OutputStream output,
+            CompressionStats accountStats) {
+        return new DeflateTransport(new ByteArrayInputStream(input), output, JZlib.Z_BEST_SPEED,
+                JZlib.Z_PARTIAL_FLUSH, accountStats);
+    }
+
+    private static String inflate(byte[] data) throws Exception {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int count;
+        while ((count = inflater.inflate(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        inflater.end();
+        return out.toString("US-ASCII");
+    }
+
+    private static byte[] deflate(String text) throws Exception {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(text.getBytes("US-ASCII"));
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,85 @@
+package com.fsck.k9.mail.store.imap;
+
+import junit.framework.TestCase;
+
+public class FetchWindowSizerTest extends TestCase {
+
+    public void testFastSmallWindowsGrow() {
+        FetchWindowSizer sizer = new FetchWindowSizer(100);
+
+        sizer.windowCompleted(100, 100, 200, 10 * 1024);
+        assertEquals(200, sizer.getWindowSize());
+
+        sizer.windowCompleted(200, 200, 300, 20 * 1024);
+        assertEquals(400, sizer.getWindowSize());
+
+        sizer.windowCompleted(400, 400, 400, 40 * 1024);
+        assertEquals(FetchWindowSizer.MAX_WINDOW_SIZE, sizer.getWindowSize());
+    }
+
+    public void testSlowWindowsShrink() {
+        FetchWindowSizer sizer = new FetchWindowSizer(100);
+
+        sizer.windowCompleted(100, 100, 5000, 10 * 1024);
+        assertEquals(50, sizer.getWindowSize());
+
+        for (int i = 0; i < 10; i++) {
+            sizer.windowCompleted(sizer.getWindowSize(), sizer.getWindowSize(), 5000, 1024);
+        }
+        assertEquals(FetchWindowSizer.MIN_WINDOW_SIZE, sizer.getWindowSize());
+    }
+
+    public void testLargeResponsesShrinkEvenIfFast() {
+        FetchWindowSizer sizer = new FetchWindowSizer(100);
+
+        sizer.windowCompleted(100, 100, 100, 4 * 1024 * 1024);
+        assertEquals(50, sizer.getWindowSize());
+    }
+
+    public void testWindowInTargetRangeIsKept() {
+        FetchWindowSizer sizer = new FetchWindowSizer(100);
+
+        sizer.windowCompleted(100, 100, 1500, 100 * 1024);
+        assertEquals(100, sizer.getWindowSize());
+    }
+
+    public void testPartialWindowDoesNotAdapt() {
+        FetchWindowSizer sizer = new FetchWindowSizer(100);
+
+        sizer.windowCompleted(100, 7, 10, 100);
+        assertEquals(100, sizer.getWindowSize());
+    }
+
+    public void testPipelinedSlowWindowsShrinkOnce() {
+        FetchWindowSizer sizer = new FetchWindowSizer(400);
+
+        // Three windows were sent at 400 before the first one completed
+        for (int i = 0; i < 3; i++) {
+            sizer.windowCompleted(400, 400, 5000, 10 * 1024);
+        }
+        assertEquals(200, sizer.getWindowSize());
+    }
+
+    public void testPipelinedFastWindowsGrowOncePerSize() {
+        FetchWindowSizer sizer = new FetchWindowSizer(100);
+
+        for (int i = 0; i < 3; i++) {
+            sizer.windowCompleted(100, 100, 100, 1024);
+        }
+        assertEquals(200, sizer.getWindowSize());
+
+        // The first window sent at the new size grows it again
+        sizer.windowCompleted(200, 200, 100, 1024);
+        assertEquals(400, sizer.getWindowSize());
+    }
+
+    public void testThroughput() {
+        FetchWindowSizer sizer = new FetchWindowSizer(100);
+
+        sizer.windowCompleted(100, 100, 1000, 100 * 1024);
+        sizer.windowCompleted(100, 100, 1000, 300 * 1024);
+
+        assertEquals(300 * 1024, sizer.getLastBytesPerSecond());
+        assertEquals(200 * 1024, sizer.getAverageBytesPerSecond());
+    }
+}
@@ -0,0 +1,94 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import com.fsck.k9.mail.store.ImapResponseParser;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import junit.framework.TestCase;
+
+public class ImapInputStreamTest extends TestCase {
+    private static final String FETCH_RESPONSE =
+            "* 1 FETCH (UID 23 FLAGS (\\Seen $Label1) RFC822.SIZE 4711 " +
+            "INTERNALDATE \"17-Oct-2013 20:09:42 +0200\" " +
+            "BODY[HEADER.FIELDS (SUBJECT)] {21}\r\nSubject: a \"quoted\"\r\n)\r\n" +
+            "2 OK [READ-WRITE] Completed \"really\"\r\n";
+
+    public void testTokensSpanningWindowBoundaries() throws Exception {
+        // Every window size forces tokens to be split at a different position.
+        for (int windowSize = 1; windowSize <= 32; windowSize++) {
+            ImapResponseParser parser = createParser(FETCH_RESPONSE, windowSize);
+
+            ImapResponse fetch = parser.readResponse();
+            assertEquals("FETCH", fetch.get(1));
+            ImapList attributes = fetch.getList(2);
+            assertEquals("23", attributes.getKeyedString("UID"));
+            ImapList flags = attributes.getKeyedList("FLAGS");
+            assertEquals("\\Seen", flags.get(0));
+            assertEquals("$Label1", flags.get(1));
+            assertEquals("4711", attributes.getKeyedString("RFC822.SIZE"));
+            assertEquals("17-Oct-2013 20:09:42 +0200", attributes.getKeyedString("INTERNALDATE"));
+            assertEquals("Subject: a \"quoted\"\r\n", attributes.getString(attributes.size() - 1));
+
+            ImapResponse status = parser.readResponse();
+            assertTrue(status.toString().startsWith("#2#"));
+            assertEquals("OK", status.get(0));
+            assertEquals("READ-WRITE", status.getList(1).get(0));
+            assertEquals("Completed \"really\"", status.get(2));
+        }
+    }
+
+    public void testEscapedQuotedString() throws Exception {
+        ImapResponseParser parser = createParser("* LIST () \"\\\\\" \"a \\\"b\\\" c\"\r\n", 3);
+        ImapResponse response = parser.readResponse();
+
+        assertEquals("\\", response.get(2));
+        assertEquals("a \"b\" c", response.get(3));
+    }
+
+    public void testWellKnownAtomsAreShared() throws Exception {
+        ImapResponse response = createParser("* 5 FETCH (UID 7 FLAGS (\\Seen))\r\n",
+                ImapInputStream.DEFAULT_BUFFER_SIZE).readResponse();
+
+        assertSame("FETCH", response.get(1));
+        assertSame("UID", response.getList(2).get(0));
+        assertSame("\\Seen", response.getList(2).getList(3).get(0));
+    }
+
+    public void testNonAsciiBytesMapToLatin1Chars() throws Exception {
+        byte[] data = { '*', ' ', 'O', 'K', ' ', 'a', (byte) 0xE9, '\r', '\n' };
+        ImapResponseParser parser = new ImapResponseParser(
+                new ImapInputStream(new ByteArrayInputStream(data), 4));
+
+        assertEquals("aé", parser.readResponse().get(1));
+    }
+
+    public void testEndOfStreamInsideAtom() throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETC", 4);
+        try {
+            parser.readResponse();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testRawReadsDrainWindowFirst() throws Exception {
+        ImapInputStream in = new ImapInputStream(new ByteArrayInputStream("abcdefgh".getBytes()), 4);
+
+        assertEquals('a', in.peek());
+        assertEquals('a', in.read());
+        byte[] buffer = new byte[8];
+        int count = in.read(buffer, 0, buffer.length);
+        assertEquals(3, count);
+        assertEquals("bcd", new String(buffer, 0, count));
+        assertEquals("efgh", in.readStringUntil('h') + "h");
+        assertEquals(-1, in.read());
+    }
+
+    private ImapResponseParser createParser(String data, int windowSize) {
+        ByteArrayInputStream in = new ByteArrayInputStream(data.getBytes());
+        return new ImapResponseParser(new ImapInputStream(in, windowSize));
+    }
+}
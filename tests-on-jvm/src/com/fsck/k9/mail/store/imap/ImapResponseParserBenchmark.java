@@ -0,0 +1,131 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import com.fsck.k9.mail.store.ImapResponseParser;
+
+/**
+ * Compares how fast {@link ImapResponseParser} and the parser it replaced,
+ * {@link LegacyImapResponseParser}, parse the server side of an IMAP session.
+ *
+ * <p>
+ * Both parsers are set up the way {@code ImapConnection} set them up: the old one reads through
+ * a {@code PeekableInputStream(BufferedInputStream(in, 1024))}, the new one through an
+ * {@link ImapInputStream}. Before measuring, the responses of both parsers are compared.
+ * </p>
+ *
+ * <p>
+ * By default {@code fetch-session.imap} is used, the server side of a Dovecot session: login,
+ * {@code SELECT}, {@code UID SEARCH}, a flag sync of 250 messages, an envelope fetch of 60
+ * messages with {@code BODYSTRUCTURE} and header literals, and 20 partial body fetches. Pass
+ * the name of a file containing the raw server output of another session to use that instead.
+ * The file has to end with an untagged {@code BYE} response.
+ * </p>
+ *
+ * <p>Run with {@code java com.fsck.k9.mail.store.imap.ImapResponseParserBenchmark [file]}.</p>
+ */
+public class ImapResponseParserBenchmark {
+    private static final String DEFAULT_TRANSCRIPT = "fetch-session.imap";
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int MEASURED_ITERATIONS = 500;
+
+    public static void main(String[] args) throws IOException {
+        byte[] transcript = readTranscript(args.length > 0 ? new FileInputStream(args[0]) :
+                ImapResponseParserBenchmark.class.getResourceAsStream(DEFAULT_TRANSCRIPT));
+
+        List<String> legacyResponses = new ArrayList<String>();
+        List<String> responses = new ArrayList<String>();
+        parseLegacy(transcript, legacyResponses);
+        parse(transcript, responses);
+        if (!legacyResponses.equals(responses)) {
+            throw new AssertionError("The parsers disagree about the transcript");
+        }
+        int responseCount = responses.size();
+        System.out.println("Transcript: " + transcript.length + " bytes, " + responseCount + " responses");
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            parseLegacy(transcript, null);
+            parse(transcript, null);
+        }
+
+        long legacy = measure(transcript, true, responseCount);
+        long windowed = measure(transcript, false, responseCount);
+
+        System.out.println(String.format("old parser: %8.1f µs/op", legacy / 1000.0));
+        System.out.println(String.format("new parser: %8.1f µs/op", windowed / 1000.0));
+        System.out.println(String.format("speed-up:   %8.2fx", (double) legacy / windowed));
+    }
+
+    private static long measure(byte[] transcript, boolean legacy, int responseCount)
+            throws IOException {
+        long start = System.nanoTime();
+        int responses = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            responses += legacy ? parseLegacy(transcript, null) : parse(transcript, null);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (responses != MEASURED_ITERATIONS * responseCount) {
+            throw new AssertionError("Unexpected number of responses: " + responses);
+        }
+        return elapsed / MEASURED_ITERATIONS;
+    }
+
+    private static int parse(byte[] transcript, List<String> responses) throws IOException {
+        ImapResponseParser parser = new ImapResponseParser(
+                new ImapInputStream(new ByteArrayInputStream(transcript)));
+
+        int count = 0;
+        while (true) {
+            ImapResponseParser.ImapResponse response = parser.readResponse();
+            count++;
+            if (responses != null) {
+                responses.add(response.toString());
+            }
+            if ("BYE".equals(response.get(0))) {
+                return count;
+            }
+        }
+    }
+
+    private static int parseLegacy(byte[] transcript, List<String> responses) throws IOException {
+        LegacyImapResponseParser parser = new LegacyImapResponseParser(new PeekableInputStream(
+                new BufferedInputStream(new ByteArrayInputStream(transcript), 1024)));
+
+        int count = 0;
+        while (true) {
+            LegacyImapResponseParser.ImapResponse response = parser.readResponse();
+            count++;
+            if (responses != null) {
+                responses.add(response.toString());
+            }
+            if ("BYE".equals(response.get(0))) {
+                return count;
+            }
+        }
+    }
+
+    private static byte[] readTranscript(InputStream in) throws IOException {
+        if (in == null) {
+            throw new IOException("Transcript " + DEFAULT_TRANSCRIPT + " not found");
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
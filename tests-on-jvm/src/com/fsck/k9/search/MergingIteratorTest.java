@@ -0,0 +1,112 @@
+package com.fsck.k9.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import junit.framework.TestCase;
+
+public class MergingIteratorTest extends TestCase {
+    private static final Comparator<Integer> DESCENDING = Collections.reverseOrder();
+
+
+    public void testMerge() {
+        MergingIterator<Integer> iterator = createIterator(
+                Arrays.asList(9, 5, 1), Arrays.<Integer>asList(), Arrays.asList(8, 7, 2));
+
+        assertEquals(Arrays.asList(9, 8, 7, 5, 2, 1), toList(iterator));
+        assertFalse(iterator.hasNext());
+    }
+
+    public void testEqualElementsKeepSourceOrder() {
+        MergingIterator<Integer> iterator = createIterator(
+                Arrays.asList(3, 1), Arrays.asList(3, 2));
+
+        assertEquals(0, iterator.peekSourceIndex());
+        assertEquals(3, iterator.next().intValue());
+        assertEquals(1, iterator.peekSourceIndex());
+        assertEquals(3, iterator.next().intValue());
+        assertEquals(1, iterator.peekSourceIndex());
+        assertEquals(2, iterator.next().intValue());
+        assertEquals(0, iterator.peekSourceIndex());
+        assertEquals(1, iterator.next().intValue());
+    }
+
+    public void testSourcesAreReadLazily() {
+        CountingIterator first = new CountingIterator(Arrays.asList(10, 8, 6, 4, 2));
+        CountingIterator second = new CountingIterator(Arrays.asList(9, 7, 5, 3, 1));
+        List<CountingIterator> sources = new ArrayList<CountingIterator>();
+        sources.add(first);
+        sources.add(second);
+
+        MergingIterator<Integer> iterator = new MergingIterator<Integer>(sources, DESCENDING);
+        assertEquals(0, first.mCount + second.mCount);
+
+        assertEquals(10, iterator.next().intValue());
+        assertEquals(9, iterator.next().intValue());
+        assertEquals(8, iterator.next().intValue());
+        assertEquals(3, first.mCount);
+        assertEquals(2, second.mCount);
+    }
+
+    public void testNoSources() {
+        MergingIterator<Integer> iterator = new MergingIterator<Integer>(
+                new ArrayList<Iterator<Integer>>(), DESCENDING);
+
+        assertFalse(iterator.hasNext());
+        try {
+            iterator.next();
+            fail();
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+
+    private static MergingIterator<Integer> createIterator(List<?>... lists) {
+        List<Iterator<Integer>> sources = new ArrayList<Iterator<Integer>>();
+        for (List<?> list : lists) {
+            @SuppressWarnings("unchecked")
+            List<Integer> integers = (List<Integer>) list;
+            sources.add(integers.iterator());
+        }
+        return new MergingIterator<Integer>(sources, DESCENDING);
+    }
+
+    private static List<Integer> toList(Iterator<Integer> iterator) {
+        List<Integer> list = new ArrayList<Integer>();
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        return list;
+    }
+
+    private static class CountingIterator implements Iterator<Integer> {
+        private final Iterator<Integer> mIterator;
+        int mCount = 0;
+
+        CountingIterator(List<Integer> list) {
+            mIterator = list.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mIterator.hasNext();
+        }
+
+        @Override
+        public Integer next() {
+            mCount++;
+            return mIterator.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalStore;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+import com.fsck.k9.mail.store.ScriptedImapServer;
+import junit.framework.TestCase;
+
+/**
+ * Synchronizes a folder with a scripted IMAP server that supports QRESYNC (RFC 7162) and checks
+ * which commands the sync needs.
+ */
+public class MessagingControllerQresyncTest extends TestCase {
+    private static final long UID_VALIDITY = 42;
+    private static final long LOCAL_MOD_SEQ = 100;
+
+    private ScriptedImapServer mServer;
+    private Account mAccount;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.close();
+        }
+        if (mAccount != null) {
+            mAccount.getLocalStore().delete();
+            Preferences.getPreferences(K9.app).deleteAccount(mAccount);
+        }
+        super.tearDown();
+    }
+
+    public void testUnchangedFolderIsDetectedFromSelect() throws Exception {
+        startServer(
+            "C: 4 SELECT \"INBOX\"",
+            "S: * 3 EXISTS",
+            "S: * OK [UIDVALIDITY " + UID_VALIDITY + "] UIDs valid",
+            "S: * OK [HIGHESTMODSEQ " + LOCAL_MOD_SEQ + "] Highest",
+            "S: 4 OK [READ-WRITE] Select completed");
+        LocalFolder inbox = createInbox("1", "2", "3");
+
+        synchronizeInbox();
+
+        assertScriptCompleted();
+        inbox.open(Folder.OPEN_MODE_RW);
+        assertEquals(3, inbox.getMessageCount());
+        assertEquals(LOCAL_MOD_SEQ, inbox.getHighestModSeq());
+    }
+
+    public void testChangedFolderUsesFlagsOfChangedSinceResponse() throws Exception {
+        startServer(
+            "C: 4 SELECT \"INBOX\"",
+            "S: * 2 EXISTS",
+            "S: * OK [UIDVALIDITY " + UID_VALIDITY + "] UIDs valid",
+            "S: * OK [HIGHESTMODSEQ 120] Highest",
+            "S: 4 OK [READ-WRITE] Select completed",
+            "C: 5 UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE " + LOCAL_MOD_SEQ + " VANISHED)",
+            "S: * VANISHED 3",
+            "S: * 1 FETCH (UID 1 MODSEQ (120) FLAGS (\\Seen))",
+            "S: 5 OK Fetch completed");
+        LocalFolder inbox = createInbox("1", "2", "3");
+
+        synchronizeInbox();
+
+        // No second UID FETCH (FLAGS) for the changed message
+        assertScriptCompleted();
+        inbox.open(Folder.OPEN_MODE_RW);
+        assertEquals(2, inbox.getMessageCount());
+        assertNull(inbox.getMessage("3"));
+        assertTrue(inbox.getMessage("1").isSet(Flag.SEEN));
+        assertFalse(inbox.getMessage("2").isSet(Flag.SEEN));
+        assertEquals(UID_VALIDITY, inbox.getUidValidity());
+        assertEquals(120, inbox.getHighestModSeq());
+    }
+
+    /**
+     * Starts a server with QRESYNC support. The script only needs to contain what happens after
+     * the login.
+     */
+    private void startServer(String... selectScript) throws Exception {
+        String[] login = {
+            "S: * OK [CAPABILITY IMAP4rev1 ENABLE CONDSTORE QRESYNC] ready",
+            "C: 1 LOGIN \"user\" \"pass\"",
+            "S: 1 OK Logged in",
+            "C: 2 ENABLE QRESYNC",
+            "S: * ENABLED QRESYNC",
+            "S: 2 OK Enabled",
+            "C: 3 LIST \"\" \"\"",
+            "S: * LIST (\\Noselect) \"/\" \"\"",
+            "S: 3 OK List completed"
+        };
+        String[] script = new String[login.length + selectScript.length];
+        System.arraycopy(login, 0, script, 0, login.length);
+        System.arraycopy(selectScript, 0, script, login.length, selectScript.length);
+
+        mServer = new ScriptedImapServer(script);
+        mServer.start();
+
+        Preferences preferences = Preferences.getPreferences(K9.app);
+        preferences.getAccounts();
+        mAccount = preferences.newAccount();
+        mAccount.setDescription("QRESYNC test");
+        mAccount.setStoreUri(mServer.getStoreUri());
+        mAccount.setNotifyNewMail(false);
+    }
+
+    private LocalFolder createInbox(String... uids) throws Exception {
+        LocalStore localStore = mAccount.getLocalStore();
+        LocalFolder inbox = localStore.getFolder(mAccount.getInboxFolderName());
+        if (!inbox.exists()) {
+            inbox.create(FolderType.HOLDS_MESSAGES);
+        }
+        inbox.open(Folder.OPEN_MODE_RW);
+
+        Message[] messages = new Message[uids.length];
+        for (int i = 0; i < uids.length; i++) {
+            MimeMessage message = new MimeMessage();
+            message.setUid(uids[i]);
+            message.setFrom(new Address("sender@example.com"));
+            message.setSubject("Message " + uids[i]);
+            message.setSentDate(new Date());
+            message.setBody(new TextBody("Body " + uids[i]));
+            message.setFlag(Flag.X_DOWNLOADED_FULL, true);
+            messages[i] = message;
+        }
+        inbox.appendMessages(messages);
+        inbox.setModSeqState(UID_VALIDITY, LOCAL_MOD_SEQ);
+        inbox.close();
+        return inbox;
+    }
+
+    private void synchronizeInbox() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final String[] failure = new String[1];
+        MessagingController.getInstance(K9.app).synchronizeMailbox(mAccount,
+                mAccount.getInboxFolderName(), new MessagingListener() {
+            @Override
+            public void synchronizeMailboxFinished(Account account, String folder,
+                    int totalMessagesInMailbox, int numNewMessages) {
+                done.countDown();
+            }
+
+            @Override
+            public void synchronizeMailboxFailed(Account account, String folder, String message) {
+                failure[0] = message;
+                done.countDown();
+            }
+        }, null);
+
+        assertTrue("Sync didn't finish", done.await(30, TimeUnit.SECONDS));
+        assertNull(failure[0]);
+    }
+
+    private void assertScriptCompleted() throws InterruptedException {
+        assertTrue(mServer.getError(), mServer.isDone());
+        assertEquals(new ArrayList<String>(), mServer.getUnexpectedCommands());
+    }
+}
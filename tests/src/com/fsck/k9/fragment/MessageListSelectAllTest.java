@@ -0,0 +1,146 @@
+package com.fsck.k9.fragment;
+
+import java.util.Date;
+
+import android.test.ActivityInstrumentationTestCase2;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.R;
+import com.fsck.k9.activity.MessageList;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+import com.fsck.k9.search.LocalSearch;
+
+/**
+ * Checks that "select all" selects every message of a folder, not only the first page of the
+ * message list.
+ */
+public class MessageListSelectAllTest extends ActivityInstrumentationTestCase2<MessageList> {
+    private static final String FOLDER_NAME = "SelectAll";
+    private static final int MESSAGE_COUNT = MessageListFragment.MESSAGE_PAGE_SIZE * 5 / 2;
+    private static final long TIMEOUT_MS = 20000;
+
+    private Account mAccount;
+
+
+    public MessageListSelectAllTest() {
+        super("com.fsck.k9", MessageList.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Preferences preferences = Preferences.getPreferences(getInstrumentation().getTargetContext());
+        preferences.getAccounts();
+        mAccount = preferences.newAccount();
+
+        LocalFolder folder = mAccount.getLocalStore().getFolder(FOLDER_NAME);
+        folder.create(FolderType.HOLDS_MESSAGES);
+        folder.open(Folder.OPEN_MODE_RW);
+        Message[] messages = new Message[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            MimeMessage message = new MimeMessage();
+            message.setUid("select-all-" + i);
+            message.setFrom(new Address("sender" + i + "@example.com"));
+            message.setSubject("Message " + i);
+            message.setSentDate(new Date(1000000000000L + i * 60000L));
+            message.setBody(new TextBody("Body " + i));
+            messages[i] = message;
+        }
+        folder.appendMessages(messages);
+        folder.close();
+
+        LocalSearch search = new LocalSearch(FOLDER_NAME);
+        search.addAccountUuid(mAccount.getUuid());
+        search.addAllowedFolder(FOLDER_NAME);
+        setActivityIntent(MessageList.intentDisplaySearch(getInstrumentation().getTargetContext(),
+                search, true, false, false));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        mAccount.getLocalStore().delete();
+        Preferences.getPreferences(getInstrumentation().getTargetContext()).deleteAccount(mAccount);
+    }
+
+    public void testSelectAllCoversMessagesBeyondFirstPage() throws Throwable {
+        MessageList activity = getActivity();
+        final MessageListFragment fragment = (MessageListFragment)
+                activity.getSupportFragmentManager().findFragmentById(R.id.message_list_container);
+
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return fragment.isLoadFinished();
+            }
+        });
+        assertEquals(MessageListFragment.MESSAGE_PAGE_SIZE, getLoadedCount(fragment));
+
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                fragment.selectAll();
+            }
+        });
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return fragment.getSelectedCount() > 0;
+            }
+        });
+
+        assertEquals(MESSAGE_COUNT, getLoadedCount(fragment));
+        assertEquals(MESSAGE_COUNT, getSelectedCount(fragment));
+    }
+
+    private int getLoadedCount(final MessageListFragment fragment) {
+        final int[] count = new int[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = fragment.getMessageReferences().size();
+            }
+        });
+        return count[0];
+    }
+
+    private int getSelectedCount(final MessageListFragment fragment) {
+        final int[] count = new int[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = fragment.getSelectedCount();
+            }
+        });
+        return count[0];
+    }
+
+    private void waitFor(final Condition condition) throws InterruptedException {
+        final boolean[] met = new boolean[1];
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    met[0] = condition.isMet();
+                }
+            });
+            if (met[0]) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("Timed out waiting for the message list");
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+}
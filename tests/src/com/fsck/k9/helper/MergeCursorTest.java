@@ -0,0 +1,73 @@
+package com.fsck.k9.helper;
+
+import java.util.Comparator;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import junit.framework.TestCase;
+
+public class MergeCursorTest extends TestCase {
+    private static final String[] COLUMNS = { "id", "date" };
+
+    private static final Comparator<Cursor> NEWEST_FIRST = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor lhs, Cursor rhs) {
+            long lhsDate = lhs.getLong(1);
+            long rhsDate = rhs.getLong(1);
+            return (lhsDate < rhsDate) ? 1 : ((lhsDate == rhsDate) ? 0 : -1);
+        }
+    };
+
+
+    public void testMergeWithoutLimit() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 9, 2, 5, 3, 1), createCursor(4, 8, 5, 2) }, NEWEST_FIRST);
+
+        assertEquals(5, cursor.getCount());
+        assertIds(cursor, 1, 4, 2, 5, 3);
+    }
+
+    public void testLimitCutsOffMergedRows() {
+        // Each cursor contains the two newest messages of its account
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 9, 2, 5), createCursor(4, 8, 5, 7) }, NEWEST_FIRST, 2);
+
+        assertEquals(2, cursor.getCount());
+        assertIds(cursor, 1, 4);
+        assertFalse(cursor.moveToPosition(2));
+        assertTrue(cursor.isAfterLast());
+
+        assertTrue(cursor.moveToLast());
+        assertEquals(4, cursor.getLong(0));
+        assertTrue(cursor.moveToPrevious());
+        assertEquals(1, cursor.getLong(0));
+    }
+
+    public void testLimitLargerThanResult() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 9), createCursor(4, 8) }, NEWEST_FIRST, 100);
+
+        assertEquals(2, cursor.getCount());
+        assertIds(cursor, 1, 4);
+    }
+
+
+    /**
+     * Creates a cursor from (id, date) pairs.
+     */
+    private static Cursor createCursor(long... values) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < values.length; i += 2) {
+            cursor.addRow(new Object[] { values[i], values[i + 1] });
+        }
+        return cursor;
+    }
+
+    private static void assertIds(Cursor cursor, long... ids) {
+        int i = 0;
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            assertEquals(ids[i++], cursor.getLong(0));
+        }
+        assertEquals(ids.length, i);
+    }
+}
@@ -0,0 +1,83 @@
+package com.fsck.k9.mail.store;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.james.mime4j.util.MimeUtil;
+
+import com.fsck.k9.mail.filter.CountingOutputStream;
+import com.fsck.k9.mail.filter.SizeEstimatingOutputStream;
+import com.fsck.k9.mail.store.LocalStore.TempFileBody;
+
+public class AttachmentSizeEstimateTest extends TestCase {
+    private static final int[] SIZES = { 0, 1, 2, 3, 56, 57, 58, 1000, 65536, 1000003 };
+
+    private File mFile;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("attachment", null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testBase64EstimateMatchesWrittenSize() throws Exception {
+        for (int size : SIZES) {
+            assertEstimate(MimeUtil.ENC_BASE64, size);
+        }
+    }
+
+    public void testUnencodedEstimateMatchesWrittenSize() throws Exception {
+        for (int size : SIZES) {
+            assertEstimate(MimeUtil.ENC_8BIT, size);
+        }
+    }
+
+    public void testUnknownSizeIsCounted() throws Exception {
+        writeFile(1000);
+        TempFileBody body = new TempFileBody(mFile.getAbsolutePath());
+        body.setEncoding(MimeUtil.ENC_BASE64);
+
+        SizeEstimatingOutputStream out = new SizeEstimatingOutputStream();
+        body.writeTo(out);
+        assertEquals(writtenSize(body), out.getCount());
+    }
+
+
+    private void assertEstimate(String encoding, int size) throws Exception {
+        writeFile(size);
+        TempFileBody body = new TempFileBody(mFile.getAbsolutePath());
+        body.setEncoding(encoding);
+        body.setSize(size);
+
+        SizeEstimatingOutputStream out = new SizeEstimatingOutputStream();
+        body.writeTo(out);
+        assertEquals(encoding + ", " + size + " bytes", writtenSize(body), out.getCount());
+    }
+
+    private static long writtenSize(TempFileBody body) throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        body.writeTo(out);
+        return out.getCount();
+    }
+
+    private void writeFile(int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
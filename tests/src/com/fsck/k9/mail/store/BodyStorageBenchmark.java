@@ -0,0 +1,198 @@
+package com.fsck.k9.mail.store;
+
+import java.util.Date;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Body;
+import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.filter.CountingOutputStream;
+import com.fsck.k9.mail.internet.MimeHeader;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+
+/**
+ * Measures the memory needed to store and load messages with bodies of 1, 10 and 50 MB through
+ * {@link LocalFolder}.
+ *
+ * <p>
+ * Storing is {@code LocalFolder.appendMessages()}. Loading is {@code LocalFolder.fetch()} with
+ * {@link FetchProfile.Item#BODY}, followed by writing the body to a stream the way it is sent
+ * or forwarded. For both, the peak growth of the Java and the native heap (SQLite and cursor
+ * windows) is sampled, and the bytes allocated by the calling thread are counted. Results are
+ * written to the log with the tag {@value #LOG_TAG}. A size that doesn't fit into the heap is
+ * reported as out of memory.
+ * </p>
+ */
+public class BodyStorageBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "BodyStorageBenchmark";
+
+    private static final int[] SIZES_MB = { 1, 10, 50 };
+    private static final int SAMPLE_INTERVAL_MS = 2;
+
+    private Account mAccount;
+    private LocalStore mLocalStore;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Preferences preferences = Preferences.getPreferences(getContext());
+        preferences.getAccounts();
+        mAccount = preferences.newAccount();
+        mLocalStore = mAccount.getLocalStore();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLocalStore.delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testStoreAndLoad() throws Exception {
+        LocalFolder folder = mLocalStore.getFolder("BodyStorageBenchmark");
+        folder.create(FolderType.HOLDS_MESSAGES);
+
+        for (int sizeMb : SIZES_MB) {
+            String uid = "body-" + sizeMb;
+            try {
+                storeMessage(folder, uid, sizeMb);
+                loadMessage(uid, sizeMb);
+            } catch (OutOfMemoryError e) {
+                Log.i(LOG_TAG, String.format("%2d MB: out of memory", sizeMb));
+            }
+
+            folder.open(Folder.OPEN_MODE_RW);
+            Message message = folder.getMessage(uid);
+            if (message != null) {
+                folder.destroyMessages(new Message[] { message });
+            }
+        }
+    }
+
+    private void storeMessage(LocalFolder folder, String uid, int sizeMb) throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setUid(uid);
+        message.setFrom(new Address("newsletter@example.com"));
+        message.setSubject(sizeMb + " MB");
+        message.setSentDate(new Date());
+        message.setHeader(MimeHeader.HEADER_CONTENT_TYPE, "text/plain; charset=utf-8");
+        message.setBody(new TextBody(createTextBody(sizeMb * 1024 * 1024)));
+
+        folder.open(Folder.OPEN_MODE_RW);
+        Measurement measurement = Measurement.start();
+        folder.appendMessages(new Message[] { message });
+        measurement.finish(sizeMb, "store");
+    }
+
+    private void loadMessage(String uid, int sizeMb) throws Exception {
+        // A new instance, so nothing is cached
+        LocalFolder folder = mLocalStore.getFolder("BodyStorageBenchmark");
+        folder.open(Folder.OPEN_MODE_RW);
+
+        Measurement measurement = Measurement.start();
+        Message message = folder.getMessage(uid);
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.BODY);
+        folder.fetch(new Message[] { message }, fp, null);
+
+        Body body = message.getBody();
+        CountingOutputStream out = new CountingOutputStream();
+        body.writeTo(out);
+        measurement.finish(sizeMb, "load");
+
+        assertTrue(out.getCount() >= sizeMb * 1024 * 1024);
+        folder.close();
+    }
+
+    private static String createTextBody(int size) {
+        StringBuilder sb = new StringBuilder(size + 128);
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("Newsletter entry ").append(i)
+                    .append(" – café, read more at https://example.com/item/").append(i)
+                    .append("\r\n");
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    /**
+     * Samples the heap sizes in the background while an operation runs.
+     */
+    private static class Measurement extends Thread {
+        private final long mJavaBaseline;
+        private final long mNativeBaseline;
+        private final long mStartNanos;
+        private volatile boolean mStopped;
+        private long mJavaPeak;
+        private long mNativePeak;
+
+        private Measurement(long javaBaseline, long nativeBaseline) {
+            mJavaBaseline = javaBaseline;
+            mNativeBaseline = nativeBaseline;
+            mJavaPeak = javaBaseline;
+            mNativePeak = nativeBaseline;
+            mStartNanos = System.nanoTime();
+        }
+
+        @SuppressWarnings("deprecation")
+        static Measurement start() {
+            System.gc();
+            System.gc();
+            Measurement measurement = new Measurement(getJavaHeapUsed(),
+                    Debug.getNativeHeapAllocatedSize());
+            measurement.start();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            return measurement;
+        }
+
+        @SuppressWarnings("deprecation")
+        void finish(int sizeMb, String operation) throws InterruptedException {
+            Debug.stopAllocCounting();
+            long allocated = Debug.getThreadAllocSize();
+            long elapsedNanos = System.nanoTime() - mStartNanos;
+            sample();
+            mStopped = true;
+            join();
+
+            Log.i(LOG_TAG, String.format("%2d MB %s: peak Java heap +%.1f MB, peak native heap " +
+                    "+%.1f MB, allocated %.1f MB, %.0f ms", sizeMb, operation,
+                    (mJavaPeak - mJavaBaseline) / 1048576.0,
+                    (mNativePeak - mNativeBaseline) / 1048576.0,
+                    allocated / 1048576.0, elapsedNanos / 1e6));
+        }
+
+        @Override
+        public void run() {
+            while (!mStopped) {
+                sample();
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized void sample() {
+            mJavaPeak = Math.max(mJavaPeak, getJavaHeapUsed());
+            mNativePeak = Math.max(mNativePeak, Debug.getNativeHeapAllocatedSize());
+        }
+
+        private static long getJavaHeapUsed() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.fsck.k9.mail.store;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares storing message headers with one row per header field (the old {@code headers}
+ * table) with storing one {@link HeaderBlock} per message in {@code message_headers}.
+ *
+ * <p>
+ * Headers of {@value #MESSAGE_COUNT} messages are saved in transactions of
+ * {@value #MESSAGES_PER_TRANSACTION} messages, the way {@code LocalFolder.appendMessages()}
+ * saves a window of synchronized messages. Timings are written to the log with the tag
+ * {@value #LOG_TAG}.
+ * </p>
+ */
+public class HeaderStorageBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "HeaderStorageBenchmark";
+
+    private static final int MESSAGE_COUNT = 2000;
+    private static final int MESSAGES_PER_TRANSACTION = 100;
+    private static final int HEADERS_PER_MESSAGE = 25;
+
+    private SQLiteDatabase mDb;
+    private String[] mNames;
+    private String[] mValues;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE headers (id INTEGER PRIMARY KEY, message_id INTEGER, name TEXT, value TEXT)");
+        mDb.execSQL("CREATE INDEX header_folder ON headers (message_id)");
+        mDb.execSQL("CREATE TABLE message_headers (message_id INTEGER PRIMARY KEY, data BLOB)");
+
+        mNames = new String[HEADERS_PER_MESSAGE];
+        mValues = new String[HEADERS_PER_MESSAGE];
+        for (int i = 0; i < HEADERS_PER_MESSAGE; i++) {
+            mNames[i] = (i < 6) ? "Received" : "X-Header-" + i;
+            mValues[i] = "from mx" + i + ".example.com by relay.example.net with ESMTPS id " + i;
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testRowsVersusBlocks() {
+        long start = System.nanoTime();
+        for (int first = 0; first < MESSAGE_COUNT; first += MESSAGES_PER_TRANSACTION) {
+            mDb.beginTransaction();
+            try {
+                for (int id = first; id < first + MESSAGES_PER_TRANSACTION; id++) {
+                    saveRows(id);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+        long rowsWriteNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int first = 0; first < MESSAGE_COUNT; first += MESSAGES_PER_TRANSACTION) {
+            mDb.beginTransaction();
+            try {
+                for (int id = first; id < first + MESSAGES_PER_TRANSACTION; id++) {
+                    saveBlock(id);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+        long blockWriteNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int rowsFields = 0;
+        for (int id = 0; id < MESSAGE_COUNT; id++) {
+            rowsFields += loadRows(id);
+        }
+        long rowsReadNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int blockFields = 0;
+        for (int id = 0; id < MESSAGE_COUNT; id++) {
+            blockFields += loadBlock(id);
+        }
+        long blockReadNanos = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, String.format("save: rows %.1f ms, blocks %.1f ms", rowsWriteNanos / 1e6,
+                blockWriteNanos / 1e6));
+        Log.i(LOG_TAG, String.format("load: rows %.1f ms, blocks %.1f ms", rowsReadNanos / 1e6,
+                blockReadNanos / 1e6));
+
+        assertEquals(MESSAGE_COUNT * HEADERS_PER_MESSAGE, rowsFields);
+        assertEquals(rowsFields, blockFields);
+    }
+
+    private void saveRows(long id) {
+        mDb.execSQL("DELETE FROM headers WHERE message_id = ?", new Object[] { id });
+        for (int i = 0; i < HEADERS_PER_MESSAGE; i++) {
+            ContentValues cv = new ContentValues();
+            cv.put("message_id", id);
+            cv.put("name", mNames[i]);
+            cv.put("value", mValues[i]);
+            mDb.insert("headers", "name", cv);
+        }
+    }
+
+    private void saveBlock(long id) {
+        HeaderBlock block = new HeaderBlock();
+        for (int i = 0; i < HEADERS_PER_MESSAGE; i++) {
+            block.add(mNames[i], mValues[i]);
+        }
+
+        ContentValues cv = new ContentValues();
+        cv.put("message_id", id);
+        cv.put("data", block.toByteArray());
+        mDb.replace("message_headers", null, cv);
+    }
+
+    private int loadRows(long id) {
+        Cursor cursor = mDb.rawQuery("SELECT message_id, name, value FROM headers " +
+                "WHERE message_id in ( ? ) ORDER BY id ASC", new String[] { Long.toString(id) });
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+                cursor.getString(2);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int loadBlock(long id) {
+        Cursor cursor = mDb.rawQuery("SELECT data FROM message_headers WHERE message_id = ?",
+                new String[] { Long.toString(id) });
+        try {
+            int count = 0;
+            if (cursor.moveToNext()) {
+                HeaderBlock.Reader reader = new HeaderBlock.Reader(cursor.getBlob(0));
+                while (reader.next()) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+}
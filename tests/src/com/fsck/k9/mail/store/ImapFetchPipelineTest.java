@@ -0,0 +1,138 @@
+package com.fsck.k9.mail.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.controller.MessageRetrievalListener;
+import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import junit.framework.TestCase;
+
+/**
+ * Checks that pipelined {@code UID FETCH} commands don't leave unread responses on a connection
+ * that is reused.
+ */
+public class ImapFetchPipelineTest extends TestCase {
+    /**
+     * One more than the initial fetch window, so two commands are pipelined.
+     */
+    private static final int MESSAGE_COUNT = 101;
+
+    private ScriptedImapServer mServer;
+    private Account mAccount;
+    private Folder mFolder;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mFolder != null) {
+            mFolder.close();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+        if (mAccount != null) {
+            Preferences.getPreferences(K9.app).deleteAccount(mAccount);
+        }
+        super.tearDown();
+    }
+
+    public void testCompletedPipelineKeepsConnection() throws Exception {
+        openInbox();
+
+        Message[] messages = getMessages();
+        mFolder.fetch(messages, getFlagsProfile(), null);
+        assertTrue(messages[0].isSet(Flag.SEEN));
+        assertFalse(messages[MESSAGE_COUNT - 1].isSet(Flag.SEEN));
+
+        mFolder.close();
+        mFolder = null;
+        assertTrue(mServer.getError(), mServer.isDone());
+        assertEquals(new ArrayList<String>(), mServer.getUnexpectedCommands());
+        assertFalse(mServer.isClosedByClient());
+    }
+
+    public void testListenerFailureClosesConnection() throws Exception {
+        openInbox();
+
+        try {
+            mFolder.fetch(getMessages(), getFlagsProfile(), new MessageRetrievalListener() {
+                @Override
+                public void messageStarted(String uid, int number, int ofTotal) {
+                }
+
+                @Override
+                public void messageFinished(Message message, int number, int ofTotal) {
+                    throw new IllegalStateException("Listener failed");
+                }
+
+                @Override
+                public void messagesFinished(int total) {
+                }
+            });
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertFalse(mFolder.isOpen());
+        assertTrue(mServer.getError(), mServer.isDone());
+        assertTrue(mServer.isClosedByClient());
+    }
+
+    private void openInbox() throws Exception {
+        List<String> script = new ArrayList<String>();
+        script.add("S: * OK [CAPABILITY IMAP4rev1] ready");
+        script.add("C: 1 LOGIN \"user\" \"pass\"");
+        script.add("S: 1 OK Logged in");
+        script.add("C: 2 LIST \"\" \"\"");
+        script.add("S: * LIST (\\Noselect) \"/\" \"\"");
+        script.add("S: 2 OK List completed");
+        script.add("C: 3 SELECT \"INBOX\"");
+        script.add("S: * " + MESSAGE_COUNT + " EXISTS");
+        script.add("S: 3 OK [READ-WRITE] Select completed");
+
+        StringBuilder firstWindow = new StringBuilder();
+        for (int uid = 1; uid < MESSAGE_COUNT; uid++) {
+            firstWindow.append((uid > 1) ? "," : "").append(uid);
+        }
+        script.add("C: 4 UID FETCH " + firstWindow + " (UID FLAGS)");
+        script.add("C: 5 UID FETCH " + MESSAGE_COUNT + " (UID FLAGS)");
+        for (int uid = 1; uid < MESSAGE_COUNT; uid++) {
+            script.add("S: * " + uid + " FETCH (UID " + uid + " FLAGS (\\Seen))");
+        }
+        script.add("S: 4 OK Fetch completed");
+        script.add("S: * " + MESSAGE_COUNT + " FETCH (UID " + MESSAGE_COUNT + " FLAGS ())");
+        script.add("S: 5 OK Fetch completed");
+
+        mServer = new ScriptedImapServer(script.toArray(new String[script.size()]));
+        mServer.start();
+
+        Preferences preferences = Preferences.getPreferences(K9.app);
+        preferences.getAccounts();
+        mAccount = preferences.newAccount();
+        mAccount.setStoreUri(mServer.getStoreUri());
+
+        ImapStore store = new ImapStore(mAccount);
+        mFolder = store.getFolder(mAccount.getInboxFolderName());
+        mFolder.open(Folder.OPEN_MODE_RW);
+    }
+
+    private Message[] getMessages() throws Exception {
+        Message[] messages = new Message[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            messages[i] = mFolder.getMessage(Integer.toString(i + 1));
+        }
+        return messages;
+    }
+
+    private static FetchProfile getFlagsProfile() {
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.FLAGS);
+        return fp;
+    }
+}
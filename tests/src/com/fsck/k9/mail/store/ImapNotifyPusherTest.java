@@ -0,0 +1,189 @@
+package com.fsck.k9.mail.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.helper.power.TracingPowerManager.TracingWakeLock;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.PushReceiver;
+import com.fsck.k9.mail.Pusher;
+import junit.framework.TestCase;
+
+/**
+ * Runs {@link ImapStore.ImapNotifyPusher} against a scripted server that supports
+ * {@code NOTIFY} (RFC 5465).
+ */
+public class ImapNotifyPusherTest extends TestCase {
+    private ScriptedImapServer mServer;
+    private Account mAccount;
+    private Pusher mPusher;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mPusher != null) {
+            mPusher.stop();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+        if (mAccount != null) {
+            Preferences.getPreferences(K9.app).deleteAccount(mAccount);
+        }
+        super.tearDown();
+    }
+
+    public void testStatusResponseSyncsFolder() throws Exception {
+        List<String[]> scripts = new ArrayList<String[]>();
+        // The connection that idles and receives the notifications
+        scripts.add(new String[] {
+            "S: * OK [CAPABILITY IMAP4rev1 IDLE NOTIFY] ready",
+            "C: 1 LOGIN \"user\" \"pass\"",
+            "S: 1 OK Logged in",
+            "C: 2 LIST \"\" \"\"",
+            "S: * LIST (\\Noselect) \"/\" \"\"",
+            "S: 2 OK List completed",
+            "C: 3 NOTIFY SET (mailboxes (\"INBOX\" \"Work\") (MessageNew MessageExpunge))",
+            "S: 3 OK NOTIFY completed",
+            "C: 4 IDLE",
+            "S: + idling",
+            "S: * STATUS \"Work\" (MESSAGES 5 UIDNEXT 10)",
+            "C: DONE",
+            "S: 4 OK Idle completed",
+            "C: 5 IDLE",
+            "S: + idling"
+        });
+        // A pooled connection, used to look up the prefix of "Work" and then for its sync
+        scripts.add(new String[] {
+            "S: * OK [CAPABILITY IMAP4rev1 IDLE NOTIFY] ready",
+            "C: 1 LOGIN \"user\" \"pass\"",
+            "S: 1 OK Logged in",
+            "C: 2 SELECT \"Work\"",
+            "S: * 5 EXISTS",
+            "S: * OK [UIDVALIDITY 7] UIDs valid",
+            "S: 2 OK [READ-WRITE] Select completed"
+        });
+        mServer = new ScriptedImapServer(scripts);
+        mServer.start();
+
+        Preferences preferences = Preferences.getPreferences(K9.app);
+        preferences.getAccounts();
+        mAccount = preferences.newAccount();
+        mAccount.setStoreUri(mServer.getStoreUri());
+        mAccount.setPushPollOnConnect(false);
+
+        RecordingPushReceiver receiver = new RecordingPushReceiver();
+        mPusher = new ImapStore(mAccount).getPusher(receiver);
+        mPusher.start(Arrays.asList("INBOX", "Work"));
+
+        assertTrue("No folder was synchronized", receiver.mSynced.await(10, TimeUnit.SECONDS));
+        assertEquals("Work", receiver.mSyncedFolder);
+        assertEquals(Folder.OPEN_MODE_RW, receiver.mSyncedFolderMode);
+
+        assertTrue(mServer.getError(), mServer.isDone());
+        assertEquals(new ArrayList<String>(), mServer.getUnexpectedCommands());
+    }
+
+    public void testRejectedNotifyFallsBackToFolderPushers() throws Exception {
+        List<String[]> scripts = new ArrayList<String[]>();
+        scripts.add(new String[] {
+            "S: * OK [CAPABILITY IMAP4rev1 IDLE NOTIFY] ready",
+            "C: 1 LOGIN \"user\" \"pass\"",
+            "S: 1 OK Logged in",
+            "C: 2 LIST \"\" \"\"",
+            "S: * LIST (\\Noselect) \"/\" \"\"",
+            "S: 2 OK List completed",
+            "C: 3 NOTIFY SET (mailboxes (\"INBOX\" \"Work\") (MessageNew MessageExpunge))",
+            "S: 3 NO [NOTIFICATIONOVERFLOW] Too many mailboxes"
+        });
+        // One connection for each folder pusher, in no particular order
+        for (int i = 0; i < 2; i++) {
+            scripts.add(new String[] {
+                "S: * OK [CAPABILITY IMAP4rev1 IDLE NOTIFY] ready",
+                "C: 1 LOGIN \"user\" \"pass\"",
+                "S: 1 OK Logged in"
+            });
+        }
+        mServer = new ScriptedImapServer(scripts);
+        mServer.start();
+
+        Preferences preferences = Preferences.getPreferences(K9.app);
+        preferences.getAccounts();
+        mAccount = preferences.newAccount();
+        mAccount.setStoreUri(mServer.getStoreUri());
+        mAccount.setPushPollOnConnect(false);
+
+        mPusher = new ImapStore(mAccount).getPusher(new RecordingPushReceiver());
+        mPusher.start(Arrays.asList("INBOX", "Work"));
+
+        assertTrue(mServer.getError(), mServer.isDone());
+        List<String> commands = mServer.getUnexpectedCommands();
+        assertTrue(commands.toString(), containsCommand(commands, "EXAMINE \"INBOX\""));
+        assertTrue(commands.toString(), containsCommand(commands, "EXAMINE \"Work\""));
+        assertFalse(commands.toString(), containsCommand(commands, "NOTIFY"));
+    }
+
+    private static boolean containsCommand(List<String> commands, String command) {
+        for (String line : commands) {
+            if (line.contains(command)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class RecordingPushReceiver implements PushReceiver {
+        final CountDownLatch mSynced = new CountDownLatch(1);
+        volatile String mSyncedFolder;
+        volatile int mSyncedFolderMode;
+
+        @Override
+        public Context getContext() {
+            return K9.app;
+        }
+
+        @Override
+        public void syncFolder(Folder folder) {
+            mSyncedFolder = folder.getName();
+            mSyncedFolderMode = folder.getMode();
+            mSynced.countDown();
+        }
+
+        @Override
+        public void messagesArrived(Folder folder, List<Message> mess) {
+        }
+
+        @Override
+        public void messagesFlagsChanged(Folder folder, List<Message> mess) {
+        }
+
+        @Override
+        public void messagesRemoved(Folder folder, List<Message> mess) {
+        }
+
+        @Override
+        public String getPushState(String folderName) {
+            return null;
+        }
+
+        @Override
+        public void pushError(String errorMessage, Exception e) {
+        }
+
+        @Override
+        public void setPushActive(String folderName, boolean enabled) {
+        }
+
+        @Override
+        public void sleep(TracingWakeLock wakeLock, long millis) {
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.fsck.k9.mail.store;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import com.fsck.k9.mail.store.imap.ImapUtility;
+import junit.framework.TestCase;
+
+/**
+ * Runs the CONDSTORE/QRESYNC (RFC 7162) exchange of {@link ImapStore.ImapFolder} against a
+ * scripted server.
+ */
+public class ImapQresyncTest extends TestCase {
+    private static final String GREETING_QRESYNC =
+        "S: * OK [CAPABILITY IMAP4rev1 ENABLE CONDSTORE QRESYNC] ready";
+    private static final String GREETING_PLAIN =
+        "S: * OK [CAPABILITY IMAP4rev1] ready";
+
+    private ScriptedImapServer mServer;
+    private Account mAccount;
+    private Folder mFolder;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mFolder != null) {
+            mFolder.close();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+        if (mAccount != null) {
+            Preferences.getPreferences(K9.app).deleteAccount(mAccount);
+        }
+        super.tearDown();
+    }
+
+    public void testOpenReadsModSeqState() throws Exception {
+        openInbox(
+            GREETING_QRESYNC,
+            "C: 1 LOGIN \"user\" \"pass\"",
+            "S: 1 OK Logged in",
+            "C: 2 ENABLE QRESYNC",
+            "S: * ENABLED QRESYNC",
+            "S: 2 OK Enabled",
+            "C: 3 LIST \"\" \"\"",
+            "S: * LIST (\\Noselect) \"/\" \"\"",
+            "S: 3 OK List completed",
+            "C: 4 SELECT \"INBOX\"",
+            "S: * 50000 EXISTS",
+            "S: * OK [UIDVALIDITY 3857529045] UIDs valid",
+            "S: * OK [HIGHESTMODSEQ 715194045007] Highest",
+            "S: 4 OK [READ-WRITE] Select completed");
+
+        assertTrue(mFolder.supportsModSeqSync());
+        assertEquals(50000, mFolder.getMessageCount());
+        assertEquals(3857529045L, mFolder.getUidValidity());
+        assertEquals(715194045007L, mFolder.getHighestModSeq());
+        assertScriptCompleted();
+    }
+
+    public void testMailboxWithoutModSeq() throws Exception {
+        openInbox(
+            GREETING_QRESYNC,
+            "C: 1 LOGIN \"user\" \"pass\"",
+            "S: 1 OK Logged in",
+            "C: 2 ENABLE QRESYNC",
+            "S: * ENABLED QRESYNC",
+            "S: 2 OK Enabled",
+            "C: 3 LIST \"\" \"\"",
+            "S: * LIST (\\Noselect) \"/\" \"\"",
+            "S: 3 OK List completed",
+            "C: 4 SELECT \"INBOX\"",
+            "S: * 23 EXISTS",
+            "S: * OK [UIDVALIDITY 1125022061] UIDs valid",
+            "S: * OK [NOMODSEQ] Sorry, this mailbox format doesn't support modsequences",
+            "S: 4 OK [READ-WRITE] Select completed");
+
+        assertFalse(mFolder.supportsModSeqSync());
+        assertEquals(1125022061L, mFolder.getUidValidity());
+        assertScriptCompleted();
+    }
+
+    public void testChangedSinceReportsFlagsAndVanishedUids() throws Exception {
+        openInbox(
+            GREETING_QRESYNC,
+            "C: 1 LOGIN \"user\" \"pass\"",
+            "S: 1 OK Logged in",
+            "C: 2 ENABLE QRESYNC",
+            "S: * ENABLED QRESYNC",
+            "S: 2 OK Enabled",
+            "C: 3 LIST \"\" \"\"",
+            "S: * LIST (\\Noselect) \"/\" \"\"",
+            "S: 3 OK List completed",
+            "C: 4 SELECT \"INBOX\"",
+            "S: * 50000 EXISTS",
+            "S: * OK [UIDVALIDITY 3857529045] UIDs valid",
+            "S: * OK [HIGHESTMODSEQ 12121231000] Highest",
+            "S: 4 OK [READ-WRITE] Select completed",
+            "C: 5 UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE 12111230047 VANISHED)",
+            "S: * VANISHED (EARLIER) 300:303,405",
+            "S: * 1 FETCH (UID 4 MODSEQ (12121231000) FLAGS (\\Seen))",
+            "S: * 2 FETCH (UID 6 MODSEQ (12121230852) FLAGS (\\Deleted))",
+            "S: * VANISHED 411",
+            "S: 5 OK Fetch completed");
+
+        List<String> vanished = new ArrayList<String>();
+        Message[] changed = mFolder.getMessagesChangedSince(12111230047L, vanished, null);
+
+        assertEquals(6, vanished.size());
+        assertEquals("300", vanished.get(0));
+        assertEquals("405", vanished.get(4));
+        assertEquals("411", vanished.get(5));
+        assertEquals(2, changed.length);
+        assertEquals("4", changed[0].getUid());
+        assertTrue(changed[0].isSet(Flag.SEEN));
+        assertFalse(changed[0].isSet(Flag.DELETED));
+        assertEquals("6", changed[1].getUid());
+        assertTrue(changed[1].isSet(Flag.DELETED));
+        assertFalse(changed[1].isSet(Flag.SEEN));
+        assertScriptCompleted();
+    }
+
+    public void testServerWithoutQresync() throws Exception {
+        openInbox(
+            GREETING_PLAIN,
+            "C: 1 LOGIN \"user\" \"pass\"",
+            "S: 1 OK Logged in",
+            "C: 2 LIST \"\" \"\"",
+            "S: * LIST (\\Noselect) \"/\" \"\"",
+            "S: 2 OK List completed",
+            "C: 3 SELECT \"INBOX\"",
+            "S: * 23 EXISTS",
+            "S: * OK [UIDVALIDITY 1125022061] UIDs valid",
+            "S: 3 OK [READ-WRITE] Select completed");
+
+        assertFalse(mFolder.supportsModSeqSync());
+        assertEquals(1125022061L, mFolder.getUidValidity());
+        try {
+            mFolder.getMessagesChangedSince(1L, new ArrayList<String>(), null);
+            fail("Expected MessagingException");
+        } catch (MessagingException e) {
+            // The command must not be sent at all
+        }
+        assertScriptCompleted();
+    }
+
+    public void testRejectedEnableFallsBack() throws Exception {
+        openInbox(
+            GREETING_QRESYNC,
+            "C: 1 LOGIN \"user\" \"pass\"",
+            "S: 1 OK Logged in",
+            "C: 2 ENABLE QRESYNC",
+            "S: 2 BAD Unknown command",
+            "C: 3 LIST \"\" \"\"",
+            "S: * LIST (\\Noselect) \"/\" \"\"",
+            "S: 3 OK List completed",
+            "C: 4 SELECT \"INBOX\"",
+            "S: * 23 EXISTS",
+            "S: * OK [UIDVALIDITY 1125022061] UIDs valid",
+            "S: * OK [HIGHESTMODSEQ 715194045007] Highest",
+            "S: 4 OK [READ-WRITE] Select completed");
+
+        // HIGHESTMODSEQ alone isn't enough, VANISHED responses need QRESYNC to be enabled
+        assertFalse(mFolder.supportsModSeqSync());
+        assertScriptCompleted();
+    }
+
+    public void testVanishedParsing() throws Exception {
+        ImapResponseParser parser = new ImapResponseParser(new PeekableInputStream(
+                new ByteArrayInputStream("* VANISHED 1:3\r\n* 3 EXPUNGE\r\n".getBytes())));
+
+        ImapResponse vanished = parser.readResponse();
+        assertTrue(ImapUtility.isVanishedResponse(vanished));
+        assertFalse(ImapUtility.isVanishedEarlier(vanished));
+        assertEquals(3, ImapUtility.getVanishedUids(vanished).size());
+
+        ImapResponse expunge = parser.readResponse();
+        assertFalse(ImapUtility.isVanishedResponse(expunge));
+        assertTrue(ImapUtility.getVanishedUids(expunge).isEmpty());
+    }
+
+    private void openInbox(String... script) throws Exception {
+        mServer = new ScriptedImapServer(script);
+        mServer.start();
+
+        Preferences preferences = Preferences.getPreferences(K9.app);
+        preferences.getAccounts();
+        mAccount = preferences.newAccount();
+        mAccount.setStoreUri(mServer.getStoreUri());
+
+        ImapStore store = new ImapStore(mAccount);
+        mFolder = store.getFolder(mAccount.getInboxFolderName());
+        mFolder.open(Folder.OPEN_MODE_RW);
+    }
+
+    private void assertScriptCompleted() throws InterruptedException {
+        mFolder.close();
+        mFolder = null;
+        assertTrue(mServer.getError(), mServer.isDone());
+        assertEquals(new ArrayList<String>(), mServer.getUnexpectedCommands());
+    }
+}
@@ -0,0 +1,34 @@
+package com.fsck.k9.mail.store;
+
+import junit.framework.TestCase;
+
+import com.fsck.k9.mail.Flag;
+
+public class LocalStoreFlagBitsTest extends TestCase {
+
+    public void testColumnFlagsHaveNoBit() {
+        assertEquals(0, LocalStore.getFlagBit(Flag.DELETED));
+        assertEquals(0, LocalStore.getFlagBit(Flag.SEEN));
+        assertEquals(0, LocalStore.getFlagBit(Flag.FLAGGED));
+        assertEquals(0, LocalStore.getFlagBit(Flag.ANSWERED));
+        assertEquals(0, LocalStore.getFlagBit(Flag.FORWARDED));
+    }
+
+    public void testOtherFlagsHaveDistinctBits() {
+        int seen = 0;
+        for (Flag flag : Flag.values()) {
+            int bit = LocalStore.getFlagBit(flag);
+            if (bit == 0) {
+                // Must be stored in a column instead
+                if (flag != Flag.DELETED) {
+                    LocalStore.getColumnNameForFlag(flag);
+                }
+                continue;
+            }
+
+            assertEquals("Not a single bit: " + flag, 1, Integer.bitCount(bit));
+            assertEquals("Bit used twice: " + flag, 0, seen & bit);
+            seen |= bit;
+        }
+    }
+}
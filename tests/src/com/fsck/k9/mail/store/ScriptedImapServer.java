@@ -0,0 +1,216 @@
+package com.fsck.k9.mail.store;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Minimal IMAP server that plays a script for each connection.
+ *
+ * <p>
+ * Lines starting with {@code "C: "} are expected from the client in this order, lines starting
+ * with {@code "S: "} are sent to the client. A script usually starts with the server greeting.
+ * Once the script is finished, the server keeps reading for a moment and records any
+ * further commands the client sent, so tests can check that no extra round trips happened.
+ * </p>
+ * <p>
+ * If the client opens more than one connection, the scripts are assigned in the order the
+ * connections are made.
+ * </p>
+ */
+public class ScriptedImapServer extends Thread {
+    private static final int TRAILING_COMMAND_TIMEOUT = 1000;
+
+    private final ServerSocket mServerSocket;
+    private final List<String[]> mScripts;
+    private final List<ScriptedConnection> mConnections =
+        Collections.synchronizedList(new ArrayList<ScriptedConnection>());
+    private volatile String mError;
+
+    public ScriptedImapServer(String... script) throws IOException {
+        this(Collections.singletonList(script));
+    }
+
+    /**
+     * @param scripts
+     *         One script per connection.
+     */
+    public ScriptedImapServer(List<String[]> scripts) throws IOException {
+        super("ScriptedImapServer");
+        mServerSocket = new ServerSocket(0);
+        mScripts = scripts;
+        setDaemon(true);
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * @return A store URI that logs in as {@code "user"} with password {@code "pass"} and uses
+     *         an empty path prefix, so no {@code NAMESPACE} command is sent.
+     */
+    public String getStoreUri() {
+        return "imap://PLAIN:user:pass@127.0.0.1:" + getPort() + "/0%7C";
+    }
+
+    /**
+     * Waits for the server to finish.
+     *
+     * @return {@code true} if the client made all connections and sent all expected commands.
+     */
+    public boolean isDone() throws InterruptedException {
+        join(10000);
+        if (isAlive()) {
+            return false;
+        }
+        for (ScriptedConnection connection : getConnections()) {
+            connection.join(10000);
+            if (!connection.mDone) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return A description of the first deviation from the scripts, or {@code null}.
+     */
+    public String getError() {
+        if (mError != null) {
+            return mError;
+        }
+        for (ScriptedConnection connection : getConnections()) {
+            if (connection.mError != null) {
+                return connection.mError;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The commands the client sent after the end of the scripts.
+     */
+    public List<String> getUnexpectedCommands() {
+        List<String> commands = new ArrayList<String>();
+        for (ScriptedConnection connection : getConnections()) {
+            commands.addAll(connection.mUnexpectedCommands);
+        }
+        return commands;
+    }
+
+    /**
+     * @return {@code true} if the client closed all connections after the end of the scripts.
+     *         Connections that are kept for reuse stay open.
+     */
+    public boolean isClosedByClient() throws InterruptedException {
+        isDone();
+        for (ScriptedConnection connection : getConnections()) {
+            if (!connection.mClosedByClient) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void close() throws IOException {
+        mServerSocket.close();
+        for (ScriptedConnection connection : getConnections()) {
+            Socket socket = connection.mSocket;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    private List<ScriptedConnection> getConnections() {
+        synchronized (mConnections) {
+            return new ArrayList<ScriptedConnection>(mConnections);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (String[] script : mScripts) {
+                ScriptedConnection connection = new ScriptedConnection(mServerSocket.accept(), script);
+                mConnections.add(connection);
+                connection.start();
+            }
+        } catch (IOException e) {
+            mError = "Only " + mConnections.size() + " of " + mScripts.size() +
+                    " connections were made: " + e;
+        }
+    }
+
+    private static class ScriptedConnection extends Thread {
+        final Socket mSocket;
+        final String[] mScript;
+        final List<String> mUnexpectedCommands =
+            Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean mDone;
+        volatile boolean mClosedByClient;
+        volatile String mError;
+
+        ScriptedConnection(Socket socket, String[] script) {
+            super("ScriptedImapServer connection");
+            mSocket = socket;
+            mScript = script;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(mSocket.getInputStream(), "US-ASCII"));
+                OutputStream out = mSocket.getOutputStream();
+
+                for (String step : mScript) {
+                    if (step.startsWith("S: ")) {
+                        out.write((step.substring(3) + "\r\n").getBytes("US-ASCII"));
+                        continue;
+                    }
+
+                    out.flush();
+                    String expected = step.substring(3);
+                    String line = in.readLine();
+                    if (!expected.equals(line)) {
+                        mError = "Expected '" + expected + "' but got '" + line + "'";
+                        return;
+                    }
+                }
+                out.flush();
+                mDone = true;
+
+                mSocket.setSoTimeout(TRAILING_COMMAND_TIMEOUT);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    mUnexpectedCommands.add(line);
+                }
+                mClosedByClient = true;
+            } catch (SocketTimeoutException e) {
+                // The client didn't send anything else
+            } catch (IOException e) {
+                // Client went away, possibly with responses left unread
+                if (mDone) {
+                    mClosedByClient = true;
+                } else if (mError == null) {
+                    mError = e.toString();
+                }
+            } finally {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
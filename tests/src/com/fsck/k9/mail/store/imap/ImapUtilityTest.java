@@ -144,4 +144,31 @@ public class ImapUtilityTest extends TestCase {
         actual = ImapUtility.getImapRangeValues("1:*");
         MoreAsserts.assertEquals(expected, actual.toArray());
     }
+
+    /**
+     * Test building a sequence set from a list of UIDs.
+     */
+    public void testToSequenceSet() {
+        assertEquals("", ImapUtility.toSequenceSet(new String[0]));
+        assertEquals("7", ImapUtility.toSequenceSet(new String[] {"7"}));
+        assertEquals("1:3", ImapUtility.toSequenceSet(new String[] {"3", "1", "2"}));
+        assertEquals("1:3,5", ImapUtility.toSequenceSet(new String[] {"5", "2", "1", "3", "2"}));
+        assertEquals("4294967294:4294967295",
+                ImapUtility.toSequenceSet(new String[] {"4294967295", "4294967294"}));
+
+        String[] uids = new String[50 + 1 + 21];
+        int i = 0;
+        for (int uid = 1; uid <= 50; uid++) {
+            uids[i++] = Integer.toString(uid);
+        }
+        uids[i++] = "60";
+        for (int uid = 90; uid >= 70; uid--) {
+            uids[i++] = Integer.toString(uid);
+        }
+        assertEquals("1:50,60,70:90", ImapUtility.toSequenceSet(uids));
+
+        // Values that aren't valid UIDs are kept as they are
+        assertEquals("1:2,x", ImapUtility.toSequenceSet(new String[] {"x", "2", "1"}));
+        assertEquals("0", ImapUtility.toSequenceSet(new String[] {"0"}));
+    }
 }
@@ -0,0 +1,158 @@
+package com.fsck.k9.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares the {@code LIKE '%term%'} search that {@link SqlQueryBuilder} used for message
+ * contents with a {@code MATCH} query against the {@code messages_fulltext} index.
+ *
+ * <p>
+ * A synthetic corpus of {@value #MESSAGE_COUNT} message bodies is stored in an in-memory
+ * database using the same table layout as {@code LocalStore}. Timings are written to the log
+ * with the tag {@value #LOG_TAG}.
+ * </p>
+ */
+public class FullTextSearchBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "FullTextSearchBenchmark";
+
+    private static final int MESSAGE_COUNT = 10000;
+    private static final int WORDS_PER_MESSAGE = 300;
+    private static final int ITERATIONS = 5;
+
+    private static final String[] VOCABULARY = {
+        "meeting", "report", "quarterly", "invoice", "schedule", "project", "review", "budget",
+        "deadline", "release", "customer", "feedback", "holiday", "travel", "conference",
+        "agenda", "minutes", "proposal", "contract", "update", "question", "answer", "thanks",
+        "regards", "tomorrow", "yesterday", "morning", "afternoon", "server", "database",
+        "network", "mobile", "android", "email", "folder", "attachment", "calendar", "contact",
+        "password", "account", "security", "backup", "storage", "performance", "search", "index"
+    };
+
+    private SQLiteDatabase mDb;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE messages (id INTEGER PRIMARY KEY, text_content TEXT)");
+        try {
+            mDb.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (fulltext)");
+        } catch (SQLiteException e) {
+            mDb.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts3 (fulltext)");
+        }
+
+        Random random = new Random(42);
+        ContentValues cv = new ContentValues();
+        mDb.beginTransaction();
+        try {
+            for (int i = 1; i <= MESSAGE_COUNT; i++) {
+                String text = createText(random, i);
+
+                cv.clear();
+                cv.put("id", i);
+                cv.put("text_content", text);
+                mDb.insert("messages", null, cv);
+
+                cv.clear();
+                cv.put("docid", i);
+                cv.put("fulltext", text);
+                mDb.insert("messages_fulltext", null, cv);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testLikeVersusMatch() {
+        // A rare word, a common word and a word that only occurs together with another
+        String[] terms = { "zeppelin", "budget", "invoice 4711" };
+
+        for (String term : terms) {
+            List<Long> likeResult = null;
+            List<Long> matchResult = null;
+
+            long likeStart = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                likeResult = queryLike(term);
+            }
+            long likeNanos = (System.nanoTime() - likeStart) / ITERATIONS;
+
+            long matchStart = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                matchResult = queryMatch(term);
+            }
+            long matchNanos = (System.nanoTime() - matchStart) / ITERATIONS;
+
+            Log.i(LOG_TAG, String.format("\"%s\": %d hits, LIKE %.1f ms, MATCH %.1f ms", term,
+                    matchResult.size(), likeNanos / 1e6, matchNanos / 1e6));
+
+            // The corpus only contains whole words, so both searches have to find the same messages
+            assertEquals(likeResult, matchResult);
+        }
+    }
+
+    private List<Long> queryLike(String term) {
+        StringBuilder query = new StringBuilder("SELECT id FROM messages WHERE ");
+        List<String> args = new ArrayList<String>();
+        for (String word : term.split(" ")) {
+            if (!args.isEmpty()) {
+                query.append(" AND ");
+            }
+            query.append("text_content LIKE ?");
+            args.add("%" + word + "%");
+        }
+        query.append(" ORDER BY id");
+        return queryIds(query.toString(), args.toArray(new String[args.size()]));
+    }
+
+    private List<Long> queryMatch(String term) {
+        return queryIds("SELECT id FROM messages WHERE id IN " +
+                "(SELECT docid FROM messages_fulltext WHERE messages_fulltext MATCH ?) ORDER BY id",
+                new String[] { SqlQueryBuilder.buildFullTextQuery(term) });
+    }
+
+    private List<Long> queryIds(String sql, String[] args) {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cursor = mDb.rawQuery(sql, args);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private static String createText(Random random, int messageNumber) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < WORDS_PER_MESSAGE; i++) {
+            sb.append(VOCABULARY[random.nextInt(VOCABULARY.length)]);
+            sb.append((i % 12 == 11) ? ".\n" : " ");
+        }
+        if (messageNumber % 1000 == 0) {
+            sb.append("zeppelin ");
+        }
+        if (messageNumber % 250 == 0) {
+            sb.append("invoice 4711 ");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,34 @@
+package com.fsck.k9.search;
+
+import junit.framework.TestCase;
+
+public class SqlQueryBuilderTest extends TestCase {
+
+    public void testBuildFullTextQuerySingleWord() {
+        assertEquals("invoice*", SqlQueryBuilder.buildFullTextQuery("Invoice"));
+    }
+
+    public void testBuildFullTextQueryStripsPunctuation() {
+        assertEquals("john* example* com*",
+                SqlQueryBuilder.buildFullTextQuery("\"john@example.com\""));
+    }
+
+    public void testBuildFullTextQueryOperatorsAreWords() {
+        assertEquals("cats* or* dogs*", SqlQueryBuilder.buildFullTextQuery("cats OR dogs"));
+    }
+
+    public void testQueryMatchesNormalizedTextWithNonAsciiCapitals() {
+        String indexed = FullTextNormalizer.normalize("Über den „Ärger“ mit «Öl»");
+        assertEquals("über den ärger mit öl", indexed);
+
+        assertEquals("über* ärger*", SqlQueryBuilder.buildFullTextQuery("Über Ärger"));
+        for (String word : FullTextNormalizer.getWords("Über Ärger öl")) {
+            assertTrue(word, (" " + indexed + " ").contains(" " + word + " "));
+        }
+    }
+
+    public void testBuildFullTextQueryWithoutWords() {
+        assertNull(SqlQueryBuilder.buildFullTextQuery(" -- "));
+        assertNull(SqlQueryBuilder.buildFullTextQuery(""));
+    }
+}
@@ -0,0 +1,209 @@
+package com.fsck.k9.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.controller.MessagingController;
+import com.fsck.k9.controller.MessagingListener;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mail.store.LocalStore;
+import com.fsck.k9.mail.store.LocalStore.LocalFolder;
+import com.fsck.k9.mail.store.LocalStore.LocalMessage;
+import com.fsck.k9.mail.store.LocalStore.SearchResultIterator;
+import com.fsck.k9.search.SearchSpecification.Attribute;
+import com.fsck.k9.search.SearchSpecification.Searchfield;
+
+/**
+ * Compares the way a unified search used to collect its results with the paged, merged search
+ * of {@link MessagingController#searchLocalMessagesSynchronous(LocalSearch, MessagingListener, int)}.
+ *
+ * <p>
+ * {@value #ACCOUNT_COUNT} accounts with {@value #MESSAGES_PER_ACCOUNT} messages each are stored
+ * through {@link LocalFolder}, about a quarter of them unread. The search asks for the unread
+ * messages of all accounts, like the unified inbox. The old way reads every matching message of
+ * every account with {@link LocalStore#searchForMessages(com.fsck.k9.controller.MessageRetrievalListener, LocalSearch)}
+ * and sorts the complete list. The new way merges the {@link SearchResultIterator}s of
+ * {@link LocalStore#searchForMessagesNewestFirst(LocalSearch, int)} with
+ * {@link MergingIterator}, directly and through the controller. Timings for the first
+ * {@value #RESULT_COUNT} results and for the complete result are written to the log with the
+ * tag {@value #LOG_TAG}.
+ * </p>
+ */
+public class UnifiedSearchBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "UnifiedSearchBenchmark";
+
+    private static final String FOLDER_NAME = "UnifiedSearchBenchmark";
+    private static final int ACCOUNT_COUNT = 5;
+    private static final int MESSAGES_PER_ACCOUNT = 20000;
+    private static final int STORE_BATCH_SIZE = 500;
+    private static final int PAGE_SIZE = 50;
+    private static final int RESULT_COUNT = 100;
+    private static final int ITERATIONS = 3;
+
+    private static final Comparator<Message> NEWEST_FIRST = new Comparator<Message>() {
+        @Override
+        public int compare(Message lhs, Message rhs) {
+            return rhs.getSentDate().compareTo(lhs.getSentDate());
+        }
+    };
+
+    private Account[] mAccounts;
+    private LocalSearch mSearch;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+
+        Preferences preferences = Preferences.getPreferences(getContext());
+        preferences.getAccounts();
+
+        mAccounts = new Account[ACCOUNT_COUNT];
+        mSearch = new LocalSearch(LOG_TAG);
+        mSearch.addAllowedFolder(FOLDER_NAME);
+        mSearch.and(Searchfield.READ, "1", Attribute.NOT_EQUALS);
+
+        for (int account = 0; account < ACCOUNT_COUNT; account++) {
+            mAccounts[account] = preferences.newAccount();
+            mSearch.addAccountUuid(mAccounts[account].getUuid());
+
+            LocalFolder folder = mAccounts[account].getLocalStore().getFolder(FOLDER_NAME);
+            folder.create(FolderType.HOLDS_MESSAGES);
+            folder.open(Folder.OPEN_MODE_RW);
+
+            Message[] batch = new Message[STORE_BATCH_SIZE];
+            for (int i = 0; i < MESSAGES_PER_ACCOUNT; i++) {
+                MimeMessage message = new MimeMessage();
+                message.setUid("message-" + i);
+                message.setFrom(new Address("sender" + i + "@example.com"));
+                message.setSubject("Message " + i + " of account " + account);
+                message.setSentDate(new Date(now - random.nextInt(365 * 24 * 60) * 60000L));
+                message.setBody(new TextBody("Body of message " + i));
+                message.setFlag(Flag.SEEN, random.nextInt(4) != 0);
+
+                batch[i % STORE_BATCH_SIZE] = message;
+                if (i % STORE_BATCH_SIZE == STORE_BATCH_SIZE - 1) {
+                    folder.appendMessages(batch);
+                }
+            }
+            folder.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Preferences preferences = Preferences.getPreferences(getContext());
+        for (Account account : mAccounts) {
+            if (account != null) {
+                account.getLocalStore().delete();
+                preferences.deleteAccount(account);
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testLoadAndSortVersusMerge() throws Exception {
+        List<Message> sorted = null;
+        List<LocalMessage> merged = null;
+        List<LocalMessage> mergedAll = null;
+        List<Message> reported = null;
+
+        long sortStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sorted = loadAndSort();
+        }
+        long sortNanos = (System.nanoTime() - sortStart) / ITERATIONS;
+
+        long firstStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            merged = merge(RESULT_COUNT);
+        }
+        long firstNanos = (System.nanoTime() - firstStart) / ITERATIONS;
+
+        long allStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            mergedAll = merge(-1);
+        }
+        long allNanos = (System.nanoTime() - allStart) / ITERATIONS;
+
+        MessagingController controller = MessagingController.getInstance(getContext());
+        long controllerStart = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            CollectingListener listener = new CollectingListener();
+            controller.searchLocalMessagesSynchronous(mSearch, listener, RESULT_COUNT);
+            reported = listener.mMessages;
+        }
+        long controllerNanos = (System.nanoTime() - controllerStart) / ITERATIONS;
+
+        Log.i(LOG_TAG, String.format("%d results: load and sort %.1f ms, " +
+                "first %d merged %.1f ms, all merged %.1f ms, first %d through controller %.1f ms",
+                sorted.size(), sortNanos / 1e6, RESULT_COUNT, firstNanos / 1e6, allNanos / 1e6,
+                RESULT_COUNT, controllerNanos / 1e6));
+
+        assertEquals(sorted.size(), mergedAll.size());
+        assertEquals(RESULT_COUNT, merged.size());
+        assertEquals(RESULT_COUNT, reported.size());
+        for (int i = 0; i < RESULT_COUNT; i++) {
+            assertEquals(sorted.get(i).getSentDate(), merged.get(i).getSentDate());
+            assertEquals(sorted.get(i).getSentDate(), reported.get(i).getSentDate());
+        }
+    }
+
+    /**
+     * The old search: read all matching messages of each account and sort them.
+     */
+    private List<Message> loadAndSort() throws Exception {
+        List<Message> messages = new ArrayList<Message>();
+        for (Account account : mAccounts) {
+            messages.addAll(Arrays.asList(account.getLocalStore().searchForMessages(null, mSearch)));
+        }
+
+        Collections.sort(messages, NEWEST_FIRST);
+        return messages;
+    }
+
+    private List<LocalMessage> merge(int limit) throws Exception {
+        List<SearchResultIterator> sources = new ArrayList<SearchResultIterator>();
+        for (Account account : mAccounts) {
+            sources.add(account.getLocalStore().searchForMessagesNewestFirst(mSearch, PAGE_SIZE));
+        }
+
+        List<LocalMessage> messages = new ArrayList<LocalMessage>();
+        MergingIterator<LocalMessage> iterator =
+                new MergingIterator<LocalMessage>(sources, NEWEST_FIRST);
+        while ((limit == -1 || messages.size() < limit) && iterator.hasNext()) {
+            messages.add(iterator.next());
+        }
+        return messages;
+    }
+
+
+    private static class CollectingListener extends MessagingListener {
+        final List<Message> mMessages = new ArrayList<Message>();
+
+        @Override
+        public void listLocalMessagesAddMessages(Account account, String folder,
+                List<Message> messages) {
+            mMessages.addAll(messages);
+        }
+    }
+}